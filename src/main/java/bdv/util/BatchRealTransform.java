@@ -0,0 +1,173 @@
+package bdv.util;
+
+import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPositionable;
+import net.imglib2.realtransform.InvertibleWrapped2DTransformAs3D;
+import net.imglib2.realtransform.RealTransform;
+import net.imglib2.realtransform.ThinPlateSplineTransformAdapter;
+import net.imglib2.realtransform.ThinplateSplineTransform;
+import net.imglib2.realtransform.Wrapped2DTransformAs3D;
+import net.imglib2.realtransform.inverse.WrappedIterativeInvertibleRealTransform;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+
+/**
+ * This RealTransform class wraps a {@link RealTransform} and adds a batch evaluation method,
+ * {@link BatchRealTransform#apply(double[][], double[][], int)}, taking blocks of coordinates
+ * as structure of arrays.
+ * <br>
+ * When the wrapped transform is a thin plate spline, possibly wrapped as an iterative invertible transform
+ * and / or as a 2D transform acting on 3D points (as in Warpy registrations), it is evaluated with a
+ * {@link ThinPlateSplineEvaluator}, for single points and for blocks of points. The evaluator is
+ * checked against the wrapped transform on the landmarks when the wrapper is created: the
+ * wrapped transform is used if they do not match. Other transforms are evaluated point by point.
+ * <br>
+ * Copies share the coefficients of the evaluator, so the landmark data is shared between threads, but
+ * an instance should not be used by several threads: use a copy per thread.
+ */
+public class BatchRealTransform implements RealTransform {
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchRealTransform.class);
+
+    final RealTransform origin;
+
+    final ThinPlateSplineEvaluator evaluator;
+
+    final int nDimSource, nDimTarget;
+
+    final double[] tmpSource, tmpTarget;
+
+    public BatchRealTransform(RealTransform origin) {
+        this(origin, createEvaluator(origin));
+    }
+
+    BatchRealTransform(RealTransform origin, ThinPlateSplineEvaluator evaluator) {
+        this.origin = origin;
+        this.evaluator = evaluator;
+        this.nDimSource = origin.numSourceDimensions();
+        this.nDimTarget = origin.numTargetDimensions();
+        this.tmpSource = new double[nDimSource];
+        this.tmpTarget = new double[nDimTarget];
+    }
+
+    /**
+     * @return true if the transform is evaluated with a {@link ThinPlateSplineEvaluator}
+     */
+    public boolean isAccelerated() {
+        return evaluator != null;
+    }
+
+    @Override
+    public int numSourceDimensions() {
+        return nDimSource;
+    }
+
+    @Override
+    public int numTargetDimensions() {
+        return nDimTarget;
+    }
+
+    @Override
+    public void apply(double[] source, double[] target) {
+        if (evaluator == null) {
+            origin.apply(source, target);
+        } else {
+            // Extra dimensions (Z of a 2D transform wrapped as 3D) are unchanged
+            for (int d = evaluator.numDimensions(); d < nDimTarget; d++) {
+                target[d] = source[d];
+            }
+            evaluator.apply(source, target);
+        }
+    }
+
+    @Override
+    public void apply(RealLocalizable realLocalizable, RealPositionable realPositionable) {
+        realLocalizable.localize(tmpSource);
+        apply(tmpSource, tmpTarget);
+        realPositionable.setPosition(tmpTarget);
+    }
+
+    /**
+     * Transforms a block of points
+     * @param source source coordinates, source[d][i] is the coordinate along d of the i-th point
+     * @param target target coordinates, same layout
+     * @param count number of points
+     */
+    public void apply(double[][] source, double[][] target, int count) {
+        if (evaluator == null) {
+            for (int i = 0; i < count; i++) {
+                for (int d = 0; d < nDimSource; d++) tmpSource[d] = source[d][i];
+                origin.apply(tmpSource, tmpTarget);
+                for (int d = 0; d < nDimTarget; d++) target[d][i] = tmpTarget[d];
+            }
+        } else {
+            for (int d = evaluator.numDimensions(); d < nDimTarget; d++) {
+                System.arraycopy(source[d], 0, target[d], 0, count);
+            }
+            evaluator.apply(source, target, count);
+        }
+    }
+
+    @Override
+    public BatchRealTransform copy() {
+        return new BatchRealTransform(origin.copy(), (evaluator == null) ? null : evaluator.copy());
+    }
+
+    public RealTransform getTransform() {
+        return origin;
+    }
+
+    private static ThinPlateSplineEvaluator createEvaluator(RealTransform rt) {
+        if ((rt.numSourceDimensions() != rt.numTargetDimensions()) || (rt.numSourceDimensions() > 3)) return null;
+
+        RealTransform inner = rt;
+        if (inner instanceof Wrapped2DTransformAs3D) {
+            inner = ((Wrapped2DTransformAs3D) inner).transform;
+        } else if (inner instanceof InvertibleWrapped2DTransformAs3D) {
+            inner = ((InvertibleWrapped2DTransformAs3D) inner).transform;
+        }
+        if (inner instanceof WrappedIterativeInvertibleRealTransform) {
+            inner = ((WrappedIterativeInvertibleRealTransform<?>) inner).getTransform();
+        }
+        if (!(inner instanceof ThinplateSplineTransform)) return null;
+
+        ThinPlateR2LogRSplineKernelTransform kernel = ThinPlateSplineTransformAdapter.getKernel((ThinplateSplineTransform) inner);
+        double[][] srcPts = ThinPlateSplineTransformAdapter.getSrcPts(kernel);
+
+        ThinPlateSplineEvaluator evaluator;
+        try {
+            evaluator = new ThinPlateSplineEvaluator(kernel);
+        } catch (UnsupportedOperationException e) {
+            logger.debug("Thin plate spline evaluated point by point: " + e.getMessage());
+            return null;
+        }
+
+        // Checks that both evaluations agree, on the landmarks and slightly away from them
+        int nDims = rt.numSourceDimensions();
+        double[] p = new double[nDims], expected = new double[nDims], actual = new double[nDims];
+        int nChecks = Math.min(kernel.getNumLandmarks(), 100);
+        double extent = 0;
+        for (double[] coordinates : srcPts) {
+            extent = Math.max(extent, Arrays.stream(coordinates).max().orElse(0) - Arrays.stream(coordinates).min().orElse(0));
+        }
+        double tolerance = 1e-6 * (1 + extent);
+        for (int i = 0; i < nChecks; i++) {
+            for (int d = 0; d < nDims; d++) {
+                p[d] = (d < srcPts.length) ? srcPts[d][i] + 0.01 * extent * (d + 1) : 1.5;
+            }
+            rt.apply(p, expected);
+            for (int d = evaluator.numDimensions(); d < nDims; d++) actual[d] = p[d];
+            evaluator.apply(p, actual);
+            for (int d = 0; d < nDims; d++) {
+                if (Math.abs(expected[d] - actual[d]) > tolerance) {
+                    logger.warn("Thin plate spline batch evaluation does not match the original transform, it will not be used");
+                    return null;
+                }
+            }
+        }
+        return evaluator;
+    }
+}
@@ -0,0 +1,50 @@
+package bdv.util;
+
+import com.google.gson.*;
+import net.imglib2.realtransform.RealTransform;
+import org.scijava.plugin.Plugin;
+import sc.fiji.persist.IClassRuntimeAdapter;
+
+import java.lang.reflect.Type;
+
+/**
+ * Runtime adapter of {@link BatchRealTransform} class: only the wrapped transform is serialized
+ */
+
+@Plugin(type = IClassRuntimeAdapter.class)
+public class BatchRealTransformAdapter implements IClassRuntimeAdapter<RealTransform, BatchRealTransform> {
+
+    @Override
+    public Class<? extends RealTransform> getBaseClass() {
+        return RealTransform.class;
+    }
+
+    @Override
+    public Class<? extends BatchRealTransform> getRunTimeClass() {
+        return BatchRealTransform.class;
+    }
+
+    @Override
+    public boolean useCustomAdapter() {
+        return true;
+    }
+
+    @Override
+    public BatchRealTransform deserialize(JsonElement jsonElement, Type type, JsonDeserializationContext jsonDeserializationContext) throws JsonParseException {
+        JsonObject obj = jsonElement.getAsJsonObject();
+
+        RealTransform rt = jsonDeserializationContext.deserialize(obj.get("realTransform"), RealTransform.class);
+
+        return new BatchRealTransform(rt);
+    }
+
+    @Override
+    public JsonElement serialize(BatchRealTransform brt, Type type, JsonSerializationContext jsonSerializationContext) {
+
+        JsonObject obj = new JsonObject();
+
+        obj.add("realTransform", jsonSerializationContext.serialize(brt.getTransform(), RealTransform.class));
+
+        return obj;
+    }
+}
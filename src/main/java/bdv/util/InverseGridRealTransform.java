@@ -0,0 +1,748 @@
+package bdv.util;
+
+import net.imglib2.RealInterval;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPositionable;
+import net.imglib2.realtransform.InverseRealTransform;
+import net.imglib2.realtransform.InvertibleRealTransform;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+
+/**
+ * This RealTransform class wraps an {@link InvertibleRealTransform} whose inverse is expensive, typically a thin
+ * plate spline wrapped in a WrappedIterativeInvertibleRealTransform, where each inverse point is found
+ * by an iterative solve. The inverse is sampled once, with the iterative solve, on an adaptive grid covering a region,
+ * and stored as a float displacement field which is linearly interpolated (bilinear for a 2D region, trilinear for a 3D
+ * region) in {@link InverseGridRealTransform#applyInverse(double[], double[])}.
+ * The forward transform is the one of the wrapped transform.
+ * <br>
+ * The region is divided into coarse cubic cells. For each cell, the interpolated inverse is compared to the exact
+ * inverse at the middle of the edges, faces and center of the cell, where the interpolation error of a smooth field
+ * is the largest. If the error is above half of the tolerance (a margin for the error between these points), the cell is divided into 2, 4, ... sub cells per dimension,
+ * up to a maximal refinement, and checked again. Cells which can not reach the tolerance, or where the
+ * iterative solve does not converge, are flagged: the inverse of points in these cells, and of points outside
+ * the region, is computed by the wrapped transform. The largest error measured over all cells is given by
+ * {@link InverseGridRealTransform#getMaxError()}.
+ * <br>
+ * Dimensions where the region is flat (min = max) are not sampled: the inverse is assumed not to depend on them,
+ * as for a 2D transform wrapped as a 3D transform. This is checked when the grid is created.
+ * <br>
+ * Copies share the displacement field.
+ */
+public class InverseGridRealTransform implements InvertibleRealTransform {
+
+    private static final Logger logger = LoggerFactory.getLogger(InverseGridRealTransform.class);
+
+    /**
+     * Refinement of a cell whose inverse is computed by the wrapped transform
+     */
+    public static final int FALLBACK = -1;
+
+    final InvertibleRealTransform origin;
+
+    final int nDims;
+    final int[] gridDims;
+    final double[] min;
+    final double spacing;
+    final int[] nCells;
+    final double tolerance;
+    final double maxError;
+
+    // Per cell: 0 for a coarse cell, FALLBACK, or the number of sub cells per dimension
+    final int[] cellRefinement;
+    // Per cell: index of the first node of the cell in refined
+    final int[] cellOffset;
+    // Displacements, node major: displacement[node * nDims + d]
+    final float[] coarse;
+    final float[] refined;
+
+    final int[] coarseCounts, refinedCounts, cellIndex;
+    final double[] cellFraction, tmpSource, tmpTarget;
+
+    /**
+     * Creates the transform from a sampled displacement field, see {@link InverseGridRealTransform#create}
+     * @param origin wrapped transform
+     * @param gridDims dimensions sampled by the grid
+     * @param min min of the region, in all dimensions
+     * @param spacing size of the coarse cells
+     * @param nCells number of coarse cells along each grid dimension
+     * @param tolerance tolerance used to sample the field
+     * @param maxError largest error measured while sampling the field
+     * @param cellRefinement refinement of each cell, in row major order
+     * @param coarse displacements at the nodes of the coarse cells
+     * @param refined displacements at the nodes of the refined cells, cell after cell
+     */
+    public InverseGridRealTransform(InvertibleRealTransform origin, int[] gridDims, double[] min, double spacing,
+                                    int[] nCells, double tolerance, double maxError,
+                                    int[] cellRefinement, float[] coarse, float[] refined) {
+        this.origin = origin;
+        this.nDims = origin.numSourceDimensions();
+        this.gridDims = gridDims;
+        this.min = min;
+        this.spacing = spacing;
+        this.nCells = nCells;
+        this.tolerance = tolerance;
+        this.maxError = maxError;
+        this.cellRefinement = cellRefinement;
+        this.coarse = coarse;
+        this.refined = refined;
+
+        this.cellOffset = new int[cellRefinement.length];
+        int offset = 0;
+        for (int cell = 0; cell < cellRefinement.length; cell++) {
+            cellOffset[cell] = offset;
+            if (cellRefinement[cell] > 0) offset += pow(cellRefinement[cell] + 1, gridDims.length);
+        }
+        if ((long) offset * nDims != refined.length) {
+            throw new IllegalArgumentException("The refined displacements do not match the cell refinements");
+        }
+
+        this.coarseCounts = new int[gridDims.length];
+        for (int g = 0; g < gridDims.length; g++) coarseCounts[g] = nCells[g] + 1;
+        this.refinedCounts = new int[gridDims.length];
+        this.cellIndex = new int[gridDims.length];
+        this.cellFraction = new double[gridDims.length];
+        this.tmpSource = new double[nDims];
+        this.tmpTarget = new double[nDims];
+    }
+
+    private InverseGridRealTransform(InverseGridRealTransform other) {
+        this(other.origin.copy(), other.gridDims, other.min, other.spacing, other.nCells, other.tolerance,
+                other.maxError, other.cellRefinement, other.coarse, other.refined);
+    }
+
+    @Override
+    public int numSourceDimensions() {
+        return nDims;
+    }
+
+    @Override
+    public int numTargetDimensions() {
+        return nDims;
+    }
+
+    @Override
+    public void apply(double[] source, double[] target) {
+        origin.apply(source, target);
+    }
+
+    @Override
+    public void apply(RealLocalizable realLocalizable, RealPositionable realPositionable) {
+        origin.apply(realLocalizable, realPositionable);
+    }
+
+    @Override
+    public void applyInverse(double[] source, double[] target) {
+        int cell = 0, cellStride = 1;
+        for (int g = 0; g < gridDims.length; g++) {
+            double t = (target[gridDims[g]] - min[gridDims[g]]) / spacing;
+            if (!((t >= 0) && (t <= nCells[g]))) { // Also catches NaN
+                origin.applyInverse(source, target);
+                return;
+            }
+            int c = Math.min((int) t, nCells[g] - 1);
+            cellIndex[g] = c;
+            cellFraction[g] = t - c;
+            cell += c * cellStride;
+            cellStride *= nCells[g];
+        }
+
+        int refinement = cellRefinement[cell];
+        if (refinement == FALLBACK) {
+            origin.applyInverse(source, target);
+            return;
+        }
+
+        if (refinement == 0) {
+            interpolate(coarse, 0, coarseCounts, cellIndex, cellFraction, target, source);
+        } else {
+            for (int g = 0; g < gridDims.length; g++) {
+                double s = cellFraction[g] * refinement;
+                int c = Math.min((int) s, refinement - 1);
+                cellIndex[g] = c;
+                cellFraction[g] = s - c;
+                refinedCounts[g] = refinement + 1;
+            }
+            interpolate(refined, cellOffset[cell], refinedCounts, cellIndex, cellFraction, target, source);
+        }
+    }
+
+    /**
+     * Linear interpolation of the displacement within a cell of a grid of nodes, added to the input position
+     */
+    private void interpolate(float[] displacement, int nodeOffset, int[] counts, int[] index, double[] fraction,
+                             double[] in, double[] out) {
+        for (int d = 0; d < nDims; d++) out[d] = in[d];
+        int n = gridDims.length;
+        for (int corner = 0; corner < (1 << n); corner++) {
+            double weight = 1;
+            int node = 0, stride = 1;
+            for (int g = 0; g < n; g++) {
+                int bit = (corner >> g) & 1;
+                weight *= (bit == 1) ? fraction[g] : 1 - fraction[g];
+                node += (index[g] + bit) * stride;
+                stride *= counts[g];
+            }
+            if (weight == 0) continue;
+            int base = (nodeOffset + node) * nDims;
+            for (int d = 0; d < nDims; d++) {
+                out[d] += weight * displacement[base + d];
+            }
+        }
+    }
+
+    @Override
+    public void applyInverse(RealPositionable realPositionable, RealLocalizable realLocalizable) {
+        realLocalizable.localize(tmpTarget);
+        applyInverse(tmpSource, tmpTarget);
+        realPositionable.setPosition(tmpSource);
+    }
+
+    @Override
+    public InvertibleRealTransform inverse() {
+        return new InverseRealTransform(this);
+    }
+
+    @Override
+    public InverseGridRealTransform copy() {
+        return new InverseGridRealTransform(this);
+    }
+
+    public InvertibleRealTransform getTransform() {
+        return origin;
+    }
+
+    public int[] getGridDimensions() {
+        return gridDims.clone();
+    }
+
+    public double[] getMin() {
+        return min.clone();
+    }
+
+    public double getSpacing() {
+        return spacing;
+    }
+
+    public int[] getNumCells() {
+        return nCells.clone();
+    }
+
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    /**
+     * @return the largest difference between the interpolated inverse and the exact inverse measured when the grid
+     * was sampled, below the tolerance
+     */
+    public double getMaxError() {
+        return maxError;
+    }
+
+    public int[] getCellRefinement() {
+        return cellRefinement.clone();
+    }
+
+    public float[] getCoarseDisplacement() {
+        return coarse.clone();
+    }
+
+    public float[] getRefinedDisplacement() {
+        return refined.clone();
+    }
+
+    /**
+     * @return the number of cells refined to reach the tolerance
+     */
+    public int getNumRefinedCells() {
+        return (int) Arrays.stream(cellRefinement).filter(r -> r > 0).count();
+    }
+
+    /**
+     * @return the number of cells whose inverse is computed by the wrapped transform
+     */
+    public int getNumFallbackCells() {
+        return (int) Arrays.stream(cellRefinement).filter(r -> r == FALLBACK).count();
+    }
+
+    /**
+     * @return the size of the displacement field and of the cell refinements, in bytes
+     */
+    public long getMemoryBytes() {
+        return 4L * (coarse.length + refined.length + cellRefinement.length);
+    }
+
+    /**
+     * Samples the inverse of a transform on an adaptive grid. The sampling is done in parallel, each thread
+     * working on its own copy of the transform.
+     * @param origin transform to invert, with as many source and target dimensions
+     * @param region region where the inverse is sampled, in the target space of the transform. Flat
+     *               dimensions are not sampled
+     * @param spacing size of the coarse cells, in the units of the target space
+     * @param tolerance maximal error of the interpolated inverse, in the units of the source space
+     * @param maxRefinement maximal number of sub cells per dimension of a coarse cell, rounded down to a power of 2
+     * @param nThreads number of threads used for the sampling
+     * @return the transform
+     * @throws IllegalArgumentException if the dimensions do not match, if the region has more than 3 non flat
+     * dimensions, or if the inverse depends on a flat dimension of the region
+     */
+    public static InverseGridRealTransform create(InvertibleRealTransform origin, RealInterval region, double spacing,
+                                                  double tolerance, int maxRefinement, int nThreads) {
+        int nDims = origin.numSourceDimensions();
+        if ((origin.numTargetDimensions() != nDims) || (region.numDimensions() != nDims)) {
+            throw new IllegalArgumentException("The transform and the region should have the same number of dimensions");
+        }
+        int[] gridDims = IntStream.range(0, nDims)
+                .filter(d -> region.realMax(d) > region.realMin(d)).toArray();
+        if ((gridDims.length == 0) || (gridDims.length > 3)) {
+            throw new IllegalArgumentException("The region should have between 1 and 3 non flat dimensions, not " + gridDims.length);
+        }
+        double[] min = new double[nDims];
+        for (int d = 0; d < nDims; d++) min[d] = region.realMin(d);
+        int[] nCells = new int[gridDims.length];
+        for (int g = 0; g < gridDims.length; g++) {
+            nCells[g] = Math.max(1, (int) Math.ceil((region.realMax(gridDims[g]) - min[gridDims[g]]) / spacing));
+        }
+
+        GridSampler sampler = new GridSampler(origin, gridDims, min, spacing, nCells, tolerance,
+                Math.max(1, Integer.highestOneBit(Math.max(1, maxRefinement))));
+        sampler.checkFlatDimensions();
+        sampler.run(nThreads);
+        return sampler.toTransform();
+    }
+
+    static int pow(int base, int exponent) {
+        int result = 1;
+        for (int i = 0; i < exponent; i++) result *= base;
+        return result;
+    }
+
+    /**
+     * Samples the inverse on the coarse nodes, then refines each cell until the tolerance is reached
+     */
+    private static class GridSampler {
+
+        // The error between the checked points can be slightly larger than at the checked points
+        static final double safetyFactor = 0.5;
+
+        final InvertibleRealTransform origin;
+        final int nDims;
+        final int[] gridDims;
+        final double[] min;
+        final double spacing;
+        final int[] nCells, nodeCounts;
+        final double tolerance;
+        final int maxRefinement;
+        final int nNodes, nTotalCells;
+
+        final double[] coarse; // NaN where the solve failed
+        final int[] cellRefinement;
+        final float[][] cellNodes;
+        final double[] cellError;
+
+        GridSampler(InvertibleRealTransform origin, int[] gridDims, double[] min, double spacing, int[] nCells,
+                    double tolerance, int maxRefinement) {
+            this.origin = origin;
+            this.nDims = origin.numSourceDimensions();
+            this.gridDims = gridDims;
+            this.min = min;
+            this.spacing = spacing;
+            this.nCells = nCells;
+            this.tolerance = tolerance;
+            this.maxRefinement = maxRefinement;
+            this.nodeCounts = new int[gridDims.length];
+            int nodes = 1, cells = 1;
+            for (int g = 0; g < gridDims.length; g++) {
+                nodeCounts[g] = nCells[g] + 1;
+                nodes *= nodeCounts[g];
+                cells *= nCells[g];
+            }
+            this.nNodes = nodes;
+            this.nTotalCells = cells;
+            this.coarse = new double[nNodes * nDims];
+            this.cellRefinement = new int[nTotalCells];
+            this.cellNodes = new float[nTotalCells][];
+            this.cellError = new double[nTotalCells];
+        }
+
+        void run(int nThreads) {
+            int n = Math.max(1, nThreads);
+            ExecutorService executor = Executors.newFixedThreadPool(n);
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (int k = 0; k < n; k++) {
+                    final int first = k;
+                    futures.add(executor.submit(() -> {
+                        Solver solver = new Solver(origin.copy(), nDims, tolerance, spacing * 1e-4);
+                        double[] position = new double[nDims];
+                        int[] index = new int[gridDims.length];
+                        for (int node = first; node < nNodes; node += n) {
+                            unravel(node, nodeCounts, index);
+                            nodePosition(index, position);
+                            solver.solve(position, coarse, node * nDims);
+                        }
+                    }));
+                }
+                waitFor(futures);
+                futures.clear();
+                for (int k = 0; k < n; k++) {
+                    final int first = k;
+                    futures.add(executor.submit(() -> {
+                        Solver solver = new Solver(origin.copy(), nDims, tolerance, spacing * 1e-4);
+                        for (int cell = first; cell < nTotalCells; cell += n) {
+                            sampleCell(cell, solver);
+                        }
+                    }));
+                }
+                waitFor(futures);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        /**
+         * Refines the cell until the interpolation error at the midpoints of its sub cells is below the tolerance
+         */
+        void sampleCell(int cell, Solver solver) {
+            int n = gridDims.length;
+            int[] cellIdx = new int[n];
+            unravel(cell, nCells, cellIdx);
+
+            // Lattice of m sub cells per dimension, starting with the corners of the cell (m = 1)
+            int m = 1;
+            double[] lattice = new double[pow(2, n) * nDims];
+            int[] corner = new int[n];
+            int[] node = new int[n];
+            for (int c = 0; c < pow(2, n); c++) {
+                unravel(c, 2, corner);
+                for (int g = 0; g < n; g++) node[g] = cellIdx[g] + corner[g];
+                System.arraycopy(coarse, ravel(node, nodeCounts) * nDims, lattice, c * nDims, nDims);
+            }
+            if (hasNaN(lattice)) {
+                cellRefinement[cell] = FALLBACK;
+                return;
+            }
+
+            double[] position = new double[nDims];
+            int[] index = new int[n];
+            while (m <= maxRefinement) {
+                // Samples the midpoints: the lattice of 2m sub cells, reusing the nodes already sampled
+                int m2 = 2 * m;
+                int nPoints = pow(m2 + 1, n);
+                double[] fine = new double[nPoints * nDims];
+                int[] half = new int[n];
+                for (int p = 0; p < nPoints; p++) {
+                    unravel(p, m2 + 1, index);
+                    boolean even = true;
+                    for (int g = 0; g < n; g++) {
+                        even &= (index[g] % 2) == 0;
+                        half[g] = index[g] / 2;
+                    }
+                    if (even) {
+                        System.arraycopy(lattice, ravel(half, m + 1) * nDims, fine, p * nDims, nDims);
+                    } else {
+                        nodePosition(cellIdx, index, m2, position);
+                        solver.solve(position, fine, p * nDims);
+                    }
+                }
+                if (hasNaN(fine)) break;
+
+                double error = interpolationError(fine, m2);
+                if (error <= tolerance * safetyFactor) {
+                    cellError[cell] = error;
+                    if (m == 1) {
+                        cellRefinement[cell] = 0;
+                    } else {
+                        cellRefinement[cell] = m;
+                        float[] values = new float[lattice.length];
+                        for (int i = 0; i < lattice.length; i++) values[i] = (float) lattice[i];
+                        cellNodes[cell] = values;
+                    }
+                    return;
+                }
+                lattice = fine;
+                m = m2;
+            }
+            cellRefinement[cell] = FALLBACK;
+        }
+
+        /**
+         * @return the largest error, at the points with an odd index of a lattice of m2 sub cells per dimension,
+         * between the sampled inverse and the interpolation of the float rounded even points
+         */
+        double interpolationError(double[] fine, int m2) {
+            int n = gridDims.length;
+            int m = m2 / 2;
+            int nPoints = pow(m2 + 1, n);
+            int[] index = new int[n], base = new int[n], corner = new int[n];
+            double[] fraction = new double[n];
+            double[] value = new double[nDims];
+            double maxError = 0;
+            for (int p = 0; p < nPoints; p++) {
+                unravel(p, m2 + 1, index);
+                boolean even = true;
+                for (int g = 0; g < n; g++) {
+                    even &= (index[g] % 2) == 0;
+                    base[g] = Math.min(index[g] / 2, m - 1);
+                    fraction[g] = index[g] / 2.0 - base[g];
+                }
+                if (even) continue;
+                Arrays.fill(value, 0);
+                for (int c = 0; c < pow(2, n); c++) {
+                    unravel(c, 2, corner);
+                    double weight = 1;
+                    for (int g = 0; g < n; g++) {
+                        weight *= (corner[g] == 1) ? fraction[g] : 1 - fraction[g];
+                        corner[g] = 2 * (base[g] + corner[g]);
+                    }
+                    if (weight == 0) continue;
+                    int q = ravel(corner, m2 + 1) * nDims;
+                    for (int d = 0; d < nDims; d++) value[d] += weight * (float) fine[q + d];
+                }
+                double error = 0;
+                for (int d = 0; d < nDims; d++) {
+                    double diff = value[d] - fine[p * nDims + d];
+                    error += diff * diff;
+                }
+                maxError = Math.max(maxError, Math.sqrt(error));
+            }
+            return maxError;
+        }
+
+        /**
+         * Checks, on a few coarse nodes, that the inverse does not depend on the flat dimensions of the region
+         */
+        void checkFlatDimensions() {
+            if (gridDims.length == nDims) return;
+            Solver solver = new Solver(origin.copy(), nDims, tolerance, spacing * 1e-4);
+            double[] position = new double[nDims];
+            double[] reference = new double[nDims], shifted = new double[nDims];
+            int[] index = new int[gridDims.length];
+            int step = Math.max(1, nNodes / 10);
+            for (int node = 0; node < nNodes; node += step) {
+                unravel(node, nodeCounts, index);
+                nodePosition(index, position);
+                solver.solve(position, reference, 0);
+                if (hasNaN(reference)) continue;
+                for (int d = 0; d < nDims; d++) {
+                    if (Arrays.binarySearch(gridDims, d) >= 0) continue;
+                    position[d] += spacing;
+                    solver.solve(position, shifted, 0);
+                    position[d] -= spacing;
+                    for (int k = 0; k < nDims; k++) {
+                        if (Math.abs(shifted[k] - reference[k]) > tolerance) {
+                            throw new IllegalArgumentException("The inverse transform depends on dimension " + d +
+                                    ", where the region is flat");
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Physical position of a point of a cell lattice: cellIdx + index / m, in coarse cells
+         */
+        void nodePosition(int[] cellIdx, int[] index, int m, double[] position) {
+            System.arraycopy(min, 0, position, 0, nDims);
+            for (int g = 0; g < gridDims.length; g++) {
+                position[gridDims[g]] += (cellIdx[g] + (double) index[g] / m) * spacing;
+            }
+        }
+
+        /**
+         * Physical position of a coarse node
+         */
+        void nodePosition(int[] nodeIdx, double[] position) {
+            System.arraycopy(min, 0, position, 0, nDims);
+            for (int g = 0; g < gridDims.length; g++) {
+                position[gridDims[g]] += nodeIdx[g] * spacing;
+            }
+        }
+
+        InverseGridRealTransform toTransform() {
+            float[] coarseValues = new float[coarse.length];
+            for (int i = 0; i < coarse.length; i++) coarseValues[i] = (float) coarse[i];
+            int refinedLength = 0;
+            for (float[] values : cellNodes) {
+                if (values != null) refinedLength += values.length;
+            }
+            float[] refinedValues = new float[refinedLength];
+            int offset = 0;
+            for (float[] values : cellNodes) {
+                if (values == null) continue;
+                System.arraycopy(values, 0, refinedValues, offset, values.length);
+                offset += values.length;
+            }
+            double maxError = Arrays.stream(cellError).max().orElse(0);
+            InverseGridRealTransform transform = new InverseGridRealTransform(origin, gridDims, min, spacing, nCells,
+                    tolerance, maxError, cellRefinement, coarseValues, refinedValues);
+            logger.debug("Inverse grid: " + nTotalCells + " cells, " + transform.getNumRefinedCells() + " refined, " +
+                    transform.getNumFallbackCells() + " computed iteratively, max error " + maxError);
+            return transform;
+        }
+
+        static void unravel(int index, int[] counts, int[] out) {
+            for (int g = 0; g < counts.length; g++) {
+                out[g] = index % counts[g];
+                index /= counts[g];
+            }
+        }
+
+        static void unravel(int index, int count, int[] out) {
+            for (int g = 0; g < out.length; g++) {
+                out[g] = index % count;
+                index /= count;
+            }
+        }
+
+        static int ravel(int[] index, int[] counts) {
+            int result = 0, stride = 1;
+            for (int g = 0; g < counts.length; g++) {
+                result += index[g] * stride;
+                stride *= counts[g];
+            }
+            return result;
+        }
+
+        static int ravel(int[] index, int count) {
+            int result = 0, stride = 1;
+            for (int g = 0; g < index.length; g++) {
+                result += index[g] * stride;
+                stride *= count;
+            }
+            return result;
+        }
+
+        static boolean hasNaN(double[] values) {
+            for (double value : values) {
+                if (Double.isNaN(value)) return true;
+            }
+            return false;
+        }
+
+        static void waitFor(List<Future<?>> futures) {
+            try {
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Inverse grid sampling interrupted");
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Computes the exact inverse displacement at a point: the inverse given by the wrapped transform is polished by
+     * a few Newton steps, with a finite difference jacobian of the forward transform, so that the sampled
+     * inverse does not depend on the convergence criterion of the wrapped iterative solve. The inverse is checked
+     * by applying the forward transform.
+     */
+    private static class Solver {
+
+        static final int maxNewtonSteps = 5;
+
+        final InvertibleRealTransform transform;
+        final int nDims;
+        final double[] source, check, shifted, delta;
+        final double[][] system;
+        final double tolerance, step;
+
+        Solver(InvertibleRealTransform transform, int nDims, double tolerance, double step) {
+            this.transform = transform;
+            this.nDims = nDims;
+            this.source = new double[nDims];
+            this.check = new double[nDims];
+            this.shifted = new double[nDims];
+            this.delta = new double[nDims];
+            this.system = new double[nDims][nDims + 1];
+            this.tolerance = tolerance;
+            this.step = step;
+        }
+
+        /**
+         * Writes the displacement from target to its inverse in out, from offset, or NaN values if the
+         * inverse is not found
+         */
+        void solve(double[] target, double[] out, int offset) {
+            transform.applyInverse(source, target);
+            double residual = residual(target);
+            for (int i = 0; (i < maxNewtonSteps) && (residual > tolerance * 1e-3); i++) {
+                // Jacobian, and residual as last column
+                for (int j = 0; j < nDims; j++) {
+                    source[j] += step;
+                    transform.apply(source, shifted);
+                    source[j] -= step;
+                    for (int k = 0; k < nDims; k++) system[k][j] = (shifted[k] - check[k]) / step;
+                }
+                for (int k = 0; k < nDims; k++) system[k][nDims] = target[k] - check[k];
+                if (!solveLinearSystem(system, delta)) break;
+                for (int j = 0; j < nDims; j++) source[j] += delta[j];
+                double newResidual = residual(target);
+                if (!(newResidual < residual)) { // Also catches NaN
+                    for (int j = 0; j < nDims; j++) source[j] -= delta[j];
+                    residual = residual(target);
+                    break;
+                }
+                residual = newResidual;
+            }
+            boolean valid = residual <= tolerance; // false if NaN
+            for (int d = 0; d < nDims; d++) {
+                out[offset + d] = valid ? source[d] - target[d] : Double.NaN;
+            }
+        }
+
+        /**
+         * Applies the forward transform to source, into check
+         * @return the largest difference with target
+         */
+        double residual(double[] target) {
+            transform.apply(source, check);
+            double residual = 0;
+            for (int d = 0; d < nDims; d++) {
+                residual = Math.max(residual, Math.abs(check[d] - target[d]));
+            }
+            return residual;
+        }
+
+        /**
+         * Gaussian elimination with partial pivoting of an augmented n x (n+1) matrix
+         * @return false if the matrix is singular
+         */
+        static boolean solveLinearSystem(double[][] m, double[] x) {
+            int n = x.length;
+            for (int col = 0; col < n; col++) {
+                int pivot = col;
+                for (int row = col + 1; row < n; row++) {
+                    if (Math.abs(m[row][col]) > Math.abs(m[pivot][col])) pivot = row;
+                }
+                if (!(Math.abs(m[pivot][col]) > 1e-12)) return false;
+                double[] swap = m[col];
+                m[col] = m[pivot];
+                m[pivot] = swap;
+                for (int row = col + 1; row < n; row++) {
+                    double factor = m[row][col] / m[col][col];
+                    for (int k = col; k <= n; k++) m[row][k] -= factor * m[col][k];
+                }
+            }
+            for (int row = n - 1; row >= 0; row--) {
+                double sum = m[row][n];
+                for (int k = row + 1; k < n; k++) sum -= m[row][k] * x[k];
+                x[row] = sum / m[row][row];
+            }
+            return true;
+        }
+    }
+}
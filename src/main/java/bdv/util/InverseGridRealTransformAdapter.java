@@ -0,0 +1,104 @@
+package bdv.util;
+
+import com.google.gson.*;
+import net.imglib2.realtransform.InvertibleRealTransform;
+import net.imglib2.realtransform.RealTransform;
+import org.scijava.plugin.Plugin;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sc.fiji.persist.IClassRuntimeAdapter;
+
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Base64;
+
+/**
+ * Runtime adapter of {@link InverseGridRealTransform} class: the wrapped transform is serialized, together
+ * with the grid and the displacement field. The displacements are stored as base64 encoded little endian floats.
+ */
+
+@Plugin(type = IClassRuntimeAdapter.class)
+public class InverseGridRealTransformAdapter implements IClassRuntimeAdapter<RealTransform, InverseGridRealTransform> {
+
+    private static final Logger logger = LoggerFactory.getLogger(InverseGridRealTransformAdapter.class);
+
+    @Override
+    public Class<? extends RealTransform> getBaseClass() {
+        return RealTransform.class;
+    }
+
+    @Override
+    public Class<? extends InverseGridRealTransform> getRunTimeClass() {
+        return InverseGridRealTransform.class;
+    }
+
+    @Override
+    public boolean useCustomAdapter() {
+        return true;
+    }
+
+    @Override
+    public InverseGridRealTransform deserialize(JsonElement jsonElement, Type type, JsonDeserializationContext jsonDeserializationContext) throws JsonParseException {
+        JsonObject obj = jsonElement.getAsJsonObject();
+
+        RealTransform rt = jsonDeserializationContext.deserialize(obj.get("realTransform"), RealTransform.class);
+
+        if (!(rt instanceof InvertibleRealTransform)) {
+            logger.error("Error during deserialization of InverseGridRealTransform : The serialized transform is not invertible");
+            return null;
+        }
+
+        return new InverseGridRealTransform((InvertibleRealTransform) rt,
+                jsonDeserializationContext.deserialize(obj.get("grid_dimensions"), int[].class),
+                jsonDeserializationContext.deserialize(obj.get("min"), double[].class),
+                obj.get("spacing").getAsDouble(),
+                jsonDeserializationContext.deserialize(obj.get("n_cells"), int[].class),
+                obj.get("tolerance").getAsDouble(),
+                obj.get("max_error").getAsDouble(),
+                jsonDeserializationContext.deserialize(obj.get("cell_refinement"), int[].class),
+                decode(obj.get("coarse_displacement").getAsString()),
+                decode(obj.get("refined_displacement").getAsString()));
+    }
+
+    @Override
+    public JsonElement serialize(InverseGridRealTransform igrt, Type type, JsonSerializationContext jsonSerializationContext) {
+
+        JsonObject obj = new JsonObject();
+
+        obj.add("realTransform", jsonSerializationContext.serialize(igrt.getTransform(), RealTransform.class));
+
+        obj.add("grid_dimensions", jsonSerializationContext.serialize(igrt.getGridDimensions()));
+
+        obj.add("min", jsonSerializationContext.serialize(igrt.getMin()));
+
+        obj.addProperty("spacing", igrt.getSpacing());
+
+        obj.add("n_cells", jsonSerializationContext.serialize(igrt.getNumCells()));
+
+        obj.addProperty("tolerance", igrt.getTolerance());
+
+        obj.addProperty("max_error", igrt.getMaxError());
+
+        obj.add("cell_refinement", jsonSerializationContext.serialize(igrt.getCellRefinement()));
+
+        obj.addProperty("coarse_displacement", encode(igrt.getCoarseDisplacement()));
+
+        obj.addProperty("refined_displacement", encode(igrt.getRefinedDisplacement()));
+
+        return obj;
+    }
+
+    static String encode(float[] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * values.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asFloatBuffer().put(values);
+        return Base64.getEncoder().encodeToString(buffer.array());
+    }
+
+    static float[] decode(String encoded) {
+        ByteBuffer buffer = ByteBuffer.wrap(Base64.getDecoder().decode(encoded)).order(ByteOrder.LITTLE_ENDIAN);
+        float[] values = new float[buffer.remaining() / 4];
+        buffer.asFloatBuffer().get(values);
+        return values;
+    }
+}
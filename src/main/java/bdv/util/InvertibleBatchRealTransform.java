@@ -0,0 +1,57 @@
+package bdv.util;
+
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPositionable;
+import net.imglib2.realtransform.InverseRealTransform;
+import net.imglib2.realtransform.InvertibleRealTransform;
+import net.imglib2.realtransform.RealTransform;
+
+/**
+ * A {@link BatchRealTransform} which is invertible: the forward transform is evaluated as in
+ * {@link BatchRealTransform}, the inverse is delegated to another transform, which should be equivalent
+ * to the forward transform. This is the case of a Warpy registration whose inverse is interpolated from
+ * an {@link InverseGridRealTransform} (see {@link RealTransformHelper#readWarpyTransform(com.google.gson.Gson, java.io.File)}):
+ * its thin plate spline is still evaluated in batch.
+ */
+public class InvertibleBatchRealTransform extends BatchRealTransform implements InvertibleRealTransform {
+
+    final InvertibleRealTransform inverse;
+
+    /**
+     * @param forward transform evaluated in batch
+     * @param inverse transform whose inverse is used, equivalent to the forward transform
+     */
+    public InvertibleBatchRealTransform(RealTransform forward, InvertibleRealTransform inverse) {
+        super(forward);
+        this.inverse = inverse;
+    }
+
+    private InvertibleBatchRealTransform(InvertibleBatchRealTransform other) {
+        super(other.origin.copy(), (other.evaluator == null) ? null : other.evaluator.copy());
+        this.inverse = other.inverse.copy();
+    }
+
+    @Override
+    public void applyInverse(double[] source, double[] target) {
+        inverse.applyInverse(source, target);
+    }
+
+    @Override
+    public void applyInverse(RealPositionable source, RealLocalizable target) {
+        inverse.applyInverse(source, target);
+    }
+
+    @Override
+    public InvertibleRealTransform inverse() {
+        return new InverseRealTransform(this);
+    }
+
+    @Override
+    public InvertibleBatchRealTransform copy() {
+        return new InvertibleBatchRealTransform(this);
+    }
+
+    public InvertibleRealTransform getInverseTransform() {
+        return inverse;
+    }
+}
@@ -0,0 +1,53 @@
+package bdv.util;
+
+import com.google.gson.*;
+import net.imglib2.realtransform.InvertibleRealTransform;
+import net.imglib2.realtransform.RealTransform;
+import org.scijava.plugin.Plugin;
+import sc.fiji.persist.IClassRuntimeAdapter;
+
+import java.lang.reflect.Type;
+
+/**
+ * Runtime adapter of {@link InvertibleBatchRealTransform} class: the forward and the inverse transforms are serialized
+ */
+
+@Plugin(type = IClassRuntimeAdapter.class)
+public class InvertibleBatchRealTransformAdapter implements IClassRuntimeAdapter<RealTransform, InvertibleBatchRealTransform> {
+
+    @Override
+    public Class<? extends RealTransform> getBaseClass() {
+        return RealTransform.class;
+    }
+
+    @Override
+    public Class<? extends InvertibleBatchRealTransform> getRunTimeClass() {
+        return InvertibleBatchRealTransform.class;
+    }
+
+    @Override
+    public boolean useCustomAdapter() {
+        return true;
+    }
+
+    @Override
+    public InvertibleBatchRealTransform deserialize(JsonElement jsonElement, Type type, JsonDeserializationContext jsonDeserializationContext) throws JsonParseException {
+        JsonObject obj = jsonElement.getAsJsonObject();
+
+        RealTransform rt = jsonDeserializationContext.deserialize(obj.get("realTransform"), RealTransform.class);
+        RealTransform inverse = jsonDeserializationContext.deserialize(obj.get("inverseTransform"), RealTransform.class);
+
+        return new InvertibleBatchRealTransform(rt, (InvertibleRealTransform) inverse);
+    }
+
+    @Override
+    public JsonElement serialize(InvertibleBatchRealTransform ibrt, Type type, JsonSerializationContext jsonSerializationContext) {
+
+        JsonObject obj = new JsonObject();
+
+        obj.add("realTransform", jsonSerializationContext.serialize(ibrt.getTransform(), RealTransform.class));
+        obj.add("inverseTransform", jsonSerializationContext.serialize(ibrt.getInverseTransform(), RealTransform.class));
+
+        return obj;
+    }
+}
@@ -3,6 +3,9 @@ package bdv.util;
 import bdv.util.source.field.ITransformFieldSource;
 import bdv.util.source.field.ResampledTransformFieldSource;
 import bdv.viewer.Source;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
 import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
 import net.imglib2.realtransform.*;
 import net.imglib2.realtransform.inverse.WrappedIterativeInvertibleRealTransform;
@@ -10,8 +13,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.List;
 
 public class RealTransformHelper {
 
@@ -23,6 +30,10 @@ public class RealTransformHelper {
             //System.out.println(file.getAbsolutePath());
             file.deleteOnExit();
 
+            if (rt instanceof BatchRealTransform) {
+                rt = ((BatchRealTransform)rt).getTransform();
+            }
+
             if (rt instanceof Wrapped2DTransformAs3D) {
                 rt = ((Wrapped2DTransformAs3D)rt).transform;
             }
@@ -91,9 +102,116 @@ public class RealTransformHelper {
         }
     }
 
+    /**
+     * Samples a transform on the voxels of a model source: the returned transform interpolates the sampled field.
+     * <br>
+     * Only the forward transform is resampled: if the inverse of origin is interpolated from an
+     * {@link InverseGridRealTransform} (see {@link RealTransformHelper#readWarpyTransform(Gson, File)}), the returned
+     * transform is invertible and keeps this inverse.
+     * @param origin transform to sample
+     * @param model source whose voxels are the sampling points
+     * @return the resampled transform
+     */
     public static RealTransform resampleTransform(RealTransform origin, Source<?> model) {
         ITransformFieldSource transformFieldSource = new ResampledTransformFieldSource(origin, model, "undef");
-        return new SourcedRealTransform(transformFieldSource);
+        RealTransform resampled = new SourcedRealTransform(transformFieldSource);
+        if (origin instanceof InvertibleBatchRealTransform) {
+            return new InvertibleBatchRealTransform(resampled, ((InvertibleBatchRealTransform) origin).getInverseTransform());
+        }
+        return resampled;
+    }
+
+    /**
+     * @param transformFile file of a serialized transform, for instance a transform_X_Y.json file of a QuPath project
+     * @return the file where the {@link InverseGridRealTransform} of this transform is stored, in the same folder
+     */
+    public static File getInverseGridFile(File transformFile) {
+        return new File(transformFile.getParentFile(), "inverse_grid_" + transformFile.getName());
+    }
+
+    /**
+     * Writes an {@link InverseGridRealTransform} next to the file of the transform it wraps
+     * @param gson gson able to serialize transforms, see ScijavaGsonHelper
+     * @param inverseGrid the transform, whose wrapped transform is the one serialized in transformFile
+     * @param transformFile file of the serialized transform
+     * @throws IOException if the file can not be written
+     */
+    public static void writeInverseGrid(Gson gson, InverseGridRealTransform inverseGrid, File transformFile) throws IOException {
+        try (Writer writer = new FileWriter(getInverseGridFile(transformFile))) {
+            gson.toJson(inverseGrid, RealTransform.class, writer);
+        }
+    }
+
+    /**
+     * Reads the {@link InverseGridRealTransform} stored next to a transform file, if it is still valid
+     * @param gson gson able to deserialize transforms, see ScijavaGsonHelper
+     * @param transformFile file of the serialized transform
+     * @return the transform, or null if there is no inverse grid file or if it does not wrap the transform
+     * currently serialized in transformFile
+     * @throws IOException if the files can not be read
+     */
+    public static InverseGridRealTransform readInverseGrid(Gson gson, File transformFile) throws IOException {
+        File inverseGridFile = getInverseGridFile(transformFile);
+        if (!inverseGridFile.exists()) return null;
+        JsonElement inverseGrid;
+        JsonElement transform;
+        try (Reader reader = new FileReader(inverseGridFile)) {
+            inverseGrid = JsonParser.parseReader(reader);
+        }
+        try (Reader reader = new FileReader(transformFile)) {
+            transform = JsonParser.parseReader(reader);
+        }
+        if (!inverseGrid.isJsonObject() || !transform.equals(inverseGrid.getAsJsonObject().get("realTransform"))) {
+            logger.warn("The inverse grid " + inverseGridFile.getAbsolutePath() + " does not match the transform file, it is ignored");
+            return null;
+        }
+        RealTransform rt = gson.fromJson(inverseGrid, RealTransform.class);
+        if (!(rt instanceof InverseGridRealTransform)) return null;
+        return (InverseGridRealTransform) rt;
+    }
+
+    /**
+     * Reads a transform file written by Warpy (transform_X_Y.json in a QuPath project), which transforms
+     * fixed pixel coordinates into moving pixel coordinates, and returns the transform in physical coordinates,
+     * as applied to sources (see SourceRealTransformer).
+     * <br>
+     * If a valid {@link InverseGridRealTransform} is stored next to the file (see
+     * {@link RealTransformHelper#readInverseGrid(Gson, File)}), an {@link InvertibleBatchRealTransform} is
+     * returned, whose inverse is interpolated from the grid instead of being computed iteratively.
+     * <br>
+     * A source warped with this transform is sampled with the forward transform only: each fixed voxel reads the
+     * moving source at its forward transform, which never needs the inverse. The inverse maps moving coordinates
+     * back into the fixed space, for instance to transform points from the moving image to the fixed image: these
+     * are the calls interpolated from the grid.
+     * @param gson gson able to deserialize transforms, see ScijavaGsonHelper
+     * @param transformFile the transform file
+     * @return the transform, from fixed physical coordinates to moving physical coordinates
+     * @throws IOException if the files can not be read
+     */
+    public static InvertibleRealTransform readWarpyTransform(Gson gson, File transformFile) throws IOException {
+        InvertibleRealTransformSequence irts;
+        try (Reader reader = new FileReader(transformFile)) {
+            irts = (InvertibleRealTransformSequence) gson.fromJson(reader, RealTransform.class);
+        }
+        List<InvertibleRealTransform> transforms = net.imglib2.realtransform.RealTransformHelper.getTransformSequence(irts);
+        InvertibleRealTransform physical;
+        if (transforms.size() == 3) {
+            physical = transforms.get(1);
+        } else {
+            InvertibleRealTransformSequence sequence = new InvertibleRealTransformSequence();
+            transforms.subList(1, transforms.size() - 1).forEach(sequence::add);
+            physical = sequence;
+        }
+        InverseGridRealTransform inverseGrid = readInverseGrid(gson, transformFile);
+        if (inverseGrid == null) return physical;
+        // The grid wraps the whole sequence, from pixel to pixel coordinates: the pixel conversions, first and
+        // last in the sequence, are cancelled around it
+        logger.debug("Inverse of " + transformFile.getName() + " interpolated from its inverse grid");
+        InvertibleRealTransformSequence physicalFromGrid = new InvertibleRealTransformSequence();
+        physicalFromGrid.add(transforms.get(0).inverse());
+        physicalFromGrid.add(inverseGrid);
+        physicalFromGrid.add(transforms.get(transforms.size() - 1).inverse());
+        return new InvertibleBatchRealTransform(physical, physicalFromGrid);
     }
 
 }
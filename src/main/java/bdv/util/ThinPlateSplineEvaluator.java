@@ -0,0 +1,190 @@
+package bdv.util;
+
+import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
+
+import java.util.Arrays;
+
+/**
+ * Fast evaluation of a thin plate spline, mapping source landmarks onto target landmarks,
+ * for points given as structure of arrays: one double[] per dimension.
+ * <br>
+ * The coefficients are copied from a fitted {@link ThinPlateR2LogRSplineKernelTransform} (kernel r<sup>2</sup>.log(r)),
+ * so that both evaluations are the same spline. The landmarks, the kernel weights and the affine part are stored in
+ * flat arrays, iterated in the inner loop of the evaluation.
+ * <br>
+ * An instance is not thread safe, because blocks of points are accumulated in a scratch buffer: use a
+ * {@link ThinPlateSplineEvaluator#copy()} per thread. Copies share the coefficients.
+ */
+public class ThinPlateSplineEvaluator {
+
+    final int nDims, nLandmarks;
+
+    // Landmark coordinates [dim][landmark]
+    final double[][] landmarks;
+
+    // Kernel weights [dim][landmark]
+    final double[][] weights;
+
+    // Affine part [dim][1 + nDims]: translation, then linear coefficients
+    final double[][] affine;
+
+    // Block accumulator [dim][point], grown as needed
+    double[][] scratch;
+
+    /**
+     * @param kernel fitted thin plate spline, its coefficients are copied
+     */
+    public ThinPlateSplineEvaluator(ThinPlateR2LogRSplineKernelTransform kernel) {
+        nDims = kernel.getNumDims();
+        if ((nDims != 2) && (nDims != 3)) {
+            throw new UnsupportedOperationException("Only 2D and 3D thin plate splines are supported");
+        }
+        nLandmarks = kernel.getNumLandmarks();
+
+        final double[][] srcPts = kernel.getSourceLandmarks();
+        final double[][] knotWeights = kernel.getKnotWeights();
+        landmarks = new double[nDims][];
+        weights = new double[nDims][];
+        for (int d = 0; d < nDims; d++) {
+            landmarks[d] = Arrays.copyOf(srcPts[d], nLandmarks);
+            weights[d] = Arrays.copyOf(knotWeights[d], nLandmarks);
+        }
+
+        // jitk fits the affine part on the displacement: target = source + A.source + b + kernel part
+        final double[][] a = kernel.getAffine();
+        final double[] b = kernel.getTranslation();
+        affine = new double[nDims][nDims + 1];
+        for (int d = 0; d < nDims; d++) {
+            affine[d][0] = (b == null) ? 0 : b[d];
+            for (int k = 0; k < nDims; k++) {
+                affine[d][k + 1] = ((a == null) ? 0 : a[d][k]) + ((d == k) ? 1 : 0);
+            }
+        }
+        scratch = new double[nDims][0];
+    }
+
+    private ThinPlateSplineEvaluator(ThinPlateSplineEvaluator other) {
+        nDims = other.nDims;
+        nLandmarks = other.nLandmarks;
+        landmarks = other.landmarks;
+        weights = other.weights;
+        affine = other.affine;
+        scratch = new double[nDims][0];
+    }
+
+    /**
+     * @return an evaluator sharing the coefficients of this one, with its own scratch buffer
+     */
+    public ThinPlateSplineEvaluator copy() {
+        return new ThinPlateSplineEvaluator(this);
+    }
+
+    public int numDimensions() {
+        return nDims;
+    }
+
+    /**
+     * Transforms a block of points
+     * @param source source coordinates, source[d][i] is the coordinate along d of the i-th point,
+     *               only the first {@link ThinPlateSplineEvaluator#numDimensions()} arrays are read
+     * @param target target coordinates, same layout, only the first {@link ThinPlateSplineEvaluator#numDimensions()}
+     *               arrays are written
+     * @param count number of points
+     */
+    public void apply(double[][] source, double[][] target, int count) {
+        if (scratch[0].length < count) {
+            scratch = new double[nDims][count];
+        }
+        // Accumulated in the scratch buffer, so that source and target may be the same arrays
+        final double[][] acc = scratch;
+
+        // Affine part
+        for (int d = 0; d < nDims; d++) {
+            final double[] t = acc[d];
+            final double[] a = affine[d];
+            for (int i = 0; i < count; i++) {
+                double v = a[0];
+                for (int k = 0; k < nDims; k++) {
+                    v += a[k + 1] * source[k][i];
+                }
+                t[i] = v;
+            }
+        }
+
+        // Kernel part: one landmark at a time for the whole block of points
+        if (nDims == 2) {
+            final double[] sx = source[0], sy = source[1];
+            final double[] tx = acc[0], ty = acc[1];
+            for (int l = 0; l < nLandmarks; l++) {
+                final double lx = landmarks[0][l], ly = landmarks[1][l];
+                final double wx = weights[0][l], wy = weights[1][l];
+                for (int i = 0; i < count; i++) {
+                    final double dx = sx[i] - lx;
+                    final double dy = sy[i] - ly;
+                    final double u = kernel(dx * dx + dy * dy);
+                    tx[i] += wx * u;
+                    ty[i] += wy * u;
+                }
+            }
+        } else {
+            final double[] sx = source[0], sy = source[1], sz = source[2];
+            final double[] tx = acc[0], ty = acc[1], tz = acc[2];
+            for (int l = 0; l < nLandmarks; l++) {
+                final double lx = landmarks[0][l], ly = landmarks[1][l], lz = landmarks[2][l];
+                final double wx = weights[0][l], wy = weights[1][l], wz = weights[2][l];
+                for (int i = 0; i < count; i++) {
+                    final double dx = sx[i] - lx;
+                    final double dy = sy[i] - ly;
+                    final double dz = sz[i] - lz;
+                    final double u = kernel(dx * dx + dy * dy + dz * dz);
+                    tx[i] += wx * u;
+                    ty[i] += wy * u;
+                    tz[i] += wz * u;
+                }
+            }
+        }
+        for (int d = 0; d < nDims; d++) {
+            System.arraycopy(acc[d], 0, target[d], 0, count);
+        }
+    }
+
+    /**
+     * Transforms a single point
+     * @param source source coordinates, at least {@link ThinPlateSplineEvaluator#numDimensions()} values
+     * @param target target coordinates, only the first {@link ThinPlateSplineEvaluator#numDimensions()} values are written
+     */
+    public void apply(double[] source, double[] target) {
+        final double px = source[0];
+        final double py = source[1];
+        final double pz = (nDims == 3) ? source[2] : 0;
+        double tx = affine[0][0] + affine[0][1] * px + affine[0][2] * py;
+        double ty = affine[1][0] + affine[1][1] * px + affine[1][2] * py;
+        double tz = 0;
+        if (nDims == 3) {
+            tx += affine[0][3] * pz;
+            ty += affine[1][3] * pz;
+            tz = affine[2][0] + affine[2][1] * px + affine[2][2] * py + affine[2][3] * pz;
+        }
+        final double[] lx = landmarks[0], ly = landmarks[1], lz = (nDims == 3) ? landmarks[2] : null;
+        for (int l = 0; l < nLandmarks; l++) {
+            final double dx = px - lx[l];
+            final double dy = py - ly[l];
+            final double dz = (nDims == 3) ? pz - lz[l] : 0;
+            final double u = kernel(dx * dx + dy * dy + dz * dz);
+            tx += weights[0][l] * u;
+            ty += weights[1][l] * u;
+            if (nDims == 3) tz += weights[2][l] * u;
+        }
+        target[0] = tx;
+        target[1] = ty;
+        if (nDims == 3) target[2] = tz;
+    }
+
+    /**
+     * @param d2 squared distance
+     * @return r^2.log(r)
+     */
+    private static double kernel(double d2) {
+        return (d2 > 0) ? 0.5 * d2 * Math.log(d2) : 0;
+    }
+}
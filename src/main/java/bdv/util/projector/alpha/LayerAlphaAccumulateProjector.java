@@ -0,0 +1,638 @@
+package bdv.util.projector.alpha;
+
+import bdv.viewer.SourceAndConverter;
+import bdv.viewer.render.AccumulateProjector;
+import bdv.viewer.render.VolatileProjector;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.IntArray;
+import net.imglib2.type.numeric.ARGBType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+
+/**
+ * Layered alpha blending of source screen images, shared by {@link LayerAlphaProjectorFactory} and
+ * {@link LayerAlphaIProjectorFactory}, which only differ by the initial value of the blended image
+ * ({@link LayerAlphaAccumulateProjector#initialValue()}) and by the final pixel transformation
+ * ({@link LayerAlphaAccumulateProjector#finish(int, int, int, int)}).
+ *
+ * Briefly the sources are sorted by order given by the {@link Layer#compareTo(Object)} method,
+ * and each source copies the layer property into an array. The indexing is a bit annoying to do,
+ * but only done once.
+ *
+ * When a source and its single pass source (see {@link SourcesMetadata#getSinglePassSource(SourceAndConverter)})
+ * are both present, the premultiplied screen image of the single pass source is blended in place of the one of the
+ * source, which is not rendered: each source is then sampled once, together with its alpha.
+ *
+ * The blending is performed row by row: for each screen row, the row of each source screen image is
+ * read at once (directly from its int[] storage when the screen image is an {@link ArrayImg}, copied
+ * otherwise), the layers are accumulated for the whole row in primitive arrays, and the target row is
+ * written once. The per pixel {@link LayerAlphaAccumulateProjector#accumulate(Cursor[], ARGBType)}
+ * is kept and used when row blending is disabled, see {@link LayerAlphaAccumulateProjector#setRowBlending(boolean)}.
+ */
+public abstract class LayerAlphaAccumulateProjector extends AccumulateProjector< ARGBType, ARGBType >
+{
+
+    final boolean[] source_is_alpha; // flags if the source in an alpha source ( not displayed )
+    final boolean[] source_has_alpha; // flag if the source has an alpha channel, present in the list of sources
+    final int[] source_linked_alpha_source_index; // index of the alpha channel, if any ( has_alpha is false otherwise )
+    final boolean[] source_is_premultiplied; // flags if the source is already premultiplied by its alpha, stored in the alpha byte
+    final int[] source_single_pass_index; // index of the single pass source read instead of the source, -1 if none
+    final boolean[] source_projector_skip; // flags the sources whose screen image is not read, and thus not rendered
+    final int[] sources_sorted_indices; // index of sources, ordered from lower to higher layer
+    final boolean[] source_layer_skip;
+    final float[] source_layer_alpha;
+    final int[] source_layer_mode;
+    final boolean[] source_layer_next; // Flags when it's the start of the next layer
+
+    final List< VolatileProjector > sourceProjectorList;
+    final List< ? extends RandomAccessible< ? extends ARGBType > > sourceImages;
+    final RandomAccessibleInterval< ARGBType > targetImage;
+    final int numThreads;
+    final ExecutorService executorService;
+
+    // Direct access to the screen images storage, null when the image is not an int backed ArrayImg covering the target
+    final int[][] source_data;
+    final int[] source_stride;
+    final int[] target_data;
+    final int target_stride;
+
+    final int width, height;
+    final long minX, minY;
+
+    boolean rowBlending = true;
+
+    private volatile boolean canceled = false;
+
+    private boolean valid = false;
+
+    private long lastFrameRenderNanoTime = -1;
+
+    protected LayerAlphaAccumulateProjector(
+            SourcesMetadata sourcesMeta,
+            LayerMetadata layerMeta,
+            final List< VolatileProjector > sourceProjectors,
+            final List<SourceAndConverter< ? >> sources,
+            final List< ? extends RandomAccessible< ? extends ARGBType > > sourceScreenImages,
+            final RandomAccessibleInterval< ARGBType > target,
+            final int numThreads,
+            final ExecutorService executorService
+    )
+    {
+        super( sourceProjectors, sourceScreenImages, target );
+        this.sourceProjectorList = sourceProjectors;
+        this.sourceImages = sourceScreenImages;
+        this.targetImage = target;
+        this.numThreads = numThreads;
+        this.executorService = executorService;
+
+        source_linked_alpha_source_index = new int[sources.size()];
+        source_is_alpha = new boolean[sources.size()];
+        source_has_alpha = new boolean[sources.size()];
+        source_is_premultiplied = new boolean[sources.size()];
+        source_single_pass_index = new int[sources.size()];
+        source_projector_skip = new boolean[sources.size()];
+        Arrays.fill(source_single_pass_index, -1);
+
+        // Sources rendered with their alpha by a single pass source present in the projector : the single pass source
+        // is read instead of the source, and is not displayed on its own
+        for (int index_source=0; index_source<sources.size(); index_source++) {
+            SourceAndConverter<?> source = sources.get(index_source);
+            if (sourcesMeta.isAlphaSource(source) || sourcesMeta.isPremultiplied(source)) continue;
+            if (!sourcesMeta.hasSinglePassSource(source)) continue;
+            int index_single_pass_source = sources.indexOf(sourcesMeta.getSinglePassSource(source)); // -1 if the source does not exist
+            if (index_single_pass_source!=-1) {
+                source_single_pass_index[index_source] = index_single_pass_source;
+                source_projector_skip[index_source] = true;
+            }
+        }
+        for (int index_source=0; index_source<sources.size(); index_source++) {
+            if (source_single_pass_index[index_source]!=-1) {
+                source_is_alpha[source_single_pass_index[index_source]] = true;
+            }
+        }
+
+        // Let's sort which sources are alpha, which are not, and which contain alpha channels, actually present in the projector
+        for (int index_source=0; index_source<sources.size(); index_source++) {
+            SourceAndConverter<?> source = sources.get(index_source);
+            int index_alpha_source;
+            if (source_is_alpha[index_source] || (source_single_pass_index[index_source]!=-1)) {
+                // Single pass source, or source read through its single pass source
+                continue;
+            }
+            if (sourcesMeta.isAlphaSource(source)) {
+                source_is_alpha[index_source] = true;
+            } else if (sourcesMeta.isPremultiplied(source)) {
+                // Single pass : the alpha is in the alpha byte, no alpha source needed
+                source_is_premultiplied[index_source] = true;
+            } else {
+                // It's not an alpha source
+                if (sourcesMeta.hasAlphaSource(source)) {
+                    // It has an alpha, source, but is it in the list of sources ?
+                    index_alpha_source = sources.indexOf(sourcesMeta.getAlphaSource(source)); // returns -1 if the source does not exist
+                    if (index_alpha_source!=-1) {
+                        source_has_alpha[index_source] = true;
+                        source_linked_alpha_source_index[index_source] = index_alpha_source;
+                    } else {
+                        source_has_alpha[index_source] = false;
+                    }
+                } else {
+                    source_has_alpha[index_source] = false;
+                }
+            }
+        }
+
+        // Now let's take layers into account
+        // Simply puts all layers into an array
+        Layer[] layer_array = new Layer[sources.size()];
+        for (int index_source=0; index_source<sources.size(); index_source++) {
+            layer_array[index_source] = layerMeta.getLayer(sources.get(index_source));
+        }
+
+        // We need to re-index the sources to iterate them from lowest layer to the highest id of the layers
+        sources_sorted_indices = IntStream.range(0,sources.size())
+                .boxed()
+                .sorted(Comparator.comparing(index -> layerMeta.getLayer(sources.get(index)), Layer::compareTo))
+                .mapToInt(i -> i).toArray();
+
+        // Many duplicated values, but convenient : stores layer properties for all sources
+        source_layer_skip = new boolean[sources.size()];
+        source_layer_alpha = new float[sources.size()];
+        source_layer_mode = new int[sources.size()];
+        source_layer_next= new boolean[sources.size()]; // Flags when it's the start of the next layer
+
+        for (int i=0;i<sources.size();i++) {
+            int source_index = sources_sorted_indices[i];
+            Layer current_layer = layer_array[source_index];
+            source_layer_skip[source_index] = current_layer.skip();
+            source_layer_alpha[source_index] = current_layer.getAlpha();
+            source_layer_mode[source_index] = current_layer.getBlendingMode();
+            if (i==sources.size()-1) {
+                source_layer_next[source_index] = true; // Last source : need to draw this last layer
+            } else {
+                source_layer_next[source_index] = current_layer.compareTo(layer_array[sources_sorted_indices[i+1]])!=0;
+            }
+        }
+
+        // Row blending set up
+        width = (int) target.dimension(0);
+        height = (int) target.dimension(1);
+        minX = target.min(0);
+        minY = target.min(1);
+
+        source_data = new int[sourceScreenImages.size()][];
+        source_stride = new int[sourceScreenImages.size()];
+        for (int i = 0; i<sourceScreenImages.size(); i++) {
+            source_data[i] = intStorage(sourceScreenImages.get(i), target);
+            if (source_data[i]!=null) source_stride[i] = (int) ((ArrayImg<?,?>) sourceScreenImages.get(i)).dimension(0);
+        }
+        target_data = intStorage(target, target);
+        target_stride = (target_data!=null) ? (int) target.dimension(0) : 0;
+    }
+
+    /**
+     * @return value of the red, green, blue and alpha sums before the first layer is blended
+     */
+    protected abstract int initialValue();
+
+    /**
+     * @param a alpha sum, clamped to 255
+     * @param r red sum, clamped to 255
+     * @param g green sum, clamped to 255
+     * @param b blue sum, clamped to 255
+     * @return the ARGB value of the target pixel
+     */
+    protected abstract int finish(int a, int r, int g, int b);
+
+    /**
+     * Enables or disables the row by row blending. Should be called before the projector is mapped.
+     * @param rowBlending if false, the pixel by pixel blending of {@link AccumulateProjector} is used
+     */
+    public void setRowBlending(boolean rowBlending) {
+        this.rowBlending = rowBlending;
+    }
+
+    @Override
+    public boolean map( final boolean clearUntouchedTargetPixels )
+    {
+        if (!rowBlending) return super.map( clearUntouchedTargetPixels );
+
+        canceled = false;
+        final long startTime = System.nanoTime();
+
+        valid = true;
+        for ( int i = 0; i < sourceProjectorList.size(); i++ )
+        {
+            if ( source_projector_skip[ i ] ) continue; // Read through its single pass source
+            final VolatileProjector p = sourceProjectorList.get( i );
+            if ( !p.isValid() )
+                if ( !p.map( clearUntouchedTargetPixels ) )
+                    return false;
+                else
+                    valid &= p.isValid();
+        }
+
+        final int numTasks = ((numThreads > 1) && (executorService != null)) ? Math.min( numThreads * 10, height ) : 1;
+        final List< Callable< Void > > tasks = new ArrayList<>( numTasks );
+        for ( int taskNum = 0; taskNum < numTasks; taskNum++ )
+        {
+            final int startRow = (int) ( (long) taskNum * height / numTasks );
+            final int endRow = (int) ( (long) (taskNum + 1) * height / numTasks );
+            tasks.add( () -> {
+                final RowBuffers buffers = new RowBuffers( width );
+                for ( int y = startRow; y < endRow; y++ )
+                {
+                    if ( canceled ) return null;
+                    blendRow( minY + y, buffers );
+                }
+                return null;
+            } );
+        }
+
+        try
+        {
+            if ( numTasks == 1 )
+            {
+                tasks.get( 0 ).call();
+            }
+            else
+            {
+                for ( final Future< Void > future : executorService.invokeAll( tasks ) )
+                    future.get();
+            }
+        }
+        catch ( final InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        catch ( final ExecutionException e )
+        {
+            throw new RuntimeException( e.getCause() );
+        }
+        catch ( final Exception e )
+        {
+            throw new RuntimeException( e );
+        }
+
+        if ( canceled ) return false;
+        lastFrameRenderNanoTime = System.nanoTime() - startTime;
+        return true;
+    }
+
+    @Override
+    public void cancel()
+    {
+        canceled = true;
+        super.cancel();
+    }
+
+    @Override
+    public long getLastFrameRenderNanoTime()
+    {
+        return rowBlending ? lastFrameRenderNanoTime : super.getLastFrameRenderNanoTime();
+    }
+
+    @Override
+    public boolean isValid()
+    {
+        return rowBlending ? valid : super.isValid();
+    }
+
+    /**
+     * Blends one screen row. Same computation as {@link LayerAlphaAccumulateProjector#accumulate(Cursor[], ARGBType)},
+     * one source at a time for all the pixels of the row.
+     * @param y row, in target coordinates
+     * @param buffers row buffers of the calling thread
+     */
+    final void blendRow( final long y, final RowBuffers buffers )
+    {
+        final int w = width;
+        final int[] aSum = buffers.aSum, rSum = buffers.rSum, gSum = buffers.gSum, bSum = buffers.bSum;
+        final int[] aLayer = buffers.aLayer, rLayer = buffers.rLayer, gLayer = buffers.gLayer, bLayer = buffers.bLayer;
+        final int[] nSources = buffers.nSources;
+        final float[] totalAlpha = buffers.totalAlpha;
+
+        final int initial = initialValue();
+        Arrays.fill( aSum, initial );
+        Arrays.fill( rSum, initial );
+        Arrays.fill( gSum, initial );
+        Arrays.fill( bSum, initial );
+        buffers.resetLayer();
+
+        for ( int i = 0; i < sources_sorted_indices.length; i++ )
+        {
+            final int current_source_index = sources_sorted_indices[ i ];
+            final boolean skip_current_layer = source_layer_skip[ current_source_index ];
+            if ( !skip_current_layer && !source_is_alpha[ current_source_index ] )
+            {
+                final int single_pass_index = source_single_pass_index[ current_source_index ];
+                final int[] values = row( ( single_pass_index != -1 ) ? single_pass_index : current_source_index, y, buffers.sourceRow, buffers );
+                final int o = buffers.offset;
+                if ( source_is_premultiplied[ current_source_index ] || ( single_pass_index != -1 ) )
+                {
+                    // Premultiplied : the alpha is in the alpha byte
+                    for ( int x = 0; x < w; x++ )
+                    {
+                        final int value = values[ o + x ];
+                        final int a = ( value >> 24 ) & 0xff;
+                        if ( a != 0 )
+                        {
+                            aLayer[ x ] += a;
+                            rLayer[ x ] += ( value >> 16 ) & 0xff;
+                            gLayer[ x ] += ( value >> 8 ) & 0xff;
+                            bLayer[ x ] += value & 0xff;
+                            nSources[ x ]++;
+                            totalAlpha[ x ] += a / 255f;
+                        }
+                    }
+                }
+                else if ( source_has_alpha[ current_source_index ] )
+                {
+                    // Has an alpha channel : uses the alpha channel for the projection
+                    final int[] alphas = row( source_linked_alpha_source_index[ current_source_index ], y, buffers.alphaRow, buffers );
+                    final int oa = buffers.offset;
+                    for ( int x = 0; x < w; x++ )
+                    {
+                        final float alpha = Float.intBitsToFloat( alphas[ oa + x ] );
+                        final int value = values[ o + x ];
+                        final int a = ( int ) ( ( ( value >> 24 ) & 0xff ) * alpha );
+                        if ( a != 0 )
+                        {
+                            aLayer[ x ] += a;
+                            rLayer[ x ] += ( int ) ( ( ( value >> 16 ) & 0xff ) * alpha );
+                            gLayer[ x ] += ( int ) ( ( ( value >> 8 ) & 0xff ) * alpha );
+                            bLayer[ x ] += ( int ) ( ( value & 0xff ) * alpha );
+                            if ( alpha > 0 ) nSources[ x ]++;
+                            totalAlpha[ x ] += alpha;
+                        }
+                    }
+                }
+                else
+                {
+                    // No alpha channel:  standard sum
+                    for ( int x = 0; x < w; x++ )
+                    {
+                        final int value = values[ o + x ];
+                        final int a = ( value >> 24 ) & 0xff;
+                        if ( a != 0 )
+                        {
+                            aLayer[ x ] += a;
+                            rLayer[ x ] += ( value >> 16 ) & 0xff;
+                            gLayer[ x ] += ( value >> 8 ) & 0xff;
+                            bLayer[ x ] += value & 0xff;
+                            nSources[ x ]++;
+                            totalAlpha[ x ] += 1;
+                        }
+                    }
+                }
+            }
+            if ( source_layer_next[ current_source_index ] )
+            {
+                // Append layer value
+                if ( !skip_current_layer )
+                {
+                    final float layerAlpha = source_layer_alpha[ current_source_index ];
+                    for ( int x = 0; x < w; x++ )
+                    {
+                        if ( nSources[ x ] > 0 )
+                        {
+                            final float alpha = layerAlpha * totalAlpha[ x ] / ( float ) nSources[ x ];
+                            aSum[ x ] = ( int ) ( ( 1 - alpha ) * aSum[ x ] + alpha * aLayer[ x ] );
+                            rSum[ x ] = ( int ) ( ( 1 - alpha ) * rSum[ x ] + alpha * rLayer[ x ] );
+                            gSum[ x ] = ( int ) ( ( 1 - alpha ) * gSum[ x ] + alpha * gLayer[ x ] );
+                            bSum[ x ] = ( int ) ( ( 1 - alpha ) * bSum[ x ] + alpha * bLayer[ x ] );
+                        }
+                    }
+                }
+                buffers.resetLayer();
+            }
+        }
+
+        final int[] out;
+        final int oOut;
+        if ( target_data != null )
+        {
+            out = target_data;
+            oOut = ( int ) ( y * target_stride + minX );
+        }
+        else
+        {
+            out = buffers.sourceRow;
+            oOut = 0;
+        }
+        for ( int x = 0; x < w; x++ )
+        {
+            out[ oOut + x ] = finish(
+                    Math.min( aSum[ x ], 255 ),
+                    Math.min( rSum[ x ], 255 ),
+                    Math.min( gSum[ x ], 255 ),
+                    Math.min( bSum[ x ], 255 ) );
+        }
+        if ( target_data == null )
+        {
+            final RandomAccess< ARGBType > access = targetImage.randomAccess();
+            access.setPosition( minX, 0 );
+            access.setPosition( y, 1 );
+            for ( int x = 0; x < w; x++ )
+            {
+                access.get().set( out[ x ] );
+                access.fwd( 0 );
+            }
+        }
+    }
+
+    /**
+     * @param sourceIndex index of the source screen image
+     * @param y row, in target coordinates
+     * @param scratch row buffer, used if the screen image storage can't be accessed directly
+     * @param buffers buffers of the calling thread, where the offset of the row is set
+     * @return an array containing the row, starting at {@link RowBuffers#offset}
+     */
+    private int[] row( final int sourceIndex, final long y, final int[] scratch, final RowBuffers buffers )
+    {
+        final int[] data = source_data[ sourceIndex ];
+        if ( data != null )
+        {
+            buffers.offset = ( int ) ( y * source_stride[ sourceIndex ] + minX );
+            return data;
+        }
+        final RandomAccess< ? extends ARGBType > access = sourceImages.get( sourceIndex ).randomAccess();
+        access.setPosition( minX, 0 );
+        access.setPosition( y, 1 );
+        for ( int x = 0; x < width; x++ )
+        {
+            scratch[ x ] = access.get().get();
+            access.fwd( 0 );
+        }
+        buffers.offset = 0;
+        return scratch;
+    }
+
+    /**
+     * @return the int[] storage of an image if it is an {@link ArrayImg} of {@link IntArray} which contains
+     * the interval, null otherwise
+     */
+    private static int[] intStorage( final RandomAccessible< ? > image, final RandomAccessibleInterval< ? > interval )
+    {
+        if ( !( image instanceof ArrayImg ) ) return null;
+        final ArrayImg< ?, ? > img = ( ArrayImg< ?, ? > ) image;
+        if ( img.numDimensions() < 2 ) return null;
+        if ( ( interval.min( 0 ) < 0 ) || ( interval.min( 1 ) < 0 ) ) return null;
+        if ( ( interval.max( 0 ) >= img.dimension( 0 ) ) || ( interval.max( 1 ) >= img.dimension( 1 ) ) ) return null;
+        for ( int d = 2; d < img.numDimensions(); d++ )
+        {
+            if ( img.dimension( d ) != 1 ) return null;
+        }
+        final Object access = img.update( null );
+        if ( !( access instanceof IntArray ) ) return null;
+        return ( ( IntArray ) access ).getCurrentStorageArray();
+    }
+
+    /**
+     * In the accumulator, the xSum temp variables store the current value of the previous layers while
+     * the xLayer temp variables store the current layer being accumulated. Once a layer is finished,
+     * xSum is updated with xSum = (1-alpha).xSum + alpha.xLayer
+     * @param accesses accesses
+     * @param target target pixel
+     */
+    @Override
+    protected void accumulate(final Cursor< ? extends ARGBType >[] accesses, final ARGBType target )
+    {
+        final int initial = initialValue();
+        int aSum = initial, rSum = initial, gSum = initial, bSum = initial;
+        int aLayer = 0, rLayer = 0, gLayer = 0, bLayer = 0;
+
+        // Initialisation before the loop
+        int current_source_index;
+        boolean skip_current_layer;
+        int nSources = 0;
+        float totalAlpha = 0;
+
+        for (int i=0;i<accesses.length;i++) {
+            current_source_index = sources_sorted_indices[i];
+            skip_current_layer = source_layer_skip[current_source_index];
+            if (!skip_current_layer) {
+                if (!source_is_alpha[current_source_index]) {
+                    if (source_is_premultiplied[current_source_index] || (source_single_pass_index[current_source_index]!=-1)) {
+                        // Premultiplied : the alpha is in the alpha byte
+                        final int single_pass_index = source_single_pass_index[current_source_index];
+                        final int value = accesses[(single_pass_index!=-1) ? single_pass_index : current_source_index].get().get();
+                        final int a = ARGBType.alpha( value );
+                        if (a!=0) {
+                            aLayer += a;
+                            rLayer += ARGBType.red( value );
+                            gLayer += ARGBType.green( value );
+                            bLayer += ARGBType.blue( value );
+                            nSources++;
+                            totalAlpha += a / 255f;
+                        }
+                    } else if (source_has_alpha[current_source_index]) {
+                        // Has an alpha channel : uses the alpha channel for the projection
+                        final Cursor< ? extends ARGBType > access = accesses[current_source_index];
+                        final Cursor< ? extends ARGBType > access_alpha = accesses[source_linked_alpha_source_index[current_source_index]];
+                        final float alpha = Float.intBitsToFloat(access_alpha.get().get());
+                        final int value = access.get().get();
+                        final int a = (int) (ARGBType.alpha( value )*alpha);
+                        final int r = (int) (ARGBType.red( value )*alpha);
+                        final int g = (int) (ARGBType.green( value )*alpha);
+                        final int b = (int) (ARGBType.blue( value )*alpha);
+                        if (a!=0) { // But why is a equal to zero ?
+                            aLayer += a;
+                            rLayer += r;
+                            gLayer += g;
+                            bLayer += b;
+                            if (alpha > 0) nSources++;
+                            totalAlpha += alpha;
+                        }
+                    } else {
+                        // No alpha channel:  standard sum
+                        final int value = accesses[current_source_index].get().get();
+                        final int a = ARGBType.alpha( value );
+                        final int r = ARGBType.red( value );
+                        final int g = ARGBType.green( value );
+                        final int b = ARGBType.blue( value );
+                        if (a!=0) { // But why is a equal to zero ?
+                            aLayer += a;
+                            rLayer += r;
+                            gLayer += g;
+                            bLayer += b;
+                            nSources++;
+                            totalAlpha += 1;
+                        }
+                    }
+                }
+            }
+            if (source_layer_next[current_source_index]) {
+                // Append layer value
+                if (nSources>0) {
+                    if (!skip_current_layer) {
+                        float alpha = source_layer_alpha[current_source_index] * totalAlpha / (float) nSources;
+                        aSum = (int)((1-alpha)*aSum+alpha*aLayer);
+                        rSum = (int)((1-alpha)*rSum+alpha*rLayer);
+                        gSum = (int)((1-alpha)*gSum+alpha*gLayer);
+                        bSum = (int)((1-alpha)*bSum+alpha*bLayer);
+                    }
+                }
+                aLayer = 0;
+                rLayer = 0;
+                gLayer = 0;
+                bLayer = 0;
+                nSources = 0;
+                totalAlpha = 0;
+            }
+        }
+        if ( aSum > 255 )
+            aSum = 255;
+        if ( rSum > 255 )
+            rSum = 255;
+        if ( gSum > 255 )
+            gSum = 255;
+        if ( bSum > 255 )
+            bSum = 255;
+
+        target.set( finish( aSum, rSum, gSum, bSum ) );
+    }
+
+    /**
+     * Primitive row buffers, one set per rendering thread
+     */
+    static final class RowBuffers {
+
+        final int[] aSum, rSum, gSum, bSum;
+        final int[] aLayer, rLayer, gLayer, bLayer;
+        final int[] nSources;
+        final float[] totalAlpha;
+        final int[] sourceRow, alphaRow;
+        int offset;
+
+        RowBuffers(int width) {
+            aSum = new int[width]; rSum = new int[width]; gSum = new int[width]; bSum = new int[width];
+            aLayer = new int[width]; rLayer = new int[width]; gLayer = new int[width]; bLayer = new int[width];
+            nSources = new int[width];
+            totalAlpha = new float[width];
+            sourceRow = new int[width];
+            alphaRow = new int[width];
+        }
+
+        void resetLayer() {
+            Arrays.fill( aLayer, 0 );
+            Arrays.fill( rLayer, 0 );
+            Arrays.fill( gLayer, 0 );
+            Arrays.fill( bLayer, 0 );
+            Arrays.fill( nSources, 0 );
+            Arrays.fill( totalAlpha, 0 );
+        }
+    }
+}
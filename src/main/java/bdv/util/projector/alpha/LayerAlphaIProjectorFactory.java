@@ -1,20 +1,15 @@
 package bdv.util.projector.alpha;
 
 import bdv.viewer.SourceAndConverter;
-import bdv.viewer.render.AccumulateProjector;
 import bdv.viewer.render.AccumulateProjectorFactory;
 import bdv.viewer.render.VolatileProjector;
-import net.imglib2.Cursor;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.real.FloatType;
-import org.jetbrains.annotations.NotNull;
 
-import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.stream.IntStream;
 
 /**
  * Projector which can be used by {@link bdv.BigDataViewer} in order to handle sources transparency and alpha blending
@@ -90,22 +85,12 @@ public class LayerAlphaIProjectorFactory implements ILayerAlphaProjectorFactory
     }
 
     /**
-     * Briefly the sources are sorted by order given by the {@link Layer#compareTo(Object)} method,
-     * and each source copies the layer property into an array. The indexing is a bit annoying to do,
-     * but only done once.
+     * Layered alpha projector, see {@link LayerAlphaAccumulateProjector}. The layers are blended over a white
+     * background, then the colors are inverted, keeping their hue.
      */
-    public static class AccumulateProjectorARGBGeneric extends AccumulateProjector< ARGBType, ARGBType >
+    public static class AccumulateProjectorARGBGeneric extends LayerAlphaAccumulateProjector
     {
 
-        final boolean[] source_is_alpha; // flags if the source in an alpha source ( not displayed )
-        final boolean[] source_has_alpha; // flag if the source has an alpha channel, present in the list of sources
-        final int[] source_linked_alpha_source_index; // index of the alpha channel, if any ( has_alpha is false otherwise )
-        final int[] sources_sorted_indices; // index of sources, ordered from lower to higher layer
-        final boolean[] source_layer_skip;
-        final float[] source_layer_alpha;
-        final int[] source_layer_mode;
-        final boolean[] source_layer_next; // Flags when it's the start of the next layer
-
         public AccumulateProjectorARGBGeneric(
                 SourcesMetadata sourcesMeta,
                 LayerMetadata layerMeta,
@@ -117,156 +102,16 @@ public class LayerAlphaIProjectorFactory implements ILayerAlphaProjectorFactory
                 final ExecutorService executorService
         )
         {
-            super( sourceProjectors, sourceScreenImages, target );
-            source_linked_alpha_source_index = new int[sources.size()];
-            source_is_alpha = new boolean[sources.size()];
-            source_has_alpha = new boolean[sources.size()];
-
-            // Let's sort which sources are alpha, which are not, and which contain alpha channels, actually present in the projector
-            for (int index_source=0; index_source<sources.size(); index_source++) {
-                SourceAndConverter<?> source = sources.get(index_source);
-                int index_alpha_source;
-                if (sourcesMeta.isAlphaSource(source)) {
-                    source_is_alpha[index_source] = true;
-                } else {
-                    // It's not an alpha source
-                    if (sourcesMeta.hasAlphaSource(source)) {
-                        // It has an alpha, source, but is it in the list of sources ?
-                        index_alpha_source = sources.indexOf(sourcesMeta.getAlphaSource(source)); // returns -1 if the source does not exist
-                        if (index_alpha_source!=-1) {
-                            source_has_alpha[index_source] = true;
-                            source_linked_alpha_source_index[index_source] = index_alpha_source;
-                        } else {
-                            source_has_alpha[index_source] = false;
-                        }
-                    } else {
-                        source_has_alpha[index_source] = false;
-                    }
-                }
-            }
-
-            // Now let's take layers into account
-            // Simply puts all layers into an array
-            Layer[] layer_array = new Layer[sources.size()];
-            for (int index_source=0; index_source<sources.size(); index_source++) {
-                layer_array[index_source] = layerMeta.getLayer(sources.get(index_source));
-            }
-
-            // We need to re-index the sources to iterate them from lowest layer to the highest id of the layers
-            sources_sorted_indices = IntStream.range(0,sources.size())
-                    .boxed()
-                    .sorted(Comparator.comparing(index -> layerMeta.getLayer(sources.get(index)), Layer::compareTo))
-                    .mapToInt(i -> i).toArray();
-
-            // Many duplicated values, but convenient : stores layer properties for all sources
-            source_layer_skip = new boolean[sources.size()];
-            source_layer_alpha = new float[sources.size()];
-            source_layer_mode = new int[sources.size()];
-            source_layer_next= new boolean[sources.size()]; // Flags when it's the start of the next layer
-
-            for (int i=0;i<sources.size();i++) {
-                int source_index = sources_sorted_indices[i];
-                Layer current_layer = layer_array[source_index];
-                source_layer_skip[source_index] = current_layer.skip();
-                source_layer_alpha[source_index] = current_layer.getAlpha();
-                source_layer_mode[source_index] = current_layer.getBlendingMode();
-                if (i==sources.size()-1) {
-                    source_layer_next[source_index] = true; // Last source : need to draw this last layer
-                } else {
-                    source_layer_next[source_index] = current_layer.compareTo(layer_array[sources_sorted_indices[i+1]])!=0;//((current_layer.getId())!=(layer_array[sources_sorted_indices[i+1]].getId()));
-                }
-
-            }
-
+            super( sourcesMeta, layerMeta, sourceProjectors, sources, sourceScreenImages, target, numThreads, executorService );
         }
 
-        /**
-         * In the accumulator, the xSum temp variables store the current value of the previous layers while
-         * the xLayer temp variables store the current layer being accumulated. Once a layer is finished,
-         * xSum is updated with xSum = (1-alpha).xSum + alpha.xLayer
-         * @param accesses accesses
-         * @param target target pixel
-         */
         @Override
-        protected void accumulate(final Cursor< ? extends ARGBType >[] accesses, final ARGBType target )
-        {
-            int aSum = 255, rSum = 255, gSum = 255, bSum = 255;
-            int aLayer = 0, rLayer = 0, gLayer = 0, bLayer = 0;
-
-            // Initialisation before the loop
-            int current_source_index;
-            boolean skip_current_layer;
-            int nSources = 0;
-            float totalAlpha = 0;
+        protected int initialValue() {
+            return 255;
+        }
 
-            for (int i=0;i<accesses.length;i++) {
-                current_source_index = sources_sorted_indices[i];
-                skip_current_layer = source_layer_skip[current_source_index];
-                if (!skip_current_layer) {
-                    if (!source_is_alpha[current_source_index]) {
-                        // Has an alpha channel : uses the alpha channel for the projection
-                        if (source_has_alpha[current_source_index]) {
-                            final Cursor< ? extends ARGBType > access = accesses[current_source_index];
-                            final Cursor< ? extends ARGBType > access_alpha = accesses[source_linked_alpha_source_index[current_source_index]];
-                            final float alpha = Float.intBitsToFloat(access_alpha.get().get());
-                            final int value = access.get().get();
-                            final int a = (int) (ARGBType.alpha( value )*alpha);
-                            final int r = (int) (ARGBType.red( value )*alpha);
-                            final int g = (int) (ARGBType.green( value )*alpha);
-                            final int b = (int) (ARGBType.blue( value )*alpha);
-                            if (a!=0) { // But why is a equal to zero ?
-                                aLayer += a;
-                                rLayer += r;
-                                gLayer += g;
-                                bLayer += b;
-                                if (alpha > 0) nSources++;
-                                totalAlpha += alpha;
-                            }
-                        } else {
-                            // No alpha channel:  standard sum
-                            final int value = accesses[current_source_index].get().get();
-                            final int a = ARGBType.alpha( value );
-                            final int r = ARGBType.red( value );
-                            final int g = ARGBType.green( value );
-                            final int b = ARGBType.blue( value );
-                            if (a!=0) { // But why is a equal to zero ?
-                                aLayer += a;
-                                rLayer += r;
-                                gLayer += g;
-                                bLayer += b;
-                                nSources++;
-                                totalAlpha += 1;
-                            }
-                        }
-                    }
-                }
-                if (source_layer_next[current_source_index]) {
-                    // Append layer value
-                    if (nSources>0) {
-                        if (!skip_current_layer) {
-                            float alpha = source_layer_alpha[current_source_index] * totalAlpha / (float) nSources;
-                            aSum = (int)((1-alpha)*aSum+alpha*aLayer);
-                            rSum = (int)((1-alpha)*rSum+alpha*rLayer);
-                            gSum = (int)((1-alpha)*gSum+alpha*gLayer);
-                            bSum = (int)((1-alpha)*bSum+alpha*bLayer);
-                        }
-                    }
-                    aLayer = 0;
-                    rLayer = 0;
-                    gLayer = 0;
-                    bLayer = 0;
-                    nSources = 0;
-                    totalAlpha = 0;
-                }
-            }
-            if ( aSum > 255 )
-                aSum = 255;
-            if ( rSum > 255 )
-                rSum = 255;
-            if ( gSum > 255 )
-                gSum = 255;
-            if ( bSum > 255 )
-                bSum = 255;
+        @Override
+        protected int finish(int aSum, int rSum, int gSum, int bSum) {
             double[] HSV = HSVFromRGB(255-rSum, 255-gSum, 255-bSum);
             //HSV[0] = ((int)HSV[0] + 128) & 0xFF; //
             HSV[0] = (HSV[0]+128)%256;
@@ -276,12 +121,10 @@ public class LayerAlphaIProjectorFactory implements ILayerAlphaProjectorFactory
             gSum = (byte)Math.round(RGB[1]);
             bSum = (byte)Math.round(RGB[2]);
 
-
-            target.set( ARGBType.rgba( rSum, gSum, bSum, aSum ) );
+            return ARGBType.rgba( rSum, gSum, bSum, aSum );
         }
     }
 
-
     static private double[] HSVFromRGB(double r, double g, double b) {
 
         double value = Math.max(r, Math.max(g, b));
@@ -9,4 +9,33 @@ public interface SourcesMetadata {
     boolean isAlphaSource(SourceAndConverter<?> source);
     boolean hasAlphaSource(SourceAndConverter<?> source);
     SourceAndConverter<FloatType> getAlphaSource(SourceAndConverter<?> source);
+
+    /**
+     * @param source source
+     * @return true if the source renders its own alpha, premultiplied, in the alpha byte of its ARGB values
+     * (see {@link bdv.util.source.alpha.SinglePassAlphaSource}), in which case it needs no alpha source
+     */
+    default boolean isPremultiplied(SourceAndConverter<?> source) {
+        return false;
+    }
+
+    /**
+     * @param source source
+     * @return true if the source is linked to a premultiplied source rendering it with its alpha in a single pass,
+     * see {@link SourcesMetadata#getSinglePassSource(SourceAndConverter)}
+     */
+    default boolean hasSinglePassSource(SourceAndConverter<?> source) {
+        return false;
+    }
+
+    /**
+     * When a source and its single pass source are both displayed, the projector reads the single pass source
+     * instead of the source, whose screen image is not rendered, and the single pass source is not displayed
+     * on its own.
+     * @param source source
+     * @return the premultiplied source rendering the source with its alpha, see {@link SourcesMetadata#isPremultiplied(SourceAndConverter)}
+     */
+    default SourceAndConverter<?> getSinglePassSource(SourceAndConverter<?> source) {
+        return null;
+    }
 }
@@ -5,7 +5,11 @@ import bdv.tools.transformation.TransformedSource;
 import bdv.viewer.Source;
 import bdv.viewer.SourceAndConverter;
 import com.amazonaws.services.kms.model.UnsupportedOperationException;
+import net.imglib2.Volatile;
+import net.imglib2.converter.TypeIdentity;
+import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.type.volatiles.VolatileARGBType;
 import sc.fiji.bdvpg.service.ISourceService;
 import sc.fiji.bdvpg.service.SourceServices;
 
@@ -27,6 +31,8 @@ public class AlphaSourceHelper {
 
     final public static String ALPHA_SOURCE_KEY = "ALPHA_SOURCE";
 
+    final public static String SINGLE_PASS_SOURCE_KEY = "SINGLE_PASS_ALPHA_SOURCE";
+
     public static synchronized SourceAndConverter<FloatType> getOrBuildAlphaSource(Source<?> source) {
 
         if (source instanceof IAlphaSource) {
@@ -79,6 +85,42 @@ public class AlphaSourceHelper {
         return getOrBuildAlphaSource(source.getSpimSource());
     }
 
+    /**
+     * Creates or retrieves the {@link SinglePassAlphaSource} of a source: a source displaying
+     * the source premultiplied by its alpha source, which can thus be rendered in a single pass.
+     * The converter of the source is reused, so display settings changes are reflected.
+     * @param source source to display
+     * @return the single pass source, with its volatile counterpart if the source has one
+     */
+    public static synchronized SourceAndConverter<ARGBType> getOrBuildSinglePassSource(SourceAndConverter<?> source) {
+        if (source.getSpimSource() instanceof SinglePassAlphaSource) {
+            return (SourceAndConverter<ARGBType>) source;
+        }
+        ISourceService sourceService = SourceServices.getSourceService();
+        if (sourceService.containsMetadata(source, SINGLE_PASS_SOURCE_KEY)) {
+            return (SourceAndConverter<ARGBType>) sourceService.getMetadata(source, SINGLE_PASS_SOURCE_KEY);
+        }
+        IAlphaSource alpha = (IAlphaSource) getOrBuildAlphaSource(source).getSpimSource();
+        SourceAndConverter<ARGBType> singlePass = buildSinglePassSource(source, alpha);
+        sourceService.setMetadata(source, SINGLE_PASS_SOURCE_KEY, singlePass);
+        return singlePass;
+    }
+
+    private static <T> SourceAndConverter<ARGBType> buildSinglePassSource(SourceAndConverter<T> source, IAlphaSource alpha) {
+        SinglePassAlphaSource<T, ARGBType> singlePass = new SinglePassAlphaSource<>(source.getSpimSource(), alpha,
+                SinglePassAlphaSource.premultiplied(source.getConverter()), new ARGBType());
+        if (source.asVolatile() == null) {
+            return new SourceAndConverter<>(singlePass, new TypeIdentity<>());
+        }
+        return new SourceAndConverter<>(singlePass, new TypeIdentity<>(), buildVolatileSinglePassSource(source.asVolatile(), alpha));
+    }
+
+    private static <V extends Volatile<?>> SourceAndConverter<VolatileARGBType> buildVolatileSinglePassSource(SourceAndConverter<V> source, IAlphaSource alpha) {
+        SinglePassAlphaSource<V, VolatileARGBType> singlePass = new SinglePassAlphaSource<>(source.getSpimSource(), alpha,
+                SinglePassAlphaSource.premultipliedVolatile(source.getConverter()), new VolatileARGBType());
+        return new SourceAndConverter<>(singlePass, (input, output) -> output.set(input.get()));
+    }
+
     static SourceAndConverter<FloatType> getExistingAlphaSource(SourceAndConverter<?> source) {
         ISourceService sourceService = SourceServices.getSourceService();
         if (sourceService.containsMetadata(source, ALPHA_SOURCE_KEY)) {
@@ -0,0 +1,239 @@
+package bdv.util.source.alpha;
+
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.RealPoint;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.Volatile;
+import net.imglib2.converter.BiConverter;
+import net.imglib2.converter.Converter;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.Type;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.type.volatiles.VolatileARGBType;
+import net.imglib2.view.Views;
+
+import java.util.function.Supplier;
+
+/**
+ * Source which samples a source and its alpha source together, and which returns, in a single pass,
+ * the converted ARGB value of the source premultiplied by its alpha. The alpha value is stored in the
+ * alpha byte of the pixel (0 : transparent, 255 : opaque).
+ *
+ * With this source, the alpha of a displayed source does not need to be rendered in its own screen image,
+ * see {@link bdv.util.projector.alpha.SourcesMetadata#getSinglePassSource(bdv.viewer.SourceAndConverter)} and
+ * {@link AlphaSourceHelper#getOrBuildSinglePassSource(bdv.viewer.SourceAndConverter)}.
+ *
+ * The alpha source is sampled in the voxel space of the source: this is the case for all alpha sources
+ * created by {@link AlphaSourceHelper}. Alpha values above 1 are clamped to 1.
+ *
+ * @param <S> pixel type of the source
+ * @param <O> output type : {@link ARGBType} or {@link VolatileARGBType}
+ */
+public class SinglePassAlphaSource<S, O extends Type<O>> implements Source<O> {
+
+    final Source<S> origin;
+
+    final IAlphaSource alpha;
+
+    final Supplier<BiConverter<S, FloatType, O>> combiner;
+
+    final O type;
+
+    /**
+     * @param origin source to display
+     * @param alpha alpha source of origin
+     * @param combiner supplies per access the function combining a source value and its alpha
+     * @param type output type
+     */
+    public SinglePassAlphaSource(Source<S> origin, IAlphaSource alpha, Supplier<BiConverter<S, FloatType, O>> combiner, O type) {
+        this.origin = origin;
+        this.alpha = alpha;
+        this.combiner = combiner;
+        this.type = type;
+    }
+
+    public Source<S> getOrigin() {
+        return origin;
+    }
+
+    public IAlphaSource getAlphaSource() {
+        return alpha;
+    }
+
+    @Override
+    public boolean isPresent(int t) {
+        return origin.isPresent(t);
+    }
+
+    @Override
+    public RandomAccessibleInterval<O> getSource(int t, int level) {
+        return Views.interval(Views.raster(getInterpolatedSource(t, level, Interpolation.NEARESTNEIGHBOR)), origin.getSource(t, level));
+    }
+
+    @Override
+    public RealRandomAccessible<O> getInterpolatedSource(int t, int level, Interpolation method) {
+        return new CombinedRealRandomAccessible<>(
+                origin.getInterpolatedSource(t, level, method),
+                alpha.getInterpolatedSource(t, level, method),
+                combiner, type);
+    }
+
+    @Override
+    public void getSourceTransform(int t, int level, AffineTransform3D transform) {
+        origin.getSourceTransform(t, level, transform);
+    }
+
+    @Override
+    public O getType() {
+        return type.createVariable();
+    }
+
+    @Override
+    public String getName() {
+        return origin.getName();
+    }
+
+    @Override
+    public VoxelDimensions getVoxelDimensions() {
+        return origin.getVoxelDimensions();
+    }
+
+    @Override
+    public int getNumMipmapLevels() {
+        return origin.getNumMipmapLevels();
+    }
+
+    @Override
+    public boolean doBoundingBoxCulling() {
+        return origin.doBoundingBoxCulling();
+    }
+
+    /**
+     * @param converter converter of the source
+     * @return a combiner which converts a source value and premultiplies it by its alpha
+     * @param <T> pixel type of the source
+     */
+    public static <T> Supplier<BiConverter<T, FloatType, ARGBType>> premultiplied(Converter<? super T, ARGBType> converter) {
+        return () -> {
+            final ARGBType tmp = new ARGBType();
+            return (value, alpha, out) -> {
+                converter.convert(value, tmp);
+                out.set(premultiply(tmp.get(), alpha.get()));
+            };
+        };
+    }
+
+    /**
+     * @param converter converter of the volatile source
+     * @return a combiner which converts a volatile source value and premultiplies it by its alpha, keeping its validity
+     * @param <V> volatile pixel type of the source
+     */
+    public static <V extends Volatile<?>> Supplier<BiConverter<V, FloatType, VolatileARGBType>> premultipliedVolatile(Converter<? super V, ARGBType> converter) {
+        return () -> {
+            final ARGBType tmp = new ARGBType();
+            return (value, alpha, out) -> {
+                converter.convert(value, tmp);
+                out.get().set(premultiply(tmp.get(), alpha.get()));
+                out.setValid(value.isValid());
+            };
+        };
+    }
+
+    /**
+     * A pixel which is transparent or which the converter made fully transparent returns 0, and is thus
+     * ignored by the alpha projectors, as in the two pass projection.
+     * @param value converted ARGB value
+     * @param alpha alpha value
+     * @return the premultiplied ARGB value, with the alpha in the alpha byte
+     */
+    public static int premultiply(int value, float alpha) {
+        if ((alpha <= 0) || (ARGBType.alpha(value) == 0)) return 0;
+        if (alpha > 1) alpha = 1;
+        final int a = Math.max(1, Math.round(255 * alpha));
+        return ARGBType.rgba(
+                (int) (ARGBType.red(value) * alpha),
+                (int) (ARGBType.green(value) * alpha),
+                (int) (ARGBType.blue(value) * alpha),
+                a);
+    }
+
+    static class CombinedRealRandomAccessible<S, O extends Type<O>> implements RealRandomAccessible<O> {
+
+        final RealRandomAccessible<S> source;
+        final RealRandomAccessible<FloatType> alpha;
+        final Supplier<BiConverter<S, FloatType, O>> combiner;
+        final O type;
+
+        CombinedRealRandomAccessible(RealRandomAccessible<S> source, RealRandomAccessible<FloatType> alpha,
+                                     Supplier<BiConverter<S, FloatType, O>> combiner, O type) {
+            this.source = source;
+            this.alpha = alpha;
+            this.combiner = combiner;
+            this.type = type;
+        }
+
+        @Override
+        public RealRandomAccess<O> realRandomAccess() {
+            return new CombinedRealRandomAccess<>(source.realRandomAccess(), alpha.realRandomAccess(), combiner, type.createVariable());
+        }
+
+        @Override
+        public RealRandomAccess<O> realRandomAccess(RealInterval interval) {
+            return realRandomAccess();
+        }
+
+        @Override
+        public int numDimensions() {
+            return source.numDimensions();
+        }
+
+        public O getType() {
+            return type.createVariable();
+        }
+    }
+
+    static class CombinedRealRandomAccess<S, O extends Type<O>> extends RealPoint implements RealRandomAccess<O> {
+
+        final RealRandomAccess<S> source;
+        final RealRandomAccess<FloatType> alpha;
+        final Supplier<BiConverter<S, FloatType, O>> combinerSupplier;
+        final BiConverter<S, FloatType, O> combiner;
+        final O value;
+
+        CombinedRealRandomAccess(RealRandomAccess<S> source, RealRandomAccess<FloatType> alpha,
+                                 Supplier<BiConverter<S, FloatType, O>> combinerSupplier, O value) {
+            super(source.numDimensions());
+            this.source = source;
+            this.alpha = alpha;
+            this.combinerSupplier = combinerSupplier;
+            this.combiner = combinerSupplier.get(); // not thread safe : one per access
+            this.value = value;
+        }
+
+        @Override
+        public O get() {
+            source.setPosition(this);
+            alpha.setPosition(this);
+            combiner.convert(source.get(), alpha.get(), value);
+            return value;
+        }
+
+        @Override
+        public CombinedRealRandomAccess<S, O> copy() {
+            CombinedRealRandomAccess<S, O> copy =
+                    new CombinedRealRandomAccess<>(source.copy(), alpha.copy(), combinerSupplier, value.createVariable());
+            copy.setPosition(this);
+            return copy;
+        }
+
+        public O getType() {
+            return value;
+        }
+    }
+}
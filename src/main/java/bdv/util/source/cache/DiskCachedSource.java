@@ -0,0 +1,20 @@
+package bdv.util.source.cache;
+
+/**
+ * A source computed from other sources, whose cells can be stored in the {@link DiskCellCache}.
+ * <br>
+ * Its identity is used by the sources computed from it, see {@link DiskCellCache#getSourceIdentity(bdv.viewer.Source, int)},
+ * so that chains of computed sources (a pyramid of a fused source for instance) are identified across restarts.
+ *
+ * @author Nicolas Chiaruttini, BIOP EPFL
+ */
+public interface DiskCachedSource {
+
+    /**
+     * @param timepoint timepoint
+     * @return a description of everything the cells of this timepoint depend on, identical across restarts,
+     * or null if the source can not be identified across restarts
+     */
+    String getDiskCacheIdentity(int timepoint);
+
+}
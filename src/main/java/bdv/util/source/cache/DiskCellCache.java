@@ -0,0 +1,467 @@
+package bdv.util.source.cache;
+
+import bdv.tools.transformation.TransformedSource;
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sc.fiji.bdvpg.scijava.service.SourceService;
+import sc.fiji.bdvpg.service.ISourceService;
+import sc.fiji.bdvpg.service.SourceServices;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Disk backed second tier for the cells of lazily computed sources.
+ * <br>
+ * Computed cells are normally only kept in the in-memory {@link sc.fiji.bdvpg.cache.GlobalLoaderCache}, and
+ * are lost when they are evicted or when Fiji is closed. When a disk cache is set with
+ * {@link DiskCellCache#setDiskCache(File, long)}, the cell loaders wrapped with
+ * {@link DiskCellCache#wrap(String, String, int, int, CellGrid, NativeType, CellLoader)} first look for the cell
+ * in a local N5 container, and only compute it if it is missing. Computed cells are then written to the container.
+ * <br>
+ * Layout of the container: one group per key and parameters, named after the key and a hash of the parameters,
+ * with one dataset per timepoint and resolution level ({@code key-hash/t0/s0}). Source names are not unique, so
+ * the parameters should contain the identity of the inputs of the source, see
+ * {@link DiskCellCache#getSourceIdentity(Source, int)}: sources computing different cells then never share a group.
+ * Sources whose parameters change get a new group, the cells of the former one are evicted as any least recently
+ * used cells. Each timepoint group stores the parameters as an attribute, which is checked before its cells are used.
+ * <br>
+ * The size of the container is bounded: when it goes above the limit, the least recently used cells are deleted.
+ * Last access times are stored as file modification times, so that the LRU order survives restarts.
+ * <br>
+ * Only {@link UnsignedByteType}, {@link UnsignedShortType} and {@link FloatType} cells are supported, other
+ * types are computed as if there were no disk cache.
+ *
+ * @author Nicolas Chiaruttini, BIOP EPFL
+ */
+public class DiskCellCache {
+
+    protected static Logger logger = LoggerFactory.getLogger(DiskCellCache.class);
+
+    final static String PARAMETERS_KEY = "bdvSourceParameters";
+
+    private static DiskCellCache instance = null;
+
+    /**
+     * Sets the global disk cache. All sources created afterwards and supporting it will use it.
+     * @param directory root directory of the N5 container
+     * @param maxBytes maximal size of the container, in bytes
+     */
+    public static synchronized void setDiskCache(File directory, long maxBytes) {
+        instance = new DiskCellCache(directory, maxBytes);
+    }
+
+    /**
+     * Removes the global disk cache: cells are then only kept in memory. Files are not deleted.
+     */
+    public static synchronized void removeDiskCache() {
+        instance = null;
+    }
+
+    /**
+     * @return the global disk cache, or null if there is none
+     */
+    public static synchronized DiskCellCache getDiskCache() {
+        return instance;
+    }
+
+    /**
+     * Convenience method: wraps the loader with the global disk cache if there is one, otherwise returns the loader.
+     * The parameters, whose computation can be costly (see {@link DiskCellCache#getSourceIdentity(Source, int)}), are
+     * only computed if there is a disk cache.
+     * See {@link DiskCellCache#wrap(String, String, int, int, CellGrid, NativeType, CellLoader)}
+     */
+    public static <T extends NativeType<T>> CellLoader<T> wrapIfEnabled(String key,
+                                                                        Supplier<String> parameters,
+                                                                        int timepoint,
+                                                                        int level,
+                                                                        CellGrid grid,
+                                                                        T type,
+                                                                        CellLoader<T> loader) {
+        DiskCellCache diskCache = getDiskCache();
+        if (diskCache == null) return loader;
+        return diskCache.wrap(key, parameters.get(), timepoint, level, grid, type, loader);
+    }
+
+    final File directory;
+
+    final long maxBytes;
+
+    final N5Writer n5;
+
+    /**
+     * Block path (relative to the container root) to block size in bytes, in access order
+     */
+    final LinkedHashMap<String, Long> blocks = new LinkedHashMap<>(16, 0.75f, true);
+
+    long totalBytes = 0;
+
+    final Set<String> validatedKeys = new HashSet<>();
+
+    long hits = 0, misses = 0, evictions = 0;
+
+    public DiskCellCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        try {
+            this.n5 = new N5FSWriter(directory.getAbsolutePath());
+        } catch (Exception e) {
+            throw new RuntimeException("Could not create disk cache in "+directory.getAbsolutePath(), e);
+        }
+        scanExistingBlocks();
+    }
+
+    /**
+     * Wraps a cell loader: cells are read from the disk cache if present, otherwise computed by the loader
+     * and written to the disk cache.
+     * @param key readable prefix of the group of the cells in the container, typically the name of the source
+     * @param parameters description of everything the cells depend on, including the identity of the inputs of
+     *                   the source: the cells are shared only with sources with the same key and parameters
+     * @param timepoint timepoint of the cells
+     * @param level resolution level of the cells
+     * @param grid cell grid of the cached image
+     * @param type pixel type
+     * @param loader the loader computing the cells
+     * @return the wrapped loader, or the loader itself if the pixel type is not supported or if the parameters
+     * can only be identified in this session (see {@link DiskCellCache#isSessionOnly(String)})
+     * @param <T> pixel type
+     */
+    public <T extends NativeType<T>> CellLoader<T> wrap(String key,
+                                                        String parameters,
+                                                        int timepoint,
+                                                        int level,
+                                                        CellGrid grid,
+                                                        T type,
+                                                        CellLoader<T> loader) {
+        final DataType dataType = N5DataBlocks.getDataType(type);
+        if (dataType == null) {
+            logger.debug("Type "+type.getClass().getSimpleName()+" not supported by the disk cache");
+            return loader;
+        }
+        if (isSessionOnly(parameters)) {
+            // The cells could not be reused after a restart: writing them would only fill the disk
+            logger.debug("Inputs of "+key+" can not be identified across restarts, not cached on disk");
+            return loader;
+        }
+        final String group = sanitize(key) + "-" + hash(key + "\n" + parameters);
+        final String timepointGroup = group + "/t" + timepoint;
+        final String dataset = timepointGroup + "/s" + level;
+        final DatasetAttributes attributes;
+        try {
+            validate(timepointGroup, parameters);
+            synchronized (this) {
+                if (!n5.datasetExists(dataset)) {
+                    n5.createDataset(dataset, grid.getImgDimensions(), cellDimensions(grid), dataType, new GzipCompression(1));
+                }
+            }
+            attributes = n5.getDatasetAttributes(dataset);
+        } catch (Exception e) {
+            logger.warn("Disk cache disabled for "+key+": "+e.getMessage());
+            return loader;
+        }
+
+        return cell -> {
+            final int n = grid.numDimensions();
+            final long[] gridPosition = new long[n];
+            final int[] size = new int[n];
+            for (int d = 0; d < n; d++) {
+                gridPosition[d] = cell.min(d) / grid.cellDimension(d);
+                size[d] = (int) cell.dimension(d);
+            }
+            final String blockPath = blockPath(dataset, gridPosition);
+            try {
+                DataBlock<?> block = n5.readBlock(dataset, attributes, gridPosition);
+                if (block != null) {
+                    N5DataBlocks.copyToImage(block.getData(), cell);
+                    touch(blockPath);
+                    synchronized (this) { hits++; }
+                    return;
+                }
+            } catch (Exception e) {
+                logger.debug("Could not read cached cell "+blockPath+": "+e.getMessage());
+            }
+            synchronized (this) { misses++; }
+            loader.load(cell);
+            try {
+                n5.writeBlock(dataset, attributes, N5DataBlocks.createBlock(dataType, size, gridPosition, cell));
+                File blockFile = new File(directory, blockPath);
+                added(blockPath, blockFile.length());
+            } catch (Exception e) {
+                logger.debug("Could not write cached cell "+blockPath+": "+e.getMessage());
+            }
+        };
+    }
+
+    /**
+     * Deletes all cells of a group of the container
+     * @param group name of the group, as found in the directory of the container
+     */
+    public synchronized void invalidate(String group) {
+        group = sanitize(group);
+        try {
+            n5.remove(group);
+        } catch (Exception e) {
+            logger.warn("Could not remove "+group+" from disk cache: "+e.getMessage());
+        }
+        Iterator<Map.Entry<String, Long>> it = blocks.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            if (entry.getKey().startsWith(group + "/")) {
+                totalBytes -= entry.getValue();
+                it.remove();
+            }
+        }
+        validatedKeys.removeIf(validated -> validated.equals(group) || validated.startsWith(group + "/"));
+    }
+
+    public synchronized long getSizeInBytes() {
+        return totalBytes;
+    }
+
+    public long getMaxSizeInBytes() {
+        return maxBytes;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public String toString() {
+        return "Disk cache "+directory.getAbsolutePath()+" - "+(getSizeInBytes()/(1024*1024))+" MB / "
+                +(maxBytes/(1024*1024))+" MB - hits: "+getHits()+" misses: "+getMisses()+" evictions: "+getEvictions();
+    }
+
+    /**
+     * Checks that the cells of a timepoint group were stored with the same parameters, deletes them otherwise
+     * @param timepointGroup group of the cells of one timepoint
+     * @param parameters parameters of the source
+     */
+    private synchronized void validate(String timepointGroup, String parameters) throws IOException {
+        if (validatedKeys.contains(timepointGroup)) return;
+        if (n5.exists(timepointGroup)) {
+            String storedParameters = n5.getAttribute(timepointGroup, PARAMETERS_KEY, String.class);
+            if ((storedParameters == null) || (!storedParameters.equals(parameters))) {
+                logger.info("Parameters of "+timepointGroup+" do not match, deleting its cached cells");
+                invalidate(timepointGroup);
+            }
+        }
+        n5.createGroup(timepointGroup);
+        n5.setAttribute(timepointGroup, PARAMETERS_KEY, parameters);
+        validatedKeys.add(timepointGroup);
+    }
+
+    private synchronized void touch(String blockPath) {
+        blocks.get(blockPath); // Updates access order
+        new File(directory, blockPath).setLastModified(System.currentTimeMillis());
+    }
+
+    private synchronized void added(String blockPath, long size) {
+        Long previous = blocks.put(blockPath, size);
+        if (previous != null) totalBytes -= previous;
+        totalBytes += size;
+        Iterator<Map.Entry<String, Long>> it = blocks.entrySet().iterator();
+        while ((totalBytes > maxBytes) && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            if (eldest.getKey().equals(blockPath)) continue; // Keeps the block which was just written
+            if (new File(directory, eldest.getKey()).delete()) {
+                evictions++;
+            }
+            totalBytes -= eldest.getValue();
+            it.remove();
+        }
+    }
+
+    /**
+     * Rebuilds the LRU order from the files of the container, using their last modification time
+     */
+    private void scanExistingBlocks() {
+        Path root = directory.toPath();
+        if (!Files.exists(root)) return;
+        try (Stream<Path> paths = Files.walk(root)) {
+            List<File> files = paths.map(Path::toFile)
+                    .filter(File::isFile)
+                    .filter(f -> !f.getName().endsWith(".json"))
+                    .sorted(Comparator.comparingLong(File::lastModified))
+                    .collect(Collectors.toCollection(ArrayList::new));
+            for (File file : files) {
+                String relative = root.relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+                blocks.put(relative, file.length());
+                totalBytes += file.length();
+            }
+        } catch (IOException e) {
+            logger.warn("Could not scan disk cache "+directory.getAbsolutePath()+": "+e.getMessage());
+        }
+    }
+
+    private static String blockPath(String dataset, long[] gridPosition) {
+        StringBuilder path = new StringBuilder(dataset);
+        for (long p : gridPosition) {
+            path.append("/").append(p);
+        }
+        return path.toString();
+    }
+
+    private static int[] cellDimensions(CellGrid grid) {
+        int[] cellDimensions = new int[grid.numDimensions()];
+        grid.cellDimensions(cellDimensions);
+        return cellDimensions;
+    }
+
+    private static String sanitize(String key) {
+        String sanitized = key.replaceAll("[^a-zA-Z0-9_\\-.]", "_");
+        return sanitized.length() > 64 ? sanitized.substring(0, 64) : sanitized;
+    }
+
+    /**
+     * @param text any text
+     * @return the hexadecimal SHA-1 hash of the text
+     */
+    public static String hash(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Identifies the sources which can not be identified across restarts: their cells are only reused in this session
+    private static final String SESSION = UUID.randomUUID().toString();
+
+    private static final String SESSION_IDENTITY = "session(" + SESSION;
+
+    private static final Map<Source<?>, Long> sessionIdentities = new WeakHashMap<>();
+
+    private static long nextSessionIdentity = 0;
+
+    /**
+     * Identity of a source, to be included in the parameters of the sources computed from it. Unlike the name of
+     * the source, it is unique:
+     * <ul>
+     *     <li>computed sources ({@link DiskCachedSource}) are identified by their own parameters</li>
+     *     <li>sources of a dataset are identified by the location of the dataset, their setup id, name, size and
+     *     location</li>
+     *     <li>transformed sources are identified by the source they wrap, their transform should be part of the
+     *     parameters</li>
+     *     <li>other sources are identified for this session only: their derived cells are not reused after a restart</li>
+     * </ul>
+     * @param source source
+     * @param timepoint timepoint used by the computation
+     * @return the identity of the source
+     */
+    public static String getSourceIdentity(Source<?> source, int timepoint) {
+        if (source instanceof DiskCachedSource) {
+            String identity = ((DiskCachedSource) source).getDiskCacheIdentity(timepoint);
+            if (identity != null) return source.getClass().getSimpleName() + "(" + identity + ")";
+        }
+        else if (source instanceof TransformedSource) {
+            return "transformed(" + getSourceIdentity(((TransformedSource<?>) source).getWrappedSource(), timepoint) + ")";
+        }
+        String datasetIdentity = getDatasetIdentity(source, timepoint);
+        if (datasetIdentity != null) return datasetIdentity;
+        synchronized (sessionIdentities) {
+            Long identity = sessionIdentities.get(source);
+            if (identity == null) {
+                identity = nextSessionIdentity++;
+                sessionIdentities.put(source, identity);
+            }
+            return SESSION_IDENTITY + "#" + identity + ")";
+        }
+    }
+
+    /**
+     * @param parameters parameters of a source, see {@link DiskCellCache#wrap(String, String, int, int, CellGrid, NativeType, CellLoader)}
+     * @return true if one of the inputs of the source is only identified in this session
+     */
+    public static boolean isSessionOnly(String parameters) {
+        return parameters.contains(SESSION_IDENTITY);
+    }
+
+    /**
+     * Short identity of a computed source, see {@link DiskCachedSource#getDiskCacheIdentity(int)}: the hash of its
+     * parameters, which keeps track of the inputs identified in this session only
+     * @param parameters parameters of the source
+     * @return the identity of the source
+     */
+    public static String identity(String parameters) {
+        String hash = hash(parameters);
+        return isSessionOnly(parameters) ? SESSION_IDENTITY + "#" + hash + ")" : hash;
+    }
+
+    private static String getDatasetIdentity(Source<?> source, int timepoint) {
+        ISourceService sourceService = SourceServices.getSourceService();
+        if (sourceService == null) return null;
+        for (SourceAndConverter<?> sac : sourceService.getSources()) {
+            if (sac.getSpimSource() != source) continue;
+            Object info = sourceService.getMetadata(sac, ISourceService.SPIM_DATA_INFO);
+            if (!(info instanceof SourceService.SpimDataInfo)) continue;
+            SourceService.SpimDataInfo spimDataInfo = (SourceService.SpimDataInfo) info;
+            if (spimDataInfo.asd.getBasePath() == null) return null;
+            // The base path is a folder, which can contain several datasets: the setup is described as well
+            StringBuilder identity = new StringBuilder("dataset(")
+                    .append(spimDataInfo.asd.getBasePath().getAbsolutePath())
+                    .append(";loader=").append(spimDataInfo.asd.getSequenceDescription().getImgLoader().getClass().getName())
+                    .append(";setup=").append(spimDataInfo.setupId)
+                    .append(";name=").append(source.getName());
+            if (source.isPresent(timepoint)) {
+                AffineTransform3D location = new AffineTransform3D();
+                source.getSourceTransform(timepoint, 0, location);
+                identity.append(";size=").append(Arrays.toString(source.getSource(timepoint, 0).dimensionsAsLongArray()))
+                        .append(";location=").append(Arrays.toString(location.getRowPackedCopy()));
+            }
+            return identity.append(")").toString();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,91 @@
+package bdv.util.source.cache;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.FloatArrayDataBlock;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+
+/**
+ * Conversions between imglib2 images and N5 data blocks, for the pixel types
+ * which can be stored by {@link DiskCellCache} and exported to N5 / OME-Zarr.
+ * <br>
+ * Pixels are copied in flat iteration order, which is the order of N5 blocks
+ * (X varies fastest).
+ *
+ * @author Nicolas Chiaruttini, BIOP EPFL
+ */
+public class N5DataBlocks {
+
+    /**
+     * @param type a pixel
+     * @return the matching N5 data type, or null if this pixel type is not supported
+     */
+    public static DataType getDataType(Object type) {
+        if (type instanceof UnsignedByteType) return DataType.UINT8;
+        if (type instanceof UnsignedShortType) return DataType.UINT16;
+        if (type instanceof FloatType) return DataType.FLOAT32;
+        return null;
+    }
+
+    /**
+     * Copies an image into a new data block
+     * @param dataType data type of the block, see {@link N5DataBlocks#getDataType(Object)}
+     * @param size size of the block
+     * @param gridPosition position of the block in the block grid of the dataset
+     * @param image pixels of the block, its number of pixels should match the size of the block
+     * @return the data block
+     * @param <T> pixel type
+     */
+    public static <T> DataBlock<?> createBlock(DataType dataType, int[] size, long[] gridPosition,
+                                               RandomAccessibleInterval<T> image) {
+        int n = (int) Views.flatIterable(image).size();
+        Cursor<T> c = Views.flatIterable(image).cursor();
+        int i = 0;
+        switch (dataType) {
+            case UINT8:
+                byte[] bytes = new byte[n];
+                while (c.hasNext()) bytes[i++] = ((UnsignedByteType) c.next()).getByte();
+                return new ByteArrayDataBlock(size, gridPosition, bytes);
+            case UINT16:
+                short[] shorts = new short[n];
+                while (c.hasNext()) shorts[i++] = ((UnsignedShortType) c.next()).getShort();
+                return new ShortArrayDataBlock(size, gridPosition, shorts);
+            case FLOAT32:
+                float[] floats = new float[n];
+                while (c.hasNext()) floats[i++] = ((FloatType) c.next()).get();
+                return new FloatArrayDataBlock(size, gridPosition, floats);
+            default:
+                throw new UnsupportedOperationException("Unsupported data type "+dataType);
+        }
+    }
+
+    /**
+     * Copies the data of a block into an image
+     * @param data data of the block, see {@link DataBlock#getData()}
+     * @param image image to fill, its number of pixels should match the size of the block
+     * @param <T> pixel type
+     */
+    public static <T> void copyToImage(Object data, RandomAccessibleInterval<T> image) {
+        Cursor<T> c = Views.flatIterable(image).cursor();
+        int i = 0;
+        if (data instanceof byte[]) {
+            byte[] bytes = (byte[]) data;
+            while (c.hasNext()) ((UnsignedByteType) c.next()).setByte(bytes[i++]);
+        } else if (data instanceof short[]) {
+            short[] shorts = (short[]) data;
+            while (c.hasNext()) ((UnsignedShortType) c.next()).setShort(shorts[i++]);
+        } else if (data instanceof float[]) {
+            float[] floats = (float[]) data;
+            while (c.hasNext()) ((FloatType) c.next()).set(floats[i++]);
+        } else {
+            throw new UnsupportedOperationException("Unsupported block data "+data.getClass().getSimpleName());
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package bdv.util.source.field;
 
+import bdv.util.BatchRealTransform;
 import bdv.viewer.Interpolation;
 import bdv.viewer.Source;
 import mpicbg.spim.data.sequence.VoxelDimensions;
@@ -8,30 +9,38 @@ import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccessible;
-import net.imglib2.algorithm.lazy.Caches;
 import net.imglib2.algorithm.util.Grids;
 import net.imglib2.cache.Cache;
 import net.imglib2.cache.img.CachedCellImg;
 import net.imglib2.cache.img.LoadedCellCacheLoader;
+import net.imglib2.cache.img.SingleCellArrayImg;
 import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.basictypeaccess.AccessFlags;
 import net.imglib2.img.basictypeaccess.ArrayDataAccessFactory;
+import net.imglib2.img.basictypeaccess.FloatAccess;
 import net.imglib2.img.cell.Cell;
 import net.imglib2.img.cell.CellGrid;
 import net.imglib2.position.FunctionRealRandomAccessible;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.RealTransform;
 import net.imglib2.realtransform.RealViews;
-import net.imglib2.util.Intervals;
 import net.imglib2.view.ExtendedRandomAccessibleInterval;
 import net.imglib2.view.Views;
 import sc.fiji.bdvpg.cache.GlobalLoaderCache;
 
 import java.util.concurrent.ConcurrentHashMap;
 
-import static net.imglib2.img.basictypeaccess.AccessFlags.DIRTY;
+import static net.imglib2.img.basictypeaccess.AccessFlags.VOLATILE;
 import static net.imglib2.type.PrimitiveType.FLOAT;
 
+/**
+ * Transform field sampled on the voxel grid of a model source.
+ * <br>
+ * By default, the field is a lazy volatile {@link CachedCellImg}: the transform is evaluated for
+ * a whole cell at once, when the cell is accessed for the first time, and the result is written directly
+ * into the float array backing the cell. The field can also be computed eagerly into an in-memory
+ * array image of the model size, see {@link ResampledTransformFieldSource#ResampledTransformFieldSource(RealTransform, Source, String, boolean)}.
+ */
 public class ResampledTransformFieldSource implements ITransformFieldSource<NativeRealPoint3D> {
 
     final RealTransform origin;
@@ -39,7 +48,11 @@ public class ResampledTransformFieldSource implements ITransformFieldSource<Nati
     final String name;
     final RealPoint3DInterpolatorFactory interpolator = new RealPoint3DInterpolatorFactory();
 
-    final ThreadLocal<RealTransform> localTransform = new ThreadLocal<>();
+    final BatchRealTransform batchTransform;
+
+    final ThreadLocal<BatchRealTransform> localTransform = new ThreadLocal<>();
+
+    final boolean lazy;
 
     /**
      * Hashmap to cache RAIs (mipmaps and timepoints)
@@ -48,10 +61,23 @@ public class ResampledTransformFieldSource implements ITransformFieldSource<Nati
             new ConcurrentHashMap<>();
 
     public ResampledTransformFieldSource(RealTransform origin, Source resamplingModel, String name) throws UnsupportedOperationException {
+        this(origin, resamplingModel, name, true);
+    }
+
+    /**
+     * @param origin transform to sample
+     * @param resamplingModel source defining the voxel grid of the field
+     * @param name name of the field
+     * @param lazy if true, the field is computed cell by cell when accessed, otherwise the complete field
+     *             is computed in memory when a resolution level is accessed for the first time
+     */
+    public ResampledTransformFieldSource(RealTransform origin, Source resamplingModel, String name, boolean lazy) throws UnsupportedOperationException {
         if ((origin.numTargetDimensions()!=3)||(origin.numSourceDimensions()!=3)) throw new UnsupportedOperationException("Only 3d to 3d transforms are supported");
         this.origin = origin;
+        this.batchTransform = new BatchRealTransform(origin);
         this.resamplingModel = resamplingModel;
         this.name = name;
+        this.lazy = lazy;
     }
 
     @Override
@@ -90,7 +116,7 @@ public class ResampledTransformFieldSource implements ITransformFieldSource<Nati
                 new FunctionRealRandomAccessible<>(3,
                         (location, value) -> {
                             if (localTransform.get()==null) {
-                                localTransform.set(origin.copy());
+                                localTransform.set(batchTransform.copy());
                             }
                             localTransform.get().apply(location, value);
                         }, this::getType);
@@ -114,19 +140,23 @@ public class ResampledTransformFieldSource implements ITransformFieldSource<Nati
         }
 
         if (!cachedRAIs.get(t).containsKey(level)) {
-            RandomAccessibleInterval<NativeRealPoint3D> nonCached = buildSource(t, level);
+            RandomAccessibleInterval<?> model = resamplingModel.getSource(t, level);
 
             int[] blockSize = { 128, 128, 32 };
 
-            if (nonCached.dimension(0) < 128) blockSize[0] = (int) nonCached
+            if (model.dimension(0) < 128) blockSize[0] = (int) model
                     .dimension(0);
-            if (nonCached.dimension(1) < 128) blockSize[1] = (int) nonCached
+            if (model.dimension(1) < 128) blockSize[1] = (int) model
                     .dimension(1);
-            if (nonCached.dimension(2) < 32) blockSize[2] = (int) nonCached
+            if (model.dimension(2) < 32) blockSize[2] = (int) model
                     .dimension(2);
 
-            cachedRAIs.get(t).put(level, compute(
-                    nonCached, blockSize, this, t, level));
+            if (lazy) {
+                cachedRAIs.get(t).put(level, buildCachedSource(t, level, blockSize));
+            } else {
+                cachedRAIs.get(t).put(level, compute(
+                        buildSource(t, level), blockSize, this, t, level));
+            }
         }
         return cachedRAIs.get(t).get(level);
     }
@@ -166,29 +196,73 @@ public class ResampledTransformFieldSource implements ITransformFieldSource<Nati
         return resamplingModel.getNumMipmapLevels();
     }
 
-    // ABYSMAL PERFORMANCE
-    /*public static RandomAccessibleInterval<NativeRealPoint3D>
-    wrapAsVolatileCachedCellImg(final RandomAccessibleInterval<NativeRealPoint3D> source,
-                                final int[] blockSize, Object objectSource, int timepoint, int level)
-    {
+    /**
+     * Builds the lazy field of a resolution level: a volatile cached cell image whose cells
+     * are filled by {@link ResampledTransformFieldSource#fillCell(SingleCellArrayImg, AffineTransform3D)}
+     */
+    public RandomAccessibleInterval<NativeRealPoint3D> buildCachedSource(int t, int level, int[] blockSize) {
+        final AffineTransform3D at = new AffineTransform3D();
+        resamplingModel.getSourceTransform(t, level, at);
 
-        final long[] dimensions = Intervals.dimensionsAsLongArray(source);
+        final long[] dimensions = resamplingModel.getSource(t, level).dimensionsAsLongArray();
         final CellGrid grid = new CellGrid(dimensions, blockSize);
+        final NativeRealPoint3D type = new NativeRealPoint3D();
 
-        final Caches.RandomAccessibleLoader<NativeRealPoint3D> loader =
-                new Caches.RandomAccessibleLoader<>(Views.zeroMin(source));
-
-        final CachedCellImg<NativeRealPoint3D, ?> img;
-        final Cache<Long, Cell<NativeRealPoint3D>> cache =
-                new GlobalLoaderCache(objectSource, timepoint, level)
-                          .withLoader(LoadedCellCacheLoader.get(grid, loader, new NativeRealPoint3D(),
-                AccessFlags.setOf(DIRTY)));
+        final Cache<Long, Cell<?>> cache = (new GlobalLoaderCache(this, t, level))
+                .withLoader(LoadedCellCacheLoader.get(grid, cell -> fillCell(cell, at),
+                        type, AccessFlags.setOf(VOLATILE)));
 
-        img = new CachedCellImg(grid, new NativeRealPoint3D(), cache, ArrayDataAccessFactory.get(
-                FLOAT, AccessFlags.setOf(DIRTY)));
+        return new CachedCellImg(grid, type, cache, ArrayDataAccessFactory.get(FLOAT, AccessFlags.setOf(VOLATILE)));
+    }
 
-        return img;
-    }*/
+    /**
+     * Evaluates the transform for all voxels of a cell, line by line. The positions of the voxels of a line
+     * in the global space are obtained by incrementing the position of the first voxel with the
+     * X axis of the voxel to global transform, the line is transformed at once with
+     * {@link BatchRealTransform#apply(double[][], double[][], int)}, and the results are written directly
+     * in the float array of the cell (4 floats per voxel, see {@link NativeRealPoint3D}).
+     */
+    private void fillCell(SingleCellArrayImg<NativeRealPoint3D, ?> cell, AffineTransform3D voxelToGlobal) {
+        if (localTransform.get()==null) {
+            localTransform.set(batchTransform.copy());
+        }
+        final BatchRealTransform transform = localTransform.get();
+        final FloatAccess data = (FloatAccess) cell.update(null);
+
+        final long[] min = cell.minAsLongArray();
+        final long[] max = cell.maxAsLongArray();
+        final int lineLength = (int) (max[0] - min[0] + 1);
+
+        final double[] voxel = new double[3];
+        final double[] global = new double[3];
+        final double[][] line = new double[3][lineLength];
+        final double[][] transformed = new double[3][lineLength];
+        final double stepX0 = voxelToGlobal.get(0, 0);
+        final double stepX1 = voxelToGlobal.get(1, 0);
+        final double stepX2 = voxelToGlobal.get(2, 0);
+
+        int offset = 0;
+        for (long z = min[2]; z <= max[2]; z++) {
+            for (long y = min[1]; y <= max[1]; y++) {
+                voxel[0] = min[0];
+                voxel[1] = y;
+                voxel[2] = z;
+                voxelToGlobal.apply(voxel, global);
+                for (int x = 0; x < lineLength; x++) {
+                    line[0][x] = global[0] + x * stepX0;
+                    line[1][x] = global[1] + x * stepX1;
+                    line[2][x] = global[2] + x * stepX2;
+                }
+                transform.apply(line, transformed, lineLength);
+                for (int x = 0; x < lineLength; x++) {
+                    data.setValue(offset, (float) transformed[0][x]);
+                    data.setValue(offset + 1, (float) transformed[1][x]);
+                    data.setValue(offset + 2, (float) transformed[2][x]);
+                    offset += 4;
+                }
+            }
+        }
+    }
 
     public RandomAccessibleInterval<NativeRealPoint3D>
     compute(final RandomAccessibleInterval<NativeRealPoint3D> source,
@@ -0,0 +1,142 @@
+package bdv.util.source.fused;
+
+import bdv.img.WarpedSource;
+import bdv.tools.transformation.TransformedSource;
+import bdv.util.source.alpha.AlphaSourceRAI;
+import bdv.util.source.alpha.IAlphaSource;
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Samples a {@link Source} on the voxel grid of a model source, one scanline at a time.
+ * <br>
+ * Resampling through {@code RealViews.affine(source.getInterpolatedSource(...))} re-applies the full
+ * affine transform and re-positions the interpolator for every voxel. Along a scanline of the model
+ * grid, the position in the source voxel space only moves by the first column of the
+ * model to source affine transform. This sampler thus computes the source position of each voxel
+ * of the line with a single multiply-add per dimension, and moves its underlying {@link RandomAccess}
+ * by the integer difference with the previous sample. The previous value is reused as long as the rounded
+ * position does not change.
+ * <br>
+ * Only the {@link Interpolation#NEARESTNEIGHBOR} interpolation is supported, and only for sources
+ * which are a plain affine view of their {@link Source#getSource(int, int)}, extended with zeros,
+ * see {@link AffineScanlineSampler#isAffine(Source)}. In this case, the sampler reads the same voxels
+ * as the interpolated source, up to the floating point rounding of positions lying exactly in between two voxels.
+ *
+ * @param <T> pixel type of the sampled source
+ */
+public class AffineScanlineSampler<T extends RealType<T>> {
+
+    final RandomAccessible<T> origin;
+
+    /**
+     * Position in origin voxel space of the model voxel (0,0,0)
+     */
+    final double[] offset = new double[3];
+
+    /**
+     * steps[d][i] : displacement along origin axis i when moving by one model voxel along axis d
+     */
+    final double[][] steps = new double[3][3];
+
+    /**
+     * @param origin voxels of the sampled source, at the resolution level matching the model
+     * @param modelToOrigin affine transform from model voxel coordinates to origin voxel coordinates
+     */
+    public AffineScanlineSampler(RandomAccessibleInterval<T> origin,
+                                 AffineTransform3D modelToOrigin) {
+        this.origin = Views.extendZero(origin);
+        for (int i = 0; i < 3; i++) {
+            offset[i] = modelToOrigin.get(i, 3);
+            for (int d = 0; d < 3; d++) {
+                steps[d][i] = modelToOrigin.get(i, d);
+            }
+        }
+    }
+
+    /**
+     * @param source source to check
+     * @return true if the interpolated source is an affine transformed, zero-extended, interpolated
+     * view of its raw voxels - which is the case for all sources except warped ones
+     */
+    public static boolean isAffine(Source<?> source) {
+        Source<?> root = source;
+        while (root instanceof TransformedSource) {
+            root = ((TransformedSource<?>) root).getWrappedSource();
+        }
+        if (root instanceof WarpedSource) return false;
+        if (root instanceof IAlphaSource) return root instanceof AlphaSourceRAI;
+        return true;
+    }
+
+    /**
+     * @return a new line sampler - not thread safe, one should be created per thread
+     */
+    public LineSampler lineSampler() {
+        return new LineSampler();
+    }
+
+    public class LineSampler {
+
+        final RandomAccess<T> ra = origin.randomAccess();
+
+        final long[] current = new long[3];
+
+        final long[] next = new long[3];
+
+        final double[] lineStart = new double[3];
+
+        boolean valid = false;
+
+        float lastValue;
+
+        /**
+         * Samples n voxels of the model line starting at (x, y, z)
+         * @param x model x coordinate of the first sample
+         * @param y model y coordinate of the line
+         * @param z model z coordinate of the line
+         * @param n number of samples
+         * @param out array where the samples are written
+         * @param outOffset index in out of the first sample
+         */
+        public void sample(long x, long y, long z, int n, float[] out, int outOffset) {
+            for (int i = 0; i < 3; i++) {
+                lineStart[i] = offset[i] + x * steps[0][i] + y * steps[1][i] + z * steps[2][i];
+            }
+            final double[] step = steps[0];
+            for (int k = 0; k < n; k++) {
+                boolean moved = !valid;
+                for (int i = 0; i < 3; i++) {
+                    next[i] = Math.round(lineStart[i] + k * step[i]);
+                    moved = moved || (next[i] != current[i]);
+                }
+                if (moved) {
+                    moveTo(next);
+                    lastValue = ra.get().getRealFloat();
+                }
+                out[outOffset + k] = lastValue;
+            }
+        }
+
+        private void moveTo(long[] target) {
+            if (valid) {
+                for (int i = 0; i < 3; i++) {
+                    long delta = target[i] - current[i];
+                    if (delta != 0) ra.move(delta, i);
+                    current[i] = target[i];
+                }
+            } else {
+                ra.setPosition(target);
+                System.arraycopy(target, 0, current, 0, 3);
+                valid = true;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,313 @@
+package bdv.util.source.fused;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+import static bdv.util.source.fused.AlphaFusedResampledSource.AVERAGE;
+import static bdv.util.source.fused.AlphaFusedResampledSource.MAX;
+import static bdv.util.source.fused.AlphaFusedResampledSource.SUM;
+
+/**
+ * Fills a cell of a {@link AlphaFusedResampledSource} scanline per scanline instead of voxel per voxel.
+ * <br>
+ * The per-voxel {@link SubSetFusedRandomAccess} implementations move and read all origin and alpha
+ * random accesses for every voxel through the generic {@link RandomAccess} interface. Here, each origin
+ * contributes a full scanline at a time: its random accesses are positioned once at the start of the line,
+ * then moved forward along X while its values are accumulated into primitive float buffers. Once all
+ * origins have been accumulated, the line is written into the cell in a single pass.
+ * <br>
+ * The arithmetic is performed in the same order and with the same float precision as in
+ * {@link AverageAlphaFused3DRandomAccess}, {@link SumAlphaFused3DRandomAccess} and
+ * {@link MaxAlphaFused3DRandomAccess}, so the result is bit-identical to the voxel-wise fusion.
+ * For {@link AlphaFusedResampledSource#SUM} of integer types, this holds as long as the sum
+ * stays below 2^24 (exact float range), which covers 256 fully saturated 16-bit sources.
+ * <br>
+ * When all origins are affine and sampled with the nearest neighbor interpolation, origins can instead be
+ * sampled with {@link AffineScanlineSampler}, which skips the per voxel affine view and interpolator positioning
+ * altogether, see {@link AlphaFusedResampledSource#setUseScanlineSampling(boolean)}.
+ * <br>
+ * Only {@link UnsignedByteType}, {@link UnsignedShortType} and {@link FloatType} are supported,
+ * see {@link AlphaFusedCellKernel#supports(Object)}. Buffers are kept per thread and reused
+ * between cells.
+ *
+ * @param <T> pixel type of the fused source
+ */
+public class AlphaFusedCellKernel<T extends RealType<T>> {
+
+    final String blendingMode;
+
+    /**
+     * Per thread line buffers: index 0 = accumulated value, index 1 = accumulated alpha,
+     * index 2 = values of the current origin, index 3 = alpha of the current origin
+     */
+    private static final ThreadLocal<float[][]> lineBuffers = ThreadLocal.withInitial(() -> new float[4][0]);
+
+    private static float[][] getLineBuffers(int nx) {
+        float[][] buffers = lineBuffers.get();
+        if (buffers[0].length < nx) {
+            buffers = new float[][]{new float[nx], new float[nx], new float[nx], new float[nx]};
+            lineBuffers.set(buffers);
+        }
+        return buffers;
+    }
+
+    public AlphaFusedCellKernel(String blendingMode) {
+        switch (blendingMode) {
+            case AVERAGE:
+            case MAX:
+            case SUM:
+                break;
+            default:
+                throw new UnsupportedOperationException("Unsupported blending method: "+blendingMode);
+        }
+        this.blendingMode = blendingMode;
+    }
+
+    /**
+     * @param type a pixel of the fused source
+     * @return true if the fusion of this pixel type can be performed by this kernel
+     */
+    public static boolean supports(Object type) {
+        return (type instanceof UnsignedByteType)
+                ||(type instanceof UnsignedShortType)
+                ||(type instanceof FloatType);
+    }
+
+    /**
+     * Fuses the selected origins into the cell
+     * @param origins origin sources, already resampled in the cell coordinates
+     * @param originsAlpha alpha of each origin, already resampled in the cell coordinates
+     * @param subset which origins should be taken into account for this cell
+     * @param cell the 3D cell to fill
+     */
+    public void fuse(RandomAccessible<T>[] origins,
+                     RandomAccessible<FloatType>[] originsAlpha,
+                     boolean[] subset,
+                     RandomAccessibleInterval<T> cell) {
+
+        int nPresent = 0;
+        for (boolean present : subset) {
+            if (present) nPresent++;
+        }
+
+        final RandomAccess<T>[] ras = new RandomAccess[nPresent];
+        final RandomAccess<FloatType>[] rasAlpha = new RandomAccess[nPresent];
+        int iSource = 0;
+        for (int i = 0; i < subset.length; i++) {
+            if (subset[i]) {
+                ras[iSource] = origins[i].randomAccess(cell);
+                rasAlpha[iSource] = originsAlpha[i].randomAccess(cell);
+                iSource++;
+            }
+        }
+
+        final int nx = (int) cell.dimension(0);
+        final long minX = cell.min(0);
+
+        final float[][] buffers = getLineBuffers(nx);
+        final float[] value = buffers[0];
+        final float[] sumAlpha = buffers[1];
+
+        final long[] lineStart = new long[3];
+        lineStart[0] = minX;
+
+        final Cursor<T> out = Views.flatIterable(cell).cursor();
+
+        for (long z = cell.min(2); z <= cell.max(2); z++) {
+            lineStart[2] = z;
+            for (long y = cell.min(1); y <= cell.max(1); y++) {
+                lineStart[1] = y;
+
+                for (int x = 0; x < nx; x++) {
+                    value[x] = 0;
+                    sumAlpha[x] = 0;
+                }
+
+                for (int i = 0; i < nPresent; i++) {
+                    final RandomAccess<T> ra = ras[i];
+                    final RandomAccess<FloatType> raAlpha = rasAlpha[i];
+                    ra.setPosition(lineStart);
+                    raAlpha.setPosition(lineStart);
+                    switch (blendingMode) {
+                        case AVERAGE:
+                            accumulateAverage(ra, raAlpha, value, sumAlpha, nx);
+                            break;
+                        case SUM:
+                            accumulateSum(ra, raAlpha, value, nx);
+                            break;
+                        case MAX:
+                            accumulateMax(ra, raAlpha, value, nx);
+                            break;
+                    }
+                }
+
+                writeLine(out, value, sumAlpha, nx);
+            }
+        }
+    }
+
+    /**
+     * Fuses the selected origins into the cell, sampling each origin with an {@link AffineScanlineSampler}
+     * instead of a per voxel affine view
+     * @param origins origin samplers, in the cell coordinates
+     * @param originsAlpha alpha samplers of each origin, in the cell coordinates
+     * @param subset which origins should be taken into account for this cell
+     * @param cell the 3D cell to fill
+     */
+    public void fuse(AffineScanlineSampler<T>[] origins,
+                     AffineScanlineSampler<FloatType>[] originsAlpha,
+                     boolean[] subset,
+                     RandomAccessibleInterval<T> cell) {
+
+        int nPresent = 0;
+        for (boolean present : subset) {
+            if (present) nPresent++;
+        }
+
+        final AffineScanlineSampler<T>.LineSampler[] samplers = new AffineScanlineSampler.LineSampler[nPresent];
+        final AffineScanlineSampler<FloatType>.LineSampler[] samplersAlpha = new AffineScanlineSampler.LineSampler[nPresent];
+        int iSource = 0;
+        for (int i = 0; i < subset.length; i++) {
+            if (subset[i]) {
+                samplers[iSource] = origins[i].lineSampler();
+                samplersAlpha[iSource] = originsAlpha[i].lineSampler();
+                iSource++;
+            }
+        }
+
+        final int nx = (int) cell.dimension(0);
+        final long minX = cell.min(0);
+
+        final float[][] buffers = getLineBuffers(nx);
+        final float[] value = buffers[0];
+        final float[] sumAlpha = buffers[1];
+        final float[] lineValue = buffers[2];
+        final float[] lineAlpha = buffers[3];
+
+        final Cursor<T> out = Views.flatIterable(cell).cursor();
+
+        for (long z = cell.min(2); z <= cell.max(2); z++) {
+            for (long y = cell.min(1); y <= cell.max(1); y++) {
+
+                for (int x = 0; x < nx; x++) {
+                    value[x] = 0;
+                    sumAlpha[x] = 0;
+                }
+
+                for (int i = 0; i < nPresent; i++) {
+                    samplersAlpha[i].sample(minX, y, z, nx, lineAlpha, 0);
+
+                    // Restricts the sampling of the origin to the part of the line where it is visible
+                    int first = 0;
+                    while ((first < nx) && (lineAlpha[first] == 0)) first++;
+                    if (first == nx) continue;
+                    int last = nx - 1;
+                    while (lineAlpha[last] == 0) last--;
+
+                    samplers[i].sample(minX + first, y, z, last - first + 1, lineValue, first);
+
+                    switch (blendingMode) {
+                        case AVERAGE:
+                            for (int x = first; x <= last; x++) {
+                                float alpha_v = lineAlpha[x];
+                                if (alpha_v != 0) {
+                                    value[x] += alpha_v * lineValue[x];
+                                    sumAlpha[x] += alpha_v;
+                                }
+                            }
+                            break;
+                        case SUM:
+                            for (int x = first; x <= last; x++) {
+                                if (lineAlpha[x] != 0) value[x] += lineValue[x];
+                            }
+                            break;
+                        case MAX:
+                            for (int x = first; x <= last; x++) {
+                                if (lineAlpha[x] != 0) value[x] = Math.max(value[x], lineValue[x]);
+                            }
+                            break;
+                    }
+                }
+
+                writeLine(out, value, sumAlpha, nx);
+            }
+        }
+    }
+
+    /**
+     * Copies a single origin into the cell, regardless of its alpha value, as done when only
+     * one origin overlaps the cell
+     * @param origin origin sampler, in the cell coordinates
+     * @param cell the 3D cell to fill
+     */
+    public void copy(AffineScanlineSampler<T> origin, RandomAccessibleInterval<T> cell) {
+        final AffineScanlineSampler<T>.LineSampler sampler = origin.lineSampler();
+        final int nx = (int) cell.dimension(0);
+        final long minX = cell.min(0);
+        final float[] lineValue = getLineBuffers(nx)[2];
+        final Cursor<T> out = Views.flatIterable(cell).cursor();
+        for (long z = cell.min(2); z <= cell.max(2); z++) {
+            for (long y = cell.min(1); y <= cell.max(1); y++) {
+                sampler.sample(minX, y, z, nx, lineValue, 0);
+                for (int x = 0; x < nx; x++) {
+                    out.next().setReal(lineValue[x]);
+                }
+            }
+        }
+    }
+
+    private void writeLine(Cursor<T> out, float[] value, float[] sumAlpha, int nx) {
+        if (blendingMode.equals(AVERAGE)) {
+            for (int x = 0; x < nx; x++) {
+                out.next().setReal(value[x] / sumAlpha[x]);
+            }
+        } else {
+            for (int x = 0; x < nx; x++) {
+                out.next().setReal(value[x]);
+            }
+        }
+    }
+
+    private static <T extends RealType<T>> void accumulateAverage(RandomAccess<T> ra, RandomAccess<FloatType> raAlpha,
+                                                                  float[] value, float[] sumAlpha, int nx) {
+        for (int x = 0; x < nx; x++) {
+            float alpha_v = raAlpha.get().get();
+            if (alpha_v != 0) {
+                value[x] += alpha_v * ra.get().getRealFloat();
+                sumAlpha[x] += alpha_v;
+            }
+            ra.fwd(0);
+            raAlpha.fwd(0);
+        }
+    }
+
+    private static <T extends RealType<T>> void accumulateSum(RandomAccess<T> ra, RandomAccess<FloatType> raAlpha,
+                                                              float[] value, int nx) {
+        for (int x = 0; x < nx; x++) {
+            if (raAlpha.get().get() != 0) {
+                value[x] += ra.get().getRealFloat();
+            }
+            ra.fwd(0);
+            raAlpha.fwd(0);
+        }
+    }
+
+    private static <T extends RealType<T>> void accumulateMax(RandomAccess<T> ra, RandomAccess<FloatType> raAlpha,
+                                                              float[] value, int nx) {
+        for (int x = 0; x < nx; x++) {
+            if (raAlpha.get().get() != 0) {
+                value[x] = Math.max(value[x], ra.get().getRealFloat());
+            }
+            ra.fwd(0);
+            raAlpha.fwd(0);
+        }
+    }
+
+}
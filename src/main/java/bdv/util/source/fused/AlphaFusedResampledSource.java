@@ -6,10 +6,14 @@ import bdv.util.DefaultInterpolators;
 import net.imglib2.RandomAccess;
 import bdv.util.source.alpha.AlphaSourceHelper;
 import bdv.util.source.alpha.IAlphaSource;
+import bdv.util.source.cache.DiskCachedSource;
+import bdv.util.source.cache.DiskCellCache;
+import bdv.util.source.process.BlockDownsampler;
 import bdv.viewer.Interpolation;
 import bdv.viewer.Source;
 import mpicbg.spim.data.sequence.VoxelDimensions;
 import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccessible;
@@ -77,7 +81,7 @@ import static net.imglib2.type.PrimitiveType.SHORT;
  * @author Nicolas Chiaruttini, BIOP EPFL, 2022
  */
 
-public class AlphaFusedResampledSource< T extends RealType<T> & NativeType<T>> implements Source<T> {
+public class AlphaFusedResampledSource< T extends RealType<T> & NativeType<T>> implements Source<T>, DiskCachedSource {
 
     final public static String SUM = "SUM";
     final public static String AVERAGE = "AVERAGE";
@@ -116,6 +120,30 @@ public class AlphaFusedResampledSource< T extends RealType<T> & NativeType<T>> i
 
     final String blendingMode;
 
+    /**
+     * When true, cells of supported pixel types are fused scanline per scanline with primitive buffers,
+     * see {@link AlphaFusedCellKernel}
+     */
+    boolean usePrimitiveKernel = true;
+
+    /**
+     * When true, and if all origins are affine and sampled with the nearest neighbor interpolation, origins are
+     * resampled scanline per scanline by the primitive kernel, see {@link AffineScanlineSampler}. The sampler
+     * reads the same voxels as the interpolated origins in this case. Linearly interpolated or warped origins
+     * are always sampled through their interpolated sources.
+     */
+    boolean useScanlineSampling = true;
+
+    /**
+     * Spatial index of the origins present at each timepoint, used to know which origins overlap a cell
+     */
+    transient Map<Integer, SourcesOverlapIndex> overlapIndexes = new ConcurrentHashMap<>();
+
+    /**
+     * Downsampling factors of each level above 0, when these levels are derived from level 0, null otherwise
+     */
+    final int[][] pyramidFactors;
+
     /**
      * The origin sources are accessed through their RealRandomAccessible representation :
      * - It can be accessed at any 3d point in space, with real valued coordinates : it's a field of {@link T} objects
@@ -154,6 +182,37 @@ public class AlphaFusedResampledSource< T extends RealType<T> & NativeType<T>> i
                                      int cacheX,
                                      int cacheY,
                                      int cacheZ) {
+        this(origins, blendingMode, resamplingModel, name, reuseMipMaps, cache, originsInterpolation,
+                defaultMipMapLevel, cacheX, cacheY, cacheZ, null);
+    }
+
+    /**
+     * Same as {@link AlphaFusedResampledSource#AlphaFusedResampledSource(Collection, String, Source, String, boolean, boolean, Map, int, int, int, int)},
+     * but the resolution levels above 0 can be derived from the fused level 0 instead of being fused
+     * independently from the origins.
+     * <br>
+     * Each level l (l greater or equal to 1) is then computed by block reduction of the cached cells of
+     * level l-1, with a block size of pyramidFactors[l-1]: mean for {@link AlphaFusedResampledSource#AVERAGE}
+     * and {@link AlphaFusedResampledSource#SUM}, max for {@link AlphaFusedResampledSource#MAX}. This avoids
+     * reading the origins again at full resolution when the origins have no or few mipmap levels.
+     * The mipmap levels of the model source are then ignored, except for level 0.
+     *
+     * @param pyramidFactors downsampling factors along X, Y and Z for each level above 0,
+     *                       null to fuse each level of the model independently
+     */
+    public AlphaFusedResampledSource(Collection<Source<T>> origins,
+                                     String blendingMode,
+                                     Source< ? > resamplingModel,
+                                     String name,
+                                     boolean reuseMipMaps,
+                                     boolean cache,
+                                     Map<Source<T>, Interpolation> originsInterpolation,
+                                     int defaultMipMapLevel,
+                                     int cacheX,
+                                     int cacheY,
+                                     int cacheZ,
+                                     int[][] pyramidFactors) {
+        this.pyramidFactors = pyramidFactors;
         final T t = origins.stream().findAny().get().getType().createVariable();
         this.pixelCreator = t::createVariable;
         this.blendingMode = blendingMode;
@@ -278,6 +337,10 @@ public class AlphaFusedResampledSource< T extends RealType<T> & NativeType<T>> i
     @Override
     public RandomAccessibleInterval<T> getSource(int t, int level) {
 
+        if ((pyramidFactors!=null)&&(level>0)) {
+            return getDerivedLevel(t, level);
+        }
+
         long sx = resamplingModel.getSource(t,level).dimension(0);//-1;
         long sy = resamplingModel.getSource(t,level).dimension(1);//-1;
         long sz = resamplingModel.getSource(t,level).dimension(2);//-1;
@@ -301,35 +364,42 @@ public class AlphaFusedResampledSource< T extends RealType<T> & NativeType<T>> i
 
                     final IAlphaSource[] arrayAlphaSources = iteratedAlphaSources.toArray(new IAlphaSource[0]);
                     final int nSources = arrayAlphaSources.length;
+                    final SourcesOverlapIndex overlapIndex = getOverlapIndex(t);
                     final AffineTransform3D affineTransform = new AffineTransform3D();
                     getSourceTransform(t,level,affineTransform);
 
                     final CachedCellImg<T, ?> img;
                     final CellGrid grid = new CellGrid(new long[]{sx, sy, sz}, blockSize);
                     T type = pixelCreator.get();
+                    final AlphaFusedCellKernel<T> kernel =
+                            (usePrimitiveKernel && AlphaFusedCellKernel.supports(type)) ? new AlphaFusedCellKernel<>(blendingMode) : null;
+                    final AffineScanlineSampler<T>[] samplers = (kernel!=null)&&(useScanlineSampling) ? buildSamplers(t, level) : null;
+                    final AffineScanlineSampler<FloatType>[] samplersAlpha = (kernel!=null)&&(useScanlineSampling) ? buildAlphaSamplers(t, level) : null;
+                    final boolean useSamplers = (samplers!=null)&&(samplersAlpha!=null);
                     final Cache<Long, Cell<?>> cache =
                             new GlobalLoaderCache(this, t, level)
                                     .withLoader(
-                                            LoadedCellCacheLoader.get(grid, cell -> {
+                                            LoadedCellCacheLoader.get(grid, DiskCellCache.wrapIfEnabled(name,
+                                                    () -> getDiskCacheParameters(t), t, level, grid, pixelCreator.get(), cell -> {
                                                 boolean[] sourcesPresentInCell = new boolean[nSources];
-                                                int nSourcesPresent = 0;
                                                 RandomAccess<T> uniqueSource = null;
-                                                for (int i=0;i<nSources;i++) {
-                                                    IAlphaSource alpha = arrayAlphaSources[i];
-                                                    if (!alpha.doBoundingBoxCulling()) {
-                                                        sourcesPresentInCell[i] = true;
-                                                    } else {
-                                                        sourcesPresentInCell[i] = alpha.intersectBox(affineTransform.copy(), cell, t);
-                                                    }
-                                                    if (sourcesPresentInCell[i]) {
-                                                        nSourcesPresent++;
-                                                        if (nSourcesPresent==1) {
+                                                int uniqueSourceIndex = -1;
+                                                int nSourcesPresent = overlapIndex.query(affineTransform, cell, sourcesPresentInCell);
+                                                if (nSourcesPresent==1) {
+                                                    for (int i=0;i<nSources;i++) {
+                                                        if (sourcesPresentInCell[i]) {
                                                             uniqueSource = nonCached.origins[i].randomAccess();
+                                                            uniqueSourceIndex = i;
+                                                            break;
                                                         }
                                                     }
                                                 }
                                                 //System.out.println("nSources = "+nSourcesPresent);
-                                                if (nSourcesPresent>1) {
+                                                if ((nSourcesPresent>1)&&(useSamplers)) {
+                                                    kernel.fuse(samplers, samplersAlpha, sourcesPresentInCell, cell);
+                                                } else if ((nSourcesPresent>1)&&(kernel!=null)) {
+                                                    kernel.fuse(nonCached.origins, nonCached.origins_alpha, sourcesPresentInCell, cell);
+                                                } else if (nSourcesPresent>1) {
                                                     RandomAccess<T> nonCachedAccess = nonCached.randomAccess(sourcesPresentInCell);
                                                     Cursor<T> out = Views.flatIterable(cell).cursor();
                                                     T t_in;
@@ -338,6 +408,8 @@ public class AlphaFusedResampledSource< T extends RealType<T> & NativeType<T>> i
                                                         nonCachedAccess.setPosition(out);
                                                         t_in.set(nonCachedAccess.get());
                                                     }
+                                                } else if ((nSourcesPresent==1)&&(useSamplers)) {
+                                                    kernel.copy(samplers[uniqueSourceIndex], cell);
                                                 } else if (nSourcesPresent==1) { // No projection needed, and avg = sum = max
                                                     RandomAccess<T> nonCachedAccess = uniqueSource;
                                                     Cursor<T> out = Views.flatIterable(cell).cursor();
@@ -350,7 +422,7 @@ public class AlphaFusedResampledSource< T extends RealType<T> & NativeType<T>> i
                                                 } else {
                                                     cell.forEach(SetZero::setZero);
                                                 }
-                                            }, pixelCreator.get(), AccessFlags.setOf(
+                                            }), pixelCreator.get(), AccessFlags.setOf(
                                                     VOLATILE)));
                     if (GenericByteType.class.isInstance(type)) {
                         img = new CachedCellImg(grid, type, cache, ArrayDataAccessFactory.get(
@@ -395,6 +467,67 @@ public class AlphaFusedResampledSource< T extends RealType<T> & NativeType<T>> i
 
     }
 
+    /**
+     * Level derived from the level above by block downsampling, see
+     * {@link AlphaFusedResampledSource#AlphaFusedResampledSource(Collection, String, Source, String, boolean, boolean, Map, int, int, int, int, int[][])}
+     */
+    private RandomAccessibleInterval<T> getDerivedLevel(int t, int level) {
+        if (!cachedRAIs.containsKey(t)) {
+            cachedRAIs.put(t, new ConcurrentHashMap<>());
+        }
+        if (!cachedRAIs.get(t).containsKey(level)) {
+            final RandomAccessibleInterval<T> above = getSource(t, level - 1);
+            final int[] factors = pyramidFactors[level - 1];
+            final String reduction = blendingMode.equals(MAX) ? BlockDownsampler.MAX : BlockDownsampler.MEAN;
+            final CellGrid grid = new CellGrid(
+                    BlockDownsampler.downsampledDimensions(above.dimensionsAsLongArray(), factors),
+                    new int[]{cacheX, cacheY, cacheZ});
+            T type = pixelCreator.get();
+            LoadedCellCacheLoader<T, ?> loader = LoadedCellCacheLoader.get(grid,
+                    DiskCellCache.wrapIfEnabled(name, () -> getDiskCacheParameters(t), t, level, grid, type,
+                            cell -> BlockDownsampler.downsample(Views.zeroMin(above), factors, reduction, cell)),
+                    type, AccessFlags.setOf(VOLATILE));
+            Cache<Long, Cell<T>> cellCache = (new GlobalLoaderCache(this, t, level)).withLoader(loader);
+            cachedRAIs.get(t).putIfAbsent(level,
+                    new CachedCellImg(grid, type, cellCache, ArrayDataAccessFactory.get(type, AccessFlags.setOf(VOLATILE))));
+        }
+        return cachedRAIs.get(t).get(level);
+    }
+
+    /**
+     * @param t timepoint
+     * @return a description of everything the fused cells of this timepoint depend on, used to
+     * invalidate the cells stored in the {@link DiskCellCache} when one of them changes
+     */
+    String getDiskCacheParameters(int t) {
+        StringBuilder parameters = new StringBuilder();
+        parameters.append("blending=").append(blendingMode)
+                .append(";type=").append(pixelCreator.get().getClass().getName())
+                .append(";cells=").append(cacheX).append(",").append(cacheY).append(",").append(cacheZ)
+                .append(";reuseMipMaps=").append(reuseMipMaps)
+                .append(";defaultLevel=").append(defaultMipMapLevel);
+        if (pyramidFactors!=null) {
+            parameters.append(";pyramid=").append(Arrays.deepToString(pyramidFactors));
+        }
+        AffineTransform3D at3D = new AffineTransform3D();
+        resamplingModel.getSourceTransform(t, 0, at3D);
+        parameters.append(";model=").append(Arrays.toString(resamplingModel.getSource(t, 0).dimensionsAsLongArray()))
+                .append(at3D);
+        for (Source<T> origin: origins) {
+            if (!origin.isPresent(t)) continue;
+            origin.getSourceTransform(t, 0, at3D);
+            parameters.append(";").append(DiskCellCache.getSourceIdentity(origin, t))
+                    .append(":").append(originsInterpolation.get(origin))
+                    .append(at3D);
+        }
+        return parameters.toString();
+    }
+
+    @Override
+    public String getDiskCacheIdentity(int t) {
+        return DiskCellCache.identity(getDiskCacheParameters(t));
+    }
+
     public AlphaFused3DRandomAccessible<T> buildSource(int t, int level) {
         // Get current model source transformation
         AffineTransform3D at_ori = new AffineTransform3D();
@@ -446,6 +579,117 @@ public class AlphaFusedResampledSource< T extends RealType<T> & NativeType<T>> i
     }
 
 
+    /**
+     * Returns the spatial index of the alpha sources of the origins present at timepoint t.
+     * The index is built on first access, and rebuilt if one of the origins transform has changed since
+     * @param t timepoint
+     * @return the overlap index, whose source indexes follow the order of the origins present at timepoint t
+     */
+    public synchronized SourcesOverlapIndex getOverlapIndex(int t) {
+        SourcesOverlapIndex index = overlapIndexes.get(t);
+        if ((index == null) || (!index.isUpToDate())) {
+            List<IAlphaSource> presentAlphas = new ArrayList<>();
+            for (Source<T> origin: origins) {
+                if (origin.isPresent(t)) {
+                    presentAlphas.add(originsAlpha.get(origin));
+                }
+            }
+            index = new SourcesOverlapIndex(presentAlphas.toArray(new IAlphaSource[0]), t);
+            overlapIndexes.put(t, index);
+        }
+        return index;
+    }
+
+    /**
+     * Diagnostic: number of origins overlapping each cell of the fused source
+     * @param t timepoint
+     * @param level resolution level
+     * @return number of overlapping origins per cell, in the flattened order of the cell grid
+     * (X cell index varies fastest)
+     */
+    public int[] getCellOverlapCounts(int t, int level) {
+        long[] dims = resamplingModel.getSource(t, level).dimensionsAsLongArray();
+        CellGrid grid = new CellGrid(dims, new int[]{cacheX, cacheY, cacheZ});
+        AffineTransform3D affineTransform = new AffineTransform3D();
+        getSourceTransform(t, level, affineTransform);
+        SourcesOverlapIndex index = getOverlapIndex(t);
+        boolean[] overlapping = new boolean[index.size()];
+        long[] gridDims = grid.getGridDimensions();
+        int[] counts = new int[(int) (gridDims[0] * gridDims[1] * gridDims[2])];
+        long[] cellMin = new long[3];
+        int[] cellDims = new int[3];
+        long[] cellPos = new long[3];
+        for (int i = 0; i < counts.length; i++) {
+            cellPos[0] = i % gridDims[0];
+            cellPos[1] = (i / gridDims[0]) % gridDims[1];
+            cellPos[2] = i / (gridDims[0] * gridDims[1]);
+            grid.getCellDimensions(cellPos, cellMin, cellDims);
+            counts[i] = index.query(affineTransform,
+                    new FinalInterval(cellMin, new long[]{
+                            cellMin[0] + cellDims[0] - 1,
+                            cellMin[1] + cellDims[1] - 1,
+                            cellMin[2] + cellDims[2] - 1}),
+                    overlapping);
+        }
+        return counts;
+    }
+
+    /**
+     * Builds, for each origin present at timepoint t, a sampler which resamples it on the model grid
+     * scanline per scanline, see {@link AffineScanlineSampler}
+     * @param t timepoint
+     * @param level model resolution level
+     * @return samplers, in the same order as the origins of {@link AlphaFusedResampledSource#buildSource(int, int)},
+     * or null if one of the present origins is not affine (warped sources) or is linearly interpolated
+     */
+    public AffineScanlineSampler<T>[] buildSamplers(int t, int level) {
+        List<AffineScanlineSampler<T>> samplers = new ArrayList<>();
+        for (Source<T> origin: origins) {
+            if (origin.isPresent(t)) {
+                if (!AffineScanlineSampler.isAffine(origin)) return null;
+                // The sampler only supports nearest neighbor sampling
+                if (originsInterpolation.get(origin) != Interpolation.NEARESTNEIGHBOR) return null;
+                int originLevel = mipmapModelToOrigin.get(origin).get(level);
+                samplers.add(new AffineScanlineSampler<>(origin.getSource(t, originLevel),
+                        getModelToOrigin(origin, t, level)));
+            }
+        }
+        return samplers.toArray(new AffineScanlineSampler[0]);
+    }
+
+    /**
+     * Same as {@link AlphaFusedResampledSource#buildSamplers(int, int)}, for the alpha sources of each origin.
+     * Alpha sources are never interpolated.
+     * @param t timepoint
+     * @param level model resolution level
+     * @return samplers of the alpha sources, or null if one of them is not affine
+     */
+    public AffineScanlineSampler<FloatType>[] buildAlphaSamplers(int t, int level) {
+        List<AffineScanlineSampler<FloatType>> samplers = new ArrayList<>();
+        for (Source<T> origin: origins) {
+            if (origin.isPresent(t)) {
+                IAlphaSource alpha = originsAlpha.get(origin);
+                if (!AffineScanlineSampler.isAffine(alpha)) return null;
+                int originLevel = mipmapModelToOrigin.get(origin).get(level);
+                samplers.add(new AffineScanlineSampler<>(alpha.getSource(t, originLevel),
+                        getModelToOrigin(alpha, t, level, originLevel)));
+            }
+        }
+        return samplers.toArray(new AffineScanlineSampler[0]);
+    }
+
+    private AffineTransform3D getModelToOrigin(Source<T> origin, int t, int level) {
+        return getModelToOrigin(origin, t, level, mipmapModelToOrigin.get(origin).get(level));
+    }
+
+    private AffineTransform3D getModelToOrigin(Source<?> origin, int t, int level, int originLevel) {
+        AffineTransform3D modelToWorld = new AffineTransform3D();
+        resamplingModel.getSourceTransform(t, level, modelToWorld);
+        AffineTransform3D originToWorld = new AffineTransform3D();
+        origin.getSourceTransform(t, originLevel, originToWorld);
+        return originToWorld.inverse().concatenate(modelToWorld);
+    }
+
     @Override
     public RealRandomAccessible<T> getInterpolatedSource(int t, int level, Interpolation method) {
         final T zero = getType();
@@ -458,7 +702,12 @@ public class AlphaFusedResampledSource< T extends RealType<T> & NativeType<T>> i
 
     @Override
     public void getSourceTransform(int t, int level, AffineTransform3D transform) {
-        resamplingModel.getSourceTransform(t,level,transform);
+        if ((pyramidFactors!=null)&&(level>0)) {
+            getSourceTransform(t, level-1, transform);
+            transform.concatenate(BlockDownsampler.downsamplingTransform(pyramidFactors[level-1]));
+        } else {
+            resamplingModel.getSourceTransform(t, level, transform);
+        }
     }
 
     @Override
@@ -478,9 +727,47 @@ public class AlphaFusedResampledSource< T extends RealType<T> & NativeType<T>> i
 
     @Override
     public int getNumMipmapLevels() {
+        if (pyramidFactors!=null) {
+            return pyramidFactors.length+1;
+        }
         return resamplingModel.getNumMipmapLevels();
     }
 
+    /**
+     * @return the downsampling factors of the levels derived from level 0, or null if each level is fused independently
+     */
+    public int[][] getPyramidFactors() {
+        return pyramidFactors;
+    }
+
+    /**
+     * Enables or disables the scanline fusion of cells, see {@link AlphaFusedCellKernel}.
+     * Only affects the timepoints and resolution levels which have not been accessed yet.
+     * @param usePrimitiveKernel whether supported pixel types should be fused with primitive buffers
+     */
+    public void setUsePrimitiveKernel(boolean usePrimitiveKernel) {
+        this.usePrimitiveKernel = usePrimitiveKernel;
+    }
+
+    public boolean isPrimitiveKernelUsed() {
+        return usePrimitiveKernel;
+    }
+
+    /**
+     * Enables or disables the scanline resampling of affine origins, see {@link AffineScanlineSampler}.
+     * Enabled by default. Has no effect if the primitive kernel is not used, or if one of the origins is
+     * linearly interpolated or not affine.
+     * Only affects the timepoints and resolution levels which have not been accessed yet.
+     * @param useScanlineSampling whether affine origins should be resampled scanline per scanline
+     */
+    public void setUseScanlineSampling(boolean useScanlineSampling) {
+        this.useScanlineSampling = useScanlineSampling;
+    }
+
+    public boolean isScanlineSamplingUsed() {
+        return useScanlineSampling;
+    }
+
     public int getDefaultMipMapLevel() {
         return defaultMipMapLevel;
     }
@@ -0,0 +1,276 @@
+package bdv.util.source.fused;
+
+import bdv.util.source.alpha.AlphaSourceDistanceL1RAI;
+import bdv.util.source.alpha.AlphaSourceRAI;
+import bdv.util.source.alpha.AlphaSourceTransformed;
+import bdv.util.source.alpha.IAlphaSource;
+import net.imglib2.Interval;
+import net.imglib2.realtransform.AffineTransform3D;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Spatial index of the world space bounding boxes of a set of alpha sources, at a given timepoint.
+ * <br>
+ * It answers the question "which sources overlap this cell ?" asked by {@link AlphaFusedResampledSource}
+ * for each cell it computes. Looping over all sources and calling {@link IAlphaSource#intersectBox(AffineTransform3D, Interval, int)}
+ * costs O(number of sources) per cell, with heavy allocation. Instead, the boxes are computed once and stored
+ * in a uniform grid of buckets, whose size is the median box size along each axis. A query
+ * only visits the buckets overlapped by the cell and checks the sources registered in these buckets.
+ * <br>
+ * Boxes are computed exactly as in {@link AlphaSourceRAI.Box3D} (voxel interval enlarged by one voxel on each side,
+ * axis aligned bounding box of the 8 transformed corners), so the result of a query is identical to the
+ * brute force {@link IAlphaSource#intersectBox(AffineTransform3D, Interval, int)} loop.
+ * Sources which do not do bounding box culling are always reported as overlapping. Alpha sources
+ * of unknown kind are not indexed: they are reported as candidates and their own
+ * {@link IAlphaSource#intersectBox(AffineTransform3D, Interval, int)} is called.
+ * <br>
+ * The index keeps a copy of the transforms of the sources: {@link SourcesOverlapIndex#isUpToDate()} can be used
+ * to know whether it should be rebuilt.
+ *
+ * @author Nicolas Chiaruttini, BIOP EPFL
+ */
+public class SourcesOverlapIndex {
+
+    final static int MAX_BUCKETS_PER_AXIS = 256;
+
+    final IAlphaSource[] alphas;
+
+    final int timepoint;
+
+    /**
+     * Indexes of sources which are always overlapping (no bounding box culling)
+     */
+    final int[] alwaysPresent;
+
+    /**
+     * Indexes of sources which need to be checked with their own intersectBox method
+     */
+    final int[] notIndexed;
+
+    /**
+     * Bounding boxes of the indexed sources: minX, minY, minZ, maxX, maxY, maxZ, for each source
+     */
+    final double[] boxes;
+
+    final double[] gridOrigin = new double[3];
+
+    final double[] bucketSize = new double[3];
+
+    final int[] nBuckets = new int[3];
+
+    final int[][] buckets;
+
+    final AffineTransform3D[] transformsAtBuild;
+
+    /**
+     * Builds the index of the alpha sources at a timepoint
+     * @param alphas alpha sources, the index returned by queries matches the order of this array
+     * @param timepoint timepoint of the index
+     */
+    public SourcesOverlapIndex(IAlphaSource[] alphas, int timepoint) {
+        this.alphas = alphas;
+        this.timepoint = timepoint;
+        int n = alphas.length;
+        boxes = new double[6 * n];
+        transformsAtBuild = new AffineTransform3D[n];
+
+        List<Integer> always = new ArrayList<>();
+        List<Integer> unknown = new ArrayList<>();
+        List<Integer> indexed = new ArrayList<>();
+
+        for (int i = 0; i < n; i++) {
+            IAlphaSource alpha = alphas[i];
+            AffineTransform3D at3D = new AffineTransform3D();
+            alpha.getSourceTransform(timepoint, 0, at3D);
+            transformsAtBuild[i] = at3D;
+            if (!alpha.doBoundingBoxCulling()) {
+                always.add(i);
+            } else if (isIndexable(alpha)) {
+                computeBox(at3D, alpha.getSource(timepoint, 0), boxes, 6 * i);
+                indexed.add(i);
+            } else {
+                unknown.add(i);
+            }
+        }
+
+        alwaysPresent = always.stream().mapToInt(Integer::intValue).toArray();
+        notIndexed = unknown.stream().mapToInt(Integer::intValue).toArray();
+
+        // Grid extent and bucket size
+        double[] min = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+        double[] max = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+        double[][] sizes = new double[3][indexed.size()];
+        for (int k = 0; k < indexed.size(); k++) {
+            int i = indexed.get(k);
+            for (int d = 0; d < 3; d++) {
+                min[d] = Math.min(min[d], boxes[6 * i + d]);
+                max[d] = Math.max(max[d], boxes[6 * i + 3 + d]);
+                sizes[d][k] = boxes[6 * i + 3 + d] - boxes[6 * i + d];
+            }
+        }
+
+        int nTotalBuckets = 1;
+        for (int d = 0; d < 3; d++) {
+            if (indexed.isEmpty()) {
+                gridOrigin[d] = 0;
+                bucketSize[d] = 1;
+                nBuckets[d] = 1;
+            } else {
+                Arrays.sort(sizes[d]);
+                double extent = max[d] - min[d];
+                double size = Math.max(sizes[d][sizes[d].length / 2], extent / MAX_BUCKETS_PER_AXIS);
+                if (size <= 0) size = 1;
+                gridOrigin[d] = min[d];
+                bucketSize[d] = size;
+                nBuckets[d] = Math.max(1, Math.min(MAX_BUCKETS_PER_AXIS, (int) Math.ceil(extent / size)));
+            }
+            nTotalBuckets *= nBuckets[d];
+        }
+
+        // Fills buckets
+        int[] bucketCount = new int[nTotalBuckets];
+        int[] range = new int[6];
+        for (int i : indexed) {
+            bucketRange(boxes, 6 * i, range);
+            for (int z = range[2]; z <= range[5]; z++)
+                for (int y = range[1]; y <= range[4]; y++)
+                    for (int x = range[0]; x <= range[3]; x++)
+                        bucketCount[bucketIndex(x, y, z)]++;
+        }
+        buckets = new int[nTotalBuckets][];
+        for (int b = 0; b < nTotalBuckets; b++) {
+            buckets[b] = new int[bucketCount[b]];
+        }
+        Arrays.fill(bucketCount, 0);
+        for (int i : indexed) {
+            bucketRange(boxes, 6 * i, range);
+            for (int z = range[2]; z <= range[5]; z++)
+                for (int y = range[1]; y <= range[4]; y++)
+                    for (int x = range[0]; x <= range[3]; x++) {
+                        int b = bucketIndex(x, y, z);
+                        buckets[b][bucketCount[b]++] = i;
+                    }
+        }
+    }
+
+    static boolean isIndexable(IAlphaSource alpha) {
+        return (alpha instanceof AlphaSourceRAI)
+                ||(alpha instanceof AlphaSourceDistanceL1RAI)
+                ||(alpha instanceof AlphaSourceTransformed);
+    }
+
+    /**
+     * @return true if none of the sources transforms changed since the index was built
+     */
+    public boolean isUpToDate() {
+        AffineTransform3D at3D = new AffineTransform3D();
+        for (int i = 0; i < alphas.length; i++) {
+            alphas[i].getSourceTransform(timepoint, 0, at3D);
+            if (!Arrays.equals(at3D.getRowPackedCopy(), transformsAtBuild[i].getRowPackedCopy())) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Finds the sources overlapping a cell
+     * @param cellTransform voxel to world transform of the cell
+     * @param cell the cell, in voxel coordinates
+     * @param overlapping output, set to true for each source overlapping the cell, false otherwise
+     * @return the number of overlapping sources
+     */
+    public int query(AffineTransform3D cellTransform, Interval cell, boolean[] overlapping) {
+        Arrays.fill(overlapping, false);
+        int nOverlapping = 0;
+
+        for (int i : alwaysPresent) {
+            overlapping[i] = true;
+            nOverlapping++;
+        }
+
+        for (int i : notIndexed) {
+            if (alphas[i].intersectBox(cellTransform.copy(), cell, timepoint)) {
+                overlapping[i] = true;
+                nOverlapping++;
+            }
+        }
+
+        double[] cellBox = new double[6];
+        computeBox(cellTransform, cell, cellBox, 0);
+        int[] range = new int[6];
+        bucketRange(cellBox, 0, range);
+        for (int z = range[2]; z <= range[5]; z++)
+            for (int y = range[1]; y <= range[4]; y++)
+                for (int x = range[0]; x <= range[3]; x++) {
+                    for (int i : buckets[bucketIndex(x, y, z)]) {
+                        if ((!overlapping[i]) && intersects(boxes, 6 * i, cellBox)) {
+                            overlapping[i] = true;
+                            nOverlapping++;
+                        }
+                    }
+                }
+
+        return nOverlapping;
+    }
+
+    /**
+     * @return the number of sources of this index
+     */
+    public int size() {
+        return alphas.length;
+    }
+
+    /**
+     * @return the number of buckets along each axis, for diagnostic purposes
+     */
+    public int[] getNumberOfBuckets() {
+        return nBuckets.clone();
+    }
+
+    private int bucketIndex(int x, int y, int z) {
+        return x + nBuckets[0] * (y + nBuckets[1] * z);
+    }
+
+    private void bucketRange(double[] box, int offset, int[] range) {
+        for (int d = 0; d < 3; d++) {
+            range[d] = clampBucket((int) Math.floor((box[offset + d] - gridOrigin[d]) / bucketSize[d]), d);
+            range[3 + d] = clampBucket((int) Math.floor((box[offset + 3 + d] - gridOrigin[d]) / bucketSize[d]), d);
+        }
+    }
+
+    private int clampBucket(int b, int d) {
+        return Math.max(0, Math.min(nBuckets[d] - 1, b));
+    }
+
+    private static boolean intersects(double[] boxes, int offset, double[] other) {
+        for (int d = 0; d < 3; d++) {
+            if (other[3 + d] < boxes[offset + d]) return false;
+            if (other[d] > boxes[offset + 3 + d]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Same box as {@link AlphaSourceRAI.Box3D}: the interval is enlarged by one voxel on each side
+     */
+    static void computeBox(AffineTransform3D transform, Interval interval, double[] box, int offset) {
+        for (int d = 0; d < 3; d++) {
+            box[offset + d] = Double.MAX_VALUE;
+            box[offset + 3 + d] = -Double.MAX_VALUE;
+        }
+        double[] corner = new double[3];
+        double[] transformed = new double[3];
+        for (int c = 0; c < 8; c++) {
+            for (int d = 0; d < 3; d++) {
+                corner[d] = ((c >> d) & 1) == 0 ? interval.min(d) - 1 : interval.max(d) + 1;
+            }
+            transform.apply(corner, transformed);
+            for (int d = 0; d < 3; d++) {
+                box[offset + d] = Math.min(box[offset + d], transformed[d]);
+                box[offset + 3 + d] = Math.max(box[offset + 3 + d], transformed[d]);
+            }
+        }
+    }
+}
@@ -1,18 +1,35 @@
 package bdv.util.source.labkit;
 
 import bdv.util.DefaultInterpolators;
+import bdv.util.source.cache.DiskCachedSource;
+import bdv.util.source.cache.DiskCellCache;
 import bdv.viewer.Interpolation;
 import bdv.viewer.Source;
 import bdv.viewer.SourceAndConverter;
+import ch.epfl.biop.labkit.BatchSegmentation;
 import ch.epfl.biop.labkit.SourcesToImgPlus;
 import mpicbg.spim.data.sequence.VoxelDimensions;
 import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccessible;
+import net.imglib2.cache.Cache;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.LoadedCellCacheLoader;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.img.basictypeaccess.ArrayDataAccessFactory;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.view.Views;
 import org.scijava.Context;
+import org.scijava.task.Task;
+import sc.fiji.bdvpg.cache.GlobalLoaderCache;
 import sc.fiji.bdvpg.scijava.service.RenamableSource;
 import sc.fiji.bdvpg.scijava.service.tree.inspect.ISourceInspector;
 import sc.fiji.bdvpg.service.ISourceService;
@@ -21,7 +38,9 @@ import sc.fiji.labkit.ui.segmentation.Segmenter;
 import sc.fiji.labkit.ui.segmentation.weka.TrainableSegmentationSegmenter;
 
 import javax.swing.tree.DefaultMutableTreeNode;
+import java.io.File;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static sc.fiji.bdvpg.scijava.service.tree.inspect.SourceInspector.appendInspectorResult;
 
@@ -33,13 +52,25 @@ import static sc.fiji.bdvpg.scijava.service.tree.inspect.SourceInspector.appendI
  * Labkit classifier file.
  * </p>
  * <p>
- * Note: While input sources may have multiple resolution levels, this source
- * only provides a single resolution level (the one specified at construction).
+ * The segmentation can have several resolution levels: segmentation level i is computed by
+ * classifying the input sources at resolution level (resolutionLevel + i). Zoomed out views are
+ * thus segmented from the coarse input levels, without classifying the full resolution tiles.
+ * </p>
+ * <p>
+ * Optionally, a tile of a segmentation level is not classified when its neighborhood in the next,
+ * coarser, segmentation level only contains the background class: it is filled with the background
+ * class instead. This coarse-to-fine skipping may miss objects which are too small to be detected
+ * at the coarser level.
+ * </p>
+ * <p>
+ * By default, tiles are classified one by one by Labkit. With {@link LabkitSource#setBatchSegmentation(int, int)},
+ * tiles are classified by blocks of several tiles with a {@link BatchSegmentation}, and
+ * {@link LabkitSource#segmentAll(int, int, int, Task)} classifies all the tiles of a level on all cores.
  * </p>
  *
  * @param <T> the pixel type of the input sources
  */
-public class LabkitSource<T> implements Source<UnsignedByteType>, ISourceInspector {
+public class LabkitSource<T> implements Source<UnsignedByteType>, ISourceInspector, DiskCachedSource {
 
     protected final DefaultInterpolators<UnsignedByteType> interpolators = new DefaultInterpolators<>();
 
@@ -49,9 +80,19 @@ public class LabkitSource<T> implements Source<UnsignedByteType>, ISourceInspect
     private final Segmenter segmenter;
     private final String classifierPath;
     private final boolean useGpu;
+    private final int numLevels;
+    private final int backgroundClass;
+
+    // Cache for computed segmentations per timepoint and per level
+    private final Map<Integer, Map<Integer, RandomAccessibleInterval<UnsignedByteType>>> cachedSegmentations = new HashMap<>();
 
-    // Cache for computed segmentations per timepoint
-    private final Map<Integer, RandomAccessibleInterval<UnsignedByteType>> cachedSegmentations = new HashMap<>();
+    private final AtomicLong classifiedTiles = new AtomicLong();
+    private final AtomicLong skippedTiles = new AtomicLong();
+
+    // Batch segmentation, disabled if cellsPerBlock is 0
+    private int cellsPerBlock = 0;
+    private int maxBlocksInMemory = 0;
+    private final Map<Integer, Map<Integer, BatchSegmentation>> batchSegmentations = new HashMap<>();
 
     /**
      * Creates a LabkitSource from an array of input sources and a classifier file.
@@ -77,11 +118,31 @@ public class LabkitSource<T> implements Source<UnsignedByteType>, ISourceInspect
      * @param useGpu whether to use GPU acceleration for segmentation
      */
     public LabkitSource(String name, SourceAndConverter<T>[] sources, String classifierPath, Context context, int resolutionLevel, boolean useGpu) {
+        this(name, sources, classifierPath, context, resolutionLevel, useGpu, 1, -1);
+    }
+
+    /**
+     * Creates a multiresolution LabkitSource from an array of input sources and a classifier file.
+     *
+     * @param name the name of this source
+     * @param sources the input sources (each source represents a channel)
+     * @param classifierPath path to the Labkit .classifier file
+     * @param context the SciJava context
+     * @param resolutionLevel the resolution level of the input sources used for the segmentation level 0
+     * @param useGpu whether to use GPU acceleration for segmentation
+     * @param numLevels maximal number of segmentation levels, limited by the levels of the input sources
+     * @param backgroundClass index of the background class, tiles whose coarser neighborhood only contains
+     *                        this class are not classified; -1 to classify all tiles
+     */
+    public LabkitSource(String name, SourceAndConverter<T>[] sources, String classifierPath, Context context, int resolutionLevel, boolean useGpu,
+                        int numLevels, int backgroundClass) {
         this.name = name;
         this.sources = sources;
         this.resolutionLevel = resolutionLevel;
         this.classifierPath = classifierPath;
         this.useGpu = useGpu;
+        this.numLevels = availableLevels(sources, resolutionLevel, numLevels);
+        this.backgroundClass = backgroundClass;
 
         // Load the classifier
         this.segmenter = new TrainableSegmentationSegmenter(context);
@@ -98,12 +159,38 @@ public class LabkitSource<T> implements Source<UnsignedByteType>, ISourceInspect
      * @param resolutionLevel the resolution level to use from the input sources
      */
     public LabkitSource(String name, SourceAndConverter<T>[] sources, Segmenter segmenter, int resolutionLevel) {
+        this(name, sources, segmenter, resolutionLevel, 1, -1);
+    }
+
+    /**
+     * Creates a multiresolution LabkitSource from an array of input sources and a pre-loaded segmenter.
+     *
+     * @param name the name of this source
+     * @param sources the input sources (each source represents a channel)
+     * @param segmenter the pre-loaded Labkit segmenter
+     * @param resolutionLevel the resolution level of the input sources used for the segmentation level 0
+     * @param numLevels maximal number of segmentation levels, limited by the levels of the input sources
+     * @param backgroundClass index of the background class, tiles whose coarser neighborhood only contains
+     *                        this class are not classified; -1 to classify all tiles
+     */
+    public LabkitSource(String name, SourceAndConverter<T>[] sources, Segmenter segmenter, int resolutionLevel,
+                        int numLevels, int backgroundClass) {
         this.name = name;
         this.sources = sources;
         this.resolutionLevel = resolutionLevel;
         this.segmenter = segmenter;
         this.classifierPath = null; // Not available when using pre-loaded segmenter
         this.useGpu = false; // GPU setting is managed by the provided segmenter
+        this.numLevels = availableLevels(sources, resolutionLevel, numLevels);
+        this.backgroundClass = backgroundClass;
+    }
+
+    private static int availableLevels(SourceAndConverter<?>[] sources, int resolutionLevel, int numLevels) {
+        int available = Integer.MAX_VALUE;
+        for (SourceAndConverter<?> source : sources) {
+            available = Math.min(available, source.getSpimSource().getNumMipmapLevels() - resolutionLevel);
+        }
+        return Math.max(1, Math.min(numLevels, available));
     }
 
     /**
@@ -122,20 +209,188 @@ public class LabkitSource<T> implements Source<UnsignedByteType>, ISourceInspect
 
     @Override
     public synchronized RandomAccessibleInterval<UnsignedByteType> getSource(int t, int level) {
-        // We only have one resolution level
-        if (level != 0) {
-            throw new IllegalArgumentException("LabkitSource only supports resolution level 0, requested: " + level);
+        if ((level < 0) || (level >= numLevels)) {
+            throw new IllegalArgumentException("LabkitSource has " + numLevels + " resolution level(s), requested: " + level);
         }
 
-        return cachedSegmentations.computeIfAbsent(t, this::createLazySegmentation);
+        return cachedSegmentations.computeIfAbsent(t, k -> new HashMap<>())
+                .computeIfAbsent(level, l -> createLazySegmentation(t, l));
     }
 
-    private RandomAccessibleInterval<UnsignedByteType> createLazySegmentation(int timepoint) {
+    private RandomAccessibleInterval<UnsignedByteType> createLazySegmentation(int timepoint, int level) {
         // Create ImgPlus from sources at this timepoint
-        ImgPlus<?> imgPlus = SourcesToImgPlus.wrap(sources, name, resolutionLevel, timepoint);
+        ImgPlus<?> imgPlus = SourcesToImgPlus.wrap(sources, name, resolutionLevel + level, timepoint);
 
         // Create lazy cached segmentation
-        return SegmentationUtils.createCachedSegmentation(segmenter, imgPlus, null);
+        RandomAccessibleInterval<UnsignedByteType> segmentation =
+                SegmentationUtils.createCachedSegmentation(segmenter, imgPlus, null);
+
+        final boolean diskCache = (DiskCellCache.getDiskCache() != null) && (classifierPath != null);
+        final boolean skipBackground = (backgroundClass >= 0) && (level < numLevels - 1) && (segmentation.numDimensions() == 3);
+        final boolean batch = cellsPerBlock > 0;
+        if ((!diskCache) && (!skipBackground) && (!batch)) {
+            return segmentation;
+        }
+
+        // Fine pixel to coarse pixel coordinates, for coarse-to-fine skipping
+        final AffineTransform3D fineToCoarse = new AffineTransform3D();
+        if (skipBackground) {
+            AffineTransform3D fine = new AffineTransform3D();
+            getSourceTransform(timepoint, level, fine);
+            AffineTransform3D coarse = new AffineTransform3D();
+            getSourceTransform(timepoint, level + 1, coarse);
+            fineToCoarse.set(coarse.inverse());
+            fineToCoarse.concatenate(fine);
+        }
+
+        CellGrid grid = (segmentation instanceof AbstractCellImg) ?
+                ((AbstractCellImg<?, ?, ?, ?>) segmentation).getCellGrid() :
+                new CellGrid(segmentation.dimensionsAsLongArray(), new int[]{64, 64, 64});
+        final RandomAccessibleInterval<UnsignedByteType> zeroMinSegmentation = Views.zeroMin(segmentation);
+        final BatchSegmentation batchSegmentation = batch ?
+                new BatchSegmentation(segmenter, imgPlus, grid, cellsPerBlock, maxBlocksInMemory) : null;
+        if (batch) {
+            batchSegmentations.computeIfAbsent(timepoint, k -> new HashMap<>()).put(level, batchSegmentation);
+            if (skipBackground) {
+                // The background tiles of a block are tested before the block is classified
+                batchSegmentation.setBackgroundSkipping(
+                        cell -> isCoarseBackground(getSource(timepoint, level + 1), fineToCoarse, cell), backgroundClass);
+            }
+        }
+        UnsignedByteType type = new UnsignedByteType();
+        CellLoader<UnsignedByteType> loader = cell -> {
+            if (batch) {
+                if (batchSegmentation.load(cell)) {
+                    classifiedTiles.incrementAndGet();
+                } else {
+                    skippedTiles.incrementAndGet();
+                }
+                return;
+            }
+            if (skipBackground && isCoarseBackground(getSource(timepoint, level + 1), fineToCoarse, cell)) {
+                for (UnsignedByteType pixel : Views.flatIterable(cell)) {
+                    pixel.set(backgroundClass);
+                }
+                skippedTiles.incrementAndGet();
+                return;
+            }
+            classifiedTiles.incrementAndGet();
+            Cursor<UnsignedByteType> in = Views.flatIterable(Views.interval(zeroMinSegmentation, cell)).cursor();
+            Cursor<UnsignedByteType> out = Views.flatIterable(cell).cursor();
+            while (out.hasNext()) {
+                out.next().set(in.next());
+            }
+        };
+        if (diskCache) {
+            // Second cache tier on disk: the classifier is only applied on cells which were never computed before
+            loader = DiskCellCache.wrapIfEnabled(name, () -> getDiskCacheParameters(timepoint, level), timepoint, level, grid, type, loader);
+        }
+        Cache<Long, Cell<?>> cache = (new GlobalLoaderCache(this, timepoint, level))
+                .withLoader(LoadedCellCacheLoader.get(grid, loader, type, AccessFlags.setOf(AccessFlags.VOLATILE)));
+        return new CachedCellImg(grid, type, cache, ArrayDataAccessFactory.get(type, AccessFlags.setOf(AccessFlags.VOLATILE)));
+    }
+
+    /**
+     * Classifies tiles by blocks of cellsPerBlock tiles along each axis, see {@link BatchSegmentation}.
+     * Should be called before any tile is requested.
+     *
+     * @param cellsPerBlock number of tiles of a block along each axis, 0 to classify tiles one by one
+     * @param maxBlocksInMemory maximal number of classified blocks waiting for their tiles to be requested
+     */
+    public synchronized void setBatchSegmentation(int cellsPerBlock, int maxBlocksInMemory) {
+        if (!cachedSegmentations.isEmpty()) {
+            throw new IllegalStateException("Batch segmentation should be set before the segmentation is requested");
+        }
+        this.cellsPerBlock = cellsPerBlock;
+        this.maxBlocksInMemory = maxBlocksInMemory;
+    }
+
+    /**
+     * @return the number of tiles of a block along each axis, 0 if tiles are classified one by one
+     */
+    public int getCellsPerBlock() {
+        return cellsPerBlock;
+    }
+
+    /**
+     * Classifies all the tiles of a level, block by block, on a pool of threads. The tiles are stored in the cache
+     * of this source (and in the {@link DiskCellCache} if there is one). Batch segmentation should be enabled.
+     *
+     * @param t timepoint
+     * @param level segmentation level
+     * @param numThreads number of blocks classified in parallel
+     * @param task task used for monitoring and cancellation, can be null
+     * @throws Exception if the classification failed or was cancelled
+     */
+    public void segmentAll(int t, int level, int numThreads, Task task) throws Exception {
+        if (cellsPerBlock <= 0) {
+            throw new IllegalStateException("Batch segmentation is not enabled");
+        }
+        RandomAccessibleInterval<UnsignedByteType> segmentation = getSource(t, level);
+        BatchSegmentation batchSegmentation;
+        synchronized (this) {
+            batchSegmentation = batchSegmentations.get(t).get(level);
+        }
+        batchSegmentation.segmentAll(segmentation, numThreads, task);
+    }
+
+    /**
+     * @param coarse segmentation of the next coarser level
+     * @param fineToCoarse transform from the pixel coordinates of the fine level to the ones of the coarse level
+     * @param cell tile of the fine level
+     * @return true if the neighborhood of the tile in the coarse level only contains the background class
+     */
+    private boolean isCoarseBackground(RandomAccessibleInterval<UnsignedByteType> coarse, AffineTransform3D fineToCoarse, Interval cell) {
+        final double[] min = new double[]{Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+        final double[] max = new double[]{-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+        final double[] corner = new double[3];
+        final double[] coarseCorner = new double[3];
+        for (int i = 0; i < 8; i++) {
+            for (int d = 0; d < 3; d++) {
+                corner[d] = (((i >> d) & 1) == 0) ? cell.min(d) - 0.5 : cell.max(d) + 0.5;
+            }
+            fineToCoarse.apply(corner, coarseCorner);
+            for (int d = 0; d < 3; d++) {
+                min[d] = Math.min(min[d], coarseCorner[d]);
+                max[d] = Math.max(max[d], coarseCorner[d]);
+            }
+        }
+        // One coarse pixel of margin around the tile
+        final long[] coarseMin = new long[3];
+        final long[] coarseMax = new long[3];
+        for (int d = 0; d < 3; d++) {
+            coarseMin[d] = Math.max(coarse.min(d), (long) Math.floor(min[d]) - 1);
+            coarseMax[d] = Math.min(coarse.max(d), (long) Math.ceil(max[d]) + 1);
+            if (coarseMin[d] > coarseMax[d]) return false; // Outside the coarse level, classified
+        }
+        for (UnsignedByteType pixel : Views.interval(coarse, new FinalInterval(coarseMin, coarseMax))) {
+            if (pixel.get() != backgroundClass) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return everything the segmentation depends on, used to invalidate the cells stored in the
+     * {@link DiskCellCache} when one of them changes
+     */
+    private String getDiskCacheParameters(int timepoint, int level) {
+        StringBuilder parameters = new StringBuilder();
+        parameters.append("classifier=").append(classifierPath)
+                .append(";modified=").append(new File(classifierPath).lastModified())
+                .append(";level=").append(resolutionLevel + level)
+                .append(";background=").append(level < numLevels - 1 ? backgroundClass : -1)
+                .append(";levels=").append(numLevels);
+        for (SourceAndConverter<T> source : sources) {
+            parameters.append(";").append(DiskCellCache.getSourceIdentity(source.getSpimSource(), timepoint))
+                    .append(Arrays.toString(source.getSpimSource().getSource(timepoint, resolutionLevel + level).dimensionsAsLongArray()));
+        }
+        return parameters.toString();
+    }
+
+    @Override
+    public String getDiskCacheIdentity(int timepoint) {
+        if (classifierPath == null) return null; // The segmenter can not be identified
+        return DiskCellCache.identity(getDiskCacheParameters(timepoint, 0));
     }
 
     @Override
@@ -145,8 +400,8 @@ public class LabkitSource<T> implements Source<UnsignedByteType>, ISourceInspect
 
     @Override
     public void getSourceTransform(int t, int level, AffineTransform3D transform) {
-        // Use the transform from the first input source at the specified resolution level
-        sources[0].getSpimSource().getSourceTransform(t, resolutionLevel, transform);
+        // Use the transform from the first input source at the matching resolution level
+        sources[0].getSpimSource().getSourceTransform(t, resolutionLevel + level, transform);
     }
 
     @Override
@@ -166,8 +421,7 @@ public class LabkitSource<T> implements Source<UnsignedByteType>, ISourceInspect
 
     @Override
     public int getNumMipmapLevels() {
-        // Only one resolution level for the segmentation output
-        return 1;
+        return numLevels;
     }
 
     /**
@@ -206,6 +460,29 @@ public class LabkitSource<T> implements Source<UnsignedByteType>, ISourceInspect
         return useGpu;
     }
 
+    /**
+     * Returns the index of the background class used for coarse-to-fine skipping.
+     *
+     * @return the background class, or -1 if all tiles are classified
+     */
+    public int getBackgroundClass() {
+        return backgroundClass;
+    }
+
+    /**
+     * @return the number of tiles classified so far, all levels included
+     */
+    public long getClassifiedTiles() {
+        return classifiedTiles.get();
+    }
+
+    /**
+     * @return the number of tiles filled with the background class without being classified
+     */
+    public long getSkippedTiles() {
+        return skippedTiles.get();
+    }
+
     @Override
     public Set<SourceAndConverter<?>> inspect(DefaultMutableTreeNode parent, SourceAndConverter<?> src, ISourceService SourceService, boolean registerIntermediateSources) {
 
@@ -244,6 +521,15 @@ public class LabkitSource<T> implements Source<UnsignedByteType>, ISourceInspect
                 "Resolution Level: " + this.resolutionLevel);
         parent.add(resolutionLevelNode);
 
+        DefaultMutableTreeNode levelsNode = new DefaultMutableTreeNode(
+                "Segmentation Levels: " + this.numLevels);
+        parent.add(levelsNode);
+
+        DefaultMutableTreeNode skippingNode = new DefaultMutableTreeNode(
+                "Background Skipping: " + ((this.backgroundClass < 0) ? "off" : "class " + this.backgroundClass)
+                        + " (classified tiles: " + getClassifiedTiles() + ", skipped tiles: " + getSkippedTiles() + ")");
+        parent.add(skippingNode);
+
         DefaultMutableTreeNode useGpuNode = new DefaultMutableTreeNode(
                 "GPU: " + this.useGpu);
         parent.add(useGpuNode);
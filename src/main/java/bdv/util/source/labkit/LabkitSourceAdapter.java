@@ -83,6 +83,9 @@ public class LabkitSourceAdapter implements ISourceAdapter<LabkitSource> {
         obj.addProperty("classifier_path", source.getClassifierPath());
         obj.addProperty("resolution_level", source.getResolutionLevel());
         obj.addProperty("use_gpu", source.isUseGpu());
+        obj.addProperty("num_levels", source.getNumMipmapLevels());
+        obj.addProperty("background_class", source.getBackgroundClass());
+        obj.addProperty("tiles_per_block", source.getCellsPerBlock());
 
         // Check if classifier path is available (required for serialization)
         if (source.getClassifierPath() == null) {
@@ -115,6 +118,8 @@ public class LabkitSourceAdapter implements ISourceAdapter<LabkitSource> {
         String classifierPath = obj.getAsJsonPrimitive("classifier_path").getAsString();
         int resolutionLevel = obj.getAsJsonPrimitive("resolution_level").getAsInt();
         boolean useGpu = obj.has("use_gpu") && obj.getAsJsonPrimitive("use_gpu").getAsBoolean();
+        int numLevels = obj.has("num_levels") ? obj.getAsJsonPrimitive("num_levels").getAsInt() : 1;
+        int backgroundClass = obj.has("background_class") ? obj.getAsJsonPrimitive("background_class").getAsInt() : -1;
 
         // Deserialize input sources
         JsonArray sourceIdsArray = obj.getAsJsonArray("input_source_ids");
@@ -153,11 +158,18 @@ public class LabkitSourceAdapter implements ISourceAdapter<LabkitSource> {
                 context,
                 name,
                 resolutionLevel,
-                useGpu
+                useGpu,
+                numLevels,
+                backgroundClass
         );
 
         SourceAndConverter source = classifier.get();
 
+        if (obj.has("tiles_per_block") && (obj.getAsJsonPrimitive("tiles_per_block").getAsInt() > 0)) {
+            ((LabkitSource<?>) source.getSpimSource()).setBatchSegmentation(
+                    obj.getAsJsonPrimitive("tiles_per_block").getAsInt(), 2 * Runtime.getRuntime().availableProcessors());
+        }
+
         SourceServices.getSourceService().register(source);
 
         return source;
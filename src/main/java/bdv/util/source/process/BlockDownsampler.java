@@ -0,0 +1,240 @@
+package bdv.util.source.process;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+import java.util.Arrays;
+
+/**
+ * Block downsampling of 3D images, one output cell at a time.
+ * <br>
+ * Each voxel of the downsampled image is the reduction (mean, max or mode) of a block of
+ * factor[0] x factor[1] x factor[2] voxels of the input image. To fill an output cell,
+ * the matching input block is read once, in its flat iteration order, and accumulated into
+ * primitive buffers. Blocks at the border of the input image can be partial: the mean is then
+ * computed over the voxels which exist.
+ * <br>
+ * The mode (most frequent value, the smallest one in case of a tie) is meant for label images: the values of
+ * each block are gathered and sorted. Values are handled as floats, so labels should stay below 2^24.
+ * <br>
+ * This generalizes the XY quadrant averaging of {@link LazyDownscaledXY2Source} to 3D, with any
+ * integer factor per axis.
+ *
+ * @author Nicolas Chiaruttini, BIOP EPFL
+ */
+public class BlockDownsampler {
+
+    final public static String MEAN = "MEAN";
+    final public static String MAX = "MAX";
+    final public static String MODE = "MODE";
+
+    /**
+     * Per thread buffers: accumulated value and number of accumulated voxels
+     */
+    private static final ThreadLocal<float[]> valueBuffers = ThreadLocal.withInitial(() -> new float[0]);
+    private static final ThreadLocal<int[]> countBuffers = ThreadLocal.withInitial(() -> new int[0]);
+
+    /**
+     * Fills a cell of the downsampled image
+     * @param input the image to downsample
+     * @param factors downsampling factor along each of the 3 axes
+     * @param reduction how a block is reduced to a single voxel, {@link BlockDownsampler#MEAN}, {@link BlockDownsampler#MAX}
+     *                  or {@link BlockDownsampler#MODE}
+     * @param cell the cell of the downsampled image to fill
+     * @param <T> pixel type
+     */
+    public static <T extends RealType<T>> void downsample(RandomAccessibleInterval<T> input,
+                                                          int[] factors,
+                                                          String reduction,
+                                                          RandomAccessibleInterval<T> cell) {
+        final boolean max;
+        switch (reduction) {
+            case MEAN: max = false; break;
+            case MAX: max = true; break;
+            case MODE: downsampleMode(input, factors, cell); return;
+            default: throw new UnsupportedOperationException("Unsupported reduction: "+reduction);
+        }
+
+        final int ncx = (int) cell.dimension(0);
+        final int ncy = (int) cell.dimension(1);
+        final int ncz = (int) cell.dimension(2);
+        final int nVoxels = ncx * ncy * ncz;
+
+        float[] value = valueBuffers.get();
+        int[] count = countBuffers.get();
+        if (value.length < nVoxels) {
+            value = new float[nVoxels];
+            count = new int[nVoxels];
+            valueBuffers.set(value);
+            countBuffers.set(count);
+        }
+        for (int i = 0; i < nVoxels; i++) {
+            value[i] = max ? -Float.MAX_VALUE : 0;
+            count[i] = 0;
+        }
+
+        long[] inMin = new long[3];
+        long[] inMax = new long[3];
+        for (int d = 0; d < 3; d++) {
+            inMin[d] = input.min(d) + cell.min(d) * factors[d];
+            inMax[d] = Math.min(input.max(d), input.min(d) + (cell.max(d) + 1) * factors[d] - 1);
+        }
+
+        final int fx = factors[0], fy = factors[1], fz = factors[2];
+        final int nix = (int) (inMax[0] - inMin[0] + 1);
+        final int niy = (int) (inMax[1] - inMin[1] + 1);
+
+        final Cursor<T> in = Views.flatIterable(Views.interval(input, new FinalInterval(inMin, inMax))).cursor();
+
+        int ix = 0, iy = 0, iz = 0;
+        int lineOffset = 0; // output index of the start of the current input line
+        while (in.hasNext()) {
+            final float v = in.next().getRealFloat();
+            final int o = lineOffset + ix / fx;
+            if (max) {
+                if (v > value[o]) value[o] = v;
+            } else {
+                value[o] += v;
+            }
+            count[o]++;
+            ix++;
+            if (ix == nix) {
+                ix = 0;
+                iy++;
+                if (iy == niy) {
+                    iy = 0;
+                    iz++;
+                }
+                lineOffset = ncx * (iy / fy + ncy * (iz / fz));
+            }
+        }
+
+        final Cursor<T> out = Views.flatIterable(cell).cursor();
+        for (int i = 0; i < nVoxels; i++) {
+            final T pixel = out.next();
+            if (count[i] == 0) {
+                pixel.setZero();
+            } else if (max) {
+                pixel.setReal(value[i]);
+            } else {
+                pixel.setReal(value[i] / count[i]);
+            }
+        }
+    }
+
+    /**
+     * Per thread buffer of the values of all blocks, for the mode reduction
+     */
+    private static final ThreadLocal<float[]> blockValuesBuffers = ThreadLocal.withInitial(() -> new float[0]);
+
+    private static <T extends RealType<T>> void downsampleMode(RandomAccessibleInterval<T> input,
+                                                               int[] factors,
+                                                               RandomAccessibleInterval<T> cell) {
+        final int ncx = (int) cell.dimension(0);
+        final int ncy = (int) cell.dimension(1);
+        final int ncz = (int) cell.dimension(2);
+        final int nVoxels = ncx * ncy * ncz;
+        final int fx = factors[0], fy = factors[1], fz = factors[2];
+        final int blockVolume = fx * fy * fz;
+
+        // Values of the block of output voxel i are stored in [i * blockVolume, i * blockVolume + count[i])
+        float[] values = blockValuesBuffers.get();
+        int[] count = countBuffers.get();
+        if (values.length < nVoxels * blockVolume) {
+            values = new float[nVoxels * blockVolume];
+            blockValuesBuffers.set(values);
+        }
+        if (count.length < nVoxels) {
+            count = new int[nVoxels];
+            valueBuffers.set(new float[nVoxels]);
+            countBuffers.set(count);
+        }
+        for (int i = 0; i < nVoxels; i++) count[i] = 0;
+
+        long[] inMin = new long[3];
+        long[] inMax = new long[3];
+        for (int d = 0; d < 3; d++) {
+            inMin[d] = input.min(d) + cell.min(d) * factors[d];
+            inMax[d] = Math.min(input.max(d), input.min(d) + (cell.max(d) + 1) * factors[d] - 1);
+        }
+        final int nix = (int) (inMax[0] - inMin[0] + 1);
+        final int niy = (int) (inMax[1] - inMin[1] + 1);
+
+        final Cursor<T> in = Views.flatIterable(Views.interval(input, new FinalInterval(inMin, inMax))).cursor();
+
+        int ix = 0, iy = 0, iz = 0;
+        int lineOffset = 0;
+        while (in.hasNext()) {
+            final int o = lineOffset + ix / fx;
+            values[o * blockVolume + count[o]] = in.next().getRealFloat();
+            count[o]++;
+            ix++;
+            if (ix == nix) {
+                ix = 0;
+                iy++;
+                if (iy == niy) {
+                    iy = 0;
+                    iz++;
+                }
+                lineOffset = ncx * (iy / fy + ncy * (iz / fz));
+            }
+        }
+
+        final Cursor<T> out = Views.flatIterable(cell).cursor();
+        for (int i = 0; i < nVoxels; i++) {
+            final T pixel = out.next();
+            final int n = count[i];
+            if (n == 0) {
+                pixel.setZero();
+                continue;
+            }
+            final int start = i * blockVolume;
+            Arrays.sort(values, start, start + n);
+            float mode = values[start];
+            int modeCount = 0;
+            int runStart = start;
+            for (int j = start + 1; j <= start + n; j++) {
+                if ((j == start + n) || (values[j] != values[runStart])) {
+                    if (j - runStart > modeCount) {
+                        modeCount = j - runStart;
+                        mode = values[runStart];
+                    }
+                    runStart = j;
+                }
+            }
+            pixel.setReal(mode);
+        }
+    }
+
+    /**
+     * @param dimensions dimensions of the input image
+     * @param factors downsampling factor along each axis
+     * @return dimensions of the downsampled image, partial blocks included
+     */
+    public static long[] downsampledDimensions(long[] dimensions, int[] factors) {
+        long[] result = new long[dimensions.length];
+        for (int d = 0; d < dimensions.length; d++) {
+            result[d] = (dimensions[d] + factors[d] - 1) / factors[d];
+        }
+        return result;
+    }
+
+    /**
+     * @param factors downsampling factor along each of the 3 axes
+     * @return the transform from downsampled voxel coordinates to input voxel coordinates: the center of
+     * a downsampled voxel is located at the center of its block
+     */
+    public static AffineTransform3D downsamplingTransform(int[] factors) {
+        AffineTransform3D transform = new AffineTransform3D();
+        transform.set(
+                factors[0], 0, 0, (factors[0] - 1) / 2.0,
+                0, factors[1], 0, (factors[1] - 1) / 2.0,
+                0, 0, factors[2], (factors[2] - 1) / 2.0);
+        return transform;
+    }
+
+}
@@ -1,6 +1,8 @@
 package bdv.util.source.process;
 
 import bdv.util.DefaultInterpolators;
+import bdv.util.source.cache.DiskCachedSource;
+import bdv.util.source.cache.DiskCellCache;
 import bdv.viewer.Interpolation;
 import bdv.viewer.Source;
 import mpicbg.spim.data.sequence.VoxelDimensions;
@@ -20,6 +22,7 @@ import net.imglib2.type.numeric.RealType;
 import net.imglib2.view.Views;
 import sc.fiji.bdvpg.cache.GlobalLoaderCache;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -30,10 +33,12 @@ import java.util.Map;
  * the max downscaling which will be a factor 32 :
  * 1          2          4          8        16       32
  * 512x512 to 256x256 to 128x128 to 64x64 to 32x32 to 16x16
+ * <br>
+ * See {@link LazyPyramidSource} for 3D pyramids with configurable factors and reductions.
  *
  * @param <T> the pixel type of the source, must be a RealType and NativeType
  */
-public class LazyDownscaledXY2Source<T extends RealType<T> & NativeType<T>> implements Source<T> {
+public class LazyDownscaledXY2Source<T extends RealType<T> & NativeType<T>> implements Source<T>, DiskCachedSource {
 
     protected final DefaultInterpolators< T > interpolators = new DefaultInterpolators<>();
 
@@ -59,6 +64,19 @@ public class LazyDownscaledXY2Source<T extends RealType<T> & NativeType<T>> impl
         this.nResolutionLevels = nResolutionLevels;
     }
 
+    @Override
+    public String getDiskCacheIdentity(int t) {
+        return "origin="+DiskCellCache.getSourceIdentity(origin, t)+";levels="+nResolutionLevels;
+    }
+
+    private String getDiskCacheParameters(int t) {
+        AffineTransform3D originTransform = new AffineTransform3D();
+        origin.getSourceTransform(t, 0, originTransform);
+        return "origin="+DiskCellCache.getSourceIdentity(origin, t)
+                +";dimensions="+ Arrays.toString(origin.getSource(t,0).dimensionsAsLongArray())
+                +";transform="+originTransform;
+    }
+
     @Override
     public boolean isPresent(int t) {
         return origin.isPresent(t);
@@ -90,7 +108,8 @@ public class LazyDownscaledXY2Source<T extends RealType<T> & NativeType<T>> impl
             RandomAccessibleInterval<T> rai10 = Views.subsample(Views.offsetInterval(rai, new long[]{0,1,0}, raiBelow.dimensionsAsLongArray()),2,2,1);
             RandomAccessibleInterval<T> rai11 = Views.subsample(Views.offsetInterval(rai, new long[]{1,1,0}, raiBelow.dimensionsAsLongArray()),2,2,1);
 
-            LoadedCellCacheLoader<T, ?> loader = LoadedCellCacheLoader.get(grid, cell -> {
+            LoadedCellCacheLoader<T, ?> loader = LoadedCellCacheLoader.get(grid, DiskCellCache.wrapIfEnabled(name,
+                    () -> getDiskCacheParameters(t), t, level, grid, getType().createVariable(), cell -> {
                 // Cursor on the source image
                 final Cursor<T> c00 = Views.flatIterable(Views.interval(rai00, cell)).cursor();
                 final Cursor<T> c01 = Views.flatIterable(Views.interval(rai01, cell)).cursor();
@@ -109,7 +128,7 @@ public class LazyDownscaledXY2Source<T extends RealType<T> & NativeType<T>> impl
                     out.next().setReal(val/4.0);
                 }
 
-            }, getType().createVariable(), AccessFlags.setOf(AccessFlags.VOLATILE));
+            }), getType().createVariable(), AccessFlags.setOf(AccessFlags.VOLATILE));
             Cache<Long, Cell<T>> cache = (new GlobalLoaderCache(this, t, level)).withLoader(loader);
             CachedCellImg img = new CachedCellImg(grid, getType(), cache, ArrayDataAccessFactory.get(getType(), AccessFlags.setOf(AccessFlags.VOLATILE)));
             sources.get(t).put(level, img);
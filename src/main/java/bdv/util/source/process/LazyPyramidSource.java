@@ -0,0 +1,232 @@
+package bdv.util.source.process;
+
+import bdv.util.DefaultInterpolators;
+import bdv.util.source.cache.DiskCachedSource;
+import bdv.util.source.cache.DiskCellCache;
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.cache.Cache;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.LoadedCellCacheLoader;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.img.basictypeaccess.ArrayDataAccessFactory;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+import sc.fiji.bdvpg.cache.GlobalLoaderCache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lazy multiresolution pyramid of a source, in 3D.
+ * <br>
+ * Level 0 is the highest resolution level of the origin source. Each other level is computed lazily, cell by
+ * cell, from the level above it with a {@link BlockDownsampler}: each output cell reads the single block of
+ * input voxels it covers. The downsampling factors can be set per level and per axis, or chosen
+ * automatically from the voxel anisotropy with {@link LazyPyramidSource#autoFactors(Source, int, int)}.
+ * <br>
+ * Levels use the cell size of the origin source when it is a cell image, so that the cells of all levels
+ * have the same size in the cache.
+ * <br>
+ * This generalizes {@link LazyDownscaledXY2Source}, which only downsamples XY by 2.
+ *
+ * @param <T> the pixel type of the source, must be a RealType and NativeType
+ */
+public class LazyPyramidSource<T extends RealType<T> & NativeType<T>> implements Source<T>, DiskCachedSource {
+
+    /**
+     * Cell size used when the origin source is not a cell image
+     */
+    public static final int[] DEFAULT_CELL_SIZE = new int[]{64, 64, 64};
+
+    protected final DefaultInterpolators< T > interpolators = new DefaultInterpolators<>();
+
+    final Source<T> origin;
+
+    final String name;
+
+    final int[][] factors;
+
+    final String reduction;
+
+    final Map<Integer, Map<Integer, RandomAccessibleInterval<T>>> sources = new ConcurrentHashMap<>();
+
+    /**
+     * @param name name of the source
+     * @param origin source to downsample, only its highest resolution level is used
+     * @param factors factors[i] = downsampling factors along x, y and z from level i to level i+1
+     * @param reduction {@link BlockDownsampler#MEAN}, {@link BlockDownsampler#MAX}, or
+     *                  {@link BlockDownsampler#MODE} for label images
+     */
+    public LazyPyramidSource(String name, Source<T> origin, int[][] factors, String reduction) {
+        for (int[] levelFactors : factors) {
+            if ((levelFactors.length != 3) || (levelFactors[0] < 1) || (levelFactors[1] < 1) || (levelFactors[2] < 1)) {
+                throw new IllegalArgumentException("Invalid downsampling factors " + Arrays.toString(levelFactors));
+            }
+        }
+        this.name = name;
+        this.origin = origin;
+        this.factors = factors;
+        this.reduction = reduction;
+    }
+
+    /**
+     * Chooses the downsampling factors of a pyramid: at each level, the axes with the smallest voxel size
+     * (up to a factor sqrt(2)) are downsampled by 2, as long as the downsampled dimension stays above minSize.
+     * For an anisotropic stack, xy is thus downsampled first, and z joins once voxels are nearly isotropic.
+     *
+     * @param origin source to downsample
+     * @param t timepoint used to read the dimensions and voxel size of the source
+     * @param minSize minimal dimension of a downsampled axis, in pixels
+     * @return the downsampling factors of each level
+     */
+    public static int[][] autoFactors(Source<?> origin, int t, int minSize) {
+        long[] dims = origin.getSource(t, 0).dimensionsAsLongArray();
+        AffineTransform3D transform = new AffineTransform3D();
+        origin.getSourceTransform(t, 0, transform);
+        double[] voxelSize = new double[3];
+        for (int d = 0; d < 3; d++) {
+            voxelSize[d] = Math.sqrt(transform.get(0, d) * transform.get(0, d)
+                    + transform.get(1, d) * transform.get(1, d)
+                    + transform.get(2, d) * transform.get(2, d));
+        }
+        List<int[]> levels = new ArrayList<>();
+        while (levels.size() < 16) {
+            double smallest = Double.MAX_VALUE;
+            for (int d = 0; d < 3; d++) {
+                if (dims[d] / 2 >= minSize) smallest = Math.min(smallest, voxelSize[d]);
+            }
+            if (smallest == Double.MAX_VALUE) break;
+            int[] levelFactors = new int[]{1, 1, 1};
+            for (int d = 0; d < 3; d++) {
+                if ((dims[d] / 2 >= minSize) && (voxelSize[d] <= smallest * Math.sqrt(2))) {
+                    levelFactors[d] = 2;
+                    dims[d] = (dims[d] + 1) / 2;
+                    voxelSize[d] *= 2;
+                }
+            }
+            levels.add(levelFactors);
+        }
+        return levels.toArray(new int[0][]);
+    }
+
+    /**
+     * @return the downsampling factors from each level to the next one
+     */
+    public int[][] getFactors() {
+        return factors;
+    }
+
+    public Source<T> getOrigin() {
+        return origin;
+    }
+
+    @Override
+    public String getDiskCacheIdentity(int t) {
+        return "origin="+DiskCellCache.getSourceIdentity(origin, t)
+                +";factors="+Arrays.deepToString(factors)
+                +";reduction="+reduction;
+    }
+
+    private String getDiskCacheParameters(int t, int level) {
+        AffineTransform3D originTransform = new AffineTransform3D();
+        origin.getSourceTransform(t, 0, originTransform);
+        return "origin="+DiskCellCache.getSourceIdentity(origin, t)
+                +";dimensions="+ Arrays.toString(origin.getSource(t,0).dimensionsAsLongArray())
+                +";transform="+originTransform
+                +";factors="+Arrays.deepToString(Arrays.copyOf(factors, level))
+                +";reduction="+reduction;
+    }
+
+    @Override
+    public boolean isPresent(int t) {
+        return origin.isPresent(t);
+    }
+
+    private int[] cellSize(RandomAccessibleInterval<T> level0) {
+        final int[] cellSize = DEFAULT_CELL_SIZE.clone();
+        if (level0 instanceof AbstractCellImg) {
+            ((AbstractCellImg<?, ?, ?, ?>) level0).getCellGrid().cellDimensions(cellSize);
+        }
+        return cellSize;
+    }
+
+    @Override
+    public RandomAccessibleInterval<T> getSource(int t, int level) {
+        final Map<Integer, RandomAccessibleInterval<T>> levels = sources.computeIfAbsent(t, k -> new ConcurrentHashMap<>());
+        if (level == 0) return origin.getSource(t, 0); // The origin source should be able to be cached
+        RandomAccessibleInterval<T> rai = levels.get(level);
+        if (rai != null) return rai;
+
+        final RandomAccessibleInterval<T> above = Views.zeroMin(getSource(t, level - 1));
+        final int[] levelFactors = factors[level - 1];
+        final long[] dimensions = BlockDownsampler.downsampledDimensions(above.dimensionsAsLongArray(), levelFactors);
+        final int[] cellSize = cellSize(origin.getSource(t, 0));
+        for (int d = 0; d < 3; d++) {
+            cellSize[d] = (int) Math.max(1, Math.min(cellSize[d], dimensions[d]));
+        }
+        final CellGrid grid = new CellGrid(dimensions, cellSize);
+
+        LoadedCellCacheLoader<T, ?> loader = LoadedCellCacheLoader.get(grid, DiskCellCache.wrapIfEnabled(name,
+                () -> getDiskCacheParameters(t, level), t, level, grid, getType().createVariable(),
+                cell -> BlockDownsampler.downsample(above, levelFactors, reduction, cell)),
+                getType().createVariable(), AccessFlags.setOf(AccessFlags.VOLATILE));
+        Cache<Long, Cell<T>> cache = (new GlobalLoaderCache(this, t, level)).withLoader(loader);
+        CachedCellImg img = new CachedCellImg(grid, getType(), cache, ArrayDataAccessFactory.get(getType(), AccessFlags.setOf(AccessFlags.VOLATILE)));
+        levels.putIfAbsent(level, img);
+        return levels.get(level);
+    }
+
+    @Override
+    public RealRandomAccessible<T> getInterpolatedSource(int t, int level, Interpolation method) {
+        return Views.interpolate( Views.extendZero(getSource( t, level )), interpolators.get(method) );
+    }
+
+    @Override
+    public void getSourceTransform(int t, int level, AffineTransform3D transform) {
+        origin.getSourceTransform(t, 0, transform);
+        if (level == 0) return;
+        // Levels are computed from the zero-min view of level 0
+        RandomAccessibleInterval<T> level0 = origin.getSource(t, 0);
+        AffineTransform3D toLevel0 = new AffineTransform3D();
+        toLevel0.translate(level0.min(0), level0.min(1), level0.min(2));
+        AffineTransform3D downsampling = new AffineTransform3D();
+        for (int l = 0; l < level; l++) {
+            downsampling.concatenate(BlockDownsampler.downsamplingTransform(factors[l]));
+        }
+        toLevel0.concatenate(downsampling);
+        transform.concatenate(toLevel0);
+    }
+
+    @Override
+    public T getType() {
+        return origin.getType();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public VoxelDimensions getVoxelDimensions() {
+        return origin.getVoxelDimensions();
+    }
+
+    @Override
+    public int getNumMipmapLevels() {
+        return factors.length + 1;
+    }
+
+}
@@ -0,0 +1,306 @@
+package bdv.util.source.thumbnail;
+
+import bdv.util.DefaultInterpolators;
+import bdv.util.source.cache.DiskCellCache;
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.cache.Cache;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.LoadedCellCacheLoader;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.img.basictypeaccess.ArrayDataAccessFactory;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.ConstantUtils;
+import net.imglib2.view.Views;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sc.fiji.bdvpg.cache.GlobalLoaderCache;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Source which adds to an origin source a coarsest resolution level: a small 2D thumbnail of fixed maximal
+ * size, computed either as the max projection along z or as the middle z plane of the source.
+ * <br>
+ * BigDataViewer selects the thumbnail level as soon as a thumbnail pixel is not bigger than a screen pixel,
+ * so a source covering less screen pixels than the thumbnail size is displayed without reading the
+ * origin source. Zooming in past this threshold switches back to the levels of the origin source.
+ * <br>
+ * Thumbnails are built in the background, with the executor given in the constructor: until it is ready,
+ * the thumbnail level is empty (zero-valued) and the callback given in the constructor is called once it is
+ * built, typically to request a repaint of the viewer. Built thumbnails are loaded through the
+ * {@link GlobalLoaderCache}, and the {@link DiskCellCache} if one is set, so that they survive a restart. Once built,
+ * a thumbnail is also copied into an array image held by this source: it is small, and holding it ensures that
+ * an evicted thumbnail is never rebuilt on the rendering thread.
+ * <br>
+ * The thumbnail spans the whole z extent of the source, in order to be displayed whatever the z plane
+ * the source is viewed at. It is sampled from the coarsest origin level which is not smaller than the
+ * thumbnail, with nearest neighbor sampling in xy.
+ *
+ * @param <T> the pixel type of the source, must be a RealType and NativeType
+ */
+public class ThumbnailSource<T extends RealType<T> & NativeType<T>> implements Source<T> {
+
+    protected static Logger logger = LoggerFactory.getLogger(ThumbnailSource.class);
+
+    /**
+     * How the z planes of a source are reduced to a single plane
+     */
+    public enum Mode {
+        MAX_PROJECTION,
+        MID_PLANE
+    }
+
+    protected final DefaultInterpolators< T > interpolators = new DefaultInterpolators<>();
+
+    final Source<T> origin;
+
+    final int thumbnailSize;
+
+    final Mode mode;
+
+    final ExecutorService executor;
+
+    final Runnable onReady;
+
+    final Map<Integer, Thumbnail<T>> thumbnails = new ConcurrentHashMap<>();
+
+    /**
+     * @param origin source to display
+     * @param thumbnailSize maximal size, in pixels, of the thumbnail along x and y
+     * @param mode reduction of the z planes
+     * @param executor executor building the thumbnails in the background
+     * @param onReady called, from the executor, each time a thumbnail is built
+     */
+    public ThumbnailSource(Source<T> origin, int thumbnailSize, Mode mode, ExecutorService executor, Runnable onReady) {
+        if (thumbnailSize <= 0) {
+            throw new IllegalArgumentException("thumbnailSize (" + thumbnailSize + ") must be > 0");
+        }
+        this.origin = origin;
+        this.thumbnailSize = thumbnailSize;
+        this.mode = mode;
+        this.executor = executor;
+        this.onReady = onReady;
+    }
+
+    public Source<T> getOrigin() {
+        return origin;
+    }
+
+    /**
+     * @return the index of the thumbnail level, which is the coarsest one
+     */
+    public int getThumbnailLevel() {
+        return origin.getNumMipmapLevels();
+    }
+
+    /**
+     * @param t timepoint
+     * @return true if the thumbnail of this timepoint has been built
+     */
+    public boolean isThumbnailReady(int t) {
+        Thumbnail<T> thumbnail = thumbnails.get(t);
+        return (thumbnail != null) && thumbnail.ready;
+    }
+
+    @Override
+    public boolean isPresent(int t) {
+        return origin.isPresent(t);
+    }
+
+    @Override
+    public RandomAccessibleInterval<T> getSource(int t, int level) {
+        if (level < getThumbnailLevel()) return origin.getSource(t, level);
+        Thumbnail<T> thumbnail = getThumbnail(t);
+        if (thumbnail.ready) return thumbnail.built;
+        if (thumbnail.requested.compareAndSet(false, true)) {
+            try {
+                executor.submit(() -> build(thumbnail));
+            } catch (RejectedExecutionException e) {
+                // Executor shut down: the viewer is closed
+                thumbnail.requested.set(false);
+            }
+        }
+        return thumbnail.empty;
+    }
+
+    @Override
+    public RealRandomAccessible<T> getInterpolatedSource(int t, int level, Interpolation method) {
+        if (level < getThumbnailLevel()) return origin.getInterpolatedSource(t, level, method);
+        return Views.interpolate( Views.extendZero(getSource( t, level )), interpolators.get(method) );
+    }
+
+    @Override
+    public void getSourceTransform(int t, int level, AffineTransform3D transform) {
+        if (level < getThumbnailLevel()) {
+            origin.getSourceTransform(t, level, transform);
+        } else {
+            transform.set(getThumbnail(t).transform);
+        }
+    }
+
+    @Override
+    public T getType() {
+        return origin.getType();
+    }
+
+    @Override
+    public String getName() {
+        return origin.getName();
+    }
+
+    @Override
+    public VoxelDimensions getVoxelDimensions() {
+        return origin.getVoxelDimensions();
+    }
+
+    @Override
+    public int getNumMipmapLevels() {
+        return origin.getNumMipmapLevels() + 1;
+    }
+
+    @Override
+    public boolean doBoundingBoxCulling() {
+        return origin.doBoundingBoxCulling();
+    }
+
+    private void build(Thumbnail<T> thumbnail) {
+        try {
+            // A single cell: loads the whole thumbnail, which is then held outside of the cache
+            final ArrayImg<T, ?> built = new ArrayImgFactory<>(getType()).create(thumbnail.img);
+            final Cursor<T> in = Views.flatIterable(thumbnail.img).cursor();
+            final Cursor<T> out = built.cursor();
+            while (out.hasNext()) {
+                out.next().set(in.next());
+            }
+            thumbnail.built = built;
+            thumbnail.ready = true;
+            onReady.run();
+        } catch (Exception e) {
+            logger.warn("Could not build the thumbnail of " + origin.getName() + ": " + e.getMessage());
+        }
+    }
+
+    private Thumbnail<T> getThumbnail(int t) {
+        return thumbnails.computeIfAbsent(t, this::createThumbnail);
+    }
+
+    /**
+     * Creates the lazy thumbnail of a timepoint : only the origin metadata are read here
+     */
+    private Thumbnail<T> createThumbnail(int t) {
+        // Coarsest origin level which is not smaller than the thumbnail
+        int sampledLevel = 0;
+        for (int level = origin.getNumMipmapLevels() - 1; level >= 0; level--) {
+            RandomAccessibleInterval<T> rai = origin.getSource(t, level);
+            if (Math.max(rai.dimension(0), rai.dimension(1)) >= thumbnailSize) {
+                sampledLevel = level;
+                break;
+            }
+        }
+        final RandomAccessibleInterval<T> levelRai = origin.getSource(t, sampledLevel);
+        final long[] min = levelRai.minAsLongArray();
+        final long[] max = levelRai.maxAsLongArray();
+        final long[] dims = levelRai.dimensionsAsLongArray();
+
+        final double scale = Math.max(1, Math.max(dims[0], dims[1]) / (double) thumbnailSize);
+        final int width = (int) Math.ceil(dims[0] / scale);
+        final int height = (int) Math.ceil(dims[1] / scale);
+        final double sx = dims[0] / (double) width;
+        final double sy = dims[1] / (double) height;
+
+        // Thumbnail pixel centers at the centers of the sampled blocks, a single plane spanning the z extent
+        final AffineTransform3D thumbnailToLevel = new AffineTransform3D();
+        thumbnailToLevel.set(
+                sx, 0, 0, min[0] + (sx - 1) / 2.0,
+                0, sy, 0, min[1] + (sy - 1) / 2.0,
+                0, 0, dims[2], min[2] + (dims[2] - 1) / 2.0);
+        final AffineTransform3D transform = new AffineTransform3D();
+        origin.getSourceTransform(t, sampledLevel, transform);
+        transform.concatenate(thumbnailToLevel);
+
+        final long zMid = min[2] + dims[2] / 2;
+        final CellGrid grid = new CellGrid(new long[]{width, height, 1}, new int[]{width, height, 1});
+
+        LoadedCellCacheLoader<T, ?> loader = LoadedCellCacheLoader.get(grid, DiskCellCache.wrapIfEnabled(
+                origin.getName()+"_thumbnail", () -> getDiskCacheParameters(t), t, getThumbnailLevel(), grid,
+                getType().createVariable(), cell -> {
+            final RandomAccess<T> ra = levelRai.randomAccess();
+            final Cursor<T> out = Views.flatIterable(cell).localizingCursor();
+            while (out.hasNext()) {
+                final T value = out.next();
+                ra.setPosition(Math.min(max[0], min[0] + (long) ((out.getLongPosition(0) + 0.5) * sx)), 0);
+                ra.setPosition(Math.min(max[1], min[1] + (long) ((out.getLongPosition(1) + 0.5) * sy)), 1);
+                if (mode == Mode.MID_PLANE) {
+                    ra.setPosition(zMid, 2);
+                    value.set(ra.get());
+                } else {
+                    ra.setPosition(min[2], 2);
+                    double maxValue = ra.get().getRealDouble();
+                    for (long z = min[2] + 1; z <= max[2]; z++) {
+                        ra.fwd(2);
+                        maxValue = Math.max(maxValue, ra.get().getRealDouble());
+                    }
+                    value.setReal(maxValue);
+                }
+            }
+        }), getType().createVariable(), AccessFlags.setOf());
+        Cache<Long, Cell<T>> cache = (new GlobalLoaderCache(this, t, getThumbnailLevel())).withLoader(loader);
+        CachedCellImg<T, ?> img = new CachedCellImg(grid, getType(), cache, ArrayDataAccessFactory.get(getType(), AccessFlags.setOf()));
+
+        final T zero = getType().createVariable();
+        zero.setZero();
+        RandomAccessibleInterval<T> empty = Views.interval(ConstantUtils.constantRandomAccessible(zero, 3), img);
+
+        return new Thumbnail<>(img, empty, transform);
+    }
+
+    private String getDiskCacheParameters(int t) {
+        AffineTransform3D originTransform = new AffineTransform3D();
+        origin.getSourceTransform(t, 0, originTransform);
+        return "origin="+DiskCellCache.getSourceIdentity(origin, t)
+                +";dimensions="+ Arrays.toString(origin.getSource(t,0).dimensionsAsLongArray())
+                +";transform="+originTransform
+                +";size="+thumbnailSize
+                +";mode="+mode;
+    }
+
+    static class Thumbnail<T> {
+
+        final RandomAccessibleInterval<T> img;
+
+        final RandomAccessibleInterval<T> empty;
+
+        final AffineTransform3D transform;
+
+        final AtomicBoolean requested = new AtomicBoolean(false);
+
+        // Copy of the built thumbnail, set before ready
+        RandomAccessibleInterval<T> built;
+
+        volatile boolean ready = false;
+
+        Thumbnail(RandomAccessibleInterval<T> img, RandomAccessibleInterval<T> empty, AffineTransform3D transform) {
+            this.img = img;
+            this.empty = empty;
+            this.transform = transform;
+        }
+    }
+
+}
@@ -0,0 +1,91 @@
+package bdv.util.source.thumbnail;
+
+import bdv.util.DefaultInterpolators;
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.Volatile;
+import net.imglib2.converter.Converters;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Volatile counterpart of a {@link ThumbnailSource}: the levels of the volatile origin source, plus
+ * the thumbnail level, shared with the non-volatile {@link ThumbnailSource}. Thumbnail pixels are always valid,
+ * so that BigDataViewer never falls back to other levels while the thumbnail is displayed.
+ *
+ * @param <T> the pixel type of the thumbnail source
+ * @param <V> the volatile pixel type
+ */
+public class VolatileThumbnailSource<T extends RealType<T> & NativeType<T>, V extends Volatile<T> & NumericType<V>> implements Source<V> {
+
+    protected final DefaultInterpolators< V > interpolators = new DefaultInterpolators<>();
+
+    final ThumbnailSource<T> thumbnailSource;
+
+    final Source<V> volatileOrigin;
+
+    /**
+     * @param thumbnailSource non-volatile thumbnail source
+     * @param volatileOrigin volatile version of the origin source of thumbnailSource
+     */
+    public VolatileThumbnailSource(ThumbnailSource<T> thumbnailSource, Source<V> volatileOrigin) {
+        this.thumbnailSource = thumbnailSource;
+        this.volatileOrigin = volatileOrigin;
+    }
+
+    @Override
+    public boolean isPresent(int t) {
+        return volatileOrigin.isPresent(t);
+    }
+
+    @Override
+    public RandomAccessibleInterval<V> getSource(int t, int level) {
+        if (level < thumbnailSource.getThumbnailLevel()) return volatileOrigin.getSource(t, level);
+        return Converters.convert(thumbnailSource.getSource(t, level), (in, out) -> {
+            out.get().set(in);
+            out.setValid(true);
+        }, getType());
+    }
+
+    @Override
+    public RealRandomAccessible<V> getInterpolatedSource(int t, int level, Interpolation method) {
+        if (level < thumbnailSource.getThumbnailLevel()) return volatileOrigin.getInterpolatedSource(t, level, method);
+        return Views.interpolate( Views.extendZero(getSource( t, level )), interpolators.get(method) );
+    }
+
+    @Override
+    public void getSourceTransform(int t, int level, AffineTransform3D transform) {
+        thumbnailSource.getSourceTransform(t, level, transform);
+    }
+
+    @Override
+    public V getType() {
+        return volatileOrigin.getType().createVariable();
+    }
+
+    @Override
+    public String getName() {
+        return volatileOrigin.getName();
+    }
+
+    @Override
+    public VoxelDimensions getVoxelDimensions() {
+        return volatileOrigin.getVoxelDimensions();
+    }
+
+    @Override
+    public int getNumMipmapLevels() {
+        return thumbnailSource.getNumMipmapLevels();
+    }
+
+    @Override
+    public boolean doBoundingBoxCulling() {
+        return volatileOrigin.doBoundingBoxCulling();
+    }
+}
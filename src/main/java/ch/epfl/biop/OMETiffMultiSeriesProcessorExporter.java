@@ -5,6 +5,7 @@ import ch.epfl.biop.bdv.img.legacy.bioformats.command.BasicOpenFilesWithBigdatav
 import ch.epfl.biop.bdv.img.legacy.bioformats.command.BioformatsBigdataviewerBridgeDatasetCommand;
 import ch.epfl.biop.bdv.img.legacy.bioformats.entity.SeriesNumber;
 import ch.epfl.biop.command.exporter.SourcesToMultipleImagePlusExportCommand;
+import ch.epfl.biop.scheduler.JobScheduler;
 import ch.epfl.biop.source.exporter.IntRangeParser;
 import ij.IJ;
 import ij.ImagePlus;
@@ -13,8 +14,10 @@ import ij.plugin.Scaler;
 import ij.plugin.ZProjector;
 import ij.process.ImageConverter;
 import mpicbg.spim.data.generic.AbstractSpimData;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealPoint;
 import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.RealType;
 import org.scijava.Context;
 import org.scijava.command.CommandService;
 import org.scijava.task.Task;
@@ -30,13 +33,15 @@ import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class OMETiffMultiSeriesProcessorExporter {
@@ -105,128 +110,145 @@ public class OMETiffMultiSeriesProcessorExporter {
 
         final Map<String, String> outputMap = new ConcurrentHashMap<>();
 
-        ForkJoinPool pool = new ForkJoinPool(builder.n_threads);
+        // Series are exported as batch jobs of the shared scheduler, at most n_threads at the same time
+        JobScheduler scheduler = JobScheduler.getShared();
+        scheduler.setTaskService(taskService);
+        Semaphore seriesInProgress = new Semaphore(builder.n_threads > 0 ? builder.n_threads : Runtime.getRuntime().availableProcessors());
 
-        Callable c = () -> {
-
-        rangeSeries.parallelStream().forEach(index -> {
+        List<Future<?>> futures = new ArrayList<>();
+        for (int index : rangeSeries) {
             FilterNode currentSeriesNode = seriesNode.child(index);
-                try {
-                    List<ImagePlus> ij1_images = (List<ImagePlus>) command.run(SourcesToMultipleImagePlusExportCommand.class, false,
-                            "sources", currentSeriesNode.sources(),
-                            "level", 0,
-                            "range_frames", builder.rangeT,
-                            "range_channels", builder.rangeC,
-                            "range_slices", builder.rangeZ,
-                            "export_mode", "Virtual no-cache", // Because we only read once!
-                            "parallel", Boolean.TRUE,
-                            "verbose", Boolean.TRUE
-                    ).get().getOutput("imps_out");
-
-                    if (ij1_images.size() != 1) IJ.log("ERROR : ONE IMAGE EXPECTED, MULTIPLE ONES FOUND");
-                    ImagePlus image = ij1_images.get(0);
-                    image.setTitle(currentSeriesNode.name()); // Fix issue with file name
-                    IJ.log("Processing " + image.getTitle());
-                    // Z Project
-                    if (builder.z_project) {
-                        String iniTitle = image.getTitle();
-                        Calibration cal = image.getCalibration().copy();
-                        int initialBitDepth = image.getBitDepth();
-                        if ((image.getNFrames()>1)&&(image.getNSlices()==1)) {
-                            image = ZProjector.run(image,"max");
-                        } else {
-                            ZProjector zp = new ZProjector();
-                            zp.setImage(image);
-                            zp.setMethod(Arrays.asList(ZProjector.METHODS).indexOf(builder.z_project_method));
-                            zp.setStopSlice(image.getNSlices());
-                            if (image.getNSlices() > 1 || image.getNFrames() > 1) {
-                                zp.doHyperStackProjection(true);
+            long estimatedMemory = estimateMemory(currentSeriesNode.sources(), builder.z_project);
+            seriesInProgress.acquire();
+            try {
+                futures.add(scheduler.submit("Export series " + index, JobScheduler.Priority.BATCH,
+                        estimatedMemory, () -> {
+                    try {
+                        List<ImagePlus> ij1_images = (List<ImagePlus>) command.run(SourcesToMultipleImagePlusExportCommand.class, false,
+                                "sources", currentSeriesNode.sources(),
+                                "level", 0,
+                                "range_frames", builder.rangeT,
+                                "range_channels", builder.rangeC,
+                                "range_slices", builder.rangeZ,
+                                "export_mode", "Virtual no-cache", // Because we only read once!
+                                "parallel", Boolean.TRUE,
+                                "verbose", Boolean.TRUE
+                        ).get().getOutput("imps_out");
+
+                        if (ij1_images.size() != 1) IJ.log("ERROR : ONE IMAGE EXPECTED, MULTIPLE ONES FOUND");
+                        ImagePlus image = ij1_images.get(0);
+                        image.setTitle(currentSeriesNode.name()); // Fix issue with file name
+                        IJ.log("Processing " + image.getTitle());
+                        // Z Project
+                        if (builder.z_project) {
+                            String iniTitle = image.getTitle();
+                            Calibration cal = image.getCalibration().copy();
+                            int initialBitDepth = image.getBitDepth();
+                            if ((image.getNFrames()>1)&&(image.getNSlices()==1)) {
+                                image = ZProjector.run(image,"max");
+                            } else {
+                                ZProjector zp = new ZProjector();
+                                zp.setImage(image);
+                                zp.setMethod(Arrays.asList(ZProjector.METHODS).indexOf(builder.z_project_method));
+                                zp.setStopSlice(image.getNSlices());
+                                if (image.getNSlices() > 1 || image.getNFrames() > 1) {
+                                    zp.doHyperStackProjection(true);
+                                }
+                                image = zp.getProjection();
                             }
-                            image = zp.getProjection();
-                        }
-                        image.setTitle(iniTitle + "_ZProj_" + builder.z_project_method);
-                        cal.zOrigin = 0; // remove z offset when projecting
-                        image.setCalibration(cal);
-                        // Restores bit depth
-                        if (image.getBitDepth() != initialBitDepth) {
-                            ImageConverter ic = new ImageConverter(image);
-                            ImageConverter.setDoScaling(false);
-                            switch (initialBitDepth) {
-                                case 8:
-                                    ic.convertToGray8();
-                                    break;
-                                case 16:
-                                    ic.convertToGray16();
-                                    break;
-                                default:
-                                    IJ.log("Conversion from " + image.getBitDepth() + " to " + initialBitDepth + " unsupported");
+                            image.setTitle(iniTitle + "_ZProj_" + builder.z_project_method);
+                            cal.zOrigin = 0; // remove z offset when projecting
+                            image.setCalibration(cal);
+                            // Restores bit depth
+                            if (image.getBitDepth() != initialBitDepth) {
+                                ImageConverter ic = new ImageConverter(image);
+                                ImageConverter.setDoScaling(false);
+                                switch (initialBitDepth) {
+                                    case 8:
+                                        ic.convertToGray8();
+                                        break;
+                                    case 16:
+                                        ic.convertToGray16();
+                                        break;
+                                    default:
+                                        IJ.log("Conversion from " + image.getBitDepth() + " to " + initialBitDepth + " unsupported");
+                                }
                             }
                         }
-                    }
-                    // Resizes the image if set by the user
-                    if (builder.resize_xy != 1) {
-                        String iniTitle = image.getTitle();
-                        Calibration cal = image.getCalibration().copy();
-                        cal.pixelWidth = cal.pixelWidth * builder.resize_xy;
-                        cal.pixelHeight = cal.pixelHeight * builder.resize_xy;
-                        cal.xOrigin = cal.xOrigin / builder.resize_xy;
-                        cal.yOrigin = cal.yOrigin / builder.resize_xy;
-                                image = Scaler.resize(
-                                image, image.getWidth() / builder.resize_xy,
-                        image.getHeight() / builder.resize_xy,
-                                image.getNSlices(), "bilinear");
-                        image.setTitle(iniTitle + "_RescaledXY_" + builder.resize_xy);
-                        image.setCalibration(cal);
-                    }
-                    String prefix = "";
-                    if (builder.appendFileName) prefix = image_file.getName()+"-";
-                    String totalPath = builder.output_directory + File.separator + prefix + image.getTitle() + ".ome.tiff";
-                    if (builder.overrideCalibration.containsKey(index)) {
-                        image.setCalibration(builder.overrideCalibration.get(index));
-                    }
-                    ImagePlus finalImage = image;
-                    new Thread(() -> {
-                        try {
-
-                            ImagePlusToOMETiff.builder(finalImage, new File(totalPath))
-                                    .taskService(taskService)
-                                    .compression(builder.compression)
-                                    .build().execute();
-
-                            outputMap.put(finalImage.getTitle(), totalPath);
-                        } catch (Exception e) {
-                            e.printStackTrace();
+                        // Resizes the image if set by the user
+                        if (builder.resize_xy != 1) {
+                            String iniTitle = image.getTitle();
+                            Calibration cal = image.getCalibration().copy();
+                            cal.pixelWidth = cal.pixelWidth * builder.resize_xy;
+                            cal.pixelHeight = cal.pixelHeight * builder.resize_xy;
+                            cal.xOrigin = cal.xOrigin / builder.resize_xy;
+                            cal.yOrigin = cal.yOrigin / builder.resize_xy;
+                                    image = Scaler.resize(
+                                    image, image.getWidth() / builder.resize_xy,
+                            image.getHeight() / builder.resize_xy,
+                                    image.getNSlices(), "bilinear");
+                            image.setTitle(iniTitle + "_RescaledXY_" + builder.resize_xy);
+                            image.setCalibration(cal);
                         }
-                        synchronized (OMETiffMultiSeriesProcessorExporter.class) {
-                            printTimingMessage(start, ((double) (iImage.incrementAndGet()) / (double) (number_of_series)) * 100);
-                            long currentProgress = iImage.get();
-                            task.setProgressValue(currentProgress);
-                            if (currentProgress == number_of_series) {
-                                task.run(() -> {}); // finished task
-                            }
-                            synchronized (iImage) {
-                                iImage.notify();
-                            }
+                        String prefix = "";
+                        if (builder.appendFileName) prefix = image_file.getName()+"-";
+                        String totalPath = builder.output_directory + File.separator + prefix + image.getTitle() + ".ome.tiff";
+                        if (builder.overrideCalibration.containsKey(index)) {
+                            image.setCalibration(builder.overrideCalibration.get(index));
                         }
-                    }).start();
-                } catch (Exception e) {
-                    e.printStackTrace();
+                        // Written within the job, so that the memory of the image stays accounted for by the scheduler
+                        ImagePlusToOMETiff.builder(image, new File(totalPath))
+                                .taskService(taskService)
+                                .compression(builder.compression)
+                                .build().execute();
+
+                        outputMap.put(image.getTitle(), totalPath);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        seriesInProgress.release();
+                    }
+                    synchronized (OMETiffMultiSeriesProcessorExporter.class) {
+                        printTimingMessage(start, ((double) (iImage.incrementAndGet()) / (double) (number_of_series)) * 100);
+                        task.setProgressValue(iImage.get());
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                // The job will never run: its permit is released, and the series already submitted are completed
+                seriesInProgress.release();
+                for (Future<?> future : futures) {
+                    future.get();
                 }
-            });  return  null;};
-
-        pool.submit(c).get();
-
-        while (iImage.get()!=number_of_series) {
-            synchronized (iImage) {
-                iImage.wait();
+                throw e;
             }
         }
 
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        task.run(() -> {}); // finished task
+
         // Cleanup
         source_service.remove(allSources.toArray(new SourceAndConverter[0])); // Maybe an issue if no projection TODO : check that all files are written
         return outputMap;
     }
 
+    /**
+     * Estimates the memory used while a series is exported: per channel, all slices of a timepoint, or all
+     * timepoints if the series is projected along z, twice for the copies made by the conversions
+     */
+    private static long estimateMemory(SourceAndConverter<?>[] sources, boolean zProject) {
+        long memory = 0;
+        for (SourceAndConverter<?> source : sources) {
+            RandomAccessibleInterval<?> rai = source.getSpimSource().getSource(0, 0);
+            Object type = source.getSpimSource().getType();
+            long bytesPerPixel = (type instanceof RealType) ? Math.max(1, ((RealType<?>) type).getBitsPerPixel() / 8) : 4;
+            long planes = zProject ? SourceHelper.getMaxTimepoint(source.getSpimSource()) + 1 : rai.dimension(2);
+            memory += 2 * rai.dimension(0) * rai.dimension(1) * bytesPerPixel * planes;
+        }
+        return memory;
+    }
+
     public static void printTimingMessage(Instant start, double percentageCompleteness) {
         long s = Duration.between(start, Instant.now()).getSeconds();
         String elapsedTime = String.format("%d:%02d:%02d", (int) (s / 3600), (int) ((s % 3600) / 60), (int) (s % 60));
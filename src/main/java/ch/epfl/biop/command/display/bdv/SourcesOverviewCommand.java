@@ -2,6 +2,9 @@ package ch.epfl.biop.command.display.bdv;
 
 import bdv.tools.brightness.ConverterSetup;
 import bdv.util.BdvHandle;
+import bdv.util.source.thumbnail.ThumbnailSource;
+import bdv.util.source.thumbnail.VolatileThumbnailSource;
+import bdv.viewer.Source;
 import bdv.viewer.SourceAndConverter;
 import ch.epfl.biop.bdv.img.opener.OpenerHelper;
 import ch.epfl.biop.bdv.select.SourceSelectorBehaviour;
@@ -10,8 +13,11 @@ import mpicbg.spim.data.generic.AbstractSpimData;
 import mpicbg.spim.data.generic.base.Entity;
 import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
 import mpicbg.spim.data.generic.sequence.BasicViewSetup;
+import net.imglib2.converter.Converter;
 import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.volatiles.VolatileARGBType;
 import org.scijava.Context;
 import org.scijava.cache.CacheService;
@@ -32,6 +38,8 @@ import sc.fiji.bdvpg.source.SourceHelper;
 import sc.fiji.bdvpg.source.transform.SourceAffineTransformer;
 
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -41,6 +49,10 @@ import static sc.fiji.bdvpg.viewer.ViewerOrthoSyncStarter.MatrixApproxEquals;
 
 /**
  * Command which display sources on a grid in BigDataViewer
+ *
+ * With a thumbnail size above 0, each source gets a coarsest thumbnail level built in the background
+ * ({@link ThumbnailSource}): browsing a grid of many big sources then does not read them
+ * until a grid cell is zoomed in.
  */
 @Plugin(type = BdvPlaygroundActionCommand.class,
         //menuPath = BdvPgMenus.RootMenu+"View>BDV>BDV - Display Sources On Grid",
@@ -70,6 +82,18 @@ public class SourcesOverviewCommand implements BdvPlaygroundActionCommand {
             description = "Comma-separated entity types to split by (e.g., 'channel, fileseries')")
     String entities_split = "";
 
+    @Parameter(label = "Thumbnail Size (pixels)",
+            description = "When above 0, each grid cell is displayed with a thumbnail of this maximal size, built in the background, " +
+                    "until it is zoomed in past the thumbnail resolution. Thumbnails are also stored in the disk cache, if one is set",
+            required = false)
+    int thumbnail_size = 0;
+
+    @Parameter(label = "Thumbnail Mode",
+            description = "How z planes are reduced in thumbnails",
+            choices = {"Max Projection", "Mid Plane"},
+            required = false)
+    String thumbnail_mode = "Max Projection";
+
     Map<String, Class<? extends Entity>> entityClasses = OpenerHelper.getEntities();
 
     // sourceList;
@@ -79,6 +103,11 @@ public class SourcesOverviewCommand implements BdvPlaygroundActionCommand {
 
     Map<SourceAndConverter<?>, SourceAndConverter<?>> transformedToOriginal = new HashMap<>();
 
+    ExecutorService thumbnailExecutor;
+
+    // Repaints the viewer once a thumbnail is built, set when the viewer is created
+    volatile Runnable repaint = () -> {};
+
     @Parameter
     Context ctx;
 
@@ -86,6 +115,10 @@ public class SourcesOverviewCommand implements BdvPlaygroundActionCommand {
     public void run() {
 
 
+        if (thumbnail_size > 0) {
+            thumbnailExecutor = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        }
+
         List<Class<? extends Entity>> entSplit = new ArrayList<>();
 
         for (String entity : entities_split.split(",")) {
@@ -168,7 +201,7 @@ public class SourcesOverviewCommand implements BdvPlaygroundActionCommand {
 
             List<SourceAndConverter<?>> transformedSacs =
                     sources.stream().map(source -> {
-                        SourceAndConverter<?> trSac = sat.apply(source);
+                        SourceAndConverter<?> trSac = sat.apply(withThumbnail(source));
                         transformedToOriginal.put(trSac, source);
                         SourceServices
                                 .getSourceService()
@@ -215,6 +248,7 @@ public class SourcesOverviewCommand implements BdvPlaygroundActionCommand {
         //BdvHandle bdvh =
 
         BdvHandle bdvh = SourceServices.getBdvDisplayService().getNewBdv();
+        repaint = () -> bdvh.getViewerPanel().requestRepaint();
         SourceServices.getBdvDisplayService().show(bdvh, sourcesToDisplay.toArray(new SourceAndConverter[0]));
 
         AffineTransform3D currentViewLocation = new AffineTransform3D();
@@ -242,12 +276,44 @@ public class SourcesOverviewCommand implements BdvPlaygroundActionCommand {
                 () -> {
                     sources = null; // free mem ?
                     transformedToOriginal = null;
+                    repaint = () -> {};
+                    if (thumbnailExecutor != null) thumbnailExecutor.shutdownNow();
                     ctx.getService(ObjectService.class).removeObject(bdvh);
                 }
         );
     }
 
 
+    /**
+     * Adds a thumbnail level to a source, see {@link ThumbnailSource}
+     * @param source source to display
+     * @return the source with a thumbnail level, or the source itself if thumbnails are disabled,
+     * if its pixel type is not supported or if it is not bigger than the thumbnail
+     */
+    SourceAndConverter<?> withThumbnail(SourceAndConverter<?> source) {
+        if (thumbnail_size <= 0) return source;
+        Source<?> spimSource = source.getSpimSource();
+        if (!(spimSource.getType() instanceof RealType) || !(spimSource.getType() instanceof NativeType)) return source;
+        if (!SourceHelper.hasAValidTimepoint(spimSource)) return source;
+        int t = SourceHelper.getAValidTimepoint(spimSource);
+        if (Math.max(spimSource.getSource(t, 0).dimension(0), spimSource.getSource(t, 0).dimension(1)) <= thumbnail_size) return source;
+        return createThumbnailSac((SourceAndConverter) source);
+    }
+
+    <T extends RealType<T> & NativeType<T>> SourceAndConverter<T> createThumbnailSac(SourceAndConverter<T> source) {
+        ThumbnailSource.Mode mode = thumbnail_mode.equals("Mid Plane") ? ThumbnailSource.Mode.MID_PLANE : ThumbnailSource.Mode.MAX_PROJECTION;
+        ThumbnailSource<T> thumbnailSource = new ThumbnailSource<>(source.getSpimSource(), thumbnail_size, mode,
+                thumbnailExecutor, () -> repaint.run());
+        if (source.asVolatile() == null) {
+            return new SourceAndConverter<>(thumbnailSource, source.getConverter());
+        }
+        SourceAndConverter volatileSource = source.asVolatile();
+        SourceAndConverter<?> volatileThumbnailSac = new SourceAndConverter<>(
+                new VolatileThumbnailSource(thumbnailSource, volatileSource.getSpimSource()),
+                (Converter) volatileSource.getConverter());
+        return new SourceAndConverter<>(thumbnailSource, source.getConverter(), (SourceAndConverter) volatileThumbnailSac);
+    }
+
     void addEditorBehaviours(BdvHandle bdvh, SourceSelectorBehaviour ssb) {
         Behaviours editor = new Behaviours(new InputTriggerConfig());
 
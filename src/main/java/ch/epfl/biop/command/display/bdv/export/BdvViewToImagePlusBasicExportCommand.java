@@ -28,6 +28,7 @@ import sc.fiji.bdvpg.scijava.BdvPgMenus;
 import sc.fiji.bdvpg.source.importer.EmptySourceCreator;
 
 import java.util.*;
+import java.util.concurrent.CancellationException;
 import java.util.stream.Collectors;
 
 import static bdv.util.ZSlicedSource.getNormTransform;
@@ -100,8 +101,8 @@ public class BdvViewToImagePlusBasicExportCommand<T extends RealType<T>> impleme
     String selected_timepoints_str = "";
 
     @Parameter(label = "Export Mode",
-            description = "Normal loads all data; Virtual creates a lazy-loading stack",
-            choices = {"Normal", "Virtual", "Virtual no-cache"},
+            description = "Normal loads all data; Parallel loads all data by blocks on several threads, with progress and cancellation; Virtual creates a lazy-loading stack",
+            choices = {"Normal", "Parallel", "Virtual", "Virtual no-cache"},
             required = false)
     String export_mode = "Non virtual";
 
@@ -120,6 +121,11 @@ public class BdvViewToImagePlusBasicExportCommand<T extends RealType<T>> impleme
             required = false)
     Boolean parallel_t = false;
 
+    @Parameter(label = "Number of Threads",
+            description = "Number of threads used in Parallel mode, 0 for one per processor",
+            required = false)
+    Integer n_threads = 0;
+
     //@Parameter( label = "Monitor loaded data")
     private Boolean monitor = true;
 
@@ -168,10 +174,15 @@ public class BdvViewToImagePlusBasicExportCommand<T extends RealType<T>> impleme
 
         boolean cacheImage = false;
         boolean virtual;
+        int numThreads = 0;
         switch (export_mode) {
             case "Normal":
                 virtual = false;
                 break;
+            case "Parallel":
+                virtual = false;
+                numThreads = ((n_threads == null) || (n_threads <= 0)) ? Runtime.getRuntime().availableProcessors() : n_threads;
+                break;
             case "Virtual":
                 virtual = true;
                 cacheImage = true;
@@ -185,6 +196,7 @@ public class BdvViewToImagePlusBasicExportCommand<T extends RealType<T>> impleme
 
         boolean cacheImageFinal = cacheImage;
         boolean virtualFinal = virtual;
+        int numThreadsFinal = numThreads;
 
         images = new ArrayList<>();
 
@@ -209,10 +221,13 @@ public class BdvViewToImagePlusBasicExportCommand<T extends RealType<T>> impleme
                                         .title(capture_name)
                                         .setModel(model)
                                         .parallelC(parallel_c).parallelZ(parallel_z).parallelT(parallel_t)
+                                        .parallelBlocks(numThreadsFinal)
                                         .interpolate(interpolate)
                                         .rangeT(selected_timepoints_str)
                                         .sources(new SourceAndConverter[] {source})
                                         .get());
+                        } catch (CancellationException e) {
+                            logger.info(e.getMessage());
                         } catch (Exception e) {
                             if (task!=null) {
                                 task.cancel(e.getMessage());
@@ -232,12 +247,15 @@ public class BdvViewToImagePlusBasicExportCommand<T extends RealType<T>> impleme
                             .title(capture_name)
                             .setModel(model)
                             .parallelC(parallel_c).parallelZ(parallel_z).parallelT(parallel_t)
+                            .parallelBlocks(numThreadsFinal)
                             .interpolate(interpolate)
                             .rangeT(selected_timepoints_str)
                             .sources(typeToSources.get(pixelType).toArray(new SourceAndConverter[0]))
                             .get());
 
                 }
+            } catch (CancellationException e) {
+                logger.info(e.getMessage());
             } catch (Exception e) {
                 e.printStackTrace();
             }
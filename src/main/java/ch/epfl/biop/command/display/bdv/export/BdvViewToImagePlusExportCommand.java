@@ -25,6 +25,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.stream.Collectors;
 
 /**
@@ -119,8 +120,8 @@ public class BdvViewToImagePlusExportCommand implements BdvPlaygroundActionComma
     boolean interpolate = true;
 
     @Parameter(label = "Export Mode",
-            description = "Normal loads all data; Virtual creates a lazy-loading stack",
-            choices = {"Normal", "Virtual", "Virtual no-cache"},
+            description = "Normal loads all data; Parallel loads all data by blocks on several threads, with progress and cancellation; Virtual creates a lazy-loading stack",
+            choices = {"Normal", "Parallel", "Virtual", "Virtual no-cache"},
             required = false)
     String export_mode = "Non virtual";
 
@@ -139,6 +140,11 @@ public class BdvViewToImagePlusExportCommand implements BdvPlaygroundActionComma
             required = false)
     Boolean parallel_t = false;
 
+    @Parameter(label = "Number of Threads",
+            description = "Number of threads used in Parallel mode, 0 for one per processor",
+            required = false)
+    Integer n_threads = 0;
+
     //@Parameter( label = "Monitor loaded data")
     private Boolean monitor = true;
 
@@ -167,10 +173,15 @@ public class BdvViewToImagePlusExportCommand implements BdvPlaygroundActionComma
 
         boolean cacheImage = false;
         boolean virtual;
+        int numThreads = 0;
         switch (export_mode) {
             case "Normal":
                 virtual = false;
                 break;
+            case "Parallel":
+                virtual = false;
+                numThreads = ((n_threads == null) || (n_threads <= 0)) ? Runtime.getRuntime().availableProcessors() : n_threads;
+                break;
             case "Virtual":
                 virtual = true;
                 cacheImage = true;
@@ -186,6 +197,7 @@ public class BdvViewToImagePlusExportCommand implements BdvPlaygroundActionComma
 
         boolean cacheImageFinal = cacheImage;
         boolean virtualFinal = virtual;
+        int numThreadsFinal = numThreads;
 
 
         images = new ArrayList<>();
@@ -211,11 +223,14 @@ public class BdvViewToImagePlusExportCommand implements BdvPlaygroundActionComma
                                             .monitor(task)
                                             .title(capture_name)
                                             .parallelC(parallel_c).parallelZ(parallel_z).parallelT(parallel_t)
+                                            .parallelBlocks(numThreadsFinal)
                                             .setModel(model)
                                             .interpolate(interpolate)
                                             .rangeT(selected_timepoints_str)
                                             .sources(new SourceAndConverter[] {source})
                                             .get());
+                                } catch (CancellationException e) {
+                                    logger.info(e.getMessage());
                                 } catch (Exception e) {
                                     e.printStackTrace();
                                 }
@@ -232,12 +247,15 @@ public class BdvViewToImagePlusExportCommand implements BdvPlaygroundActionComma
                             .title(capture_name)
                             .setModel(model)
                             .parallelC(parallel_c).parallelZ(parallel_z).parallelT(parallel_t)
+                            .parallelBlocks(numThreadsFinal)
                             .interpolate(interpolate)
                             .rangeT(selected_timepoints_str)
                             .sources(typeToSources.get(pixelType).toArray(new SourceAndConverter[0]))
                             .get());
 
                 }
+            } catch (CancellationException e) {
+                logger.info(e.getMessage());
             } catch (Exception e) {
                 e.printStackTrace();
             }
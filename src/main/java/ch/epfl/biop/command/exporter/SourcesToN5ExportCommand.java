@@ -0,0 +1,110 @@
+package ch.epfl.biop.command.exporter;
+
+import bdv.viewer.SourceAndConverter;
+import ch.epfl.biop.source.exporter.SourcesToN5Exporter;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.scijava.ItemIO;
+import org.scijava.plugin.Menu;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.task.Task;
+import org.scijava.task.TaskService;
+import sc.fiji.bdvpg.command.BdvPlaygroundActionCommand;
+import sc.fiji.bdvpg.scijava.BdvPgMenus;
+
+import java.io.File;
+import java.util.Map;
+
+@SuppressWarnings({"unused", "CanBeFinal"})
+@Plugin(type = BdvPlaygroundActionCommand.class,
+        menu = {
+                @Menu(label = BdvPgMenus.L1),
+                @Menu(label = BdvPgMenus.L2),
+                @Menu(label = BdvPgMenus.ExportMenu, weight = BdvPgMenus.ExportW),
+                @Menu(label = "Source - Export To OME-Zarr / N5", weight = 6.5)
+        },
+        description = "Exports sources chunk by chunk to a multiscale OME-Zarr or N5 container, without building full planes")
+public class SourcesToN5ExportCommand implements BdvPlaygroundActionCommand {
+
+    @Parameter(label = "Select Source(s)",
+            description = "The sources to export, each one is written in its own multiscale group")
+    SourceAndConverter<?>[] sources;
+
+    @Parameter(label = "Output container",
+            description = "Folder of the container, e.g. image.ome.zarr",
+            style = "save")
+    File output;
+
+    @Parameter(label = "Format",
+            description = "Format of the container",
+            choices = {SourcesToN5Exporter.OME_ZARR, SourcesToN5Exporter.N5})
+    String format = SourcesToN5Exporter.OME_ZARR;
+
+    @Parameter(label = "Number of resolution levels",
+            description = "Levels above 0 are computed from the chunks of the level below",
+            min = "1")
+    int n_resolution_levels = 4;
+
+    @Parameter(label = "Downsampling factor XY",
+            description = "Downsampling between consecutive resolution levels along X and Y",
+            min = "1")
+    int downsample_xy = 2;
+
+    @Parameter(label = "Downsampling factor Z",
+            description = "Downsampling between consecutive resolution levels along Z",
+            min = "1")
+    int downsample_z = 1;
+
+    @Parameter(label = "Number of compute threads",
+            description = "Threads computing the cells of the sources",
+            min = "1")
+    int n_compute_threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+    @Parameter(label = "Number of writer threads",
+            description = "Threads compressing and writing the chunks",
+            min = "1")
+    int n_write_threads = 2;
+
+    @Parameter(label = "Maximal number of cells in memory",
+            description = "Computed cells waiting to be written, bounds the memory used by the export",
+            min = "1")
+    int max_cells_in_flight = 64;
+
+    @Parameter(label = "Compress (gzip)",
+            description = "If unchecked, chunks are written without compression")
+    boolean compress = true;
+
+    @Parameter(label = "Resume",
+            description = "Keeps the chunks written by a previous, interrupted, export with the same parameters")
+    boolean resume = false;
+
+    @Parameter
+    TaskService taskService;
+
+    @Parameter(type = ItemIO.OUTPUT,
+            description = "Path of the multiscale group of each exported source")
+    Map<String, String> groups;
+
+    @Override
+    public void run() {
+        Task task = taskService.createTask("Export to "+output.getName());
+        try {
+            groups = SourcesToN5Exporter.builder(sources, output)
+                    .format(format)
+                    .nResolutionLevels(n_resolution_levels)
+                    .downsampling(downsample_xy, downsample_xy, downsample_z)
+                    .nComputeThreads(n_compute_threads)
+                    .nWriteThreads(n_write_threads)
+                    .maxCellsInFlight(max_cells_in_flight)
+                    .compression(compress ? new GzipCompression() : new RawCompression())
+                    .resume(resume)
+                    .task(task)
+                    .build()
+                    .export();
+        } catch (Exception e) {
+            task.cancel(e.getMessage());
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package ch.epfl.biop.command.process;
+
+import bdv.util.source.cache.DiskCellCache;
+import org.scijava.plugin.Menu;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import sc.fiji.bdvpg.command.BdvPlaygroundActionCommand;
+import sc.fiji.bdvpg.scijava.BdvPgMenus;
+
+import java.io.File;
+
+@Plugin(type = BdvPlaygroundActionCommand.class,
+        menu = {
+                @Menu(label = BdvPgMenus.L1),
+                @Menu(label = BdvPgMenus.L2),
+                @Menu(label = BdvPgMenus.ProcessMenu, weight = BdvPgMenus.ProcessW),
+                @Menu(label = "Set Disk Cache For Computed Sources", weight = 2.3)
+        },
+        description = "Stores the cells of fused, deconvolved, downscaled and classified sources on disk, "+
+                "so that they are not recomputed after a restart")
+public class DiskCacheSetCommand implements BdvPlaygroundActionCommand {
+
+    @Parameter(label = "Enable disk cache",
+            description = "If unchecked, computed cells are only kept in memory")
+    boolean enable = true;
+
+    @Parameter(label = "Cache folder",
+            description = "Folder of the N5 container storing the computed cells",
+            style = "directory")
+    File folder;
+
+    @Parameter(label = "Maximal size (GB)",
+            description = "When the cache goes above this size, the least recently used cells are deleted")
+    double max_size_gb = 50;
+
+    @Parameter(label = "Clear cache",
+            description = "Deletes all cells currently stored in the cache folder")
+    boolean clear = false;
+
+    @Override
+    public void run() {
+        if (!enable) {
+            DiskCellCache.removeDiskCache();
+            return;
+        }
+        DiskCellCache.setDiskCache(folder, (long) (max_size_gb * 1024 * 1024 * 1024));
+        if (clear) {
+            File[] keys = folder.listFiles(File::isDirectory);
+            if (keys != null) {
+                for (File key : keys) {
+                    DiskCellCache.getDiskCache().invalidate(key.getName());
+                }
+            }
+        }
+    }
+}
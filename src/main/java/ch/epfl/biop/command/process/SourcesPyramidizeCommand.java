@@ -1,14 +1,29 @@
 package ch.epfl.biop.command.process;
 
 import bdv.cache.SharedQueue;
+import bdv.util.source.process.BlockDownsampler;
+import bdv.util.source.process.LazyPyramidSource;
 import bdv.viewer.SourceAndConverter;
+import ch.epfl.biop.dataset.pyramid.PyramidPersister;
 import ch.epfl.biop.source.SourceHelper;
+import mpicbg.spim.data.generic.AbstractSpimData;
 import org.scijava.ItemIO;
 import org.scijava.plugin.Menu;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
+import org.scijava.task.Task;
+import org.scijava.task.TaskService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import sc.fiji.bdvpg.command.BdvPlaygroundActionCommand;
 import sc.fiji.bdvpg.scijava.BdvPgMenus;
+import sc.fiji.bdvpg.scijava.service.SourceService;
+import sc.fiji.bdvpg.service.SourceServices;
+
+import java.io.File;
+import java.util.concurrent.CancellationException;
+
+import static sc.fiji.bdvpg.service.ISourceService.SPIM_DATA_INFO;
 
 @Plugin(type = BdvPlaygroundActionCommand.class,
         //menuPath = BdvPgMenus.RootMenu+"Process>Source - Duplicate With Resolution Levels (Pyramidize)",
@@ -21,19 +36,125 @@ import sc.fiji.bdvpg.scijava.BdvPgMenus;
         description = "Creates a new multi-resolution pyramid source by downsampling")
 public class SourcesPyramidizeCommand implements BdvPlaygroundActionCommand {
 
+    private static final Logger logger = LoggerFactory.getLogger(SourcesPyramidizeCommand.class);
+
     @Parameter(label = "Select Source(s)",
             description = "The sources to add pyramid levels to")
     SourceAndConverter<?>[] sources;
 
+    @Parameter(label = "Reduction",
+            description = "How a block of voxels is reduced to a single voxel: Mode is meant for label images",
+            choices = {"Mean", "Max", "Mode"},
+            required = false)
+    String reduction = "Mean";
+
+    @Parameter(label = "Downsampling Factors",
+            description = "Factors along x, y and z of each level, levels separated by semicolons (e.g. '2,2,1;2,2,2'). " +
+                    "Leave blank to choose them from the voxel anisotropy",
+            required = false)
+    String downsampling_factors = "";
+
+    @Parameter(label = "Minimal Size (pixels)",
+            description = "When factors are chosen automatically, an axis is not downsampled below this size",
+            required = false)
+    int min_size = 64;
+
+    @Parameter(label = "Persist Pyramid",
+            description = "Writes the generated levels in the background to an N5 container, and saves a dataset " +
+                    "combining the original full resolution level with them. Sources should belong to the same saved dataset",
+            required = false)
+    boolean persist = false;
+
+    @Parameter(label = "Persisted Dataset (XML)",
+            description = "XML file of the combined dataset, the levels are written next to it (name.n5)",
+            style = "save",
+            required = false)
+    File persisted_xml;
+
+    @Parameter
+    TaskService taskService;
+
     @Parameter(type = ItemIO.OUTPUT,
             description = "The sources with newly generated pyramid levels")
     SourceAndConverter<?>[] sources_out;
     @Override
     public void run() {
         SharedQueue queue = new SharedQueue(Runtime.getRuntime().availableProcessors()-1, 5);
+        int[][] factors = parseFactors(downsampling_factors);
+        String blockReduction;
+        switch (reduction) {
+            case "Max": blockReduction = BlockDownsampler.MAX; break;
+            case "Mode": blockReduction = BlockDownsampler.MODE; break;
+            default: blockReduction = BlockDownsampler.MEAN;
+        }
         sources_out = new SourceAndConverter[sources.length];
         for (int i = 0; i< sources.length; i++) {
-            sources_out[i] = SourceHelper.lazyPyramidizeXY2((SourceAndConverter) sources[i], queue);
+            int[][] sourceFactors = factors;
+            if (sourceFactors == null) {
+                int t = sc.fiji.bdvpg.source.SourceHelper.hasAValidTimepoint(sources[i].getSpimSource()) ?
+                        sc.fiji.bdvpg.source.SourceHelper.getAValidTimepoint(sources[i].getSpimSource()) : 0;
+                sourceFactors = LazyPyramidSource.autoFactors(sources[i].getSpimSource(), t, min_size);
+            }
+            sources_out[i] = SourceHelper.lazyPyramidize((SourceAndConverter) sources[i], sourceFactors, blockReduction, queue);
+        }
+        if (persist) persistInBackground();
+    }
+
+    /**
+     * Writes the lower levels of the pyramids in a background thread, see {@link PyramidPersister}
+     */
+    private void persistInBackground() {
+        if (persisted_xml == null) {
+            logger.error("No persisted dataset file specified, pyramids are not persisted");
+            return;
+        }
+        AbstractSpimData<?> asd = null;
+        for (SourceAndConverter<?> source : sources) {
+            SourceService.SpimDataInfo sdi = (SourceService.SpimDataInfo) SourceServices.getSourceService().getMetadata(source, SPIM_DATA_INFO);
+            if ((sdi == null) || ((asd != null) && (sdi.asd != asd))) {
+                logger.error("All sources should belong to the same dataset to be persisted, pyramids are not persisted");
+                return;
+            }
+            asd = sdi.asd;
+        }
+        Task task = taskService.createTask("Persist pyramids to "+persisted_xml.getName());
+        PyramidPersister persister = new PyramidPersister(asd, persisted_xml,
+                Math.max(1, Runtime.getRuntime().availableProcessors()-1), task);
+        for (int i = 0; i < sources.length; i++) {
+            SourceService.SpimDataInfo sdi = (SourceService.SpimDataInfo) SourceServices.getSourceService().getMetadata(sources[i], SPIM_DATA_INFO);
+            persister.add(sdi.setupId, (LazyPyramidSource<?>) sources_out[i].getSpimSource());
+        }
+        new Thread(() -> {
+            try {
+                File xml = persister.persist();
+                logger.info("Persisted pyramid dataset saved: "+xml.getAbsolutePath());
+            } catch (CancellationException e) {
+                logger.info(e.getMessage());
+            } catch (Exception e) {
+                task.cancel(e.getMessage());
+                logger.error("Could not persist pyramids to "+persisted_xml.getAbsolutePath()+": "+e.getMessage());
+            }
+        }).start();
+    }
+
+    /**
+     * @param factors levels separated by semicolons, each level being 3 comma separated factors
+     * @return the factors of each level, or null if the string is blank
+     */
+    static int[][] parseFactors(String factors) {
+        if ((factors == null) || (factors.trim().isEmpty())) return null;
+        String[] levels = factors.split(";");
+        int[][] result = new int[levels.length][];
+        for (int level = 0; level < levels.length; level++) {
+            String[] axes = levels[level].split(",");
+            if (axes.length != 3) {
+                throw new IllegalArgumentException("Level '"+levels[level]+"' should have 3 comma separated factors");
+            }
+            result[level] = new int[3];
+            for (int d = 0; d < 3; d++) {
+                result[level][d] = Integer.parseInt(axes[d].trim());
+            }
         }
+        return result;
     }
 }
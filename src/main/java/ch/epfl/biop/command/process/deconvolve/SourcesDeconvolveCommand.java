@@ -28,6 +28,7 @@ package ch.epfl.biop.command.process.deconvolve;
 import bdv.cache.SharedQueue;
 import bdv.viewer.SourceAndConverter;
 import ch.epfl.biop.source.SourceHelper;
+import ch.epfl.biop.source.deconvolve.DeconvolutionBackend;
 import ch.epfl.biop.source.deconvolve.Deconvolver;
 import net.imglib2.type.numeric.RealType;
 import org.scijava.ItemIO;
@@ -46,7 +47,7 @@ import sc.fiji.bdvpg.scijava.BdvPgMenus;
                 @Menu(label = "Deconvolve", weight = -1.1),
                 @Menu(label = "Source - Deconvolve (Richardson Lucy GPU - Tiled)", weight = 6)
         },
-        description = "Lazy tiled Richardson Lucy deconvolution of BDV sources that uses the GPU via CLIJ2")
+        description = "Lazy tiled Richardson Lucy deconvolution of BDV sources that uses the GPU via CLIJ2, or the CPU")
 public class SourcesDeconvolveCommand implements BdvPlaygroundActionCommand {
 
     @Parameter(label = "Select Source(s)",
@@ -66,20 +67,25 @@ public class SourcesDeconvolveCommand implements BdvPlaygroundActionCommand {
             description = "Pixel type for the deconvolved output")
     String output_pixel_type;
 
+    @Parameter(label = "Backend",
+            choices = {DeconvolutionBackend.GPU_CLIJ2, DeconvolutionBackend.CPU},
+            description = "GPU (CLIJ2) or pure Java implementation running on the CPU (all cores are used when tiles are computed in parallel)")
+    String backend = DeconvolutionBackend.GPU_CLIJ2;
+
     @Parameter(label = "Name Suffix",
             description = "Suffix appended to source names for the deconvolved outputs")
     String suffix = "_deconvolved";
 
     @Parameter(label = "Block Size X",
-            description = "Tile size in X dimension for GPU processing (pixels)")
+            description = "Tile size in X dimension for processing (pixels)")
     int block_size_x;
 
     @Parameter(label = "Block Size Y",
-            description = "Tile size in Y dimension for GPU processing (pixels)")
+            description = "Tile size in Y dimension for processing (pixels)")
     int block_size_y;
 
     @Parameter(label = "Block Size Z",
-            description = "Tile size in Z dimension for GPU processing (pixels)")
+            description = "Tile size in Z dimension for processing (pixels)")
     int block_size_z;
 
     @Parameter(label = "Overlap Size",
@@ -146,7 +152,8 @@ public class SourcesDeconvolveCommand implements BdvPlaygroundActionCommand {
                             non_circulant,
                             regularization_factor,
                             (SourceAndConverter) psf,
-                            new SharedQueue(n_threads, 1)
+                            new SharedQueue(n_threads, 1),
+                            backend
                     );
                 }
                 break;
@@ -161,7 +168,8 @@ public class SourcesDeconvolveCommand implements BdvPlaygroundActionCommand {
                             non_circulant,
                             regularization_factor,
                             (SourceAndConverter) psf,
-                            new SharedQueue(n_threads, 1)
+                            new SharedQueue(n_threads, 1),
+                            backend
                     );
                 }
                 break;
@@ -25,6 +25,7 @@
  */
 package ch.epfl.biop.command.process.labkit;
 
+import bdv.util.source.labkit.LabkitSource;
 import bdv.viewer.SourceAndConverter;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import org.scijava.Context;
@@ -32,11 +33,15 @@ import org.scijava.ItemIO;
 import org.scijava.plugin.Menu;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
+import org.scijava.task.Task;
+import org.scijava.task.TaskService;
 import sc.fiji.bdvpg.command.BdvPlaygroundActionCommand;
 import ch.epfl.biop.labkit.SourceLabkitClassifier;
 import sc.fiji.bdvpg.scijava.BdvPgMenus;
+import sc.fiji.bdvpg.source.SourceHelper;
 
 import java.io.File;
+import java.util.concurrent.CancellationException;
 
 /**
  * Command to create a lazy Labkit-classified source from BigDataViewer sources.
@@ -84,6 +89,36 @@ public class SourcesLabkitClassifyCommand implements BdvPlaygroundActionCommand
             description = "Use GPU acceleration for classification (requires compatible GPU and OpenCL)")
     boolean use_gpu = false;
 
+    @Parameter(label = "Number of Resolution Levels",
+            min = "1",
+            description = "Segmentation levels, each one classifying the next resolution level of the input sources. " +
+                    "Zoomed out views then do not classify full resolution tiles")
+    int number_of_levels = 1;
+
+    @Parameter(label = "Skip Background Tiles",
+            description = "Tiles whose neighborhood is only background in the next coarser segmentation level are not " +
+                    "classified. Faster, but objects too small to be seen at the coarser level may be missed")
+    boolean skip_background = false;
+
+    @Parameter(label = "Background Class Index",
+            min = "0",
+            description = "Index of the background class in the classifier (0 = first class)")
+    int background_class = 0;
+
+    @Parameter(label = "Batch Size (tiles per axis)",
+            min = "0",
+            description = "Tiles are classified by blocks of this number of tiles along each axis, which computes " +
+                    "the features of a block once instead of once per tile. 0 classifies tiles one by one")
+    int tiles_per_block = 0;
+
+    @Parameter(label = "Classify All Timepoints",
+            description = "Classifies all tiles of the finest level of all timepoints in the background, on all cores. " +
+                    "Requires a batch size above 0. Set a disk cache for large datasets")
+    boolean classify_all = false;
+
+    @Parameter
+    TaskService taskService;
+
     @Parameter(type = ItemIO.OUTPUT,
             description = "The classified source")
     SourceAndConverter<UnsignedByteType> source_out;
@@ -110,6 +145,7 @@ public class SourcesLabkitClassifyCommand implements BdvPlaygroundActionCommand
         System.out.println("Classifier: " + classifierPath);
         System.out.println("Resolution level: " + resolution_level);
         System.out.println("GPU acceleration: " + (use_gpu ? "enabled" : "disabled"));
+        System.out.println("Resolution levels: " + number_of_levels + (skip_background ? ", skipping background class " + background_class : ""));
 
         // Create the classified source using SourceLabkitClassifier
         SourceLabkitClassifier classifier = new SourceLabkitClassifier(
@@ -118,11 +154,42 @@ public class SourcesLabkitClassifyCommand implements BdvPlaygroundActionCommand
                 context,
                 outputName,
                 resolution_level,
-                use_gpu
+                use_gpu,
+                number_of_levels,
+                skip_background ? background_class : -1
         );
 
         source_out = classifier.get();
 
+        if (tiles_per_block > 0) {
+            LabkitSource<?> labkitSource = (LabkitSource<?>) source_out.getSpimSource();
+            int nThreads = Runtime.getRuntime().availableProcessors();
+            labkitSource.setBatchSegmentation(tiles_per_block, 2 * nThreads);
+            if (classify_all) classifyAllInBackground(labkitSource, nThreads);
+        }
+
         System.out.println("Created classified source: " + source_out.getSpimSource().getName());
     }
+
+    private void classifyAllInBackground(LabkitSource<?> labkitSource, int nThreads) {
+        int nTimepoints = SourceHelper.getMaxTimepoint(sources[0]) + 1;
+        Task task = taskService.createTask("Classify " + labkitSource.getName());
+        new Thread(() -> {
+            long start = System.currentTimeMillis();
+            try {
+                for (int t = 0; t < nTimepoints; t++) {
+                    if (!labkitSource.isPresent(t)) continue;
+                    task.setStatusMessage("Timepoint " + t + " / " + nTimepoints);
+                    labkitSource.segmentAll(t, 0, nThreads, task);
+                }
+                System.out.println("Classified " + labkitSource.getName() + " in " + (System.currentTimeMillis() - start) + " ms");
+                task.run(() -> {}); // finished task
+            } catch (CancellationException e) {
+                System.out.println(e.getMessage());
+            } catch (Exception e) {
+                task.cancel(e.getMessage());
+                e.printStackTrace();
+            }
+        }).start();
+    }
 }
@@ -1,5 +1,7 @@
 package ch.epfl.biop.command.register;
 
+import ch.epfl.biop.scheduler.JobScheduler;
+import ch.epfl.biop.source.register.BlockMatching2DRegister;
 import ij.IJ;
 import net.imglib2.RealPoint;
 import net.imglib2.realtransform.AffineTransform3D;
@@ -18,11 +20,15 @@ import org.slf4j.LoggerFactory;
 import sc.fiji.bdvpg.command.BdvPlaygroundActionCommand;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
-import java.util.stream.Stream;
 
 @Plugin(type = BdvPlaygroundActionCommand.class,
      //   menuPath = BdvPgMenus.RootMenu+"Source>Register>AutoWarp Sources with Elastix and BigWarp (2D)",
@@ -30,7 +36,8 @@ import java.util.stream.Stream;
                 "Register two 2D sources by automatically registering small fields of view \n" +
                 "surrounding the specified points of interests using elastix. The returned result \n" +
                 "is a thin plate spline transform object that can be applied to other sources then \n" +
-                "edited in BigWarp.")
+                "edited in BigWarp. The fields of view can also be registered in Java by block matching \n" +
+                "(phase correlation and affine NCC refinement), which does not require elastix.")
 
 public class Elastix2DSparsePointsRegisterCommand extends SourcesForRegistrationSelectCommand implements BdvPlaygroundActionCommand {
 
@@ -66,6 +73,16 @@ public class Elastix2DSparsePointsRegisterCommand extends SourcesForRegistration
     @Parameter(label = "Number of iterations for each scale (default 100)")
     int max_iteration_per_scale = 100;
 
+    public static final String ENGINE_ELASTIX = "Elastix";
+    public static final String ENGINE_BLOCK_MATCHING = "Java Block Matching";
+
+    @Parameter(label = "Registration engine",
+            choices = {ENGINE_ELASTIX, ENGINE_BLOCK_MATCHING},
+            description = "Elastix registers each field of view with an external elastix process. Java Block Matching " +
+                    "registers the fields of view in memory, on all cores, by phase correlation followed by an affine " +
+                    "refinement, and does not require elastix")
+    String registration_engine = ENGINE_ELASTIX;
+
     @Parameter(required = false)
     Task task;
 
@@ -79,6 +96,9 @@ public class Elastix2DSparsePointsRegisterCommand extends SourcesForRegistration
 
     AtomicInteger counter = new AtomicInteger();
 
+    // True if the task was created by this command, i.e. if the command was not called by another registration
+    boolean innerTask;
+
     @Override
     public void run() {
 
@@ -97,7 +117,7 @@ public class Elastix2DSparsePointsRegisterCommand extends SourcesForRegistration
             pts_Fixed.add(new RealPoint(Double.valueOf(coordsXY[i]),Double.valueOf(coordsXY[i+1]), z_location));
         }
 
-        boolean innerTask = false;
+        innerTask = false;
 
         if (task==null) {
             task = taskService.createTask("Registration "+ sources_moving[0].getSpimSource().getName()+" vs "+ sources_fixed[0].getSpimSource().getName());
@@ -107,67 +127,28 @@ public class Elastix2DSparsePointsRegisterCommand extends SourcesForRegistration
 
         try {
 
-            Stream<RealPoint> streamOfPts;
-
-            if (parallel) {
-                streamOfPts = pts_Fixed.parallelStream();
-            } else {
-                streamOfPts = pts_Fixed.stream();
-            }
-
             ConcurrentHashMap<RealPoint, RealPoint> correspondingPts = new ConcurrentHashMap<>();
             counter.set(0);
-            streamOfPts.forEach(pt -> {
-                if (!task.isCanceled()) {
-                    try {
-                        AffineTransform3D at = (AffineTransform3D) cs.run(Elastix2DAffineRegisterCommand.class, true,
-                                "sources_fixed", sources_fixed,
-                                "tp_fixed", tp_fixed,
-                                "level_fixed_source", level_fixed_source,
-                                "sources_moving", sources_moving,
-                                "tp_moving", tp_moving,
-                                "level_moving_source", level_moving_source,
-                                "px", pt.getDoublePosition(0) - sx / 2.0,
-                                "py", pt.getDoublePosition(1) - sy / 2.0,
-                                "pz", pt.getDoublePosition(2),
-                                "sx", sx,
-                                "sy", sy,
-                                "px_size_in_current_unit", px_size_in_current_unit,
-                                "interpolate", interpolate,
-                                "show_image_registration", show_points,
-                                "automatic_transform_initialization", false,
-                                "max_iteration_per_scale", max_iteration_per_scale,
-                                "background_offset_value_moving", background_offset_value_moving,
-                                "background_offset_value_fixed", background_offset_value_fixed,
-                                "min_image_size_pix", 32,
-                                "verbose", verbose
-                        ).get().getOutput("at3d");
-                        if (at != null) {
-                            RealPoint ptCorr = new RealPoint(3);
-                            at.apply(pt, ptCorr);
-                            correspondingPts.put(pt, ptCorr);
-
-                            String str = "xi =" + pt.getDoublePosition(0) + "\t xf =" + ptCorr.getDoublePosition(0) + "\n";
-                            str += "yi =" + pt.getDoublePosition(1) + "\t yf =" + ptCorr.getDoublePosition(1);
-                            log.accept("Registration point : " + str);
-                        } else {
-                            correspondingPts.put(pt, pt); // No movement
-                            log.accept("Failed registration - maybe the image has low information content ?");
-                        }
-                        IJ.log("#Landmark:" + counter.addAndGet(1) + "/" + pts_Fixed.size());
-                        synchronized (task) {
-                            task.setProgressValue(task.getProgressValue() + 1);
-                        }
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    } catch (ExecutionException e) {
-                        e.printStackTrace();
-                    } catch (Exception e) {
-                        logger.error("Error during registration");
-                        e.printStackTrace();
-                    }
+
+            if (ENGINE_BLOCK_MATCHING.equals(registration_engine)) {
+                BlockMatching2DRegister register = new BlockMatching2DRegister(
+                        sources_fixed, tp_fixed, level_fixed_source, background_offset_value_fixed,
+                        sources_moving, tp_moving, level_moving_source, background_offset_value_moving,
+                        px_size_in_current_unit, sx, sy);
+                register.setInterpolate(interpolate);
+                register.setMaxIterations(max_iteration_per_scale);
+                // A landmark registration started by the user is interactive, one which is part of a larger registration is batch work
+                register.setPriority(innerTask ? JobScheduler.Priority.INTERACTIVE : JobScheduler.Priority.BATCH);
+                int nThreads = parallel ? Runtime.getRuntime().availableProcessors() : 1;
+                try {
+                    register.registerAll(pts_Fixed, nThreads, task,
+                            (pt, at) -> addCorrespondence(pt, at, correspondingPts, pts_Fixed.size()));
+                } catch (CancellationException e) {
+                    return;
                 }
-            });
+            } else {
+                registerWithElastix(pts_Fixed, correspondingPts);
+            }
 
             if (task.isCanceled()) return;
 
@@ -197,4 +178,97 @@ public class Elastix2DSparsePointsRegisterCommand extends SourcesForRegistration
 
     }
 
+    private void registerWithElastix(List<RealPoint> pts_Fixed, Map<RealPoint, RealPoint> correspondingPts) {
+        // Two resampled float images, fixed and moving, per landmark, plus the copies of elastix
+        long estimatedMemory = 3L * 4L * (long) Math.ceil(sx / px_size_in_current_unit) * (long) Math.ceil(sy / px_size_in_current_unit)
+                * (sources_fixed.length + sources_moving.length);
+        // A landmark registration started by the user is interactive, one which is part of a larger registration is batch work
+        JobScheduler.Priority priority = innerTask ? JobScheduler.Priority.INTERACTIVE : JobScheduler.Priority.BATCH;
+        JobScheduler scheduler = JobScheduler.getShared();
+        scheduler.setTaskService(taskService);
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (RealPoint pt : pts_Fixed) {
+            Runnable registration = () -> {
+                if (task.isCanceled()) return;
+                try {
+                    AffineTransform3D at = (AffineTransform3D) cs.run(Elastix2DAffineRegisterCommand.class, true,
+                            "sources_fixed", sources_fixed,
+                            "tp_fixed", tp_fixed,
+                            "level_fixed_source", level_fixed_source,
+                            "sources_moving", sources_moving,
+                            "tp_moving", tp_moving,
+                            "level_moving_source", level_moving_source,
+                            "px", pt.getDoublePosition(0) - sx / 2.0,
+                            "py", pt.getDoublePosition(1) - sy / 2.0,
+                            "pz", pt.getDoublePosition(2),
+                            "sx", sx,
+                            "sy", sy,
+                            "px_size_in_current_unit", px_size_in_current_unit,
+                            "interpolate", interpolate,
+                            "show_image_registration", show_points,
+                            "automatic_transform_initialization", false,
+                            "max_iteration_per_scale", max_iteration_per_scale,
+                            "background_offset_value_moving", background_offset_value_moving,
+                            "background_offset_value_fixed", background_offset_value_fixed,
+                            "min_image_size_pix", 32,
+                            "verbose", verbose
+                    ).get().getOutput("at3d");
+                    addCorrespondence(pt, at, correspondingPts, pts_Fixed.size());
+                    synchronized (task) {
+                        task.setProgressValue(task.getProgressValue() + 1);
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                } catch (Exception e) {
+                    logger.error("Error during registration");
+                    e.printStackTrace();
+                }
+            };
+            if (parallel) {
+                try {
+                    futures.add(scheduler.submit("Landmark " + pt, priority, estimatedMemory, registration));
+                } catch (RejectedExecutionException e) {
+                    // The registrations already submitted would otherwise outlive this command
+                    for (Future<?> future : futures) {
+                        try {
+                            future.get();
+                        } catch (InterruptedException | ExecutionException ex) {
+                            ex.printStackTrace();
+                        }
+                    }
+                    throw e;
+                }
+            } else {
+                registration.run();
+            }
+        }
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void addCorrespondence(RealPoint pt, AffineTransform3D at, Map<RealPoint, RealPoint> correspondingPts, int nPts) {
+        if (at != null) {
+            RealPoint ptCorr = new RealPoint(3);
+            at.apply(pt, ptCorr);
+            correspondingPts.put(pt, ptCorr);
+
+            String str = "xi =" + pt.getDoublePosition(0) + "\t xf =" + ptCorr.getDoublePosition(0) + "\n";
+            str += "yi =" + pt.getDoublePosition(1) + "\t yf =" + ptCorr.getDoublePosition(1);
+            log.accept("Registration point : " + str);
+        } else {
+            correspondingPts.put(pt, pt); // No movement
+            log.accept("Failed registration - maybe the image has low information content ?");
+        }
+        IJ.log("#Landmark:" + counter.addAndGet(1) + "/" + nPts);
+    }
+
 }
@@ -146,6 +146,7 @@ public class Sources2DRegisterCommand implements BdvPlaygroundActionCommand {
                                 "parallel", !show_details,//false,
                                 "verbose", verbose,
                                 "max_iteration_per_scale", max_iteration_per_scale,
+                                "registration_engine", Elastix2DSparsePointsRegisterCommand.ENGINE_ELASTIX,
                                 "background_offset_value_moving", background_offset_value_moving,
                                 "background_offset_value_fixed", background_offset_value_fixed,
                                 "verbose", verbose
@@ -4,6 +4,8 @@ import bdv.util.BigWarpHelper;
 import bdv.viewer.Interpolation;
 import bdv.viewer.Source;
 import bdv.viewer.SourceAndConverter;
+import ch.epfl.biop.source.register.ResampledPatchCache;
+import ch.epfl.biop.source.register.ResampledPatchProvider;
 import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
 import mpicbg.spim.data.sequence.VoxelDimensions;
 import net.imglib2.FinalRealInterval;
@@ -55,7 +57,7 @@ public class SourcesMultiscaleRegisterCommand implements BdvPlaygroundActionComm
 
     @Parameter(visibility = ItemVisibility.MESSAGE)
     String message = "<html><h2>Automated WSI registration using multiscale Warpy</h2><br/>"+
-            "Automated registrations requires elastix.<br/>"+
+            "Automated registrations requires elastix, unless the Java block matching engine is selected.<br/>"+
             "</html>";
 
     @Parameter(label = "Number of registration scales (# registration x2 per scale)", style = "slider", min = "2", max="8", callback = "updateInfo")
@@ -85,6 +87,13 @@ public class SourcesMultiscaleRegisterCommand implements BdvPlaygroundActionComm
     @Parameter(label = "Number of iterations for each registration (default 100)")
     int max_iteration_number_per_scale = 100;
 
+    @Parameter(label = "Registration engine",
+            choices = {Elastix2DSparsePointsRegisterCommand.ENGINE_ELASTIX, Elastix2DSparsePointsRegisterCommand.ENGINE_BLOCK_MATCHING})
+    String registration_engine = Elastix2DSparsePointsRegisterCommand.ENGINE_ELASTIX;
+
+    @Parameter(label = "Resampled images shared between registrations, can be null", required = false)
+    ResampledPatchCache patch_cache;
+
     @Parameter(label = "Show results of automated registrations (breaks parallelization)")
     boolean show_details = false;
 
@@ -109,28 +118,13 @@ public class SourcesMultiscaleRegisterCommand implements BdvPlaygroundActionComm
         InvertibleRealTransformSequence transformSequence = new InvertibleRealTransformSequence();
 
         // These transforms are removed at the end in the wizard
-        AffineTransform3D preTransformFixed = new AffineTransform3D();
-        AffineTransform3D preTransformMoving = new AffineTransform3D();
-
-        // Gather pre transformations
-        if (remove_z_offset) {
-            AffineTransform3D at3D = new AffineTransform3D();
-            moving[0].getSpimSource().getSourceTransform(0,0,at3D);
-            preTransformMoving.translate(0,0,-at3D.get(2,3)); // Removes z offset
+        AffineTransform3D[] preTransforms = getPreTransforms(fixed[0], moving[0], remove_z_offset, center_moving_image);
+        AffineTransform3D preTransformFixed = preTransforms[0];
+        AffineTransform3D preTransformMoving = preTransforms[1];
 
-            fixed[0].getSpimSource().getSourceTransform(0,0,at3D);
-            preTransformFixed.translate(0,0,-at3D.get(2,3)); // Removes z offset
-        }
-
-        if (center_moving_image) {
-            RealPoint centerMoving = SourceHelper.getSourceCenterPoint(moving[0],0);
-            RealPoint centerFixed = SourceHelper.getSourceCenterPoint(fixed[0],0);
-            preTransformMoving.translate(
-                    centerFixed.getDoublePosition(0)-centerMoving.getDoublePosition(0),
-                    centerFixed.getDoublePosition(1)-centerMoving.getDoublePosition(1),
-                    0 // Use removeZOffset for that!
-                    );
-        }
+        // Keeps the sources before the pre transformations, as keys of the shared resampled images
+        SourceAndConverter<?>[] fixedOrigin = fixed.clone();
+        SourceAndConverter<?>[] movingOrigin = moving.clone();
 
         // Apply these pre transformations to all sources involved in the registration
         for (int i = 0; i< moving.length; i++) {
@@ -179,28 +173,20 @@ public class SourcesMultiscaleRegisterCommand implements BdvPlaygroundActionComm
 
             int nRegistrations = 0;
 
-            int iScale = 0;
-            // Subdivide blocks until we reach the minimal block size
-            while (iScale<n_scales) {
-                // Let's split in 2 according to the biggest dimension
-                if (sizeBlockXmm>sizeBlockYmm) sizeBlockXmm/=2.; else sizeBlockYmm/=2.;
-
-                // And update the block size for end condition
+            for (double[] blockSize : getBlockSizesPerScale(sizeBlockXmm, sizeBlockYmm, n_scales)) {
+                sizeBlockXmm = blockSize[0];
+                sizeBlockYmm = blockSize[1];
                 List<RealPoint> landmarksAtCurrentLevel = new ArrayList<>();
                 for (double xp = topLeftX + sizeBlockXmm/2; xp < bottomRightX; xp += sizeBlockXmm) {
                     for (double yp = topLeftY + sizeBlockYmm/2; yp < bottomRightY; yp += sizeBlockYmm) {
                         landmarksAtCurrentLevel.add(new RealPoint(xp, yp));
                     }
                 }
-
-                if (landmarksAtCurrentLevel.size()>=4) {
-                    landmarksPerScale.put(nScales, landmarksAtCurrentLevel);
-                    blockSizeXmmPerScale.put(nScales, sizeBlockXmm);
-                    blockSizeYmmPerScale.put(nScales, sizeBlockYmm);
-                    nScales++;
-                    nRegistrations+= landmarksAtCurrentLevel.size();
-                }
-                iScale++;
+                landmarksPerScale.put(nScales, landmarksAtCurrentLevel);
+                blockSizeXmmPerScale.put(nScales, sizeBlockXmm);
+                blockSizeYmmPerScale.put(nScales, sizeBlockYmm);
+                nScales++;
+                nRegistrations+= landmarksAtCurrentLevel.size();
             }
 
             task.setProgressMaximum(nRegistrations);
@@ -209,12 +195,29 @@ public class SourcesMultiscaleRegisterCommand implements BdvPlaygroundActionComm
                 // Perform the registration at scale 'scale'
                 task.setStatusMessage("Registration level "+(scale+1)+" / "+nScales);
 
-                double pixelSizeBlockmm = Math.max(blockSizeXmmPerScale.get(scale), blockSizeYmmPerScale.get(scale)) / pixels_per_block;
+                // Pixel sizes are rounded, with or without a cache of resampled images, so that a registration gives
+                // the same result in both cases, and so that registrations of images of slightly different sizes
+                // can share their resampled images
+                double pixelSizeBlockmm = ResampledPatchCache.quantizePixelSize(
+                        Math.max(blockSizeXmmPerScale.get(scale), blockSizeYmmPerScale.get(scale)) / pixels_per_block);
                 SourceAndConverter<?>[] transformedMoving;
+                final double pxSize = pixelSizeBlockmm;
+                // The sources are resampled once on a grid of pixels located at multiples of the pixel size. With a
+                // cache of resampled images, the fields of view of the landmarks are aligned on this grid: centered on
+                // a pixel of the grid, and starting on a pixel of the grid, so that they are copies of the resampled
+                // pixels, with no second interpolation. Without cache, the landmarks and their fields of view are unchanged
+                final boolean alignOnGrid = patch_cache != null;
+                final boolean centeredOnPixel = Elastix2DSparsePointsRegisterCommand.ENGINE_BLOCK_MATCHING.equals(registration_engine);
+                double sx = alignOnGrid ? alignedSize(blockSizeXmmPerScale.get(scale), pxSize, centeredOnPixel) : blockSizeXmmPerScale.get(scale);
+                double sy = alignOnGrid ? alignedSize(blockSizeYmmPerScale.get(scale), pxSize, centeredOnPixel) : blockSizeYmmPerScale.get(scale);
                 // Convert to string representation
                 String ptListCoordinates = "";
                 for (RealPoint pt : landmarksPerScale.get(scale)) {
-                    ptListCoordinates += pt.getDoublePosition(0)+","+pt.getDoublePosition(1)+",";
+                    if (alignOnGrid) {
+                        ptListCoordinates += snap(pt.getDoublePosition(0), pxSize)+","+snap(pt.getDoublePosition(1), pxSize)+",";
+                    } else {
+                        ptListCoordinates += pt.getDoublePosition(0)+","+pt.getDoublePosition(1)+",";
+                    }
                 }
 
                 if (scale!=0) {
@@ -246,25 +249,58 @@ public class SourcesMultiscaleRegisterCommand implements BdvPlaygroundActionComm
                     transformedMoving = moving;
                 }
 
+                // Resamples the fixed and moving sources once for all the overlapping blocks of this scale
+                double margin = Math.max(blockSizeXmmPerScale.get(scale), blockSizeYmmPerScale.get(scale));
+                RealInterval scaleRegion = new FinalRealInterval(
+                        new double[]{Math.floor((topLeftX - margin) / pxSize) * pxSize, Math.floor((topLeftY - margin) / pxSize) * pxSize},
+                        new double[]{bottomRightX + margin, bottomRightY + margin});
+                ResampledPatchProvider fixedPatches, movingPatches;
+                SourceAndConverter<?>[] fixedPatchSources, movingPatchSources;
+                if (patch_cache != null) {
+                    // The fixed sources, and the moving sources before any registration, are resampled in their
+                    // own frame, shared with other registrations, then pre transformed
+                    fixedPatches = patch_cache.get(fixedOrigin, 0, pixelSizeBlockmm,
+                            getOriginX(preTransformFixed), getOriginY(preTransformFixed),
+                            getOriginZ(preTransformFixed), pixels_per_block);
+                    fixedPatchSources = preTransform(fixedPatches.getSources(), preTransformFixed);
+                } else {
+                    fixedPatches = new ResampledPatchProvider(fixed, 0,
+                            SourceHelper.bestLevel(fixed[0], 0, pixelSizeBlockmm), pixelSizeBlockmm,
+                            scaleRegion, 0, true, pixels_per_block);
+                    fixedPatchSources = fixedPatches.getSources();
+                }
+                if ((patch_cache != null) && (scale == 0)) {
+                    movingPatches = patch_cache.get(movingOrigin, 0, pixelSizeBlockmm,
+                            getOriginX(preTransformMoving), getOriginY(preTransformMoving),
+                            getOriginZ(preTransformMoving), pixels_per_block);
+                    movingPatchSources = preTransform(movingPatches.getSources(), preTransformMoving);
+                } else {
+                    movingPatches = new ResampledPatchProvider(transformedMoving, 0,
+                            SourceHelper.bestLevel(moving[0], 0, pixelSizeBlockmm), pixelSizeBlockmm,
+                            scaleRegion, 0, true, pixels_per_block);
+                    movingPatchSources = movingPatches.getSources();
+                }
+
                 // Let's run the registration
                 RealTransform currentLevelTransform =
                         (RealTransform) cs.run(Elastix2DSparsePointsRegisterCommand.class, true,
-                                "sources_fixed", fixed,
-                                "sources_moving", transformedMoving,
+                                "sources_fixed", fixedPatchSources,
+                                "sources_moving", movingPatchSources,
                                 "tp_fixed", 0,
-                                "level_fixed_source", SourceHelper.bestLevel(fixed[0], 0, pixelSizeBlockmm),
+                                "level_fixed_source", 0,
                                 "tp_moving", 0,
-                                "level_moving_source", SourceHelper.bestLevel(moving[0], 0, pixelSizeBlockmm),
+                                "level_moving_source", 0,
                                 "pt_list_coordinates", ptListCoordinates, // landmarksAtCurrentLevel
                                 "z_location", 0,
-                                "sx", blockSizeXmmPerScale.get(scale),
-                                "sy", blockSizeYmmPerScale.get(scale),
+                                "sx", sx,
+                                "sy", sy,
                                 "px_size_in_current_unit", pixelSizeBlockmm,
-                                "interpolate", true,
+                                "interpolate", !alignOnGrid, // Aligned on the resampled pixels with a cache
                                 "show_points", show_details,
                                 "parallel", !show_details,
                                 "verbose", debug,
                                 "max_iteration_per_scale", max_iteration_number_per_scale,
+                                "registration_engine", registration_engine,
                                 "background_offset_value_moving", 0,
                                 "background_offset_value_fixed", 0,
                                 "task", task
@@ -272,6 +308,11 @@ public class SourcesMultiscaleRegisterCommand implements BdvPlaygroundActionComm
 
                 transformSequence.add(((InvertibleWrapped2DTransformAs3D)currentLevelTransform).getTransform());
 
+                logger.info(String.format("Scale %d: %.1f MB read from the fixed sources (read ratio %.2f), %.1f MB from the moving sources (read ratio %.2f)",
+                        scale, fixedPatches.getBytesRead() / 1e6, fixedPatches.getReadRatio(),
+                        movingPatches.getBytesRead() / 1e6, movingPatches.getReadRatio()));
+                if (patch_cache != null) logger.info("Resampled images cache: " + patch_cache.getStatus());
+
                 // For debugging
 
                 if (debug) {
@@ -373,6 +414,146 @@ public class SourcesMultiscaleRegisterCommand implements BdvPlaygroundActionComm
         );
     }
 
+    /**
+     * Splits a region in blocks, halving the largest block dimension at each scale. Scales with fewer
+     * than 4 blocks are skipped.
+     * @param sizeX size of the region along x
+     * @param sizeY size of the region along y
+     * @param nScales number of halvings
+     * @return the size of the blocks along x and y, for each scale kept
+     */
+    public static List<double[]> getBlockSizesPerScale(double sizeX, double sizeY, int nScales) {
+        List<double[]> blockSizes = new ArrayList<>();
+        double sizeBlockX = sizeX;
+        double sizeBlockY = sizeY;
+        for (int iScale = 0; iScale < nScales; iScale++) {
+            // Let's split in 2 according to the biggest dimension
+            if (sizeBlockX>sizeBlockY) sizeBlockX/=2.; else sizeBlockY/=2.;
+            if (Math.round(sizeX/sizeBlockX)*Math.round(sizeY/sizeBlockY)>=4) {
+                blockSizes.add(new double[]{sizeBlockX, sizeBlockY});
+            }
+        }
+        return blockSizes;
+    }
+
+    /**
+     * @param fixed fixed source
+     * @param moving moving source
+     * @param removeZOffset whether the z offsets of the sources are removed
+     * @param centerMovingImage whether the moving source is centered on the fixed source
+     * @return the translations applied to the fixed and to the moving sources before the registration
+     */
+    static AffineTransform3D[] getPreTransforms(SourceAndConverter<?> fixed, SourceAndConverter<?> moving,
+                                                boolean removeZOffset, boolean centerMovingImage) {
+        AffineTransform3D preTransformFixed = new AffineTransform3D();
+        AffineTransform3D preTransformMoving = new AffineTransform3D();
+
+        // Gather pre transformations
+        if (removeZOffset) {
+            AffineTransform3D at3D = new AffineTransform3D();
+            moving.getSpimSource().getSourceTransform(0,0,at3D);
+            preTransformMoving.translate(0,0,-at3D.get(2,3)); // Removes z offset
+
+            fixed.getSpimSource().getSourceTransform(0,0,at3D);
+            preTransformFixed.translate(0,0,-at3D.get(2,3)); // Removes z offset
+        }
+
+        if (centerMovingImage) {
+            RealPoint centerMoving = SourceHelper.getSourceCenterPoint(moving,0);
+            RealPoint centerFixed = SourceHelper.getSourceCenterPoint(fixed,0);
+            preTransformMoving.translate(
+                    centerFixed.getDoublePosition(0)-centerMoving.getDoublePosition(0),
+                    centerFixed.getDoublePosition(1)-centerMoving.getDoublePosition(1),
+                    0 // Use removeZOffset for that!
+                    );
+        }
+        return new AffineTransform3D[]{preTransformFixed, preTransformMoving};
+    }
+
+    /**
+     * Resamples, in a cache, the fixed and moving sources at the pixel size of the first scale of a registration
+     * with the same parameters, so that this registration starts with its first scale already resampled
+     * @param cache cache of resampled images, shared with the registration
+     * @param fixed fixed reference sources
+     * @param moving moving sources used for registration
+     * @param nScales number of registration scales
+     * @param removeZOffset whether the z offsets of the sources are removed
+     * @param centerMovingImage whether the moving sources are centered on the fixed sources
+     * @param pixelsPerBlock number of pixels of each block of image
+     */
+    public static void prefetchFirstScale(ResampledPatchCache cache, SourceAndConverter<?>[] fixed,
+                                          SourceAndConverter<?>[] moving, int nScales, boolean removeZOffset,
+                                          boolean centerMovingImage, int pixelsPerBlock) {
+        AffineTransform3D[] preTransforms = getPreTransforms(fixed[0], moving[0], removeZOffset, centerMovingImage);
+        // The pre transformations are translations, the box of the pre transformed sources is translated
+        RealInterval fixedBox = ResampledPatchCache.getSourceBox(fixed[0], 0);
+        RealInterval movingBox = ResampledPatchCache.getSourceBox(moving[0], 0);
+        double sizeX = Math.min(fixedBox.realMax(0) + preTransforms[0].get(0, 3), movingBox.realMax(0) + preTransforms[1].get(0, 3))
+                - Math.max(fixedBox.realMin(0) + preTransforms[0].get(0, 3), movingBox.realMin(0) + preTransforms[1].get(0, 3));
+        double sizeY = Math.min(fixedBox.realMax(1) + preTransforms[0].get(1, 3), movingBox.realMax(1) + preTransforms[1].get(1, 3))
+                - Math.max(fixedBox.realMin(1) + preTransforms[0].get(1, 3), movingBox.realMin(1) + preTransforms[1].get(1, 3));
+        List<double[]> blockSizes = getBlockSizesPerScale(sizeX, sizeY, nScales);
+        if (blockSizes.isEmpty()) return;
+        double pixelSize = ResampledPatchCache.quantizePixelSize(
+                Math.max(blockSizes.get(0)[0], blockSizes.get(0)[1]) / pixelsPerBlock);
+        cache.prefetch(fixed, 0, pixelSize, getOriginX(preTransforms[0]), getOriginY(preTransforms[0]),
+                getOriginZ(preTransforms[0]), pixelsPerBlock);
+        cache.prefetch(moving, 0, pixelSize, getOriginX(preTransforms[1]), getOriginY(preTransforms[1]),
+                getOriginZ(preTransforms[1]), pixelsPerBlock);
+    }
+
+    /**
+     * @return x, in the frame of the sources before a pre transformation (a translation), of the location x = 0
+     * after the pre transformation: resampling on a grid anchored there gives pixels at multiples of the pixel
+     * size after the pre transformation
+     */
+    static double getOriginX(AffineTransform3D preTransform) {
+        return -preTransform.get(0, 3);
+    }
+
+    /**
+     * @return y, in the frame of the sources before a pre transformation (a translation), of the location y = 0
+     * after the pre transformation
+     */
+    static double getOriginY(AffineTransform3D preTransform) {
+        return -preTransform.get(1, 3);
+    }
+
+    /**
+     * @return the closest multiple of the pixel size
+     */
+    static double snap(double position, double pxSize) {
+        return Math.round(position / pxSize) * pxSize;
+    }
+
+    /**
+     * @param size size of the field of view
+     * @param pxSize pixel size
+     * @param centeredOnPixel true if the field of view is placed with its central pixel on the landmark (block
+     *                        matching), false if it starts half its size before the landmark (elastix)
+     * @return the smallest size above the given size such that a field of view of this size, placed around a
+     * landmark located on a pixel, starts on a pixel: an odd number of pixels if the field of view is centered on
+     * the pixel of the landmark, an even number of pixels otherwise
+     */
+    static double alignedSize(double size, double pxSize, boolean centeredOnPixel) {
+        if (centeredOnPixel) return (2 * Math.ceil((size / pxSize - 1) / 2 - 1e-9) + 1) * pxSize;
+        return 2 * Math.ceil(size / (2 * pxSize) - 1e-9) * pxSize;
+    }
+
+    /**
+     * @return z, in the frame of the sources before a pre transformation (a translation), of the plane z = 0
+     * after the pre transformation
+     */
+    static double getOriginZ(AffineTransform3D preTransform) {
+        return -preTransform.get(2, 3);
+    }
+
+    static SourceAndConverter<?>[] preTransform(SourceAndConverter<?>[] sources, AffineTransform3D preTransform) {
+        return Arrays.stream(sources)
+                .map(source -> SourceTransformHelper.createNewTransformedSourceAndConverter(preTransform, new SourceAndTimeRange(source, 0)))
+                .toArray(SourceAndConverter<?>[]::new);
+    }
+
     RealInterval getBoundingBox() {
         SourceAndConverter[] sources = new SourceAndConverter[]{moving[0], fixed[0]};
         List<RealInterval> intervalList = Arrays.stream(sources).map((sourceAndConverter) -> {
@@ -0,0 +1,344 @@
+package ch.epfl.biop.command.register.warpy;
+
+import bdv.viewer.SourceAndConverter;
+import ch.epfl.biop.command.register.Elastix2DSparsePointsRegisterCommand;
+import ch.epfl.biop.command.register.SourcesMultiscaleRegisterCommand;
+import ch.epfl.biop.registration.RegistrationPair;
+import ch.epfl.biop.registration.source.spline.PrecomputedSplineRegistration;
+import ch.epfl.biop.scheduler.JobScheduler;
+import ch.epfl.biop.source.processor.SourcesProcessor;
+import ch.epfl.biop.source.register.ResampledPatchCache;
+import net.imglib2.RealInterval;
+import net.imglib2.realtransform.RealTransform;
+import org.scijava.Context;
+import org.scijava.ItemIO;
+import org.scijava.ItemVisibility;
+import org.scijava.command.CommandModule;
+import org.scijava.command.CommandService;
+import org.scijava.object.ObjectService;
+import org.scijava.plugin.Menu;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.task.Task;
+import org.scijava.task.TaskService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sc.fiji.bdvpg.command.BdvPlaygroundActionCommand;
+import sc.fiji.bdvpg.scijava.BdvPgMenus;
+import sc.fiji.bdvpg.scijava.service.SourceService;
+import sc.fiji.bdvpg.service.ISourceService;
+import sc.fiji.bdvpg.service.SourceServices;
+import sc.fiji.persist.ScijavaGsonHelper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Registers many registration pairs with the automated multiscale registration, and exports each registration
+ * to its QuPath project as soon as it is done.
+ * <br>
+ * The pairs are pipelined: independent pairs run concurrently, within a number of pairs and a memory budget,
+ * the first scale of the next pairs is resampled while the current pairs register, and the resampled fixed images
+ * are shared between the pairs which have the same fixed image (for instance serial sections registered
+ * to a single reference).
+ */
+@Plugin(type = BdvPlaygroundActionCommand.class,
+        menu = {
+                @Menu(label = BdvPgMenus.L1),
+                @Menu(label = BdvPgMenus.L2),
+                @Menu(label = BdvPgMenus.RegisterMenu, weight = BdvPgMenus.RegisterW),
+                @Menu(label = "Warpy", weight = -2),
+                @Menu(label = "Register Pairs - Batch Multiscale And Export To QuPath", weight = 9.8)
+        },
+        description = "Performs the automated multiscale registration of many registration pairs, and exports each of them to QuPath")
+public class PairRegistrationBatchMultiscaleRegisterCommand implements BdvPlaygroundActionCommand {
+
+    private static final Logger logger = LoggerFactory.getLogger(PairRegistrationBatchMultiscaleRegisterCommand.class);
+
+    @Parameter(visibility = ItemVisibility.MESSAGE, persist = false, style = "message")
+    String message = "<html><h1>Batch multiscale registration</h1>Registers all pairs, or the pairs listed, and exports each registration to QuPath<br></html>";
+
+    @Parameter(label = "Registration Pairs",
+            required = false,
+            description = "Names of the registration pairs to register (comma separated), all registration pairs if empty")
+    String registration_pair_names = "";
+
+    @Parameter(label = "Fixed Channels",
+            description = "Channel indices of the fixed image to use for registration (comma separated, e.g., '0' or '0,1')")
+    String channels_fixed_csv = "0";
+
+    @Parameter(label = "Moving Channels",
+            description = "Channel indices of the moving image to use for registration (comma separated, e.g., '0' or '0,1')")
+    String channels_moving_csv = "0";
+
+    @Parameter(label = "Number of Scales",
+            style = "slider",
+            min = "2",
+            max = "8",
+            description = "Number of resolution scales for registration (more scales = more precise but slower)")
+    int n_scales = 4;
+
+    @Parameter(label = "Center Images",
+            description = "When checked, initially centers the moving image on the fixed image")
+    boolean center_moving_image = true;
+
+    @Parameter(label = "Block Size",
+            description = "Size in pixels of each image block used for local registration")
+    int pixels_per_block = 128;
+
+    @Parameter(label = "Iterations Per Scale",
+            description = "Maximum number of iterations for each registration at each scale")
+    int max_iteration_number_per_scale = 100;
+
+    @Parameter(label = "Registration Engine",
+            choices = {Elastix2DSparsePointsRegisterCommand.ENGINE_ELASTIX, Elastix2DSparsePointsRegisterCommand.ENGINE_BLOCK_MATCHING},
+            description = "Elastix runs an external elastix process per block. Java Block Matching registers the blocks " +
+                    "in memory by phase correlation and affine refinement, and does not require elastix")
+    String registration_engine = Elastix2DSparsePointsRegisterCommand.ENGINE_ELASTIX;
+
+    @Parameter(label = "Max Concurrent Pairs",
+            min = "1",
+            description = "Maximal number of pairs registered at the same time")
+    int max_concurrent_pairs = 2;
+
+    @Parameter(label = "Memory Budget (MB)",
+            description = "Memory of the resampled images of the pairs registered at the same time, half of the maximal memory if 0")
+    int memory_budget_mb = 0;
+
+    @Parameter(label = "Allow Overwrite",
+            description = "When checked, overwrites existing registration files in the QuPath project")
+    boolean allow_overwrite = true;
+
+    @Parameter(type = ItemIO.OUTPUT,
+            label = "Number of Pairs Registered",
+            description = "Number of pairs registered and exported successfully")
+    int n_pairs_registered = 0;
+
+    @Parameter
+    Context ctx;
+
+    @Parameter
+    CommandService cs;
+
+    @Parameter
+    ObjectService objectService;
+
+    @Parameter
+    TaskService taskService;
+
+    @Override
+    public void run() {
+        List<RegistrationPair> pairs = getPairs();
+        if (pairs.isEmpty()) {
+            logger.error("No registration pair to register");
+            return;
+        }
+
+        List<SourceAndConverter<?>[]> fixedSources = new ArrayList<>();
+        List<SourceAndConverter<?>[]> movingSources = new ArrayList<>();
+        List<SourcesProcessor> fixedChannels = new ArrayList<>();
+        List<SourcesProcessor> movingChannels = new ArrayList<>();
+        try {
+            for (RegistrationPair pair : pairs) {
+                fixedChannels.add(AbstractPairRegistration2DCommand.getChannelProcessorFromCsv(channels_fixed_csv, pair.getFixedSources().length));
+                movingChannels.add(AbstractPairRegistration2DCommand.getChannelProcessorFromCsv(channels_moving_csv, pair.getMovingSourcesOrigin().length));
+                SourceAndConverter<?>[] fixed = fixedChannels.get(fixedChannels.size() - 1).apply(pair.getFixedSources());
+                // Pairs created from the same fixed image can have different sources for the same setups of the same
+                // dataset: the first ones are used for all pairs, so that their resampled images are shared
+                fixedSources.add(fixedSources.stream().filter(other -> sameImage(other, fixed)).findFirst().orElse(fixed));
+                movingSources.add(movingChannels.get(movingChannels.size() - 1).apply(pair.getMovingSourcesRegistered()));
+            }
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            logger.error("Invalid channels: " + e.getMessage());
+            return;
+        }
+
+        long memoryBudget = memory_budget_mb > 0 ? memory_budget_mb * 1_000_000L : Runtime.getRuntime().maxMemory() / 2;
+        // The pairs have their own scheduler: a pair waits for its blocks, registered on the shared scheduler
+        JobScheduler pairScheduler = new JobScheduler(max_concurrent_pairs, memoryBudget, pairs.size());
+        // Each pair uses a resampled image per scale for the fixed image, and one for the moving image
+        ResampledPatchCache cache = new ResampledPatchCache((max_concurrent_pairs + 1) * (n_scales + 1));
+        ExecutorService prefetcher = Executors.newSingleThreadExecutor();
+
+        Task task = taskService.createTask("Batch multiscale registration of " + pairs.size() + " pairs");
+        task.setProgressMaximum(pairs.size());
+        task.start();
+        AtomicInteger done = new AtomicInteger();
+        AtomicInteger registered = new AtomicInteger();
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < pairs.size(); i++) {
+            final int iPair = i;
+            RegistrationPair pair = pairs.get(i);
+            futures.add(pairScheduler.submit(pair.getName(), JobScheduler.Priority.BATCH,
+                    estimateMemory(fixedSources.get(i), movingSources.get(i)), () -> {
+                if (task.isCanceled()) return;
+                // When this pair is done, the pair max_concurrent_pairs further starts: its first scale is
+                // resampled in the meantime
+                int iNext = iPair + max_concurrent_pairs;
+                if (iNext < pairs.size()) {
+                    prefetcher.submit(() -> SourcesMultiscaleRegisterCommand.prefetchFirstScale(cache,
+                            fixedSources.get(iNext), movingSources.get(iNext), n_scales, true,
+                            center_moving_image, pixels_per_block));
+                }
+                if (registerAndExport(pair, fixedSources.get(iPair), movingSources.get(iPair),
+                        fixedChannels.get(iPair), movingChannels.get(iPair), cache)) {
+                    registered.incrementAndGet();
+                }
+                task.setProgressValue(done.incrementAndGet());
+                task.setStatusMessage(done.get() + " / " + pairs.size() + " pairs - " + cache.getStatus());
+            }));
+        }
+
+        try {
+            for (Future<?> future : futures) {
+                if (task.isCanceled()) {
+                    futures.forEach(f -> f.cancel(false));
+                    break;
+                }
+                future.get();
+            }
+        } catch (Exception e) {
+            logger.error("Batch registration interrupted: " + e.getMessage());
+            futures.forEach(f -> f.cancel(false));
+        } finally {
+            prefetcher.shutdownNow();
+            task.finish();
+        }
+
+        n_pairs_registered = registered.get();
+        logger.info(n_pairs_registered + " / " + pairs.size() + " registration pairs registered and exported - " + cache.getStatus());
+    }
+
+    /**
+     * Registers a pair with the multiscale registration, appends the registration to the pair and exports the pair
+     * @return true if the registration and its export succeeded
+     */
+    boolean registerAndExport(RegistrationPair pair, SourceAndConverter<?>[] fixed, SourceAndConverter<?>[] moving,
+                              SourcesProcessor fixedChannels, SourcesProcessor movingChannels, ResampledPatchCache cache) {
+        synchronized (pair) {
+            try {
+                // The multiscale registration modifies its input arrays
+                CommandModule module = cs.run(SourcesMultiscaleRegisterCommand.class, true,
+                        "fixed", fixed.clone(),
+                        "moving", moving.clone(),
+                        "sources_to_transform", moving.clone(),
+                        "n_scales", n_scales,
+                        "remove_z_offset", true,
+                        "center_moving_image", center_moving_image,
+                        "pixels_per_block", pixels_per_block,
+                        "max_iteration_number_per_scale", max_iteration_number_per_scale,
+                        "registration_engine", registration_engine,
+                        "patch_cache", cache,
+                        "show_details", false,
+                        "debug", false
+                ).get();
+
+                RealTransform rt = (RealTransform) module.getOutput("transformation");
+
+                // We don't want to keep the transformed sources in memory
+                SourceServices
+                        .getSourceService()
+                        .remove((SourceAndConverter[]) module.getOutput("transformed_sources"));
+
+                if (rt == null) {
+                    logger.error(pair.getName() + ": the multiscale registration failed");
+                    return false;
+                }
+
+                PrecomputedSplineRegistration registration = new PrecomputedSplineRegistration();
+                registration.setScijavaContext(ctx);
+                registration.setTimePoint(0);
+                registration.setRegistrationName("Multiscale Spline");
+
+                Map<String, String> parameters = new HashMap<>();
+                parameters.put(PrecomputedSplineRegistration.TRANSFORM_KEY,
+                        ScijavaGsonHelper.getGson(ctx).toJson(rt, RealTransform.class));
+
+                if (!pair.executeRegistration(registration, parameters, fixedChannels, movingChannels)) {
+                    logger.error(pair.getName() + ": registration unsuccessful: " + pair.getLastErrorMessage());
+                    return false;
+                }
+
+                if (!pair.exportToQuPath(allow_overwrite, ctx)) {
+                    logger.error(pair.getName() + ": registration not exported: " + pair.getLastErrorMessage());
+                    return false;
+                }
+                return true;
+            } catch (Exception e) {
+                logger.error(pair.getName() + ": error during registration: " + e.getMessage());
+                e.printStackTrace();
+                return false;
+            }
+        }
+    }
+
+    List<RegistrationPair> getPairs() {
+        List<RegistrationPair> allPairs = objectService.getObjects(RegistrationPair.class);
+        if ((registration_pair_names == null) || registration_pair_names.trim().isEmpty()) return allPairs;
+        List<RegistrationPair> pairs = new ArrayList<>();
+        for (String name : Arrays.stream(registration_pair_names.split(",")).map(String::trim).collect(Collectors.toList())) {
+            RegistrationPair pair = allPairs.stream().filter(rp -> rp.getName().equals(name)).findFirst().orElse(null);
+            if (pair == null) {
+                logger.warn("Registration pair " + name + " not found");
+            } else {
+                pairs.add(pair);
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * @return an estimation of the memory of the resampled images at the finest scale of a registration, in bytes
+     */
+    long estimateMemory(SourceAndConverter<?>[] fixed, SourceAndConverter<?>[] moving) {
+        RealInterval box = ResampledPatchCache.getSourceBox(fixed[0], 0);
+        double sizeX = box.realMax(0) - box.realMin(0);
+        double sizeY = box.realMax(1) - box.realMin(1);
+        List<double[]> blockSizes = SourcesMultiscaleRegisterCommand.getBlockSizesPerScale(sizeX, sizeY, n_scales);
+        if (blockSizes.isEmpty()) return 0;
+        double[] finestBlock = blockSizes.get(blockSizes.size() - 1);
+        double pixelSize = Math.max(finestBlock[0], finestBlock[1]) / pixels_per_block;
+        return (long) ((sizeX / pixelSize) * (sizeY / pixelSize) * 4 * (fixed.length + moving.length));
+    }
+
+    /**
+     * @return true if both arrays have the same number of sources, and if their sources are the same sources, or
+     * the same setups of the same dataset
+     */
+    static boolean sameImage(SourceAndConverter<?>[] sources, SourceAndConverter<?>[] others) {
+        if (sources == others) return true;
+        if (sources.length != others.length) return false;
+        for (int c = 0; c < sources.length; c++) {
+            if (sources[c] == others[c]) continue;
+            String identity = getDatasetSetup(sources[c]);
+            if ((identity == null) || (!identity.equals(getDatasetSetup(others[c])))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the path of the dataset of a source and its setup id, or null if the source is not a setup of
+     * a dataset saved in a file
+     */
+    static String getDatasetSetup(SourceAndConverter<?> source) {
+        ISourceService sourceService = SourceServices.getSourceService();
+        if (sourceService == null) return null;
+        Object info = sourceService.getMetadata(source, ISourceService.SPIM_DATA_INFO);
+        if (!(info instanceof SourceService.SpimDataInfo)) return null;
+        SourceService.SpimDataInfo spimDataInfo = (SourceService.SpimDataInfo) info;
+        if (spimDataInfo.asd.getBasePath() == null) return null;
+        // The base path is a folder, which can contain several datasets: the name of the setup is checked as well
+        return spimDataInfo.asd.getBasePath().getAbsolutePath()
+                + ";setup=" + spimDataInfo.setupId
+                + ";name=" + source.getSpimSource().getName();
+    }
+}
@@ -1,9 +1,14 @@
 package ch.epfl.biop.command.register.warpy.wizard;
 
+import bdv.util.InverseGridRealTransform;
 import bdv.util.QuPathBdvHelper;
+import bdv.util.RealTransformHelper;
 import bdv.viewer.SourceAndConverter;
+import ch.epfl.biop.command.register.Elastix2DSparsePointsRegisterCommand;
 import ch.epfl.biop.command.register.SourcesMultiscaleRegisterCommand;
 import ij.IJ;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.Interval;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.InvertibleRealTransform;
 import net.imglib2.realtransform.InvertibleRealTransformSequence;
@@ -85,6 +90,22 @@ public class WarpyMultiscaleRegisterCommand implements BdvPlaygroundActionComman
             description = "Maximum number of iterations for each registration at each scale")
     int max_iteration_number_per_scale = 100;
 
+    @Parameter(label = "Registration Engine",
+            choices = {Elastix2DSparsePointsRegisterCommand.ENGINE_ELASTIX, Elastix2DSparsePointsRegisterCommand.ENGINE_BLOCK_MATCHING},
+            description = "Elastix runs an external elastix process per block. Java Block Matching registers the blocks " +
+                    "in memory by phase correlation and affine refinement, and does not require elastix")
+    String registration_engine = Elastix2DSparsePointsRegisterCommand.ENGINE_ELASTIX;
+
+    @Parameter(label = "Pre-compute Inverse Transform",
+            description = "When checked, samples the inverse transform on an adaptive grid, saved next to the transform file, " +
+                    "so that the inverse is interpolated instead of being computed iteratively for each point")
+    boolean precompute_inverse = false;
+
+    @Parameter(label = "Inverse Max Error (pixels)",
+            style = "format:0.00",
+            description = "Maximal error of the pre-computed inverse transform, in pixels of the fixed image")
+    double inverse_max_error_pixels = 0.1;
+
     @Parameter
     CommandService cs;
 
@@ -138,6 +159,8 @@ public class WarpyMultiscaleRegisterCommand implements BdvPlaygroundActionComman
                     "center_moving_image", center_moving_image,
                     "pixels_per_block", pixels_per_block,
                     "max_iteration_number_per_scale", max_iteration_number_per_scale,
+                    "registration_engine", registration_engine,
+                    "patch_cache", null,
                     "show_details", false,
                     "debug", false
             ).get();
@@ -200,12 +223,35 @@ public class WarpyMultiscaleRegisterCommand implements BdvPlaygroundActionComman
             IJ.log("Fixed: "+fixed_sources[0].getSpimSource().getName()+" | Moving: "+moving_sources[0].getSpimSource().getName());
             IJ.log("Transformation file successfully written to QuPath project: "+result);
 
+            if (precompute_inverse && (transformSequence instanceof InvertibleRealTransform)) {
+                writeInverseGrid((InvertibleRealTransform) transformSequence, result);
+            }
+
         } catch (Exception e) {
             e.printStackTrace();
         }
 
     }
 
+    /**
+     * Samples the inverse of the transform (moving pixels to fixed pixels) over the moving image,
+     * and writes it next to the transform file
+     */
+    private void writeInverseGrid(InvertibleRealTransform transform, File transformFile) throws Exception {
+        IJ.log("Computing the inverse transform grid, please wait...");
+        Interval movingPixels = moving_sources[0].getSpimSource().getSource(0, 0);
+        FinalRealInterval region = new FinalRealInterval(
+                new double[]{movingPixels.min(0), movingPixels.min(1), 0},
+                new double[]{movingPixels.max(0) + 1, movingPixels.max(1) + 1, 0});
+        double spacing = Math.max(movingPixels.dimension(0), movingPixels.dimension(1)) / 64.0;
+        InverseGridRealTransform inverseGrid = InverseGridRealTransform.create(transform, region, spacing,
+                inverse_max_error_pixels, 16, Runtime.getRuntime().availableProcessors());
+        RealTransformHelper.writeInverseGrid(ScijavaGsonHelper.getGson(scijavaCtx), inverseGrid, transformFile);
+        IJ.log(String.format("Inverse transform grid written to %s: max error %.3f pixels, %d cells, %d refined, %d computed iteratively",
+                RealTransformHelper.getInverseGridFile(transformFile).getAbsolutePath(), inverseGrid.getMaxError(),
+                inverseGrid.getCellRefinement().length, inverseGrid.getNumRefinedCells(), inverseGrid.getNumFallbackCells()));
+    }
+
     public void updateMessage() {
 
         String message = "<html><h1>QuPath Warpy multiscale registration</h1>";
@@ -1,15 +1,14 @@
 package ch.epfl.biop.command.register.warpy.wizard;
 
+import bdv.util.BatchRealTransform;
 import bdv.util.EmptySource;
 import bdv.util.QuPathBdvHelper;
+import bdv.util.RealTransformHelper;
 import bdv.viewer.SourceAndConverter;
 import ch.epfl.biop.kheops.command.KheopsExportSourcesCommand;
-import com.google.gson.stream.JsonReader;
 import ij.IJ;
 import net.imglib2.realtransform.AffineTransform3D;
-import net.imglib2.realtransform.InvertibleRealTransformSequence;
 import net.imglib2.realtransform.RealTransform;
-import net.imglib2.realtransform.RealTransformHelper;
 import org.scijava.Context;
 import org.scijava.ItemVisibility;
 import org.scijava.command.Command;
@@ -24,7 +23,6 @@ import sc.fiji.bdvpg.source.transform.SourceResampler;
 import sc.fiji.persist.ScijavaGsonHelper;
 
 import java.io.File;
-import java.io.FileReader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -141,11 +139,14 @@ public class WarpyRegisteredImageExportCommand implements BdvPlaygroundActionCom
                 if (alreadyOpenedTransforms.containsKey(result)) {
                     sourceToTransformation.put(source, alreadyOpenedTransforms.get(result).copy());
                 } else {
-                    JsonReader reader = new JsonReader(new FileReader(result));
-                    InvertibleRealTransformSequence irts = ScijavaGsonHelper.getGson(scijavaCtx).fromJson(reader, RealTransform.class);
-                    RealTransform transformation = RealTransformHelper.getTransformSequence(irts).get(1);
+                    // Uses the pre-computed inverse grid of the transform, if any
+                    RealTransform transformation = RealTransformHelper.readWarpyTransform(ScijavaGsonHelper.getGson(scijavaCtx), result);
                     if (pre_compute_transform) {
-                        transformation = bdv.util.RealTransformHelper.resampleTransform(transformation, model);
+                        // Only the forward transform is resampled, the inverse grid is kept
+                        transformation = RealTransformHelper.resampleTransform(transformation, model);
+                    } else if (!(transformation instanceof BatchRealTransform)) {
+                        // Faster evaluation of thin plate splines, the copies share the landmarks
+                        transformation = new BatchRealTransform(transformation);
                     }
                     sourceToTransformation.put(source, transformation);
                     alreadyOpenedTransforms.put(result, transformation);
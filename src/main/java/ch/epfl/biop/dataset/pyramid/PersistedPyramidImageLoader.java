@@ -0,0 +1,128 @@
+package ch.epfl.biop.dataset.pyramid;
+
+import bdv.ViewerImgLoader;
+import bdv.ViewerSetupImgLoader;
+import bdv.cache.CacheControl;
+import bdv.cache.SharedQueue;
+import bdv.spimdata.XmlIoSpimDataMinimal;
+import mpicbg.spim.data.SpimDataException;
+import mpicbg.spim.data.generic.AbstractSpimData;
+import mpicbg.spim.data.sequence.MultiResolutionImgLoader;
+import mpicbg.spim.data.sequence.MultiResolutionSetupImgLoader;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Image loader combining the highest resolution level of an existing dataset with lower resolution levels
+ * persisted in an N5 container by {@link PyramidPersister}.
+ * <br>
+ * The origin dataset is referenced by its XML file and is not modified: level 0 of each setup is read from its
+ * image loader. The N5 container follows the layout of BigDataViewer N5 datasets, without the s0 datasets
+ * ({@code setup{id}/timepoint{t}/s{level}}, with the cumulative downsampling factors as an attribute of the
+ * setup group). Setups which have no persisted levels are served by the origin image loader, with all its levels.
+ * <br>
+ * Persisted levels are read chunk by chunk, lazily. A missing chunk is read as zeros.
+ */
+public class PersistedPyramidImageLoader implements ViewerImgLoader, MultiResolutionImgLoader {
+
+    protected static Logger logger = LoggerFactory.getLogger(PersistedPyramidImageLoader.class);
+
+    final File originXml;
+
+    final File n5File;
+
+    final AbstractSpimData<?> origin;
+
+    final N5Reader n5;
+
+    final SharedQueue queue;
+
+    public final int numFetcherThreads;
+    public final int numPriorities;
+
+    final Map<Integer, PersistedPyramidSetupLoader> setupLoaders = new ConcurrentHashMap<>();
+
+    /**
+     * @param originXml XML file of the dataset providing the highest resolution level
+     * @param n5File N5 container of the lower resolution levels
+     * @param numFetcherThreads number of threads fetching the persisted chunks
+     * @param numPriorities number of priority levels of the fetching queue
+     * @throws SpimDataException if the origin dataset can't be opened
+     */
+    public PersistedPyramidImageLoader(File originXml, File n5File, int numFetcherThreads, int numPriorities) throws SpimDataException {
+        this.originXml = originXml;
+        this.n5File = n5File;
+        this.numFetcherThreads = numFetcherThreads;
+        this.numPriorities = numPriorities;
+        this.origin = new XmlIoSpimDataMinimal().load(originXml.getAbsolutePath());
+        if (!(origin.getSequenceDescription().getImgLoader() instanceof ViewerImgLoader)
+                || !(origin.getSequenceDescription().getImgLoader() instanceof MultiResolutionImgLoader)) {
+            throw new UnsupportedOperationException("Unsupported image loader class "
+                    + origin.getSequenceDescription().getImgLoader().getClass());
+        }
+        try {
+            this.n5 = new N5FSReader(n5File.getAbsolutePath());
+        } catch (Exception e) {
+            throw new SpimDataException("Could not open persisted pyramid "+n5File.getAbsolutePath()+": "+e.getMessage());
+        }
+        this.queue = new SharedQueue(numFetcherThreads, numPriorities);
+    }
+
+    public File getOriginXml() {
+        return originXml;
+    }
+
+    public File getN5File() {
+        return n5File;
+    }
+
+    public AbstractSpimData<?> getOrigin() {
+        return origin;
+    }
+
+    N5Reader getN5() {
+        return n5;
+    }
+
+    SharedQueue getQueue() {
+        return queue;
+    }
+
+    @Override
+    public PersistedPyramidSetupLoader getSetupImgLoader(int setupId) {
+        return setupLoaders.computeIfAbsent(setupId, id -> {
+            ViewerSetupImgLoader<?, ?> originSetupLoader = ((ViewerImgLoader) origin.getSequenceDescription().getImgLoader()).getSetupImgLoader(id);
+            double[][] factors = null;
+            try {
+                String group = PyramidPersister.setupGroup(id);
+                if (n5.exists(group)) {
+                    factors = n5.getAttribute(group, PyramidPersister.DOWNSAMPLING_FACTORS_KEY, double[][].class);
+                }
+            } catch (Exception e) {
+                logger.warn("Could not read persisted levels of setup "+id+": "+e.getMessage());
+            }
+            if (factors == null) {
+                logger.debug("No persisted levels for setup "+id+", origin levels are used");
+            }
+            return new PersistedPyramidSetupLoader(this, id, (MultiResolutionSetupImgLoader) originSetupLoader, factors);
+        });
+    }
+
+    @Override
+    public CacheControl getCacheControl() {
+        return ((ViewerImgLoader) origin.getSequenceDescription().getImgLoader()).getCacheControl();
+    }
+
+    public void close() {
+        synchronized (this) {
+            queue.shutdown();
+        }
+    }
+
+}
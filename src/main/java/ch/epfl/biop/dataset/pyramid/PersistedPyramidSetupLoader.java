@@ -0,0 +1,179 @@
+package ch.epfl.biop.dataset.pyramid;
+
+import bdv.AbstractViewerSetupImgLoader;
+import bdv.ViewerSetupImgLoader;
+import bdv.util.MipmapTransforms;
+import bdv.util.source.cache.N5DataBlocks;
+import bdv.util.volatiles.VolatileViews;
+import mpicbg.spim.data.generic.sequence.ImgLoaderHint;
+import mpicbg.spim.data.sequence.MultiResolutionSetupImgLoader;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalDimensions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.Volatile;
+import net.imglib2.cache.Cache;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.LoadedCellCacheLoader;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.img.basictypeaccess.ArrayDataAccessFactory;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import sc.fiji.bdvpg.cache.GlobalLoaderCache;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Setup loader of a {@link PersistedPyramidImageLoader}: level 0 is read from the origin setup loader, the other
+ * levels from the persisted N5 datasets. If there are no persisted levels, all levels of the origin setup loader
+ * are used.
+ *
+ * @param <T> pixel type
+ * @param <V> volatile pixel type
+ */
+public class PersistedPyramidSetupLoader<T extends RealType<T> & NativeType<T>, V extends Volatile<T> & NumericType<V>>
+        extends AbstractViewerSetupImgLoader<T, V> implements MultiResolutionSetupImgLoader<T> {
+
+    final PersistedPyramidImageLoader imgLoader;
+
+    final int setupId;
+
+    final MultiResolutionSetupImgLoader<T> originLoader;
+
+    final boolean persisted;
+
+    final double[][] resolutions;
+
+    final AffineTransform3D[] transforms;
+
+    final Map<String, RandomAccessibleInterval<T>> images = new ConcurrentHashMap<>();
+
+    final Map<String, RandomAccessibleInterval<V>> volatileImages = new ConcurrentHashMap<>();
+
+    /**
+     * @param imgLoader the image loader owning this setup loader
+     * @param setupId id of the setup
+     * @param originLoader setup loader of the origin dataset, must also be a {@link ViewerSetupImgLoader}
+     * @param factors cumulative downsampling factors of all levels, level 0 included, or null if there
+     *                are no persisted levels
+     */
+    public PersistedPyramidSetupLoader(PersistedPyramidImageLoader imgLoader,
+                                       int setupId,
+                                       MultiResolutionSetupImgLoader<T> originLoader,
+                                       double[][] factors) {
+        super(originLoader.getImageType(), ((ViewerSetupImgLoader<T, V>) originLoader).getVolatileImageType());
+        this.imgLoader = imgLoader;
+        this.setupId = setupId;
+        this.originLoader = originLoader;
+        this.persisted = factors != null;
+        if (persisted) {
+            resolutions = factors;
+            transforms = new AffineTransform3D[factors.length];
+            for (int level = 0; level < factors.length; level++) {
+                transforms[level] = MipmapTransforms.getMipmapTransformDefault(factors[level]);
+            }
+        } else {
+            resolutions = originLoader.getMipmapResolutions();
+            transforms = originLoader.getMipmapTransforms();
+        }
+    }
+
+    /**
+     * @return true if the levels below 0 are read from the persisted N5 container
+     */
+    public boolean isPersisted() {
+        return persisted;
+    }
+
+    @Override
+    public RandomAccessibleInterval<T> getImage(int timepointId, int level, ImgLoaderHint... hints) {
+        if ((!persisted) || (level == 0)) return originLoader.getImage(timepointId, level, hints);
+        return getPersistedImage(timepointId, level);
+    }
+
+    @Override
+    public RandomAccessibleInterval<V> getVolatileImage(int timepointId, int level, ImgLoaderHint... hints) {
+        if ((!persisted) || (level == 0)) {
+            return ((ViewerSetupImgLoader<T, V>) originLoader).getVolatileImage(timepointId, level, hints);
+        }
+        return volatileImages.computeIfAbsent(PyramidPersister.dataset(setupId, timepointId, level),
+                dataset -> (RandomAccessibleInterval<V>) VolatileViews.wrapAsVolatile(
+                        getPersistedImage(timepointId, level), imgLoader.getQueue()));
+    }
+
+    private RandomAccessibleInterval<T> getPersistedImage(int timepointId, int level) {
+        return images.computeIfAbsent(PyramidPersister.dataset(setupId, timepointId, level), dataset -> {
+            final N5Reader n5 = imgLoader.getN5();
+            final DatasetAttributes attributes;
+            try {
+                attributes = n5.getDatasetAttributes(dataset);
+            } catch (Exception e) {
+                throw new RuntimeException("Could not read persisted level "+dataset, e);
+            }
+            final CellGrid grid = new CellGrid(attributes.getDimensions(), attributes.getBlockSize());
+            LoadedCellCacheLoader<T, ?> loader = LoadedCellCacheLoader.get(grid, cell -> {
+                final long[] gridPosition = new long[grid.numDimensions()];
+                for (int d = 0; d < gridPosition.length; d++) {
+                    gridPosition[d] = cell.min(d) / grid.cellDimension(d);
+                }
+                DataBlock<?> block = n5.readBlock(dataset, attributes, gridPosition);
+                if (block != null) N5DataBlocks.copyToImage(block.getData(), cell); // Missing chunk: zeros
+            }, getImageType().createVariable(), AccessFlags.setOf(AccessFlags.VOLATILE));
+            Cache<Long, Cell<T>> cache = (new GlobalLoaderCache(this, timepointId, level)).withLoader(loader);
+            return new CachedCellImg(grid, getImageType(), cache, ArrayDataAccessFactory.get(getImageType(), AccessFlags.setOf(AccessFlags.VOLATILE)));
+        });
+    }
+
+    @Override
+    public RandomAccessibleInterval<FloatType> getFloatImage(int timepointId, int level, boolean normalize, ImgLoaderHint... hints) {
+        return Converters.convert(getImage(timepointId, level, hints),
+                (input, output) -> output.set(input.getRealFloat()), new FloatType());
+    }
+
+    @Override
+    public Dimensions getImageSize(int timepointId, int level) {
+        if ((!persisted) || (level == 0)) return originLoader.getImageSize(timepointId, level);
+        return new FinalDimensions(getPersistedImage(timepointId, level).dimensionsAsLongArray());
+    }
+
+    @Override
+    public double[][] getMipmapResolutions() {
+        return resolutions;
+    }
+
+    @Override
+    public AffineTransform3D[] getMipmapTransforms() {
+        return transforms;
+    }
+
+    @Override
+    public int numMipmapLevels() {
+        return resolutions.length;
+    }
+
+    @Override
+    public RandomAccessibleInterval<FloatType> getFloatImage(int timepointId, boolean normalize, ImgLoaderHint... hints) {
+        return getFloatImage(timepointId, 0, normalize, hints);
+    }
+
+    @Override
+    public Dimensions getImageSize(int timepointId) {
+        return originLoader.getImageSize(timepointId);
+    }
+
+    @Override
+    public VoxelDimensions getVoxelSize(int timepointId) {
+        return originLoader.getVoxelSize(timepointId);
+    }
+
+}
@@ -0,0 +1,285 @@
+package ch.epfl.biop.dataset.pyramid;
+
+import bdv.spimdata.SequenceDescriptionMinimal;
+import bdv.spimdata.SpimDataMinimal;
+import bdv.spimdata.XmlIoSpimDataMinimal;
+import bdv.util.source.cache.N5DataBlocks;
+import bdv.util.source.process.LazyPyramidSource;
+import mpicbg.spim.data.SpimData;
+import mpicbg.spim.data.XmlIoSpimData;
+import mpicbg.spim.data.generic.AbstractSpimData;
+import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
+import mpicbg.spim.data.generic.sequence.BasicViewSetup;
+import mpicbg.spim.data.sequence.TimePoint;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.apache.commons.io.FilenameUtils;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.scijava.task.Task;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes the lower resolution levels of {@link LazyPyramidSource} pyramids built on the setups of a dataset,
+ * and creates a dataset combining the original highest resolution level with these persisted levels.
+ * <br>
+ * For an output file {@code name.xml}, three files are written next to each other:
+ * <ul>
+ *     <li>{@code name_origin.xml}: a copy of the origin dataset, untouched, which provides level 0</li>
+ *     <li>{@code name.n5}: the persisted levels, one dataset per setup, timepoint and level above 0</li>
+ *     <li>{@code name.xml}: the combined dataset, read with a {@link PersistedPyramidImageLoader}</li>
+ * </ul>
+ * Reopening {@code name.xml} in a later session displays the lower resolution levels immediately: they are read
+ * from the N5 container instead of being recomputed from the full resolution level.
+ * <br>
+ * Levels are written level by level, the cells of a level being computed in parallel: as each level of a
+ * {@link LazyPyramidSource} is computed from the level above it, the cells read to compute a level have just
+ * been computed and are still in the cache. The downsampling factors of a setup are written last: a setup whose
+ * persistence was interrupted is served with the origin levels only.
+ * <br>
+ * Only {@link net.imglib2.type.numeric.integer.UnsignedByteType}, {@link net.imglib2.type.numeric.integer.UnsignedShortType}
+ * and {@link net.imglib2.type.numeric.real.FloatType} sources are supported, the other ones are skipped.
+ */
+public class PyramidPersister {
+
+    private static final Logger logger = LoggerFactory.getLogger(PyramidPersister.class);
+
+    public static final String DOWNSAMPLING_FACTORS_KEY = "downsamplingFactors";
+
+    public static final String DATA_TYPE_KEY = "dataType";
+
+    final AbstractSpimData<?> origin;
+
+    final File xmlFile;
+
+    final int numThreads;
+
+    final Task task;
+
+    final Map<Integer, LazyPyramidSource<?>> pyramids = new LinkedHashMap<>();
+
+    final AtomicLong cellsDone = new AtomicLong();
+
+    /**
+     * @param origin dataset providing the highest resolution level of the pyramids
+     * @param xmlFile XML file of the combined dataset
+     * @param numThreads number of threads computing and writing the cells
+     * @param task task used for monitoring and cancellation, can be null
+     */
+    public PyramidPersister(AbstractSpimData<?> origin, File xmlFile, int numThreads, Task task) {
+        this.origin = origin;
+        this.xmlFile = xmlFile;
+        this.numThreads = Math.max(1, numThreads);
+        this.task = task;
+    }
+
+    /**
+     * Adds a pyramid to persist
+     * @param setupId setup of the origin dataset on which the pyramid is built
+     * @param pyramid lazy pyramid of this setup
+     */
+    public void add(int setupId, LazyPyramidSource<?> pyramid) {
+        pyramids.put(setupId, pyramid);
+    }
+
+    public static String setupGroup(int setupId) {
+        return "setup" + setupId;
+    }
+
+    public static String dataset(int setupId, int timepoint, int level) {
+        return setupGroup(setupId) + "/timepoint" + timepoint + "/s" + level;
+    }
+
+    public File getOriginXmlFile() {
+        return new File(xmlFile.getParentFile(), FilenameUtils.getBaseName(xmlFile.getName()) + "_origin.xml");
+    }
+
+    public File getN5File() {
+        return new File(xmlFile.getParentFile(), FilenameUtils.getBaseName(xmlFile.getName()) + ".n5");
+    }
+
+    /**
+     * Writes the persisted levels of all pyramids, then the combined dataset
+     * @return the XML file of the combined dataset
+     * @throws CancellationException if the task is cancelled
+     * @throws Exception if the origin dataset can't be saved, or if a cell could not be computed or written
+     */
+    public File persist() throws Exception {
+        long start = System.currentTimeMillis();
+        saveOrigin();
+
+        N5Writer n5 = new N5FSWriter(getN5File().getAbsolutePath());
+        if (task != null) {
+            task.setStatusMessage("Persisting pyramids to " + getN5File().getName());
+            task.setProgressMaximum(countCells());
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            for (Map.Entry<Integer, LazyPyramidSource<?>> entry : pyramids.entrySet()) {
+                persist(n5, entry.getKey(), entry.getValue(), executor);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        saveCombined();
+        logger.info("Pyramids persisted to " + getN5File().getAbsolutePath() + " in "
+                + (System.currentTimeMillis() - start) + " ms, " + cellsDone.get() + " cells written");
+        if (task != null) task.run(() -> {}); // finished task
+        return xmlFile;
+    }
+
+    private void persist(N5Writer n5, int setupId, LazyPyramidSource<?> pyramid, ExecutorService executor) throws Exception {
+        final DataType dataType = N5DataBlocks.getDataType(pyramid.getType());
+        if (dataType == null) {
+            logger.warn("Type " + pyramid.getType().getClass().getSimpleName() + " of " + pyramid.getName()
+                    + " not supported, its levels are not persisted");
+            return;
+        }
+        final String group = setupGroup(setupId);
+        if (n5.exists(group)) n5.remove(group); // Previous pyramid, possibly with other factors
+        for (TimePoint timePoint : origin.getSequenceDescription().getTimePoints().getTimePointsOrdered()) {
+            final int t = timePoint.getId();
+            if (!pyramid.isPresent(t)) continue;
+            for (int level = 1; level < pyramid.getNumMipmapLevels(); level++) {
+                final RandomAccessibleInterval<?> rai = pyramid.getSource(t, level);
+                final CellGrid grid = cellGrid(rai);
+                final String dataset = dataset(setupId, t, level);
+                n5.createDataset(dataset, grid.getImgDimensions(), cellDimensions(grid), dataType, new GzipCompression(1));
+                final DatasetAttributes attributes = n5.getDatasetAttributes(dataset);
+
+                List<Future<?>> futures = new ArrayList<>();
+                final long[] gridDimensions = grid.getGridDimensions();
+                for (long gz = 0; gz < gridDimensions[2]; gz++) {
+                    for (long gy = 0; gy < gridDimensions[1]; gy++) {
+                        for (long gx = 0; gx < gridDimensions[0]; gx++) {
+                            final long[] gridPosition = new long[]{gx, gy, gz};
+                            futures.add(executor.submit(() -> {
+                                if (isCanceled()) return null;
+                                final long[] cellMin = new long[3];
+                                final int[] cellDims = new int[3];
+                                grid.getCellDimensions(gridPosition, cellMin, cellDims);
+                                final long[] cellMax = new long[3];
+                                for (int d = 0; d < 3; d++) cellMax[d] = cellMin[d] + cellDims[d] - 1;
+                                n5.writeBlock(dataset, attributes, N5DataBlocks.createBlock(dataType, cellDims, gridPosition,
+                                        Views.interval(rai, new FinalInterval(cellMin, cellMax))));
+                                long done = cellsDone.incrementAndGet();
+                                if (task != null) task.setProgressValue(done);
+                                return null;
+                            }));
+                        }
+                    }
+                }
+                // Barrier: the next level reads the cells of this one
+                for (Future<?> future : futures) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+                    }
+                }
+                if (isCanceled()) {
+                    throw new CancellationException("Persistence of " + pyramid.getName() + " cancelled");
+                }
+            }
+        }
+        // Written last: marks the persisted levels of this setup as complete
+        n5.setAttribute(group, DATA_TYPE_KEY, dataType.toString());
+        n5.setAttribute(group, DOWNSAMPLING_FACTORS_KEY, cumulativeFactors(pyramid.getFactors()));
+    }
+
+    private boolean isCanceled() {
+        return (task != null) && task.isCanceled();
+    }
+
+    private long countCells() {
+        long total = 0;
+        for (LazyPyramidSource<?> pyramid : pyramids.values()) {
+            if (N5DataBlocks.getDataType(pyramid.getType()) == null) continue;
+            for (TimePoint timePoint : origin.getSequenceDescription().getTimePoints().getTimePointsOrdered()) {
+                if (!pyramid.isPresent(timePoint.getId())) continue;
+                for (int level = 1; level < pyramid.getNumMipmapLevels(); level++) {
+                    total += Intervals.numElements(cellGrid(pyramid.getSource(timePoint.getId(), level)).getGridDimensions());
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Copies the origin dataset next to the combined one, with paths relative to the new location.
+     * The origin dataset is shared with the rest of the application: a shallow copy with the new base path is
+     * saved instead, so that the origin is never modified
+     */
+    private void saveOrigin() throws Exception {
+        final File basePath = xmlFile.getParentFile();
+        if (origin instanceof SpimData) {
+            final SpimData spimData = (SpimData) origin;
+            final SpimData copy = new SpimData(basePath, spimData.getSequenceDescription(), spimData.getViewRegistrations(),
+                    spimData.getViewInterestPoints(), spimData.getBoundingBoxes());
+            new XmlIoSpimData().save(copy, getOriginXmlFile().getAbsolutePath());
+        } else if (origin instanceof SpimDataMinimal) {
+            final SpimDataMinimal spimData = (SpimDataMinimal) origin;
+            final SpimDataMinimal copy = new SpimDataMinimal(basePath, spimData.getSequenceDescription(), spimData.getViewRegistrations());
+            new XmlIoSpimDataMinimal().save(copy, getOriginXmlFile().getAbsolutePath());
+        } else {
+            throw new UnsupportedOperationException("Unsupported dataset class " + origin.getClass());
+        }
+    }
+
+    private void saveCombined() throws Exception {
+        final AbstractSequenceDescription<? extends BasicViewSetup, ?, ?> sequence = origin.getSequenceDescription();
+        final SequenceDescriptionMinimal combinedSequence = new SequenceDescriptionMinimal(sequence.getTimePoints(),
+                sequence.getViewSetups(), null, sequence.getMissingViews());
+        combinedSequence.setImgLoader(new PersistedPyramidImageLoader(getOriginXmlFile(), getN5File(), numThreads, 4));
+        final SpimDataMinimal combined = new SpimDataMinimal(xmlFile.getParentFile(), combinedSequence, origin.getViewRegistrations());
+        new XmlIoSpimDataMinimal().save(combined, xmlFile.getAbsolutePath());
+    }
+
+    private static CellGrid cellGrid(RandomAccessibleInterval<?> rai) {
+        if (rai instanceof AbstractCellImg) return ((AbstractCellImg<?, ?, ?, ?>) rai).getCellGrid();
+        return new CellGrid(rai.dimensionsAsLongArray(), LazyPyramidSource.DEFAULT_CELL_SIZE);
+    }
+
+    private static int[] cellDimensions(CellGrid grid) {
+        int[] cellDimensions = new int[grid.numDimensions()];
+        grid.cellDimensions(cellDimensions);
+        return cellDimensions;
+    }
+
+    /**
+     * @param factors factors from each level to the next one
+     * @return factors from level 0 to each level, level 0 included
+     */
+    static double[][] cumulativeFactors(int[][] factors) {
+        double[][] cumulative = new double[factors.length + 1][];
+        cumulative[0] = new double[]{1, 1, 1};
+        for (int level = 0; level < factors.length; level++) {
+            cumulative[level + 1] = new double[3];
+            for (int d = 0; d < 3; d++) {
+                cumulative[level + 1][d] = cumulative[level][d] * factors[level][d];
+            }
+        }
+        return cumulative;
+    }
+}
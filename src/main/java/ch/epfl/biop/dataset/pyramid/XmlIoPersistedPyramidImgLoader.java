@@ -0,0 +1,47 @@
+package ch.epfl.biop.dataset.pyramid;
+
+import mpicbg.spim.data.XmlHelpers;
+import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
+import mpicbg.spim.data.generic.sequence.ImgLoaderIo;
+import mpicbg.spim.data.generic.sequence.XmlIoBasicImgLoader;
+import org.jdom2.Element;
+
+import java.io.File;
+
+import static mpicbg.spim.data.XmlKeys.IMGLOADER_FORMAT_ATTRIBUTE_NAME;
+
+@ImgLoaderIo( format = "spimreconstruction.biop_persistedpyramidimageloader", type = PersistedPyramidImageLoader.class )
+public class XmlIoPersistedPyramidImgLoader implements XmlIoBasicImgLoader< PersistedPyramidImageLoader > {
+
+    public static final String CACHE_NUM_FETCHER = "num_fetcher_threads";
+    public static final String CACHE_NUM_PRIORITIES = "num_priorities";
+    public static final String ORIGIN_XML_TAG = "origin_xml";
+    public static final String N5_TAG = "n5";
+
+    @Override
+    public Element toXml(PersistedPyramidImageLoader imgLoader, File basePath) {
+        final Element elem = new Element( "ImageLoader" );
+        elem.setAttribute( IMGLOADER_FORMAT_ATTRIBUTE_NAME, this.getClass().getAnnotation( ImgLoaderIo.class ).format() );
+        elem.addContent(XmlHelpers.intElement( CACHE_NUM_FETCHER, imgLoader.numFetcherThreads));
+        elem.addContent(XmlHelpers.intElement( CACHE_NUM_PRIORITIES, imgLoader.numPriorities));
+        elem.addContent(XmlHelpers.pathElement( ORIGIN_XML_TAG, imgLoader.getOriginXml(), basePath));
+        elem.addContent(XmlHelpers.pathElement( N5_TAG, imgLoader.getN5File(), basePath));
+        return elem;
+    }
+
+    @Override
+    public PersistedPyramidImageLoader fromXml(Element elem, File basePath, AbstractSequenceDescription<?, ?, ?> sequenceDescription) {
+        try
+        {
+            final int numFetcherThreads = XmlHelpers.getInt(elem, CACHE_NUM_FETCHER);
+            final int numPriorities = XmlHelpers.getInt(elem, CACHE_NUM_PRIORITIES);
+            final File originXml = XmlHelpers.loadPath(elem, ORIGIN_XML_TAG, basePath);
+            final File n5File = XmlHelpers.loadPath(elem, N5_TAG, basePath);
+            return new PersistedPyramidImageLoader(originXml, n5File, numFetcherThreads, numPriorities);
+        }
+        catch ( final Exception e )
+        {
+            throw new RuntimeException( e );
+        }
+    }
+}
@@ -62,6 +62,8 @@ public class SourceLabkitClassifier implements Runnable, Function<SourceAndConve
     private final String name;
     private final Segmenter segmenter;
     private final boolean useGpu;
+    private final int numLevels;
+    private final int backgroundClass;
 
     private SourceAndConverter<UnsignedByteType> result;
 
@@ -89,6 +91,23 @@ public class SourceLabkitClassifier implements Runnable, Function<SourceAndConve
      * @param useGpu whether to use GPU acceleration for segmentation
      */
     public SourceLabkitClassifier(SourceAndConverter<?>[] sources, String classifierPath, Context context, String name, int resolutionLevel, boolean useGpu) {
+        this(sources, classifierPath, context, name, resolutionLevel, useGpu, 1, -1);
+    }
+
+    /**
+     * Creates a SourceLabkitClassifier action producing a multiresolution segmentation.
+     *
+     * @param sources the input sources (each source represents a channel)
+     * @param classifierPath path to the Labkit .classifier file
+     * @param context the SciJava context
+     * @param name the name for the output source
+     * @param resolutionLevel the resolution level to use from the input sources for the finest segmentation level
+     * @param useGpu whether to use GPU acceleration for segmentation
+     * @param numLevels maximal number of segmentation levels
+     * @param backgroundClass background class used to skip tiles from coarse to fine, -1 to classify all tiles
+     */
+    public SourceLabkitClassifier(SourceAndConverter<?>[] sources, String classifierPath, Context context, String name, int resolutionLevel, boolean useGpu,
+                                  int numLevels, int backgroundClass) {
         this.sources = sources;
         this.classifierPath = classifierPath;
         this.context = context;
@@ -96,6 +115,8 @@ public class SourceLabkitClassifier implements Runnable, Function<SourceAndConve
         this.resolutionLevel = resolutionLevel;
         this.segmenter = null;
         this.useGpu = useGpu;
+        this.numLevels = numLevels;
+        this.backgroundClass = backgroundClass;
     }
 
     /**
@@ -114,6 +135,8 @@ public class SourceLabkitClassifier implements Runnable, Function<SourceAndConve
         this.resolutionLevel = resolutionLevel;
         this.segmenter = segmenter;
         this.useGpu = false; // GPU setting should already be configured in the provided segmenter
+        this.numLevels = 1;
+        this.backgroundClass = -1;
     }
 
     @Override
@@ -151,9 +174,9 @@ public class SourceLabkitClassifier implements Runnable, Function<SourceAndConve
         // Create the LabkitSource
         Source<UnsignedByteType> labkitSource;
         if (segmenter != null) {
-            labkitSource = new LabkitSource(name, srcs, segmenter, resolutionLevel);
+            labkitSource = new LabkitSource(name, srcs, segmenter, resolutionLevel, numLevels, backgroundClass);
         } else {
-            labkitSource = new LabkitSource(name, srcs, classifierPath, context, resolutionLevel, useGpu);
+            labkitSource = new LabkitSource(name, srcs, classifierPath, context, resolutionLevel, useGpu, numLevels, backgroundClass);
         }
 
         // Create a simple grayscale converter for the segmentation result
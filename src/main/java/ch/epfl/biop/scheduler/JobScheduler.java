@@ -0,0 +1,262 @@
+package ch.epfl.biop.scheduler;
+
+import org.scijava.task.Task;
+import org.scijava.task.TaskService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded scheduler for heavy registration and export jobs, which should not run on the common ForkJoinPool
+ * (used by parallel streams, and thus by BigDataViewer rendering and many other tasks).
+ * <br>
+ * A job is submitted with a priority and an estimation of the memory it uses while it runs. Jobs are started
+ * in priority order ({@link Priority#INTERACTIVE} before {@link Priority#BATCH}, then in submission order) as long as:
+ * <ul>
+ *     <li>fewer than maxConcurrentJobs jobs are running</li>
+ *     <li>the memory of the running jobs plus the memory of the job stays below the memory budget. A job larger
+ *     than the budget is started only when no other job runs</li>
+ * </ul>
+ * When the next job can not be started because of the memory budget, it is deferred until a running job ends.
+ * Submissions above maxQueuedJobs waiting jobs are rejected with a {@link RejectedExecutionException}.
+ * A job should not wait for the result of another job of the same scheduler: it could wait forever.
+ * <br>
+ * If a {@link TaskService} is set, the queue depth, the running jobs, the memory used and the deferred and rejected
+ * counts are shown in a 'Job Scheduler' task while jobs are running.
+ * <br>
+ * {@link JobScheduler#getShared()} returns the scheduler shared by all registration and export commands.
+ */
+public class JobScheduler {
+
+    protected static final Logger logger = LoggerFactory.getLogger(JobScheduler.class);
+
+    public enum Priority {
+        INTERACTIVE, BATCH
+    }
+
+    private static JobScheduler shared;
+
+    /**
+     * @return the scheduler shared by registration and export jobs: as many concurrent jobs as processors,
+     * half of the maximal heap size as memory budget
+     */
+    public static synchronized JobScheduler getShared() {
+        if (shared == null) {
+            shared = new JobScheduler(Runtime.getRuntime().availableProcessors(),
+                    Runtime.getRuntime().maxMemory() / 2, 10_000);
+        }
+        return shared;
+    }
+
+    final int maxConcurrentJobs;
+    final long memoryBudget;
+    final int maxQueuedJobs;
+
+    final PriorityQueue<Job<?>> queue = new PriorityQueue<>((j1, j2) -> {
+        if (j1.priority != j2.priority) return j1.priority.compareTo(j2.priority);
+        return Long.compare(j1.sequence, j2.sequence);
+    });
+
+    final ExecutorService executor;
+
+    long sequence = 0;
+    int runningJobs = 0;
+    long reservedMemory = 0;
+    long submittedJobs = 0;
+    long completedJobs = 0;
+    long deferredJobs = 0;
+    long rejectedJobs = 0;
+
+    // Job currently deferred because of the memory budget, counted once
+    Job<?> deferredJob = null;
+
+    TaskService taskService;
+    Task task;
+    // Number of jobs completed before the current task was created
+    long taskCompletedOffset;
+
+    /**
+     * @param maxConcurrentJobs maximal number of jobs running at the same time
+     * @param memoryBudget maximal estimated memory, in bytes, of the running jobs
+     * @param maxQueuedJobs maximal number of waiting jobs
+     */
+    public JobScheduler(int maxConcurrentJobs, long memoryBudget, int maxQueuedJobs) {
+        this.maxConcurrentJobs = Math.max(1, maxConcurrentJobs);
+        this.memoryBudget = memoryBudget;
+        this.maxQueuedJobs = maxQueuedJobs;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "Job scheduler - " + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Sets the task service used to display the state of the scheduler, if not set already
+     * @param taskService task service
+     */
+    public synchronized void setTaskService(TaskService taskService) {
+        if (this.taskService == null) this.taskService = taskService;
+    }
+
+    /**
+     * Submits a job
+     * @param name name of the job, for logging
+     * @param priority priority of the job
+     * @param estimatedMemory estimated memory used by the job while it runs, in bytes
+     * @param callable the job
+     * @return the future result of the job
+     * @throws RejectedExecutionException if too many jobs are waiting
+     * @param <T> type of the result of the job
+     */
+    public synchronized <T> Future<T> submit(String name, Priority priority, long estimatedMemory, Callable<T> callable) {
+        if (queue.size() >= maxQueuedJobs) {
+            rejectedJobs++;
+            updateTask();
+            throw new RejectedExecutionException("Job " + name + " rejected: " + queue.size() + " jobs are already waiting");
+        }
+        Job<T> job = new Job<>(name, priority, Math.max(0, estimatedMemory), sequence++, callable);
+        queue.add(job);
+        submittedJobs++;
+        dispatch();
+        return job;
+    }
+
+    /**
+     * Submits a job
+     * @see JobScheduler#submit(String, Priority, long, Callable)
+     */
+    public Future<?> submit(String name, Priority priority, long estimatedMemory, Runnable runnable) {
+        return submit(name, priority, estimatedMemory, () -> {
+            runnable.run();
+            return null;
+        });
+    }
+
+    /**
+     * Starts the waiting jobs which can be admitted
+     */
+    private void dispatch() {
+        while (!queue.isEmpty() && (runningJobs < maxConcurrentJobs)) {
+            Job<?> job = queue.peek();
+            boolean fits = reservedMemory + job.estimatedMemory <= memoryBudget;
+            if (!fits && (runningJobs > 0)) {
+                if (deferredJob != job) {
+                    deferredJob = job;
+                    deferredJobs++;
+                    logger.debug("Job " + job.name + " deferred, " + reservedMemory + " bytes reserved");
+                }
+                break;
+            }
+            queue.poll();
+            runningJobs++;
+            reservedMemory += job.estimatedMemory;
+            executor.execute(job);
+        }
+        updateTask();
+    }
+
+    private synchronized void jobDone(Job<?> job) {
+        runningJobs--;
+        reservedMemory -= job.estimatedMemory;
+        completedJobs++;
+        dispatch();
+    }
+
+    private void updateTask() {
+        if (taskService == null) return;
+        boolean idle = (runningJobs == 0) && queue.isEmpty();
+        if (idle) {
+            if (task != null) {
+                task.finish();
+                task = null;
+            }
+            return;
+        }
+        if (task == null) {
+            task = taskService.createTask("Job Scheduler");
+            task.start();
+            taskCompletedOffset = completedJobs;
+        }
+        task.setProgressMaximum(submittedJobs - taskCompletedOffset);
+        task.setProgressValue(completedJobs - taskCompletedOffset);
+        task.setStatusMessage(getStatus());
+    }
+
+    /**
+     * @return a one line summary of the state of the scheduler
+     */
+    public synchronized String getStatus() {
+        return String.format("Running %d/%d - Queued %d - Memory %d/%d MB - Deferred %d - Rejected %d",
+                runningJobs, maxConcurrentJobs, queue.size(),
+                reservedMemory / (1024 * 1024), memoryBudget / (1024 * 1024), deferredJobs, rejectedJobs);
+    }
+
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    public synchronized int getRunningJobs() {
+        return runningJobs;
+    }
+
+    public synchronized long getReservedMemory() {
+        return reservedMemory;
+    }
+
+    public synchronized long getDeferredJobs() {
+        return deferredJobs;
+    }
+
+    public synchronized long getRejectedJobs() {
+        return rejectedJobs;
+    }
+
+    class Job<T> extends FutureTask<T> {
+
+        final String name;
+        final Priority priority;
+        final long estimatedMemory;
+        final long sequence;
+
+        Job(String name, Priority priority, long estimatedMemory, long sequence, Callable<T> callable) {
+            super(callable);
+            this.name = name;
+            this.priority = priority;
+            this.estimatedMemory = estimatedMemory;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            try {
+                super.run();
+            } finally {
+                jobDone(this);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean removed;
+            synchronized (JobScheduler.this) {
+                removed = queue.remove(this);
+                if (removed) {
+                    completedJobs++;
+                    if (deferredJob == this) deferredJob = null;
+                    dispatch();
+                }
+            }
+            return super.cancel(mayInterruptIfRunning);
+        }
+    }
+}
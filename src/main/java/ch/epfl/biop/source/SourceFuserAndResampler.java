@@ -42,6 +42,8 @@ public class SourceFuserAndResampler<T extends NumericType<T> & RealType<T> & Na
 
     private int nThreads;
 
+    int[][] pyramidFactors;
+
     public SourceFuserAndResampler(List<SourceAndConverter<T>> sources_in,
                                    String blendingMode,
                                    SourceAndConverter<?> model,
@@ -66,6 +68,27 @@ public class SourceFuserAndResampler<T extends NumericType<T> & RealType<T> & Na
         this.cacheZ = cacheZ;
     }
 
+    /**
+     * Same as the other constructor, but resolution levels above 0 are derived from the fused level 0
+     * by block downsampling, see {@link AlphaFusedResampledSource}
+     * @param pyramidFactors downsampling factors along X, Y and Z for each level above 0
+     */
+    public SourceFuserAndResampler(List<SourceAndConverter<T>> sources_in,
+                                   String blendingMode,
+                                   SourceAndConverter<?> model,
+                                   String name,
+                                   boolean reuseMipmaps,
+                                   boolean cache,
+                                   boolean interpolate,
+                                   int defaultMipMapLevel,
+                                   int cacheX, int cacheY, int cacheZ, int cacheBounds,
+                                   int nThreads,
+                                   int[][] pyramidFactors) {
+        this(sources_in, blendingMode, model, name, reuseMipmaps, cache, interpolate, defaultMipMapLevel,
+                cacheX, cacheY, cacheZ, cacheBounds, nThreads);
+        this.pyramidFactors = pyramidFactors;
+    }
+
     @Override
     public void run() {
 
@@ -91,7 +114,7 @@ public class SourceFuserAndResampler<T extends NumericType<T> & RealType<T> & Na
             interpolationMap.put(source.getSpimSource(), interpolate?Interpolation.NLINEAR:Interpolation.NEARESTNEIGHBOR);
         }
 
-        Source<?> srcRsampled =
+        AlphaFusedResampledSource<T> fused =
                 new AlphaFusedResampledSource<T>(
                         sources,
                         blendingMode,
@@ -100,14 +123,19 @@ public class SourceFuserAndResampler<T extends NumericType<T> & RealType<T> & Na
                         reuseMipMaps,
                         cache,
                         interpolationMap,
-                        defaultMipMapLevel,cacheX,cacheY,cacheZ);
+                        defaultMipMapLevel,cacheX,cacheY,cacheZ,
+                        pyramidFactors);
+        // Nearest neighbor resampling of affine sources is exact with the scanline sampler
+        fused.setUseScanlineSampling(!interpolate);
+
+        Source<?> srcRsampled = fused;
 
         SourceAndConverter<T> source;
 
         if (volatileIsPossible) {
             SourceAndConverter vsource;
             Source vsrcRsampled;
-            if (cache) {
+            if ((cache)||(pyramidFactors!=null)) { // derived levels are always cached
                 vsrcRsampled = new WrapVolatileSource(srcRsampled, new SharedQueue(nThreads));
             } else {
 
@@ -5,7 +5,9 @@ import bdv.cache.SharedQueue;
 import bdv.util.EmptySource;
 import bdv.util.ResampledSource;
 import bdv.util.WrapVolatileSource;
+import bdv.util.source.process.BlockDownsampler;
 import bdv.util.source.process.LazyDownscaledXY2Source;
+import bdv.util.source.process.LazyPyramidSource;
 import bdv.viewer.Source;
 import bdv.viewer.SourceAndConverter;
 import mpicbg.spim.data.sequence.FinalVoxelDimensions;
@@ -220,8 +222,29 @@ public class SourceHelper {
     }
 
     public static<T extends RealType<T> & NativeType<T>> SourceAndConverter<T> lazyPyramidizeXY2(SourceAndConverter<T> source, SharedQueue queue) {
+        return wrapLazyPyramid(source, new LazyDownscaledXY2Source<>(source.getSpimSource().getName()+"_pyramid", source.getSpimSource()), queue);
+    }
+
+    /**
+     * Creates a lazy 3D pyramid of a source, see {@link LazyPyramidSource}
+     * @param source source to pyramidize, should be cached
+     * @param factors downsampling factors along x, y and z of each level, null to choose them from the voxel
+     *                anisotropy with {@link LazyPyramidSource#autoFactors(Source, int, int)}, down to 64 pixels
+     * @param reduction {@link BlockDownsampler#MEAN}, {@link BlockDownsampler#MAX} or {@link BlockDownsampler#MODE}
+     * @param queue queue used to fetch the volatile lower resolution levels
+     * @return the pyramidized source
+     * @param <T> pixel type
+     */
+    public static<T extends RealType<T> & NativeType<T>> SourceAndConverter<T> lazyPyramidize(SourceAndConverter<T> source, int[][] factors, String reduction, SharedQueue queue) {
+        if (factors == null) {
+            int t = sc.fiji.bdvpg.source.SourceHelper.hasAValidTimepoint(source.getSpimSource()) ?
+                    sc.fiji.bdvpg.source.SourceHelper.getAValidTimepoint(source.getSpimSource()) : 0;
+            factors = LazyPyramidSource.autoFactors(source.getSpimSource(), t, 64);
+        }
+        return wrapLazyPyramid(source, new LazyPyramidSource<>(source.getSpimSource().getName()+"_pyramid", source.getSpimSource(), factors, reduction), queue);
+    }
 
-            Source<T> srcLazyDownscaled = new LazyDownscaledXY2Source<>(source.getSpimSource().getName()+"_pyramid", source.getSpimSource());
+    private static<T extends RealType<T> & NativeType<T>> SourceAndConverter<T> wrapLazyPyramid(SourceAndConverter<T> source, Source<T> srcLazyDownscaled, SharedQueue queue) {
 
             SourceAndConverter<T> source_out;
 
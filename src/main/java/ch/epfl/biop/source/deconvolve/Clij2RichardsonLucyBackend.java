@@ -0,0 +1,64 @@
+/*-
+ * #%L
+ * Tiled GPU Deconvolution for BigDataViewer-Playground - BIOP - EPFL
+ * %%
+ * Copyright (C) 2024 - 2025 EPFL
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+package ch.epfl.biop.source.deconvolve;
+
+import net.haesleinhuepf.clijx.imglib2cache.Clij2RichardsonLucyImglib2Cache;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import java.util.function.Consumer;
+
+/**
+ * Richardson-Lucy deconvolution on the GPU, via CLIJ2.
+ * <p>
+ * The image is processed tile by tile on the GPU, see {@link Clij2RichardsonLucyImglib2Cache}.
+ * </p>
+ */
+public class Clij2RichardsonLucyBackend implements DeconvolutionBackend {
+
+    private final Clij2RichardsonLucyImglib2Cache.Builder builder;
+
+    public Clij2RichardsonLucyBackend(RandomAccessibleInterval<? extends RealType<?>> psf,
+                                      int[] overlap,
+                                      int numIterations,
+                                      boolean nonCirculant,
+                                      float regularizationFactor) {
+        builder = Clij2RichardsonLucyImglib2Cache.builder()
+                .nonCirculant(nonCirculant)
+                .numberOfIterations(numIterations)
+                .psf(psf)
+                .overlap(overlap[0], overlap[1], overlap[2])
+                .regularizationFactor(regularizationFactor);
+    }
+
+    @Override
+    public synchronized <T extends RealType<T>> Consumer<RandomAccessibleInterval<FloatType>> forImage(RandomAccessibleInterval<T> input) {
+        Clij2RichardsonLucyImglib2Cache<FloatType, T, T> op =
+                (Clij2RichardsonLucyImglib2Cache<FloatType, T, T>) builder.rai(input).build();
+        return op::accept;
+    }
+}
@@ -0,0 +1,367 @@
+/*-
+ * #%L
+ * Tiled GPU Deconvolution for BigDataViewer-Playground - BIOP - EPFL
+ * %%
+ * Copyright (C) 2024 - 2025 EPFL
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+package ch.epfl.biop.source.deconvolve;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Richardson-Lucy deconvolution on the CPU, in pure Java.
+ * <p>
+ * Each cell is deconvolved independently: the cell, enlarged by the overlap, is read from the input image
+ * (mirrored at the image borders), deconvolved with FFT based convolutions, and the central part is written
+ * into the cell. A cell is processed by a single thread: all cores are used when the cells of the
+ * deconvolved source are loaded concurrently, which is the case with the fetcher threads of BigDataViewer
+ * or when a source is exported.
+ * </p>
+ * <p>
+ * The FFT dimensions are rounded up to the next power of two. The FFT of the PSF (and the normalization
+ * weights in non-circulant mode) are computed once per FFT shape and shared between threads. The work
+ * buffers are allocated once per thread and reused for all the cells of the same shape.
+ * </p>
+ * <p>
+ * In non-circulant mode, the tile is embedded into a larger FFT box, the pixels outside the tile being
+ * considered as not observed (Bertero and Boccacci, 2005). When the regularization factor is strictly
+ * positive, the total variation regularization of Dey et al. (2006) is applied at each iteration.
+ * </p>
+ */
+public class CpuRichardsonLucyBackend implements DeconvolutionBackend {
+
+    private static final float EPSILON = 1e-6f;
+
+    // Normalization weights below this value are considered as not covered by the observed tile
+    private static final float MIN_WEIGHT = 1e-3f;
+
+    private final float[] psf;
+    private final int[] psfDimensions;
+    private final int[] overlap;
+    private final int numIterations;
+    private final boolean nonCirculant;
+    private final float regularizationFactor;
+
+    private final Map<String, Kernel> kernels = new ConcurrentHashMap<>();
+
+    private final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+
+    public CpuRichardsonLucyBackend(RandomAccessibleInterval<? extends RealType<?>> psf,
+                                    int[] overlap,
+                                    int numIterations,
+                                    boolean nonCirculant,
+                                    float regularizationFactor) {
+        this.psfDimensions = new int[]{1, 1, 1};
+        for (int d = 0; d < Math.min(3, psf.numDimensions()); d++) {
+            psfDimensions[d] = (int) psf.dimension(d);
+        }
+        this.psf = new float[psfDimensions[0] * psfDimensions[1] * psfDimensions[2]];
+        Cursor<? extends RealType<?>> cursor = Views.flatIterable(psf).cursor();
+        double sum = 0;
+        for (int i = 0; i < this.psf.length; i++) {
+            this.psf[i] = Math.max(0, cursor.next().getRealFloat());
+            sum += this.psf[i];
+        }
+        if (sum <= 0) {
+            throw new IllegalArgumentException("The PSF should have a strictly positive sum");
+        }
+        for (int i = 0; i < this.psf.length; i++) {
+            this.psf[i] /= sum;
+        }
+        this.overlap = overlap;
+        this.numIterations = numIterations;
+        this.nonCirculant = nonCirculant;
+        this.regularizationFactor = regularizationFactor;
+    }
+
+    @Override
+    public <T extends RealType<T>> Consumer<RandomAccessibleInterval<FloatType>> forImage(RandomAccessibleInterval<T> input) {
+        final RandomAccessible<T> extended = Views.extendMirrorSingle(input);
+        return cell -> deconvolve(extended, cell);
+    }
+
+    private <T extends RealType<T>> void deconvolve(RandomAccessible<T> input, RandomAccessibleInterval<FloatType> cell) {
+        final int[] cellSize = new int[3];
+        final int[] fftSize = new int[3];
+        final int[] padding = new int[3];
+        final long[] readMin = new long[3];
+        final long[] readMax = new long[3];
+        for (int d = 0; d < 3; d++) {
+            cellSize[d] = (int) cell.dimension(d);
+            int regionSize = cellSize[d] + 2 * overlap[d];
+            fftSize[d] = FloatFFT3D.nextPowerOfTwo(nonCirculant ?
+                    regionSize + psfDimensions[d] - 1 : Math.max(regionSize, psfDimensions[d]));
+            padding[d] = (fftSize[d] - regionSize) / 2;
+            long regionMin = cell.min(d) - overlap[d];
+            if (nonCirculant) {
+                // Only the tile is observed
+                readMin[d] = regionMin;
+                readMax[d] = regionMin + regionSize - 1;
+            } else {
+                // The whole FFT box is filled with real data
+                readMin[d] = regionMin - padding[d];
+                readMax[d] = readMin[d] + fftSize[d] - 1;
+            }
+        }
+
+        final Kernel kernel = kernels.computeIfAbsent(Arrays.toString(fftSize) + Arrays.toString(cellSize),
+                k -> new Kernel(fftSize, cellSize, padding));
+        final FloatFFT3D fft = kernel.fft;
+        final int n = fft.n;
+        final Buffers b = buffers.get();
+        b.ensureCapacity(n, fft.lineBufferSize());
+
+        final float[] observed = b.observed;
+        final float[] estimate = b.estimate;
+        final float[] spectrum = b.spectrum;
+
+        // Reads the observed pixels
+        final int[] observedOffset = new int[3];
+        if (nonCirculant) {
+            Arrays.fill(observed, 0, n, 0);
+            observedOffset[0] = padding[0];
+            observedOffset[1] = padding[1];
+            observedOffset[2] = padding[2];
+        }
+        final Cursor<T> inputCursor = Views.flatIterable(Views.interval(input, new FinalInterval(readMin, readMax))).cursor();
+        double observedSum = 0;
+        final int sx = (int) (readMax[0] - readMin[0] + 1);
+        final int sy = (int) (readMax[1] - readMin[1] + 1);
+        final int sz = (int) (readMax[2] - readMin[2] + 1);
+        for (int z = 0; z < sz; z++) {
+            for (int y = 0; y < sy; y++) {
+                int i = observedOffset[0] + fft.nx * (y + observedOffset[1] + fft.ny * (z + observedOffset[2]));
+                for (int x = 0; x < sx; x++) {
+                    float v = Math.max(0, inputCursor.next().getRealFloat());
+                    observed[i++] = v;
+                    observedSum += v;
+                }
+            }
+        }
+
+        // Initial estimate
+        if (nonCirculant) {
+            Arrays.fill(estimate, 0, n, Math.max(EPSILON, (float) (observedSum / ((long) sx * sy * sz))));
+        } else {
+            for (int i = 0; i < n; i++) {
+                estimate[i] = Math.max(EPSILON, observed[i]);
+            }
+        }
+
+        for (int iteration = 0; iteration < numIterations; iteration++) {
+            // Blurred estimate
+            for (int i = 0; i < n; i++) {
+                spectrum[2 * i] = estimate[i];
+                spectrum[2 * i + 1] = 0;
+            }
+            fft.forward(spectrum, b.line);
+            multiply(spectrum, kernel.otf, n, false);
+            fft.inverse(spectrum, b.line);
+
+            // Ratio between the observed and the blurred estimate
+            for (int i = 0; i < n; i++) {
+                if ((kernel.observedMask == null) || kernel.observedMask[i]) {
+                    spectrum[2 * i] = observed[i] / Math.max(EPSILON, spectrum[2 * i]);
+                } else {
+                    spectrum[2 * i] = 0;
+                }
+                spectrum[2 * i + 1] = 0;
+            }
+
+            // Correlation of the ratio with the PSF
+            fft.forward(spectrum, b.line);
+            multiply(spectrum, kernel.otf, n, true);
+            fft.inverse(spectrum, b.line);
+
+            if (regularizationFactor > 0) {
+                totalVariationFactors(estimate, b.regularization, fft.nx, fft.ny, fft.nz, regularizationFactor);
+            }
+
+            for (int i = 0; i < n; i++) {
+                float correction = spectrum[2 * i];
+                if (kernel.weights != null) correction *= kernel.weights[i];
+                if (regularizationFactor > 0) correction *= b.regularization[i];
+                estimate[i] = Math.max(0, estimate[i] * correction);
+            }
+        }
+
+        // Writes the center of the tile into the cell
+        final Cursor<FloatType> cellCursor = Views.flatIterable(cell).cursor();
+        for (int z = 0; z < cellSize[2]; z++) {
+            for (int y = 0; y < cellSize[1]; y++) {
+                int i = (padding[0] + overlap[0]) + fft.nx * ((y + padding[1] + overlap[1]) + fft.ny * (z + padding[2] + overlap[2]));
+                for (int x = 0; x < cellSize[0]; x++) {
+                    cellCursor.next().set(estimate[i++]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Complex multiplication of a spectrum by the optical transfer function, or by its conjugate
+     */
+    private static void multiply(float[] spectrum, float[] otf, int n, boolean conjugate) {
+        for (int i = 0; i < n; i++) {
+            final float a = spectrum[2 * i];
+            final float b = spectrum[2 * i + 1];
+            final float c = otf[2 * i];
+            final float d = conjugate ? -otf[2 * i + 1] : otf[2 * i + 1];
+            spectrum[2 * i] = a * c - b * d;
+            spectrum[2 * i + 1] = a * d + b * c;
+        }
+    }
+
+    /**
+     * Computes the multiplicative total variation factors 1 / (1 - lambda * div(grad(e) / |grad(e)|)).
+     * The denominator is bounded to avoid amplifying the estimate where the divergence is large.
+     */
+    private static void totalVariationFactors(float[] estimate, float[] factors, int nx, int ny, int nz, float lambda) {
+        final float[] g = new float[3];
+        final float[] gx = new float[3];
+        final float[] gy = new float[3];
+        final float[] gz = new float[3];
+        for (int z = 0; z < nz; z++) {
+            for (int y = 0; y < ny; y++) {
+                for (int x = 0; x < nx; x++) {
+                    normalizedGradient(estimate, nx, ny, nz, x, y, z, g);
+                    float divergence = g[0] + g[1] + g[2];
+                    if (x > 0) {
+                        normalizedGradient(estimate, nx, ny, nz, x - 1, y, z, gx);
+                        divergence -= gx[0];
+                    }
+                    if (y > 0) {
+                        normalizedGradient(estimate, nx, ny, nz, x, y - 1, z, gy);
+                        divergence -= gy[1];
+                    }
+                    if (z > 0) {
+                        normalizedGradient(estimate, nx, ny, nz, x, y, z - 1, gz);
+                        divergence -= gz[2];
+                    }
+                    factors[x + nx * (y + ny * z)] = 1f / Math.max(0.1f, 1f - lambda * divergence);
+                }
+            }
+        }
+    }
+
+    private static void normalizedGradient(float[] estimate, int nx, int ny, int nz, int x, int y, int z, float[] g) {
+        final int i = x + nx * (y + ny * z);
+        final float v = estimate[i];
+        final float dx = (x + 1 < nx) ? estimate[i + 1] - v : 0;
+        final float dy = (y + 1 < ny) ? estimate[i + nx] - v : 0;
+        final float dz = (z + 1 < nz) ? estimate[i + nx * ny] - v : 0;
+        final float norm = (float) Math.sqrt(dx * dx + dy * dy + dz * dz + EPSILON);
+        g[0] = dx / norm;
+        g[1] = dy / norm;
+        g[2] = dz / norm;
+    }
+
+    /**
+     * FFT of the PSF for a given FFT shape, and, in non-circulant mode, the observed mask and
+     * the normalization weights of the tile
+     */
+    private class Kernel {
+
+        final FloatFFT3D fft;
+        final float[] otf;
+        final boolean[] observedMask;
+        final float[] weights;
+
+        Kernel(int[] fftSize, int[] cellSize, int[] padding) {
+            fft = new FloatFFT3D(fftSize[0], fftSize[1], fftSize[2]);
+            final int n = fft.n;
+            final float[] line = new float[fft.lineBufferSize()];
+
+            // PSF centered on the origin, wrapped around
+            otf = new float[2 * n];
+            for (int pz = 0; pz < psfDimensions[2]; pz++) {
+                int z = Math.floorMod(pz - psfDimensions[2] / 2, fft.nz);
+                for (int py = 0; py < psfDimensions[1]; py++) {
+                    int y = Math.floorMod(py - psfDimensions[1] / 2, fft.ny);
+                    for (int px = 0; px < psfDimensions[0]; px++) {
+                        int x = Math.floorMod(px - psfDimensions[0] / 2, fft.nx);
+                        otf[2 * (x + fft.nx * (y + fft.ny * z))] +=
+                                psf[px + psfDimensions[0] * (py + psfDimensions[1] * pz)];
+                    }
+                }
+            }
+            fft.forward(otf, line);
+
+            if (nonCirculant) {
+                observedMask = new boolean[n];
+                final float[] mask = new float[2 * n];
+                for (int z = 0; z < cellSize[2] + 2 * overlap[2]; z++) {
+                    for (int y = 0; y < cellSize[1] + 2 * overlap[1]; y++) {
+                        int i = padding[0] + fft.nx * ((y + padding[1]) + fft.ny * (z + padding[2]));
+                        for (int x = 0; x < cellSize[0] + 2 * overlap[0]; x++) {
+                            observedMask[i] = true;
+                            mask[2 * i] = 1;
+                            i++;
+                        }
+                    }
+                }
+                fft.forward(mask, line);
+                multiply(mask, otf, n, true);
+                fft.inverse(mask, line);
+                weights = new float[n];
+                for (int i = 0; i < n; i++) {
+                    weights[i] = (mask[2 * i] > MIN_WEIGHT) ? 1f / mask[2 * i] : 0;
+                }
+            } else {
+                observedMask = null;
+                weights = null;
+            }
+        }
+    }
+
+    /**
+     * Work buffers of a thread
+     */
+    private static class Buffers {
+
+        int capacity = -1;
+        float[] observed, estimate, spectrum, regularization, line;
+
+        void ensureCapacity(int n, int lineSize) {
+            if (capacity != n) {
+                observed = new float[n];
+                estimate = new float[n];
+                spectrum = new float[2 * n];
+                regularization = new float[n];
+                capacity = n;
+            }
+            if ((line == null) || (line.length < lineSize)) {
+                line = new float[lineSize];
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*-
+ * #%L
+ * Tiled GPU Deconvolution for BigDataViewer-Playground - BIOP - EPFL
+ * %%
+ * Copyright (C) 2024 - 2025 EPFL
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+package ch.epfl.biop.source.deconvolve;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import java.util.function.Consumer;
+
+/**
+ * Computes the Richardson-Lucy deconvolution of the cells of an image.
+ * <p>
+ * A backend holds the PSF and the deconvolution parameters. For each image (one per timepoint),
+ * {@link DeconvolutionBackend#forImage(RandomAccessibleInterval)} returns the operation which fills
+ * a cell with the deconvolved values of the image in the cell interval. This operation is called
+ * concurrently by the threads loading the cells of the deconvolved source.
+ * </p>
+ */
+public interface DeconvolutionBackend {
+
+    String GPU_CLIJ2 = "GPU (CLIJ2)";
+    String CPU = "CPU";
+
+    /**
+     * @param <T> the input pixel type
+     * @param input image to deconvolve
+     * @return the operation filling a cell with the deconvolved values of the input image
+     */
+    <T extends RealType<T>> Consumer<RandomAccessibleInterval<FloatType>> forImage(RandomAccessibleInterval<T> input);
+
+    /**
+     * Creates a deconvolution backend
+     *
+     * @param backend {@link DeconvolutionBackend#GPU_CLIJ2} or {@link DeconvolutionBackend#CPU}
+     * @param psf the point spread function
+     * @param overlap the overlap between tiles [x, y, z]
+     * @param numIterations number of Richardson-Lucy iterations
+     * @param nonCirculant whether to use non-circulant boundary conditions
+     * @param regularizationFactor regularization factor (0 = no regularization)
+     * @return the backend
+     */
+    static DeconvolutionBackend create(String backend,
+                                       RandomAccessibleInterval<? extends RealType<?>> psf,
+                                       int[] overlap,
+                                       int numIterations,
+                                       boolean nonCirculant,
+                                       float regularizationFactor) {
+        switch (backend) {
+            case GPU_CLIJ2:
+                return new Clij2RichardsonLucyBackend(psf, overlap, numIterations, nonCirculant, regularizationFactor);
+            case CPU:
+                return new CpuRichardsonLucyBackend(psf, overlap, numIterations, nonCirculant, regularizationFactor);
+            default:
+                throw new IllegalArgumentException("Unknown deconvolution backend " + backend);
+        }
+    }
+}
@@ -25,9 +25,9 @@
  */
 package ch.epfl.biop.source.deconvolve;
 
+import bdv.util.source.cache.DiskCellCache;
 import bdv.util.source.process.VoxelProcessedSource;
 import bdv.viewer.SourceAndConverter;
-import net.haesleinhuepf.clijx.imglib2cache.Clij2RichardsonLucyImglib2Cache;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.cache.Cache;
 import net.imglib2.cache.img.CachedCellImg;
@@ -52,6 +52,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 import static sc.fiji.bdvpg.scijava.service.tree.inspect.SourceInspector.appendInspectorResult;
 
@@ -72,9 +73,10 @@ public class DeconvolutionProcessor<T extends RealType<T>> implements VoxelProce
     private final boolean nonCirculant;
     private final float regularizationFactor;
     private final SourceAndConverter<? extends RealType<?>> psfSource;
+    private final String backend;
 
     // Cached operations per timepoint (lazily initialized)
-    private transient List<Clij2RichardsonLucyImglib2Cache<FloatType, T, T>> ops;
+    private transient List<Consumer<RandomAccessibleInterval<FloatType>>> ops;
     private transient SourceAndConverter<T> source;
     private transient ConcurrentHashMap<Integer, ConcurrentHashMap<Integer, RandomAccessibleInterval<FloatType>>> cachedRAIs;
 
@@ -91,6 +93,25 @@ public class DeconvolutionProcessor<T extends RealType<T>> implements VoxelProce
     public DeconvolutionProcessor(int[] cellDimensions, int[] overlap, int numIterations,
                                    boolean nonCirculant, float regularizationFactor,
                                    SourceAndConverter<? extends RealType<?>> psfSource) {
+        this(cellDimensions, overlap, numIterations, nonCirculant, regularizationFactor, psfSource,
+                DeconvolutionBackend.GPU_CLIJ2);
+    }
+
+    /**
+     * Creates a new DeconvolutionProcessor.
+     *
+     * @param cellDimensions the cell dimensions for tiled processing
+     * @param overlap the overlap between tiles
+     * @param numIterations number of Richardson-Lucy iterations
+     * @param nonCirculant whether to use non-circulant boundary conditions
+     * @param regularizationFactor regularization factor to prevent noise amplification
+     * @param psfSource the point spread function as a SourceAndConverter
+     * @param backend {@link DeconvolutionBackend#GPU_CLIJ2} or {@link DeconvolutionBackend#CPU}
+     */
+    public DeconvolutionProcessor(int[] cellDimensions, int[] overlap, int numIterations,
+                                   boolean nonCirculant, float regularizationFactor,
+                                   SourceAndConverter<? extends RealType<?>> psfSource, String backend) {
+        this.backend = backend;
         this.cellDimensions = cellDimensions;
         this.overlap = overlap;
         this.numIterations = numIterations;
@@ -117,15 +138,11 @@ public class DeconvolutionProcessor<T extends RealType<T>> implements VoxelProce
         RandomAccessibleInterval<? extends RealType<?>> psfRAI =
                 (RandomAccessibleInterval<? extends RealType<?>>) psfSource.getSpimSource().getSource(0, 0);
 
-        Clij2RichardsonLucyImglib2Cache.Builder builder = Clij2RichardsonLucyImglib2Cache.builder()
-                .nonCirculant(nonCirculant)
-                .numberOfIterations(numIterations)
-                .psf(psfRAI)
-                .overlap(overlap[0], overlap[1], overlap[2])
-                .regularizationFactor(regularizationFactor);
+        DeconvolutionBackend deconvolutionBackend = DeconvolutionBackend.create(backend, psfRAI, overlap,
+                numIterations, nonCirculant, regularizationFactor);
 
         for (int t = 0; t < numTimepoints; t++) {
-            ops.add((Clij2RichardsonLucyImglib2Cache<FloatType, T, T>) builder.rai(source.getSpimSource().getSource(t, 0)).build());
+            ops.add(deconvolutionBackend.forImage(source.getSpimSource().getSource(t, 0)));
         }
     }
 
@@ -142,14 +159,32 @@ public class DeconvolutionProcessor<T extends RealType<T>> implements VoxelProce
         CellGrid grid = new CellGrid(rai.dimensionsAsLongArray(), cellDimensions);
         FloatType type = new FloatType();
         Cache<Long, Cell<?>> cache = (new GlobalLoaderCache(new Object(), t, level))
-                .withLoader(LoadedCellCacheLoader.get(grid, cell -> {
+                .withLoader(LoadedCellCacheLoader.get(grid, DiskCellCache.wrapIfEnabled(
+                        "Deconvolved_" + source.getSpimSource().getName(), () -> getDiskCacheParameters(t),
+                        t, level, grid, type, cell -> {
                     ops.get(t).accept(cell);
-                }, type, AccessFlags.setOf(AccessFlags.VOLATILE)));
+                }), type, AccessFlags.setOf(AccessFlags.VOLATILE)));
         CachedCellImg img = new CachedCellImg(grid, type, cache,
                 ArrayDataAccessFactory.get(PrimitiveType.BYTE, AccessFlags.setOf(AccessFlags.VOLATILE)));
         return img;
     }
 
+    /**
+     * @param t timepoint
+     * @return the deconvolved source and the deconvolution parameters, used to identify the cells stored
+     * in the {@link DiskCellCache}
+     */
+    private String getDiskCacheParameters(int t) {
+        return "source=" + DiskCellCache.getSourceIdentity(source.getSpimSource(), t)
+                + ";psf=" + DiskCellCache.getSourceIdentity(psfSource.getSpimSource(), 0)
+                + ";iterations=" + numIterations
+                + ";overlap=" + Arrays.toString(overlap)
+                + ";cells=" + Arrays.toString(cellDimensions)
+                + ";regularization=" + regularizationFactor
+                + ";nonCirculant=" + nonCirculant
+                + ";backend=" + backend;
+    }
+
     @Override
     public synchronized RandomAccessibleInterval<FloatType> process(RandomAccessibleInterval<T> rai, int t, int level) {
         if (!isInitialized()) {
@@ -190,6 +225,10 @@ public class DeconvolutionProcessor<T extends RealType<T>> implements VoxelProce
         return psfSource;
     }
 
+    public String getBackend() {
+        return backend;
+    }
+
     @Override
     public Set<SourceAndConverter<?>> inspect(DefaultMutableTreeNode parent, SourceAndConverter<?> source,
                                                ISourceService SourceService,
@@ -207,6 +246,7 @@ public class DeconvolutionProcessor<T extends RealType<T>> implements VoxelProce
         parent.add(new DefaultMutableTreeNode("Non-Circulant: " + nonCirculant));
         parent.add(new DefaultMutableTreeNode("Regularization Factor: " + regularizationFactor));
         parent.add(new DefaultMutableTreeNode("PSF Source: " + psfSource.getSpimSource().getName()));
+        parent.add(new DefaultMutableTreeNode("Backend: " + backend));
         parent.add(new DefaultMutableTreeNode("Output Type: FloatType"));
 
         DefaultMutableTreeNode sourceNode = new DefaultMutableTreeNode(
@@ -27,7 +27,6 @@ package ch.epfl.biop.source.deconvolve;
 
 import bdv.util.source.process.VoxelProcessedSource;
 import bdv.viewer.SourceAndConverter;
-import net.haesleinhuepf.clijx.imglib2cache.Clij2RichardsonLucyImglib2Cache;
 import net.imglib2.Cursor;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.cache.Cache;
@@ -61,6 +60,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 import static sc.fiji.bdvpg.scijava.service.tree.inspect.SourceInspector.appendInspectorResult;
 
@@ -82,9 +82,10 @@ public class DeconvolutionProcessorCast<T extends RealType<T> & NativeType<T>> i
     private final boolean nonCirculant;
     private final float regularizationFactor;
     private final SourceAndConverter<? extends RealType<?>> psfSource;
+    private final String backend;
 
     // Cached operations per timepoint (lazily initialized)
-    private transient List<Clij2RichardsonLucyImglib2Cache<FloatType, T, T>> ops;
+    private transient List<Consumer<RandomAccessibleInterval<FloatType>>> ops;
     private transient SourceAndConverter<T> source;
     private transient ConcurrentHashMap<Integer, ConcurrentHashMap<Integer, RandomAccessibleInterval<T>>> cachedRAIs;
 
@@ -101,6 +102,25 @@ public class DeconvolutionProcessorCast<T extends RealType<T> & NativeType<T>> i
     public DeconvolutionProcessorCast(int[] cellDimensions, int[] overlap, int numIterations,
                                        boolean nonCirculant, float regularizationFactor,
                                        SourceAndConverter<? extends RealType<?>> psfSource) {
+        this(cellDimensions, overlap, numIterations, nonCirculant, regularizationFactor, psfSource,
+                DeconvolutionBackend.GPU_CLIJ2);
+    }
+
+    /**
+     * Creates a new DeconvolutionProcessorCast.
+     *
+     * @param cellDimensions the cell dimensions for tiled processing
+     * @param overlap the overlap between tiles
+     * @param numIterations number of Richardson-Lucy iterations
+     * @param nonCirculant whether to use non-circulant boundary conditions
+     * @param regularizationFactor regularization factor to prevent noise amplification
+     * @param psfSource the point spread function as a SourceAndConverter
+     * @param backend {@link DeconvolutionBackend#GPU_CLIJ2} or {@link DeconvolutionBackend#CPU}
+     */
+    public DeconvolutionProcessorCast(int[] cellDimensions, int[] overlap, int numIterations,
+                                       boolean nonCirculant, float regularizationFactor,
+                                       SourceAndConverter<? extends RealType<?>> psfSource, String backend) {
+        this.backend = backend;
         this.cellDimensions = cellDimensions;
         this.overlap = overlap;
         this.numIterations = numIterations;
@@ -127,15 +147,11 @@ public class DeconvolutionProcessorCast<T extends RealType<T> & NativeType<T>> i
         RandomAccessibleInterval<? extends RealType<?>> psfRAI =
                 (RandomAccessibleInterval<? extends RealType<?>>) psfSource.getSpimSource().getSource(0, 0);
 
-        Clij2RichardsonLucyImglib2Cache.Builder builder = Clij2RichardsonLucyImglib2Cache.builder()
-                .nonCirculant(nonCirculant)
-                .numberOfIterations(numIterations)
-                .psf(psfRAI)
-                .overlap(overlap[0], overlap[1], overlap[2])
-                .regularizationFactor(regularizationFactor);
+        DeconvolutionBackend deconvolutionBackend = DeconvolutionBackend.create(backend, psfRAI, overlap,
+                numIterations, nonCirculant, regularizationFactor);
 
         for (int t = 0; t < numTimepoints; t++) {
-            ops.add((Clij2RichardsonLucyImglib2Cache<FloatType, T, T>) builder.rai(source.getSpimSource().getSource(t, 0)).build());
+            ops.add(deconvolutionBackend.forImage(source.getSpimSource().getSource(t, 0)));
         }
     }
 
@@ -236,6 +252,10 @@ public class DeconvolutionProcessorCast<T extends RealType<T> & NativeType<T>> i
         return psfSource;
     }
 
+    public String getBackend() {
+        return backend;
+    }
+
     public SourceAndConverter<? extends RealType<?>> getRawSource() {
         return source;
     }
@@ -257,6 +277,7 @@ public class DeconvolutionProcessorCast<T extends RealType<T> & NativeType<T>> i
         parent.add(new DefaultMutableTreeNode("Non-Circulant: " + nonCirculant));
         parent.add(new DefaultMutableTreeNode("Regularization Factor: " + regularizationFactor));
         parent.add(new DefaultMutableTreeNode("PSF Source: " + psfSource.getSpimSource().getName()));
+        parent.add(new DefaultMutableTreeNode("Backend: " + backend));
         parent.add(new DefaultMutableTreeNode("Output Type: Original (cast)"));
 
         DefaultMutableTreeNode sourceNode = new DefaultMutableTreeNode(
@@ -72,6 +72,7 @@ public class DeconvolutionProcessorCastAdapter implements IClassRuntimeAdapter<V
         obj.addProperty("num_iterations", processor.getNumIterations());
         obj.addProperty("non_circulant", processor.isNonCirculant());
         obj.addProperty("regularization_factor", processor.getRegularizationFactor());
+        obj.addProperty("backend", processor.getBackend());
 
         // Serialize PSF source via the SourceAndConverter serialization mechanism
         SourceAndConverter<?> psfSource = processor.getPsfSource();
@@ -91,6 +92,8 @@ public class DeconvolutionProcessorCastAdapter implements IClassRuntimeAdapter<V
         int numIterations = obj.getAsJsonPrimitive("num_iterations").getAsInt();
         boolean nonCirculant = obj.getAsJsonPrimitive("non_circulant").getAsBoolean();
         float regularizationFactor = obj.getAsJsonPrimitive("regularization_factor").getAsFloat();
+        // Processors serialized before the backend was selectable run on the GPU
+        String backend = obj.has("backend") ? obj.getAsJsonPrimitive("backend").getAsString() : DeconvolutionBackend.GPU_CLIJ2;
 
         // Deserialize PSF source
         @SuppressWarnings("unchecked")
@@ -99,7 +102,7 @@ public class DeconvolutionProcessorCastAdapter implements IClassRuntimeAdapter<V
         SourceAndConverter<? extends RealType<?>> rawSource =
                 (SourceAndConverter<? extends RealType<?>>) context.deserialize(obj.get("raw_source"), SourceAndConverter.class);
 
-        DeconvolutionProcessorCast p = new DeconvolutionProcessorCast<>(cellDimensions, overlap, numIterations, nonCirculant, regularizationFactor, psfSource);
+        DeconvolutionProcessorCast p = new DeconvolutionProcessorCast<>(cellDimensions, overlap, numIterations, nonCirculant, regularizationFactor, psfSource, backend);
         p.initialize(rawSource);
         return p;
     }
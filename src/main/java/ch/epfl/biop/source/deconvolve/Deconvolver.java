@@ -33,10 +33,11 @@ import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
 
 /**
- * Utility class for creating deconvolved sources using Richardson-Lucy GPU deconvolution.
+ * Utility class for creating deconvolved sources using Richardson-Lucy deconvolution.
  * <p>
  * This class provides methods to create lazy, tiled deconvolution sources that
- * use CLIJ2 for GPU-accelerated processing.
+ * use CLIJ2 for GPU-accelerated processing, or a pure Java implementation running
+ * on the CPU, see {@link DeconvolutionBackend}.
  * </p>
  */
 public class Deconvolver {
@@ -47,7 +48,7 @@ public class Deconvolver {
      * @param <T> the input pixel type
      * @param source the source to deconvolve
      * @param name the name for the output source
-     * @param cellDimensions tile dimensions for GPU processing [x, y, z]
+     * @param cellDimensions tile dimensions for processing [x, y, z]
      * @param overlap overlap between tiles [x, y, z]
      * @param numIterations number of Richardson-Lucy iterations
      * @param nonCirculant whether to use non-circulant boundary conditions
@@ -67,8 +68,30 @@ public class Deconvolver {
             SourceAndConverter<? extends RealType<?>> psfSource,
             SharedQueue queue) {
 
+        return getDeconvolved(source, name, cellDimensions, overlap, numIterations, nonCirculant, regularizationFactor,
+                psfSource, queue, DeconvolutionBackend.GPU_CLIJ2);
+    }
+
+    /**
+     * Same as {@link Deconvolver#getDeconvolved(SourceAndConverter, String, int[], int[], int, boolean, float, SourceAndConverter, SharedQueue)},
+     * with a choice of backend.
+     *
+     * @param backend {@link DeconvolutionBackend#GPU_CLIJ2} or {@link DeconvolutionBackend#CPU}
+     */
+    public static <T extends RealType<T>> SourceAndConverter<FloatType> getDeconvolved(
+            final SourceAndConverter<T> source,
+            String name,
+            int[] cellDimensions,
+            int[] overlap,
+            int numIterations,
+            boolean nonCirculant,
+            float regularizationFactor,
+            SourceAndConverter<? extends RealType<?>> psfSource,
+            SharedQueue queue,
+            String backend) {
+
         DeconvolutionProcessor<T> processor = new DeconvolutionProcessor<>(
-                cellDimensions, overlap, numIterations, nonCirculant, regularizationFactor, psfSource);
+                cellDimensions, overlap, numIterations, nonCirculant, regularizationFactor, psfSource, backend);
         processor.initialize(source);
 
         return new SourceVoxelProcessor<>(name, source, processor, new FloatType(), queue).get();
@@ -80,7 +103,7 @@ public class Deconvolver {
      * @param <T> the input and output pixel type
      * @param source the source to deconvolve
      * @param name the name for the output source
-     * @param cellDimensions tile dimensions for GPU processing [x, y, z]
+     * @param cellDimensions tile dimensions for processing [x, y, z]
      * @param overlap overlap between tiles [x, y, z]
      * @param numIterations number of Richardson-Lucy iterations
      * @param nonCirculant whether to use non-circulant boundary conditions
@@ -100,8 +123,30 @@ public class Deconvolver {
             SourceAndConverter<? extends RealType<?>> psfSource,
             SharedQueue queue) {
 
+        return getDeconvolvedCast(source, name, cellDimensions, overlap, numIterations, nonCirculant, regularizationFactor,
+                psfSource, queue, DeconvolutionBackend.GPU_CLIJ2);
+    }
+
+    /**
+     * Same as {@link Deconvolver#getDeconvolvedCast(SourceAndConverter, String, int[], int[], int, boolean, float, SourceAndConverter, SharedQueue)},
+     * with a choice of backend.
+     *
+     * @param backend {@link DeconvolutionBackend#GPU_CLIJ2} or {@link DeconvolutionBackend#CPU}
+     */
+    public static <T extends RealType<T> & NativeType<T>> SourceAndConverter<T> getDeconvolvedCast(
+            final SourceAndConverter<T> source,
+            String name,
+            int[] cellDimensions,
+            int[] overlap,
+            int numIterations,
+            boolean nonCirculant,
+            float regularizationFactor,
+            SourceAndConverter<? extends RealType<?>> psfSource,
+            SharedQueue queue,
+            String backend) {
+
         DeconvolutionProcessorCast<T> processor = new DeconvolutionProcessorCast<>(
-                cellDimensions, overlap, numIterations, nonCirculant, regularizationFactor, psfSource);
+                cellDimensions, overlap, numIterations, nonCirculant, regularizationFactor, psfSource, backend);
         processor.initialize(source);
 
         return new SourceVoxelProcessor<>(name, source, processor, source.getSpimSource().getType(), queue).get();
@@ -0,0 +1,165 @@
+package ch.epfl.biop.source.deconvolve;
+
+/**
+ * Minimal radix-2 complex FFT of 3D float arrays, used by {@link CpuRichardsonLucy}.
+ * <br>
+ * Data are stored as interleaved complex values (real, imaginary), X varying fastest:
+ * the value at (x, y, z) is at index 2 * (x + nx * (y + ny * z)). All dimensions should be
+ * powers of two, see {@link FloatFFT3D#nextPowerOfTwo(int)}. The transform is performed one axis after
+ * the other, one line at a time, through a line buffer provided by the caller so that a single
+ * instance can be shared between threads.
+ */
+final class FloatFFT3D {
+
+    final int nx, ny, nz;
+
+    final int n;
+
+    private final Axis[] axes;
+
+    FloatFFT3D(int nx, int ny, int nz) {
+        this.nx = nx;
+        this.ny = ny;
+        this.nz = nz;
+        this.n = nx * ny * nz;
+        this.axes = new Axis[]{new Axis(nx), new Axis(ny), new Axis(nz)};
+    }
+
+    static int nextPowerOfTwo(int n) {
+        int p = 1;
+        while (p < n) p <<= 1;
+        return p;
+    }
+
+    /**
+     * @return the size of the line buffer needed by {@link FloatFFT3D#forward(float[], float[])}
+     * and {@link FloatFFT3D#inverse(float[], float[])}
+     */
+    int lineBufferSize() {
+        return 2 * Math.max(nx, Math.max(ny, nz));
+    }
+
+    void forward(float[] data, float[] line) {
+        transform(data, line, false);
+    }
+
+    /**
+     * Inverse transform, normalized: inverse(forward(data)) == data
+     */
+    void inverse(float[] data, float[] line) {
+        transform(data, line, true);
+        final float scale = 1f / n;
+        for (int i = 0; i < 2 * n; i++) {
+            data[i] *= scale;
+        }
+    }
+
+    private void transform(float[] data, float[] line, boolean inverse) {
+        // X axis: contiguous lines
+        if (nx > 1) {
+            for (int yz = 0; yz < ny * nz; yz++) {
+                final int offset = 2 * nx * yz;
+                System.arraycopy(data, offset, line, 0, 2 * nx);
+                axes[0].fft(line, inverse);
+                System.arraycopy(line, 0, data, offset, 2 * nx);
+            }
+        }
+        // Y axis
+        if (ny > 1) {
+            for (int z = 0; z < nz; z++) {
+                for (int x = 0; x < nx; x++) {
+                    final int offset = 2 * (x + nx * ny * z);
+                    final int stride = 2 * nx;
+                    gather(data, line, offset, stride, ny);
+                    axes[1].fft(line, inverse);
+                    scatter(line, data, offset, stride, ny);
+                }
+            }
+        }
+        // Z axis
+        if (nz > 1) {
+            for (int y = 0; y < ny; y++) {
+                for (int x = 0; x < nx; x++) {
+                    final int offset = 2 * (x + nx * y);
+                    final int stride = 2 * nx * ny;
+                    gather(data, line, offset, stride, nz);
+                    axes[2].fft(line, inverse);
+                    scatter(line, data, offset, stride, nz);
+                }
+            }
+        }
+    }
+
+    private static void gather(float[] data, float[] line, int offset, int stride, int length) {
+        for (int i = 0, j = offset; i < length; i++, j += stride) {
+            line[2 * i] = data[j];
+            line[2 * i + 1] = data[j + 1];
+        }
+    }
+
+    private static void scatter(float[] line, float[] data, int offset, int stride, int length) {
+        for (int i = 0, j = offset; i < length; i++, j += stride) {
+            data[j] = line[2 * i];
+            data[j + 1] = line[2 * i + 1];
+        }
+    }
+
+    /**
+     * Twiddle factors and bit reversal permutation of a 1D transform
+     */
+    private static final class Axis {
+
+        final int length;
+        final float[] cos, sin;
+        final int[] reversed;
+
+        Axis(int length) {
+            if (Integer.bitCount(length) != 1) {
+                throw new IllegalArgumentException("FFT length should be a power of two, got " + length);
+            }
+            this.length = length;
+            cos = new float[length / 2];
+            sin = new float[length / 2];
+            for (int k = 0; k < length / 2; k++) {
+                cos[k] = (float) Math.cos(2 * Math.PI * k / length);
+                sin[k] = (float) Math.sin(2 * Math.PI * k / length);
+            }
+            reversed = new int[length];
+            int bits = Integer.numberOfTrailingZeros(length);
+            for (int i = 0; i < length; i++) {
+                reversed[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+            }
+        }
+
+        void fft(float[] line, boolean inverse) {
+            for (int i = 0; i < length; i++) {
+                final int j = reversed[i];
+                if (j > i) {
+                    float tr = line[2 * i], ti = line[2 * i + 1];
+                    line[2 * i] = line[2 * j];
+                    line[2 * i + 1] = line[2 * j + 1];
+                    line[2 * j] = tr;
+                    line[2 * j + 1] = ti;
+                }
+            }
+            for (int len = 2; len <= length; len <<= 1) {
+                final int half = len / 2;
+                final int step = length / len;
+                for (int i = 0; i < length; i += len) {
+                    for (int k = 0; k < half; k++) {
+                        final float wr = cos[k * step];
+                        final float wi = inverse ? sin[k * step] : -sin[k * step];
+                        final int a = 2 * (i + k);
+                        final int b = 2 * (i + k + half);
+                        final float xr = line[b] * wr - line[b + 1] * wi;
+                        final float xi = line[b] * wi + line[b + 1] * wr;
+                        line[b] = line[a] - xr;
+                        line[b + 1] = line[a + 1] - xi;
+                        line[a] += xr;
+                        line[a + 1] += xi;
+                    }
+                }
+            }
+        }
+    }
+}
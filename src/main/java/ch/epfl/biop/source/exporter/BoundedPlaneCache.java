@@ -0,0 +1,316 @@
+package ch.epfl.biop.source.exporter;
+
+import ij.process.ImageProcessor;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the planes computed by the {@link SourceVirtualStack}s, bounded by a byte budget.
+ * <br>
+ * A single cache, {@link BoundedPlaneCache#getInstance()}, is shared by all the stacks, so that the budget bounds
+ * the memory used by all the virtual images opened at the same time. Planes are identified by the id of their stack,
+ * obtained with {@link BoundedPlaneCache#register(Object)}, and their index in the stack. The cache only keeps a weak
+ * reference to the stacks: the planes of a stack which is not used anymore are discarded from the cache once the stack
+ * is garbage collected, or explicitly with {@link BoundedPlaneCache#remove(long)}.
+ * <br>
+ * Memory used by a stack outside of the cached planes, like the slabs of its {@link SlabPrefetcher}, can be charged
+ * to the same budget with {@link BoundedPlaneCache#reserve(long, long)}.
+ * <br>
+ * When the budget is exceeded, the least recently accessed planes are discarded first, so that
+ * the planes which are browsed frequently stay in memory. A plane cached under several indices (identical
+ * planes of a stack) is counted once in the budget. Hit, miss and eviction counts are kept
+ * in order to size the budget.
+ */
+public class BoundedPlaneCache {
+
+    /**
+     * Default memory budget of the shared cache, see {@link BoundedPlaneCache#setGlobalBudget(long)}
+     */
+    public static long DEFAULT_BUDGET_BYTES = Runtime.getRuntime().maxMemory() / 4;
+
+    private static BoundedPlaneCache instance;
+
+    private static final AtomicLong stackIdCounter = new AtomicLong();
+
+    /**
+     * @return the cache shared by all the stacks, created with {@link BoundedPlaneCache#DEFAULT_BUDGET_BYTES}
+     */
+    public static synchronized BoundedPlaneCache getInstance() {
+        if (instance == null) instance = new BoundedPlaneCache(DEFAULT_BUDGET_BYTES);
+        return instance;
+    }
+
+    /**
+     * Changes the budget of the cache shared by all the stacks, discarding planes if needed
+     * @param budgetBytes new budget in bytes
+     */
+    public static void setGlobalBudget(long budgetBytes) {
+        getInstance().setBudget(budgetBytes);
+    }
+
+    final LinkedHashMap<PlaneKey, ImageProcessor> planes = new LinkedHashMap<>(16, 0.75f, true);
+
+    // Number of keys referencing each cached plane: a plane is charged once, whatever its number of keys
+    final Map<ImageProcessor, Integer> references = new IdentityHashMap<>();
+
+    long budgetBytes;
+
+    long usedBytes = 0;
+
+    long hits = 0, misses = 0, evictions = 0;
+
+    // Stacks registered in this cache, their references are enqueued once they are garbage collected
+    final ReferenceQueue<Object> collectedStacks = new ReferenceQueue<>();
+
+    final Map<Long, StackReference> stacks = new LinkedHashMap<>();
+
+    // Bytes reserved by each stack outside of its cached planes, included in usedBytes
+    final Map<Long, Long> reservedBytes = new HashMap<>();
+
+    public BoundedPlaneCache(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Registers a stack, without keeping a strong reference to it
+     * @param stack stack whose planes will be cached
+     * @return the id of the stack, used to get and put its planes
+     */
+    public synchronized long register(Object stack) {
+        purge();
+        long stackId = stackIdCounter.incrementAndGet();
+        stacks.put(stackId, new StackReference(stack, stackId, collectedStacks));
+        return stackId;
+    }
+
+    /**
+     * Discards all the planes of a stack
+     * @param stackId id of the stack, see {@link BoundedPlaneCache#register(Object)}
+     */
+    public synchronized void remove(long stackId) {
+        stacks.remove(stackId);
+        Long reserved = reservedBytes.remove(stackId);
+        if (reserved != null) usedBytes -= reserved;
+        Iterator<Map.Entry<PlaneKey, ImageProcessor>> it = planes.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<PlaneKey, ImageProcessor> entry = it.next();
+            if (entry.getKey().stackId == stackId) {
+                it.remove();
+                release(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @param stackId id of the stack of the plane
+     * @param n plane index
+     * @return the cached plane, or null if it is not cached
+     */
+    public synchronized ImageProcessor get(long stackId, int n) {
+        purge();
+        ImageProcessor ip = planes.get(new PlaneKey(stackId, n));
+        if (ip == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return ip;
+    }
+
+    /**
+     * @param stackId id of the stack of the plane
+     * @param n plane index
+     * @return true if the plane is cached, does not change the access order nor the counters
+     */
+    public synchronized boolean contains(long stackId, int n) {
+        return planes.containsKey(new PlaneKey(stackId, n));
+    }
+
+    /**
+     * Caches a plane, and discards the least recently used planes if the budget is exceeded.
+     * The plane which is put is never discarded by this call
+     * @param stackId id of the stack of the plane
+     * @param n plane index
+     * @param ip plane
+     */
+    public synchronized void put(long stackId, int n, ImageProcessor ip) {
+        purge();
+        PlaneKey key = new PlaneKey(stackId, n);
+        ImageProcessor previous = planes.put(key, ip);
+        if (previous != null) release(previous);
+        Integer count = references.get(ip);
+        if (count == null) {
+            references.put(ip, 1);
+            usedBytes += bytesOf(ip);
+        } else {
+            references.put(ip, count + 1);
+        }
+        Iterator<Map.Entry<PlaneKey, ImageProcessor>> it = planes.entrySet().iterator();
+        while ((usedBytes > budgetBytes) && it.hasNext()) {
+            Map.Entry<PlaneKey, ImageProcessor> eldest = it.next();
+            if (eldest.getKey().equals(key)) continue;
+            it.remove();
+            release(eldest.getValue());
+            evictions++;
+        }
+    }
+
+    /**
+     * Charges memory used by a stack outside of its cached planes to the budget, discarding the least recently
+     * used planes if needed. Reserved bytes are never discarded: they should be given back with
+     * {@link BoundedPlaneCache#unreserve(long, long)}, or are freed when the stack is removed
+     * @param stackId id of the stack using the memory
+     * @param bytes number of bytes to reserve
+     * @return true if the bytes are reserved, false if they do not fit into the budget, even without any plane
+     */
+    public synchronized boolean reserve(long stackId, long bytes) {
+        purge();
+        Iterator<Map.Entry<PlaneKey, ImageProcessor>> it = planes.entrySet().iterator();
+        while ((usedBytes + bytes > budgetBytes) && it.hasNext()) {
+            Map.Entry<PlaneKey, ImageProcessor> eldest = it.next();
+            it.remove();
+            release(eldest.getValue());
+            evictions++;
+        }
+        if (usedBytes + bytes > budgetBytes) return false;
+        usedBytes += bytes;
+        reservedBytes.merge(stackId, bytes, Long::sum);
+        return true;
+    }
+
+    /**
+     * Gives back bytes reserved with {@link BoundedPlaneCache#reserve(long, long)}
+     * @param stackId id of the stack which reserved the memory
+     * @param bytes number of bytes to give back
+     */
+    public synchronized void unreserve(long stackId, long bytes) {
+        Long reserved = reservedBytes.get(stackId);
+        if (reserved == null) return; // Stack already removed
+        long freed = Math.min(bytes, reserved);
+        if (reserved - freed == 0) {
+            reservedBytes.remove(stackId);
+        } else {
+            reservedBytes.put(stackId, reserved - freed);
+        }
+        usedBytes -= freed;
+    }
+
+    /**
+     * Changes the budget, discarding planes if needed
+     * @param budgetBytes new budget in bytes
+     */
+    public synchronized void setBudget(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+        Iterator<Map.Entry<PlaneKey, ImageProcessor>> it = planes.entrySet().iterator();
+        while ((usedBytes > budgetBytes) && it.hasNext()) {
+            Map.Entry<PlaneKey, ImageProcessor> eldest = it.next();
+            it.remove();
+            release(eldest.getValue());
+            evictions++;
+        }
+    }
+
+    public synchronized long getBudget() {
+        return budgetBytes;
+    }
+
+    public synchronized long getSizeInBytes() {
+        return usedBytes;
+    }
+
+    public synchronized long getReservedBytes() {
+        long total = 0;
+        for (long bytes : reservedBytes.values()) total += bytes;
+        return total;
+    }
+
+    public synchronized int getNumberOfPlanes() {
+        return planes.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public String toString() {
+        return "Plane cache: "+getNumberOfPlanes()+" planes, "+(getSizeInBytes()/(1024*1024))+" MB (reserved: "+(getReservedBytes()/(1024*1024))+" MB) / "
+                +(getBudget()/(1024*1024))+" MB - hits: "+getHits()+" misses: "+getMisses()+" evictions: "+getEvictions();
+    }
+
+    /**
+     * Discards the planes of the stacks which have been garbage collected
+     */
+    private void purge() {
+        StackReference collected;
+        while ((collected = (StackReference) collectedStacks.poll()) != null) {
+            remove(collected.stackId);
+        }
+    }
+
+    /**
+     * Removes a reference to a plane, and frees its bytes if it was the last one
+     */
+    private void release(ImageProcessor ip) {
+        int count = references.get(ip);
+        if (count == 1) {
+            references.remove(ip);
+            usedBytes -= bytesOf(ip);
+        } else {
+            references.put(ip, count - 1);
+        }
+    }
+
+    private static long bytesOf(ImageProcessor ip) {
+        return (long) ip.getPixelCount() * Math.max(1, ip.getBitDepth() == 24 ? 4 : ip.getBitDepth() / 8);
+    }
+
+    static class StackReference extends WeakReference<Object> {
+
+        final long stackId;
+
+        StackReference(Object stack, long stackId, ReferenceQueue<Object> queue) {
+            super(stack, queue);
+            this.stackId = stackId;
+        }
+    }
+
+    static class PlaneKey {
+
+        final long stackId;
+        final int n;
+
+        PlaneKey(long stackId, int n) {
+            this.stackId = stackId;
+            this.n = n;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof PlaneKey)) return false;
+            PlaneKey other = (PlaneKey) o;
+            return (stackId == other.stackId) && (n == other.n);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(stackId, n);
+        }
+    }
+}
@@ -217,6 +217,59 @@ public class ImagePlusGetter {
             });
         });
 
+        setLutsAndCalibration(imp, sources, resolutionLevel, range);
+        if (task!=null) task.run(() ->{}); // signal task is ended
+        return imp;
+    }
+
+    /**
+     * Same as {@link ImagePlusGetter#getImagePlus(String, List, int, CZTRange, boolean, boolean, boolean, Task)},
+     * except that all planes are computed in parallel by blocks on a pool of numThreads threads,
+     * see {@link ParallelStackFiller}
+     *
+     * @param name Name of the output ImagePlus
+     * @param sources sources to export as ImagePlus
+     * @param resolutionLevel resolution Level of the sources
+     * @param range czt range which can be used to define a subset of the output image
+     * @param numThreads number of threads used to compute the planes
+     * @param task can be used for monitoring the progression of the ImagePlus acquisition progression,
+     *             and to cancel it
+     * @param <T> the pixel type of the sources, must be a NumericType and NativeType
+     * @return a non virtual {@link ImagePlus} out of a list of {@link SourceAndConverter},
+     *       taken at a certain resolution level, and which czt range is specified via a {@link CZTRange} object
+     * @throws java.util.concurrent.CancellationException if the task is cancelled
+     * @throws Exception if the computation of a block failed
+     */
+    public static <T extends NumericType<T> & NativeType<T>> ImagePlus getImagePlusParallel(String name,
+                                                                                          List<SourceAndConverter<T>> sources,
+                                                                                          int resolutionLevel,
+                                                                                          CZTRange range,
+                                                                                          int numThreads,
+                                                                                          Task task) throws Exception {
+        ImagePlus vImage = getVirtualImagePlus(name, sources, resolutionLevel, range, false, null ); // task not used here
+
+        int w = vImage.getWidth();
+        int h = vImage.getHeight();
+        final ImageStack stack = ImageStack.create( w, h, (int) range.getTotalPlanes(), vImage.getBitDepth() );
+        ImagePlus imp = new ImagePlus(name, stack);
+        int[] czt = range.getCZTDimensions( );
+
+        if ((imp.getBitDepth()!=24) && ( czt[ 0 ] + czt[ 1 ] + czt[ 2 ] ) > 3 ) {
+            imp = HyperStackConverter.toHyperStack(imp, czt[0], czt[1], czt[2]);
+        }
+
+        try {
+            new ParallelStackFiller(sources, resolutionLevel, range, imp, stack, vImage.getBitDepth(), numThreads, task).fill();
+        } finally {
+            if (task!=null) task.run(() ->{}); // signal task is ended
+        }
+
+        setLutsAndCalibration(imp, sources, resolutionLevel, range);
+        return imp;
+    }
+
+    private static void setLutsAndCalibration(ImagePlus imp, List<? extends SourceAndConverter<?>> sources, int resolutionLevel, CZTRange range) {
+        int[] czt = range.getCZTDimensions( );
         if ( ( czt[ 0 ] + czt[ 1 ] + czt[ 2 ] ) > 3 ) {
             // Needs conversion to hyperstack
             LUT[] luts = new LUT[range.getRangeC().size()];
@@ -267,8 +320,6 @@ public class ImagePlusGetter {
             }
         }
         ImagePlusHelper.storeExtendedCalibrationToImagePlus(imp,at3D,unit, timepointbegin);
-        if (task!=null) task.run(() ->{}); // signal task is ended
-        return imp;
     }
 
     /**
@@ -36,7 +36,8 @@ public class ImagePlusSampler {
                                 boolean virtual,
                                 boolean cache,
                                 Task task,
-                                boolean parallelC, boolean parallelZ, boolean parallelT) throws UnsupportedOperationException {
+                                boolean parallelC, boolean parallelZ, boolean parallelT,
+                                int numThreads) throws Exception {
 
         if (sourceList.size() == 0) {
             throw  new UnsupportedOperationException("No input sources");
@@ -67,7 +68,9 @@ public class ImagePlusSampler {
         int timepointbegin = 0;//range.getRangeT().get(0)-1;
 
         ImagePlus compositeImage;
-        if (!virtual) {
+        if ((!virtual) && (numThreads > 0)) {
+            compositeImage = ImagePlusGetter.getImagePlusParallel(imageName, resampledSourceList, 0, range, numThreads, task);
+        } else if (!virtual) {
             compositeImage = ImagePlusGetter.getImagePlus(imageName, resampledSourceList, 0, range, parallelC, parallelZ, parallelT, task);
         } else {
             compositeImage = ImagePlusGetter.getVirtualImagePlus(imageName, resampledSourceList, 0, range, cache, task);
@@ -101,6 +104,7 @@ public class ImagePlusSampler {
         private boolean parallelC = false;
         private boolean parallelZ = false;
         private boolean parallelT = false;
+        private int numThreads = 0;
         transient Task task = null;
 
         /**
@@ -272,6 +276,19 @@ public class ImagePlusSampler {
             return this;
         }
 
+        /**
+         * if not virtual, all planes are computed by blocks on a pool of threads, see
+         * {@link ImagePlusGetter#getImagePlusParallel(String, List, int, CZTRange, int, Task)}. The parallelC,
+         * parallelZ and parallelT flags are then ignored. Cancelling the task throws a
+         * {@link java.util.concurrent.CancellationException}
+         * @param numThreads number of threads, 0 to compute planes one by one
+         * @return the builder
+         */
+        public Builder parallelBlocks(int numThreads) {
+            this.numThreads = numThreads;
+            return this;
+        }
+
         /**
          * @return the resampled ImagePlus object
          * @throws Exception if something goes wrong
@@ -291,7 +308,7 @@ public class ImagePlusSampler {
                     level,
                     range,
                     unit,
-                    interpolate,virtual, cache, task, parallelC, parallelZ, parallelT);
+                    interpolate,virtual, cache, task, parallelC, parallelZ, parallelT, numThreads);
         }
     }
 }
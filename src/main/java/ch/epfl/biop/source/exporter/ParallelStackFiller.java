@@ -0,0 +1,224 @@
+package ch.epfl.biop.source.exporter;
+
+import bdv.viewer.SourceAndConverter;
+import ij.ImagePlus;
+import ij.ImageStack;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import org.scijava.task.Task;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fills all the planes of a non-virtual {@link ImageStack} from sources, in parallel, on a bounded pool of threads.
+ * <br>
+ * Instead of computing the planes one by one, the output is split into 3D blocks (a tile of rows and columns
+ * over a few consecutive planes) which are resampled independently. For a resliced export, a compact output
+ * block maps to a compact region of the original source, so the source cells it reads stay in the cache while
+ * the block is computed, whereas a full plane of an oblique reslice crosses a new set of cells for each plane.
+ * Blocks have the size of the cells of the exported image when it is a cell image, and
+ * {@link ParallelStackFiller#DEFAULT_BLOCK_SIZE} otherwise.
+ * <br>
+ * Pixels are written directly into the primitive arrays of the stack: no intermediate plane is allocated.
+ * Progress and the estimated remaining time are reported to the task, which can also be used to cancel the
+ * export: a {@link CancellationException} is thrown then.
+ */
+class ParallelStackFiller {
+
+    /**
+     * Block size (x, y, z), in output pixels, used for images which are not cell images
+     */
+    static final int[] DEFAULT_BLOCK_SIZE = new int[]{128, 128, 16};
+
+    final List<? extends SourceAndConverter<?>> sources;
+
+    final int resolutionLevel;
+
+    final CZTRange range;
+
+    final ImagePlus image;
+
+    final ImageStack stack;
+
+    final int width, height, bitDepth;
+
+    final int numThreads;
+
+    final Task task;
+
+    final AtomicLong pixelsDone = new AtomicLong();
+
+    long totalPixels;
+
+    long startNanos;
+
+    /**
+     * @param sources sources, one per channel
+     * @param resolutionLevel resolution level of the sources
+     * @param range czt range of the output image
+     * @param image image used to localize the planes of the stack (channel, slice, frame to stack index)
+     * @param stack the non virtual stack to fill
+     * @param bitDepth bit depth of the stack
+     * @param numThreads number of threads used
+     * @param task task used for monitoring and cancellation, can be null
+     */
+    ParallelStackFiller(List<? extends SourceAndConverter<?>> sources, int resolutionLevel, CZTRange range,
+                        ImagePlus image, ImageStack stack, int bitDepth, int numThreads, Task task) {
+        this.sources = sources;
+        this.resolutionLevel = resolutionLevel;
+        this.range = range;
+        this.image = image;
+        this.stack = stack;
+        this.width = stack.getWidth();
+        this.height = stack.getHeight();
+        this.bitDepth = bitDepth;
+        this.numThreads = Math.max(1, numThreads);
+        this.task = task;
+    }
+
+    /**
+     * Computes all the planes of the stack
+     * @throws CancellationException if the task is cancelled
+     * @throws Exception if the computation of a block failed
+     */
+    void fill() throws Exception {
+        List<Runnable> blocks = new ArrayList<>();
+        for (int iC = 0; iC < range.getRangeC().size(); iC++) {
+            for (int iT = 0; iT < range.getRangeT().size(); iT++) {
+                addBlocks(iC, iT, blocks);
+            }
+        }
+        totalPixels = (long) width * height * range.getTotalPlanes();
+        startNanos = System.nanoTime();
+        if (task != null) {
+            task.setStatusMessage("Computing " + blocks.size() + " blocks with " + numThreads + " threads...");
+            task.setProgressMaximum(totalPixels);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Runnable block : blocks) {
+                futures.add(executor.submit(() -> {
+                    if (isCanceled()) return;
+                    block.run();
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        if (isCanceled()) {
+            throw new CancellationException("Export of " + image.getTitle() + " cancelled");
+        }
+    }
+
+    private boolean isCanceled() {
+        return (task != null) && task.isCanceled();
+    }
+
+    private void addBlocks(int iC, int iT, List<Runnable> blocks) {
+        final int c = range.getRangeC().get(iC);
+        final int t = range.getRangeT().get(iT);
+        final SourceAndConverter<?> source = sources.get(c);
+        if (!source.getSpimSource().isPresent(t)) {
+            // Planes stay empty
+            pixelsDone.addAndGet((long) width * height * range.getRangeZ().size());
+            return;
+        }
+        final RandomAccessibleInterval<?> rai = source.getSpimSource().getSource(t, resolutionLevel);
+        final int[] blockSize = DEFAULT_BLOCK_SIZE.clone();
+        if (rai instanceof AbstractCellImg) {
+            ((AbstractCellImg<?, ?, ?, ?>) rai).getCellGrid().cellDimensions(blockSize);
+        }
+        final int nZ = range.getRangeZ().size();
+        for (int iZ0 = 0; iZ0 < nZ; iZ0 += blockSize[2]) {
+            final int iZ1 = Math.min(nZ, iZ0 + blockSize[2]);
+            for (int y0 = 0; y0 < height; y0 += blockSize[1]) {
+                final int y1 = Math.min(height, y0 + blockSize[1]);
+                for (int x0 = 0; x0 < width; x0 += blockSize[0]) {
+                    final int x1 = Math.min(width, x0 + blockSize[0]);
+                    final int fx0 = x0, fy0 = y0, fiZ0 = iZ0;
+                    blocks.add(() -> copyBlock(rai, iC, iT, fx0, x1, fy0, y1, fiZ0, iZ1));
+                }
+            }
+        }
+    }
+
+    private void copyBlock(RandomAccessibleInterval<?> rai, int iC, int iT, int x0, int x1, int y0, int y1, int iZ0, int iZ1) {
+        final long[] min = new long[]{x0, y0, range.getRangeZ().get(iZ0)};
+        final long[] max = new long[]{x1 - 1, y1 - 1, range.getRangeZ().get(iZ0)};
+        for (int iZ = iZ0; iZ < iZ1; iZ++) {
+            min[2] = Math.min(min[2], range.getRangeZ().get(iZ));
+            max[2] = Math.max(max[2], range.getRangeZ().get(iZ));
+        }
+        final RandomAccess<?> ra = rai.randomAccess(new FinalInterval(min, max));
+        final int n = x1 - x0;
+        for (int iZ = iZ0; iZ < iZ1; iZ++) {
+            final Object pixels = stack.getPixels(image.getStackIndex(iC + 1, iZ + 1, iT + 1));
+            ra.setPosition(range.getRangeZ().get(iZ), 2);
+            for (int y = y0; y < y1; y++) {
+                ra.setPosition(x0, 0);
+                ra.setPosition(y, 1);
+                copyRow(ra, pixels, x0 + y * width, n);
+            }
+        }
+        final long done = pixelsDone.addAndGet((long) n * (y1 - y0) * (iZ1 - iZ0));
+        if (task != null) {
+            task.setProgressValue(done);
+            final double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+            final long remainingSeconds = (long) (elapsedSeconds * (totalPixels - done) / done);
+            task.setStatusMessage("ETA: " + remainingSeconds / 60 + " min " + remainingSeconds % 60 + " s");
+        }
+    }
+
+    private void copyRow(RandomAccess<?> ra, Object pixels, int offset, int n) {
+        switch (bitDepth) {
+            case 8: {
+                final byte[] bytes = (byte[]) pixels;
+                final RandomAccess<UnsignedByteType> access = (RandomAccess<UnsignedByteType>) ra;
+                for (int i = 0; i < n; i++, access.fwd(0)) bytes[offset + i] = (byte) access.get().get();
+                break;
+            }
+            case 16: {
+                final short[] shorts = (short[]) pixels;
+                final RandomAccess<UnsignedShortType> access = (RandomAccess<UnsignedShortType>) ra;
+                for (int i = 0; i < n; i++, access.fwd(0)) shorts[offset + i] = (short) access.get().get();
+                break;
+            }
+            case 24: {
+                final int[] ints = (int[]) pixels;
+                final RandomAccess<ARGBType> access = (RandomAccess<ARGBType>) ra;
+                for (int i = 0; i < n; i++, access.fwd(0)) ints[offset + i] = access.get().get();
+                break;
+            }
+            case 32: {
+                final float[] floats = (float[]) pixels;
+                final RandomAccess<FloatType> access = (RandomAccess<FloatType>) ra;
+                for (int i = 0; i < n; i++, access.fwd(0)) floats[offset + i] = access.get().get();
+                break;
+            }
+            default:
+                throw new UnsupportedOperationException("Invalid bitdepth " + bitDepth);
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package ch.epfl.biop.source.exporter;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads the planes of a {@link SourceVirtualStack} slab by slab instead of plane by plane.
+ * <br>
+ * When a source is a cell image with cells thicker than one plane along Z, reading a single plane
+ * with a cursor on an hyperslice touches all the cells of the slab, and the same cells are accessed again
+ * for each of the following planes. Instead, when a plane is requested, the whole slab of cells
+ * containing it is read once, in parallel (one band of cells along Y per task, on a small executor shared by all
+ * the prefetchers), into a primitive array. The following planes of the slab are then copied from this array.
+ * <br>
+ * Slabs are kept in memory up to a byte budget per stack, least recently used slabs are discarded first.
+ * The memory of the slabs is also charged to the budget of the {@link BoundedPlaneCache} shared by all the stacks,
+ * so that slabs and cached planes together stay within the global budget.
+ * Sources which are not cell images, or whose slabs do not fit into the budgets, are not handled:
+ * {@link SlabPrefetcher#getPlane(RandomAccessibleInterval, int, int, int)} returns null, and the
+ * plane should be read directly.
+ */
+class SlabPrefetcher {
+
+    /**
+     * Number of threads reading the bands of the slabs, shared by all the prefetchers
+     */
+    static final int N_BAND_READERS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+
+    private static final ExecutorService bandReaders;
+
+    static {
+        AtomicInteger threadCount = new AtomicInteger();
+        bandReaders = Executors.newFixedThreadPool(N_BAND_READERS, runnable -> {
+            Thread thread = new Thread(runnable, "Slab reader - " + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    final BoundedPlaneCache planeCache;
+
+    final long stackId;
+
+    final long budgetBytes;
+
+    final int width, height, bitDepth, bytesPerPixel, nPixPerPlane;
+
+    final LinkedHashMap<SlabKey, Slab> slabs = new LinkedHashMap<>(16, 0.75f, true);
+
+    long usedBytes = 0;
+
+    /**
+     * @param planeCache cache to which the memory of the slabs is charged
+     * @param stackId id of the stack in the cache
+     * @param budgetBytes maximal memory used by the slabs of this prefetcher
+     * @param width plane width
+     * @param height plane height
+     * @param bitDepth plane bit depth
+     */
+    SlabPrefetcher(BoundedPlaneCache planeCache, long stackId, long budgetBytes, int width, int height, int bitDepth) {
+        this.planeCache = planeCache;
+        this.stackId = stackId;
+        this.budgetBytes = budgetBytes;
+        this.width = width;
+        this.height = height;
+        this.bitDepth = bitDepth;
+        this.bytesPerPixel = (bitDepth == 24) ? 4 : bitDepth / 8;
+        this.nPixPerPlane = width * height;
+    }
+
+    /**
+     * @param rai the 3D image of a channel at a timepoint
+     * @param iC channel index
+     * @param iT timepoint index
+     * @param iZ plane index
+     * @return a copy of the pixels of the plane (byte[], short[], float[] or int[] depending on the bit depth),
+     * or null if this image can't be read by slab
+     */
+    Object getPlane(RandomAccessibleInterval<?> rai, int iC, int iT, int iZ) {
+        if (!(rai instanceof AbstractCellImg)) return null;
+        CellGrid grid = ((AbstractCellImg<?, ?, ?, ?>) rai).getCellGrid();
+        int cellDepth = grid.cellDimension(2);
+        if (cellDepth <= 1) return null;
+        int zStart = (iZ / cellDepth) * cellDepth;
+        int depth = (int) Math.min(cellDepth, rai.dimension(2) - zStart);
+        long slabBytes = (long) nPixPerPlane * depth * bytesPerPixel;
+        if (slabBytes > budgetBytes) return null;
+
+        SlabKey key = new SlabKey(iC, iT, zStart);
+        Slab slab;
+        synchronized (this) {
+            slab = slabs.get(key);
+            if (slab == null) {
+                if (!reserve(slabBytes)) return null;
+                slab = new Slab(zStart, depth, slabBytes);
+                slabs.put(key, slab);
+                usedBytes += slabBytes;
+                evict(slab);
+            }
+            slab.users++;
+        }
+
+        try {
+            slab.ensureLoaded(rai, grid.cellDimension(1));
+            Object plane = newArray(nPixPerPlane);
+            System.arraycopy(slab.data, (iZ - zStart) * nPixPerPlane, plane, 0, nPixPerPlane);
+            return plane;
+        } finally {
+            synchronized (this) {
+                slab.users--;
+                if (slab.evicted && slab.users == 0) recycle(slab);
+            }
+        }
+    }
+
+    /**
+     * Charges a new slab to the shared cache, discarding the idle slabs of this prefetcher if needed
+     * @return false if the slab does not fit into the budget of the shared cache
+     */
+    private boolean reserve(long slabBytes) {
+        while (!planeCache.reserve(stackId, slabBytes)) {
+            Slab eldest = null;
+            for (Slab slab : slabs.values()) {
+                if (slab.users == 0) {
+                    eldest = slab;
+                    break;
+                }
+            }
+            if (eldest == null) return false;
+            slabs.values().remove(eldest);
+            usedBytes -= eldest.bytes;
+            eldest.evicted = true;
+            recycle(eldest);
+        }
+        return true;
+    }
+
+    /**
+     * Discards all the slabs and gives back their memory to the shared cache
+     */
+    synchronized void clear() {
+        for (Slab slab : slabs.values()) {
+            slab.evicted = true;
+            if (slab.users == 0) recycle(slab);
+        }
+        slabs.clear();
+        usedBytes = 0;
+    }
+
+    private void evict(Slab keep) {
+        Iterator<Map.Entry<SlabKey, Slab>> it = slabs.entrySet().iterator();
+        while ((usedBytes > budgetBytes) && it.hasNext()) {
+            Slab eldest = it.next().getValue();
+            if (eldest == keep) continue;
+            it.remove();
+            usedBytes -= eldest.bytes;
+            eldest.evicted = true;
+            if (eldest.users == 0) recycle(eldest);
+        }
+    }
+
+    /**
+     * Drops the array of a discarded slab, once it is not used anymore
+     */
+    private void recycle(Slab slab) {
+        slab.data = null;
+        planeCache.unreserve(stackId, slab.bytes);
+    }
+
+    private Object newArray(int n) {
+        switch (bitDepth) {
+            case 8: return new byte[n];
+            case 16: return new short[n];
+            case 24: return new int[n];
+            case 32: return new float[n];
+            default: throw new UnsupportedOperationException("Invalid bitdepth " + bitDepth);
+        }
+    }
+
+    /**
+     * Copies a band of the slab, in flat iteration order: X, then Y, then Z
+     */
+    private void copyBand(RandomAccessibleInterval<?> rai, Object data, int zStart, int depth, int yStart, int yEnd) {
+        final Cursor<?> cursor = Views.flatIterable(Views.interval(rai,
+                new FinalInterval(new long[]{0, yStart, zStart}, new long[]{width - 1, yEnd, zStart + depth - 1}))).cursor();
+        final int bandPixels = width * (yEnd - yStart + 1);
+        for (int z = 0; z < depth; z++) {
+            int idx = z * nPixPerPlane + yStart * width;
+            final int end = idx + bandPixels;
+            switch (bitDepth) {
+                case 8:
+                    byte[] bytes = (byte[]) data;
+                    while (idx < end) bytes[idx++] = (byte) ((UnsignedByteType) cursor.next()).get();
+                    break;
+                case 16:
+                    short[] shorts = (short[]) data;
+                    while (idx < end) shorts[idx++] = (short) ((UnsignedShortType) cursor.next()).get();
+                    break;
+                case 24:
+                    int[] ints = (int[]) data;
+                    while (idx < end) ints[idx++] = ((ARGBType) cursor.next()).get();
+                    break;
+                case 32:
+                    float[] floats = (float[]) data;
+                    while (idx < end) floats[idx++] = ((FloatType) cursor.next()).get();
+                    break;
+            }
+        }
+    }
+
+    class Slab {
+        final int zStart, depth;
+        final long bytes;
+        Object data = null;
+        boolean loaded = false;
+        boolean evicted = false;
+        int users = 0;
+
+        Slab(int zStart, int depth, long bytes) {
+            this.zStart = zStart;
+            this.depth = depth;
+            this.bytes = bytes;
+        }
+
+        synchronized void ensureLoaded(RandomAccessibleInterval<?> rai, int cellHeight) {
+            if (loaded) return;
+            final Object array = newArray(nPixPerPlane * depth);
+            final int nBands = (height + cellHeight - 1) / cellHeight;
+            final List<Callable<Void>> tasks = new ArrayList<>(nBands);
+            for (int band = 0; band < nBands; band++) {
+                final int yStart = band * cellHeight;
+                final int yEnd = Math.min(height - 1, (band + 1) * cellHeight - 1);
+                tasks.add(() -> {
+                    copyBand(rai, array, zStart, depth, yStart, yEnd);
+                    return null;
+                });
+            }
+            try {
+                for (Future<Void> future : bandReaders.invokeAll(tasks)) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+            data = array;
+            loaded = true;
+        }
+    }
+
+    static class SlabKey {
+        final int c, t, zStart;
+
+        SlabKey(int c, int t, int zStart) {
+            this.c = c;
+            this.t = t;
+            this.zStart = zStart;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            SlabKey slabKey = (SlabKey) o;
+            return c == slabKey.c && t == slabKey.t && zStart == slabKey.zStart;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(c, t, zStart);
+        }
+    }
+}
@@ -32,7 +32,6 @@ import java.awt.*;
 import java.awt.image.ColorModel;
 import java.util.*;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -52,7 +51,9 @@ public class SourceVirtualStack<T extends NumericType<T> & NativeType<T>> extend
 
     final int bitDepth, size, height, width;
 
-    Map<Integer, ImageProcessor> cachedImageProcessor = new ConcurrentHashMap<>();
+    final BoundedPlaneCache planeCache = BoundedPlaneCache.getInstance();
+    // Id of this stack in the plane cache, which does not keep a strong reference to the stack
+    final long planeCacheId = planeCache.register(this);
     Map<Integer, Object> currentlyProcessedProcessor = new HashMap<>();
     Map<CZTId, Integer> cztIdToComputedProcessor = new HashMap<>();
 
@@ -67,6 +68,16 @@ public class SourceVirtualStack<T extends NumericType<T> & NativeType<T>> extend
     //private final int nChannels, nZSlices, nFrames;
     final Task task;
     private final long totalBytes;
+    // Planes already counted in bytesCounter: a plane recomputed after its eviction is not counted again
+    private final BitSet loadedPlanes = new BitSet();
+
+    /**
+     * Default memory budget for slab reading, per stack, see {@link SourceVirtualStack#setSlabBudget(long)}.
+     * The slabs of all the stacks are also charged to the budget of the shared {@link BoundedPlaneCache}
+     */
+    public static long DEFAULT_SLAB_BUDGET_BYTES = 256L * 1024 * 1024;
+
+    SlabPrefetcher slabPrefetcher;
 
     /**
      * Takes a list of SourceAndConverter and makes a VirtualStack out of it
@@ -75,8 +86,10 @@ public class SourceVirtualStack<T extends NumericType<T> & NativeType<T>> extend
      * @param sources         sources list in, each source is a channel
      * @param resolutionLevel the resolution level used from the sources
      * @param range           a CZT range objet which can be used to select and or reorder the data from the sources
-     * @param bytesCounter    and atomic counter which can be used to monitor the amount of bytes read in this virtual stack
-     * @param cache           whether the read planes should be kept in cache or not (it's a basic cache, it's never freed unless you discard the image)
+     * @param bytesCounter    and atomic counter which can be used to monitor the amount of bytes read in this virtual stack,
+     *                        each plane being counted the first time it is loaded
+     * @param cache           whether the read planes should be kept in cache or not. The cache is bounded and
+     *                        shared by all the stacks, see {@link BoundedPlaneCache}
      * @param task            a task object, not sure how it's used anymore
      */
     public SourceVirtualStack(List<SourceAndConverter<T>> sources,
@@ -121,6 +134,8 @@ public class SourceVirtualStack<T extends NumericType<T> & NativeType<T>> extend
         totalPlanes = (int) range.getTotalPlanes();
         totalBytes = (long) totalPlanes * nBytesPerProcessor;
 
+        setSlabBudget(DEFAULT_SLAB_BUDGET_BYTES);
+
         /*nChannels = range.getRangeC().size();
         nFrames = range.getRangeT().size();
         nZSlices = range.getRangeZ().size();*/
@@ -172,17 +187,14 @@ public class SourceVirtualStack<T extends NumericType<T> & NativeType<T>> extend
 
         RandomAccessibleInterval<UnsignedByteType> rai = source.getSpimSource().getSource(iT, resolutionLevel);
         RandomAccessibleInterval<UnsignedByteType> slice = Views.hyperSlice(rai, 2, iZ);
-        byte[] bytes = new byte[nPixPerPlane];
-        IterableInterval<UnsignedByteType> ii = Views.flatIterable(slice);
-        int idx = 0;
-        for (Cursor<UnsignedByteType> s = ii.cursor(); s.hasNext(); idx++) {
-            bytes[idx] = (byte) s.next().get();
-        }
-        if (task != null) {
-            long bytesLoaded = bytesCounter.addAndGet(nBytesPerProcessor);
-            task.setProgressValue(bytesLoaded);
-            if (bytesLoaded == totalBytes) task.run(() -> {
-            });
+        byte[] bytes = (byte[]) getSlabPlane(rai, iC, iZ, iT);
+        if (bytes == null) {
+            bytes = new byte[nPixPerPlane];
+            IterableInterval<UnsignedByteType> ii = Views.flatIterable(slice);
+            int idx = 0;
+            for (Cursor<UnsignedByteType> s = ii.cursor(); s.hasNext(); idx++) {
+                bytes[idx] = (byte) s.next().get();
+            }
         }
         return new ByteProcessor(width, height, bytes, getCM(iC));
     }
@@ -201,17 +213,14 @@ public class SourceVirtualStack<T extends NumericType<T> & NativeType<T>> extend
         if (noSourcePresent(source, iZ, iT)) return new ShortProcessor(width, height);
         RandomAccessibleInterval<UnsignedShortType> rai = source.getSpimSource().getSource(iT, resolutionLevel);
         RandomAccessibleInterval<UnsignedShortType> slice = Views.hyperSlice(rai, 2, iZ);
-        short[] shorts = new short[nPixPerPlane];
-        IterableInterval<UnsignedShortType> ii = Views.flatIterable(slice);
-        int idx = 0;
-        for (Cursor<UnsignedShortType> s = ii.cursor(); s.hasNext(); idx++) {
-            shorts[idx] = (short) s.next().get();
-        }
-        if (task != null) {
-            long bytesLoaded = bytesCounter.addAndGet(nBytesPerProcessor);
-            task.setProgressValue(bytesLoaded);
-            if (bytesLoaded == totalBytes) task.run(() -> {
-            });
+        short[] shorts = (short[]) getSlabPlane(rai, iC, iZ, iT);
+        if (shorts == null) {
+            shorts = new short[nPixPerPlane];
+            IterableInterval<UnsignedShortType> ii = Views.flatIterable(slice);
+            int idx = 0;
+            for (Cursor<UnsignedShortType> s = ii.cursor(); s.hasNext(); idx++) {
+                shorts[idx] = (short) s.next().get();
+            }
         }
         return new ShortProcessor(width, height, shorts, getCM(iC));
     }
@@ -245,17 +254,14 @@ public class SourceVirtualStack<T extends NumericType<T> & NativeType<T>> extend
         if (noSourcePresent(source, iZ, iT)) return new FloatProcessor(width, height);
         RandomAccessibleInterval<FloatType> rai = source.getSpimSource().getSource(iT, resolutionLevel);
         RandomAccessibleInterval<FloatType> slice = Views.hyperSlice(rai, 2, iZ);
-        float[] floats = new float[nPixPerPlane];
-        IterableInterval<FloatType> ii = Views.flatIterable(slice);
-        int idx = 0;
-        for (Cursor<FloatType> s = ii.cursor(); s.hasNext(); idx++) {
-            floats[idx] = s.next().get();
-        }
-        if (task != null) {
-            long bytesLoaded = bytesCounter.addAndGet(nBytesPerProcessor);
-            task.setProgressValue(bytesLoaded);
-            if (bytesLoaded == totalBytes) task.run(() -> {
-            });
+        float[] floats = (float[]) getSlabPlane(rai, iC, iZ, iT);
+        if (floats == null) {
+            floats = new float[nPixPerPlane];
+            IterableInterval<FloatType> ii = Views.flatIterable(slice);
+            int idx = 0;
+            for (Cursor<FloatType> s = ii.cursor(); s.hasNext(); idx++) {
+                floats[idx] = s.next().get();
+            }
         }
         return new FloatProcessor(width, height, floats, getCM(iC));
     }
@@ -274,36 +280,112 @@ public class SourceVirtualStack<T extends NumericType<T> & NativeType<T>> extend
         if (noSourcePresent(source, iZ, iT)) return new ColorProcessor(width, height);
         RandomAccessibleInterval<ARGBType> rai = source.getSpimSource().getSource(iT, resolutionLevel);
         RandomAccessibleInterval<ARGBType> slice = Views.hyperSlice(rai, 2, iZ);
-        int[] ints = new int[nPixPerPlane];
-        IterableInterval<ARGBType> ii = Views.flatIterable(slice);
-        int idx = 0;
-        for (Cursor<ARGBType> s = ii.cursor(); s.hasNext(); idx++) {
-            ints[idx] = s.next().get();
-        }
-        if (task != null) {
-            long bytesLoaded = bytesCounter.addAndGet(nBytesPerProcessor);
-            task.setProgressValue(bytesLoaded);
-            if (bytesLoaded == totalBytes) task.run(() -> {
-            });
+        int[] ints = (int[]) getSlabPlane(rai, iC, iZ, iT);
+        if (ints == null) {
+            ints = new int[nPixPerPlane];
+            IterableInterval<ARGBType> ii = Views.flatIterable(slice);
+            int idx = 0;
+            for (Cursor<ARGBType> s = ii.cursor(); s.hasNext(); idx++) {
+                ints[idx] = s.next().get();
+            }
         }
         return new ColorProcessor(width, height, ints);
     }
 
+    /**
+     * Reads a plane from the slab of cells containing it, see {@link SlabPrefetcher}
+     *
+     * @return the plane pixels, or null if the plane should be read directly from the source
+     */
+    Object getSlabPlane(RandomAccessibleInterval<?> rai, int iC, int iZ, int iT) {
+        if (slabPrefetcher == null) return null;
+        return slabPrefetcher.getPlane(rai, iC, iT, iZ);
+    }
+
+    /**
+     * Sets the maximal amount of memory used to keep the slabs of cells read around the requested planes.
+     * Slab reading is only used for cell images with cells thicker than one plane, see {@link SlabPrefetcher}.
+     * The slabs are also charged to the budget of the plane cache shared by all the stacks.
+     *
+     * @param slabBudgetBytes memory budget in bytes, 0 to read planes one by one
+     */
+    public void setSlabBudget(long slabBudgetBytes) {
+        if (slabPrefetcher != null) slabPrefetcher.clear();
+        this.slabPrefetcher = slabBudgetBytes > 0 ? new SlabPrefetcher(planeCache, planeCacheId, slabBudgetBytes, width, height, bitDepth) : null;
+    }
+
     final Object lockAnalyzePreviousData = new Object();
 
     @Override
     public void setProcessor(ImageProcessor ip, int n) {
-        cachedImageProcessor.put(n, ip);
+        planeCache.put(planeCacheId, n, ip);
+    }
+
+    /**
+     * Counts the bytes of a plane in the bytes counter, and ends the task once all planes are loaded.
+     * A plane is only counted the first time it is loaded
+     *
+     * @param n plane index
+     */
+    private void planeLoaded(int n) {
+        if (task == null) return;
+        synchronized (loadedPlanes) {
+            if (loadedPlanes.get(n)) return;
+            loadedPlanes.set(n);
+        }
+        long bytesLoaded = bytesCounter.addAndGet(nBytesPerProcessor);
+        task.setProgressValue(bytesLoaded);
+        if (bytesLoaded == totalBytes) task.run(() -> {
+        });
+    }
+
+    /**
+     * Sets the maximal amount of memory used by the planes kept in cache, when the stack is created with cache.
+     * The cache is shared by all the stacks: this budget bounds the planes of all the stacks. The least recently
+     * accessed planes are discarded first
+     *
+     * @param cacheBudgetBytes memory budget in bytes
+     */
+    public static void setCacheBudget(long cacheBudgetBytes) {
+        BoundedPlaneCache.setGlobalBudget(cacheBudgetBytes);
+    }
+
+    /**
+     * @return the cache of the planes, shared by all the stacks, which can be used to get hit, miss and eviction counts
+     */
+    public static BoundedPlaneCache getPlaneCache() {
+        return BoundedPlaneCache.getInstance();
+    }
+
+    private boolean isBeingProcessed(int n) {
+        synchronized (lockAnalyzePreviousData) {
+            return currentlyProcessedProcessor.containsKey(n);
+        }
     }
 
+    private ImageProcessor computeProcessor(int iC, int iZ, int iT) {
+        switch (bitDepth) {
+            case 8:
+                return getByteProcessor(iC, iZ, iT);
+            case 16:
+                return getShortProcessor(iC, iZ, iT);
+            case 24:
+                return getColorProcessor(iC, iZ, iT);
+            case 32:
+                return getFloatProcessor(iC, iZ, iT);
+            default:
+                throw new UnsupportedOperationException("Invalid bitdepth " + bitDepth);
+        }
+    }
 
     @Override
     public ImageProcessor getProcessor(int n) {
         Object lockWaitedFor = null;
         int[] czt;
         if (n == 1) {
-            if (cachedImageProcessor.containsKey(n)) {
-                return (ImageProcessor) cachedImageProcessor.get(n).clone(); // Really weird bug.... thread lock ?
+            ImageProcessor ip = planeCache.get(planeCacheId, n);
+            if (ip != null) {
+                return (ImageProcessor) ip.clone(); // Really weird bug.... thread lock ?
             }
         }
         if (imagePlusLocalizer == null) {
@@ -320,22 +402,19 @@ public class SourceVirtualStack<T extends NumericType<T> & NativeType<T>> extend
             int iT = range.getRangeT().get(czt[2] - 1);
             final CZTId cztId = new CZTId(iC, iZ, iT);
             synchronized (lockAnalyzePreviousData) {
-                if (cachedImageProcessor.containsKey(n)) {
-                    return cachedImageProcessor.get(n);
+                ImageProcessor cached = planeCache.get(planeCacheId, n);
+                if (cached != null) {
+                    return cached;
                 } else if (currentlyProcessedProcessor.containsKey(n)) {
                     lockWaitedFor = currentlyProcessedProcessor.get(n);
                     waitForResult = true;
-                } else if (cztIdToComputedProcessor.containsKey(cztId)) {
+                } else if ((cztIdToComputedProcessor.containsKey(cztId))
+                        && (planeCache.contains(planeCacheId, cztIdToComputedProcessor.get(cztId)))) {
                     // Shortcut -> skipping the loading!
-                    int nReferenced = cztIdToComputedProcessor.get(cztId);
-                    cachedImageProcessor.put(n, cachedImageProcessor.get(nReferenced));
-                    if (task != null) {
-                        long bytesLoaded = bytesCounter.addAndGet(nBytesPerProcessor);
-                        task.setProgressValue(bytesLoaded);
-                        if (bytesLoaded == totalBytes) task.run(() -> {
-                        });
-                    }
-                    return cachedImageProcessor.get(n);
+                    ImageProcessor referenced = planeCache.get(planeCacheId, cztIdToComputedProcessor.get(cztId));
+                    planeCache.put(planeCacheId, n, referenced);
+                    planeLoaded(n);
+                    return referenced;
                 } else {
                     currentlyProcessedProcessor.put(n, new Object());
                 }
@@ -344,59 +423,41 @@ public class SourceVirtualStack<T extends NumericType<T> & NativeType<T>> extend
             // We need to wait
             if (waitForResult) {
                 synchronized (lockWaitedFor) {
-                    while (!cachedImageProcessor.containsKey(n)) {
+                    while (isBeingProcessed(n)) {
                         try {
                             lockWaitedFor.wait();
                         } catch (InterruptedException e) {
                         }
                     }
                 }
-                return cachedImageProcessor.get(n);
+                ImageProcessor ip = planeCache.get(planeCacheId, n);
+                // The plane may already have been discarded from the cache
+                return ip != null ? ip : computeProcessor(iC, iZ, iT);
             } else {
-                Object lockProcessing = currentlyProcessedProcessor.get(n);
+                Object lockProcessing;
+                synchronized (lockAnalyzePreviousData) {
+                    lockProcessing = currentlyProcessedProcessor.get(n);
+                }
                 synchronized (lockProcessing) {
-                    ImageProcessor ip = null;
-                    switch (bitDepth) {
-                        case 8:
-                            ip = getByteProcessor(iC, iZ, iT);
-                            break;
-                        case 16:
-                            ip = getShortProcessor(iC, iZ, iT);
-                            break;
-                        case 24:
-                            ip = getColorProcessor(iC, iZ, iT);
-                            break;
-                        case 32:
-                            ip = getFloatProcessor(iC, iZ, iT);
-                            break;
-                    }
-
+                    ImageProcessor ip = computeProcessor(iC, iZ, iT);
+                    planeCache.put(planeCacheId, n, ip);
+                    planeLoaded(n);
                     synchronized (lockAnalyzePreviousData) {
                         cztIdToComputedProcessor.put(cztId, n);
                         currentlyProcessedProcessor.remove(n);
                     }
-                    cachedImageProcessor.put(n, ip);
                     lockProcessing.notifyAll();
+                    return ip;
                 }
-                return cachedImageProcessor.get(n);
             }
 
         } else {
             int iC = range.getRangeC().get(czt[0] - 1);
             int iZ = range.getRangeZ().get(czt[1] - 1);
             int iT = range.getRangeT().get(czt[2] - 1);
-            switch (bitDepth) {
-                case 8:
-                    return getByteProcessor(iC, iZ, iT);
-                case 16:
-                    return getShortProcessor(iC, iZ, iT);
-                case 24:
-                    return getColorProcessor(iC, iZ, iT);
-                case 32:
-                    return getFloatProcessor(iC, iZ, iT);
-                default:
-                    throw new UnsupportedOperationException("Invalid bitdepth " + bitDepth);
-            }
+            ImageProcessor ip = computeProcessor(iC, iZ, iT);
+            planeLoaded(n);
+            return ip;
         }
     }
 
@@ -0,0 +1,588 @@
+package ch.epfl.biop.source.exporter;
+
+import bdv.util.source.cache.N5DataBlocks;
+import bdv.util.source.process.BlockDownsampler;
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.zarr.N5ZarrWriter;
+import org.scijava.task.Task;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sc.fiji.bdvpg.source.SourceHelper;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Exports sources to a chunked multiscale N5 or OME-Zarr container, cell by cell.
+ * <br>
+ * Unlike {@link ImagePlusGetter} or the OME-TIFF export, no full plane is ever materialized. Each source
+ * is written in its own multiscale group (4D dataset X, Y, Z, T per resolution level), with the block
+ * size of the cell grid of the source when it has one.
+ * <br>
+ * Cells go through a bounded producer / consumer pipeline: a pool of compute threads reads the cells from
+ * the source into primitive arrays, and a pool of writer threads compresses and writes them. At most
+ * {@link Builder#maxCellsInFlight(int)} cells are computed and not yet written: when this limit is reached,
+ * no new cell is computed until a writer is done (backpressure), which bounds the memory used by the export.
+ * <br>
+ * Resolution levels above 0 are not read from the source: each level is computed by block averaging of
+ * the chunks of the level below, once it is fully written.
+ * <br>
+ * When resume is set, the chunks already present in the container are kept, and only the missing ones are
+ * computed: an interrupted export can be restarted with the same parameters.
+ * <br>
+ * Only {@link net.imglib2.type.numeric.integer.UnsignedByteType}, {@link net.imglib2.type.numeric.integer.UnsignedShortType}
+ * and {@link net.imglib2.type.numeric.real.FloatType} sources are supported. Only the scaling and translation
+ * part of the source transform are stored in the metadata.
+ *
+ * @author Nicolas Chiaruttini, BIOP EPFL
+ */
+public class SourcesToN5Exporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(SourcesToN5Exporter.class);
+
+    final public static String N5 = "N5";
+    final public static String OME_ZARR = "OME-Zarr";
+
+    final static int[] DEFAULT_BLOCK_SIZE = new int[]{128, 128, 64};
+
+    final Builder builder;
+
+    final N5Writer n5;
+
+    final AtomicLong nBlocksDone = new AtomicLong();
+
+    final AtomicLong nBlocksSkipped = new AtomicLong();
+
+    final AtomicReference<Exception> error = new AtomicReference<>();
+
+    private SourcesToN5Exporter(Builder builder) throws Exception {
+        this.builder = builder;
+        switch (builder.format) {
+            case N5:
+                n5 = new N5FSWriter(builder.output.getAbsolutePath());
+                break;
+            case OME_ZARR:
+                n5 = new N5ZarrWriter(builder.output.getAbsolutePath());
+                break;
+            default:
+                throw new UnsupportedOperationException("Unsupported format "+builder.format);
+        }
+    }
+
+    /**
+     * Exports all sources
+     * @return for each source name, the path of its multiscale group in the container
+     * @throws Exception if a cell could not be computed or written, or if the export was cancelled
+     */
+    public Map<String, String> export() throws Exception {
+        Map<String, String> groups = new HashMap<>();
+        List<ExportedSource<?>> exported = new ArrayList<>();
+        for (int i = 0; i < builder.sources.length; i++) {
+            ExportedSource<?> source = new ExportedSource(builder.sources[i], i);
+            exported.add(source);
+            groups.put(source.source.getName(), source.group);
+        }
+
+        long totalBlocks = exported.stream().mapToLong(ExportedSource::getNumberOfBlocks).sum();
+        if (builder.task != null) {
+            builder.task.setStatusMessage("Exporting to "+builder.output.getName());
+            builder.task.setProgressMaximum(totalBlocks);
+        }
+
+        ExecutorService computePool = Executors.newFixedThreadPool(builder.nComputeThreads);
+        ExecutorService writePool = Executors.newFixedThreadPool(builder.nWriteThreads);
+        Semaphore inFlight = new Semaphore(builder.maxCellsInFlight);
+        long start = System.currentTimeMillis();
+
+        try {
+            for (ExportedSource<?> source : exported) {
+                source.writeMetadata();
+                for (int level = 0; level < builder.nResolutionLevels; level++) {
+                    source.createDataset(level);
+                    for (int t : source.timepoints) {
+                        submitLevel(source, level, t, computePool, writePool, inFlight);
+                    }
+                    // Barrier: the level above is computed from the chunks of this level
+                    inFlight.acquire(builder.maxCellsInFlight);
+                    inFlight.release(builder.maxCellsInFlight);
+                    checkState();
+                }
+            }
+        } finally {
+            computePool.shutdownNow();
+            writePool.shutdown();
+            writePool.awaitTermination(1, TimeUnit.MINUTES);
+        }
+
+        logger.info("Export to "+builder.output.getAbsolutePath()+" done in "+(System.currentTimeMillis()-start)+" ms, "
+                +(nBlocksDone.get()-nBlocksSkipped.get())+" chunks written, "+nBlocksSkipped.get()+" chunks already present");
+        if (builder.task != null) builder.task.run(() -> {}); // finished task
+        return groups;
+    }
+
+    private <T extends RealType<T> & NativeType<T>> void submitLevel(ExportedSource<T> source, int level, int t,
+                                                                     ExecutorService computePool,
+                                                                     ExecutorService writePool,
+                                                                     Semaphore inFlight) throws Exception {
+        final String dataset = source.dataset(level);
+        final DatasetAttributes attributes = n5.getDatasetAttributes(dataset);
+        final long[] dimensions = source.dimensions.get(level);
+        final int[] blockSize = source.blockSizes.get(level);
+        final long[] nBlocks = new long[3];
+        for (int d = 0; d < 3; d++) {
+            nBlocks[d] = (dimensions[d] + blockSize[d] - 1) / blockSize[d];
+        }
+
+        // Z major order: consecutive cells share the same slab of the source
+        for (long bz = 0; bz < nBlocks[2]; bz++) {
+            for (long by = 0; by < nBlocks[1]; by++) {
+                for (long bx = 0; bx < nBlocks[0]; bx++) {
+                    checkState();
+                    final long[] gridPosition = new long[]{bx, by, bz, t};
+                    inFlight.acquire(); // Backpressure
+                    computePool.submit(() -> {
+                        try {
+                            if (builder.resume && blockExists(dataset, attributes, gridPosition)) {
+                                nBlocksSkipped.incrementAndGet();
+                                blockDone(inFlight);
+                                return;
+                            }
+                            final DataBlock<?> block = source.computeBlock(level, gridPosition);
+                            writePool.submit(() -> {
+                                try {
+                                    n5.writeBlock(dataset, attributes, block);
+                                } catch (Exception e) {
+                                    error.compareAndSet(null, e);
+                                } finally {
+                                    blockDone(inFlight);
+                                }
+                            });
+                        } catch (Exception e) {
+                            error.compareAndSet(null, e);
+                            inFlight.release();
+                        }
+                    });
+                }
+            }
+        }
+    }
+
+    private void blockDone(Semaphore inFlight) {
+        long done = nBlocksDone.incrementAndGet();
+        if (builder.task != null) builder.task.setProgressValue(done);
+        inFlight.release();
+    }
+
+    private void checkState() throws Exception {
+        if (error.get() != null) throw error.get();
+        if ((builder.task != null) && (builder.task.isCanceled())) {
+            throw new InterruptedException("Export to "+builder.output.getAbsolutePath()+" cancelled");
+        }
+    }
+
+    private boolean blockExists(String dataset, DatasetAttributes attributes, long[] gridPosition) {
+        try {
+            return n5.readBlock(dataset, attributes, gridPosition) != null;
+        } catch (Exception e) {
+            return false; // Missing or partially written chunk
+        }
+    }
+
+    /**
+     * State of the export of a single source
+     * @param <T> pixel type of the source
+     */
+    class ExportedSource<T extends RealType<T> & NativeType<T>> {
+
+        final Source<T> source;
+
+        final String group;
+
+        final DataType dataType;
+
+        final T type;
+
+        final List<Integer> timepoints = new ArrayList<>();
+
+        final List<long[]> dimensions = new ArrayList<>();
+
+        final List<int[]> blockSizes = new ArrayList<>();
+
+        ExportedSource(SourceAndConverter<T> sac, int index) {
+            this.source = sac.getSpimSource();
+            this.type = source.getType().createVariable();
+            this.dataType = N5DataBlocks.getDataType(type);
+            if (dataType == null) {
+                throw new UnsupportedOperationException("Unsupported pixel type "+type.getClass().getSimpleName()
+                        +" for source "+source.getName());
+            }
+            this.group = index + "_" + source.getName().replaceAll("[^a-zA-Z0-9_\\-.]", "_");
+
+            int nTimepoints = SourceHelper.getMaxTimepoint(sac) + 1;
+            for (int t = 0; t < nTimepoints; t++) {
+                if (source.isPresent(t)) timepoints.add(t);
+            }
+            if (timepoints.isEmpty()) {
+                throw new IllegalArgumentException("Source "+source.getName()+" has no timepoint");
+            }
+
+            RandomAccessibleInterval<T> rai = source.getSource(timepoints.get(0), 0);
+            int[] blockSize = new int[3];
+            if (builder.blockSize != null) {
+                blockSize = builder.blockSize.clone();
+            } else if (rai instanceof AbstractCellImg) {
+                ((AbstractCellImg<?, ?, ?, ?>) rai).getCellGrid().cellDimensions(blockSize);
+            } else {
+                blockSize = DEFAULT_BLOCK_SIZE.clone();
+            }
+
+            long[] levelDimensions = rai.dimensionsAsLongArray();
+            for (int level = 0; level < builder.nResolutionLevels; level++) {
+                if (level > 0) levelDimensions = BlockDownsampler.downsampledDimensions(levelDimensions, builder.downsampling);
+                int[] levelBlockSize = new int[3];
+                for (int d = 0; d < 3; d++) {
+                    levelBlockSize[d] = (int) Math.min(blockSize[d], levelDimensions[d]);
+                }
+                dimensions.add(levelDimensions);
+                blockSizes.add(levelBlockSize);
+            }
+        }
+
+        String dataset(int level) {
+            return group + "/s" + level;
+        }
+
+        long getNumberOfBlocks() {
+            long n = 0;
+            for (int level = 0; level < builder.nResolutionLevels; level++) {
+                long nLevel = timepoints.size();
+                for (int d = 0; d < 3; d++) {
+                    nLevel *= (dimensions.get(level)[d] + blockSizes.get(level)[d] - 1) / blockSizes.get(level)[d];
+                }
+                n += nLevel;
+            }
+            return n;
+        }
+
+        void createDataset(int level) throws Exception {
+            String dataset = dataset(level);
+            long[] dims = dimensions.get(level);
+            int[] block = blockSizes.get(level);
+            long[] datasetDimensions = new long[]{dims[0], dims[1], dims[2], timepoints.get(timepoints.size() - 1) + 1};
+            int[] datasetBlockSize = new int[]{block[0], block[1], block[2], 1};
+            if (n5.datasetExists(dataset)) {
+                DatasetAttributes existing = n5.getDatasetAttributes(dataset);
+                boolean identical = Arrays.equals(existing.getDimensions(), datasetDimensions)
+                        && Arrays.equals(existing.getBlockSize(), datasetBlockSize)
+                        && existing.getDataType().equals(dataType);
+                if (builder.resume && identical) return;
+                if (builder.resume) {
+                    logger.warn("Dataset "+dataset+" does not match the source, its chunks are discarded");
+                }
+                n5.remove(dataset);
+            }
+            n5.createDataset(dataset, datasetDimensions, datasetBlockSize, dataType, builder.compression);
+            double[] factors = new double[3];
+            for (int d = 0; d < 3; d++) {
+                factors[d] = Math.pow(builder.downsampling[d], level);
+            }
+            n5.setAttribute(dataset, "downsamplingFactors", factors);
+        }
+
+        /**
+         * Writes the voxel size, and for OME-Zarr the multiscales metadata, from the transform of the source
+         */
+        void writeMetadata() throws Exception {
+            AffineTransform3D transform = new AffineTransform3D();
+            source.getSourceTransform(timepoints.get(0), 0, transform);
+            double[] voxelSize = new double[3];
+            double[] origin = new double[3];
+            for (int d = 0; d < 3; d++) {
+                voxelSize[d] = Math.sqrt(transform.get(0, d) * transform.get(0, d)
+                        + transform.get(1, d) * transform.get(1, d)
+                        + transform.get(2, d) * transform.get(2, d));
+                origin[d] = transform.get(d, 3);
+            }
+            String unit = ((source.getVoxelDimensions() != null) && (source.getVoxelDimensions().unit() != null)) ?
+                    source.getVoxelDimensions().unit() : "pixel";
+
+            n5.createGroup(group);
+            n5.setAttribute(group, "resolution", voxelSize);
+            n5.setAttribute(group, "unit", unit);
+            n5.setAttribute(group, "name", source.getName());
+
+            if (builder.format.equals(OME_ZARR)) {
+                // Zarr arrays are stored in C order: T, Z, Y, X
+                List<Map<String, Object>> axes = new ArrayList<>();
+                axes.add(axis("t", "time", null));
+                axes.add(axis("z", "space", unit));
+                axes.add(axis("y", "space", unit));
+                axes.add(axis("x", "space", unit));
+
+                List<Map<String, Object>> datasets = new ArrayList<>();
+                for (int level = 0; level < builder.nResolutionLevels; level++) {
+                    double[] scale = new double[4];
+                    double[] translation = new double[4];
+                    scale[0] = 1;
+                    for (int d = 0; d < 3; d++) {
+                        double factor = Math.pow(builder.downsampling[d], level);
+                        scale[3 - d] = voxelSize[d] * factor;
+                        translation[3 - d] = origin[d] + (factor - 1) / 2.0 * voxelSize[d];
+                    }
+                    Map<String, Object> scaleTransform = new HashMap<>();
+                    scaleTransform.put("type", "scale");
+                    scaleTransform.put("scale", scale);
+                    Map<String, Object> translationTransform = new HashMap<>();
+                    translationTransform.put("type", "translation");
+                    translationTransform.put("translation", translation);
+                    Map<String, Object> dataset = new HashMap<>();
+                    dataset.put("path", "s" + level);
+                    dataset.put("coordinateTransformations", Arrays.asList(scaleTransform, translationTransform));
+                    datasets.add(dataset);
+                }
+
+                Map<String, Object> multiscale = new HashMap<>();
+                multiscale.put("version", "0.4");
+                multiscale.put("name", source.getName());
+                multiscale.put("axes", axes);
+                multiscale.put("datasets", datasets);
+                n5.setAttribute(group, "multiscales", new Object[]{multiscale});
+            }
+        }
+
+        /**
+         * Computes a chunk: level 0 is read from the source, levels above are downsampled from the level below
+         */
+        DataBlock<?> computeBlock(int level, long[] gridPosition) throws Exception {
+            final int t = (int) gridPosition[3];
+            final long[] dims = dimensions.get(level);
+            final int[] block = blockSizes.get(level);
+            final long[] min = new long[3];
+            final long[] max = new long[3];
+            final int[] size = new int[]{1, 1, 1, 1};
+            for (int d = 0; d < 3; d++) {
+                min[d] = gridPosition[d] * block[d];
+                max[d] = Math.min(dims[d] - 1, min[d] + block[d] - 1);
+                size[d] = (int) (max[d] - min[d] + 1);
+            }
+            final FinalInterval cellInterval = new FinalInterval(min, max);
+
+            if (level == 0) {
+                RandomAccessibleInterval<T> rai = Views.zeroMin(source.getSource(t, 0));
+                return N5DataBlocks.createBlock(dataType, size, gridPosition, Views.interval(rai, cellInterval));
+            }
+
+            // Reads the region of the level below covered by the cell
+            final int[] factors = builder.downsampling;
+            final long[] belowDims = dimensions.get(level - 1);
+            final long[] regionMin = new long[3];
+            final long[] regionMax = new long[3];
+            for (int d = 0; d < 3; d++) {
+                regionMin[d] = min[d] * factors[d];
+                regionMax[d] = Math.min(belowDims[d] - 1, (max[d] + 1) * factors[d] - 1);
+            }
+            final FinalInterval regionInterval = new FinalInterval(regionMin, regionMax);
+            final Img<T> region = new ArrayImgFactory<>(type).create(Intervals.dimensionsAsLongArray(regionInterval));
+            final RandomAccessibleInterval<T> regionInPlace = Views.translate(region, regionMin);
+            readRegion(level - 1, t, regionInterval, regionInPlace);
+
+            final Img<T> cell = new ArrayImgFactory<>(type).create(size[0], size[1], size[2]);
+            final RandomAccessibleInterval<T> input = Views.interval(Views.extendZero(regionInPlace), new FinalInterval(belowDims));
+            BlockDownsampler.downsample(input, factors, BlockDownsampler.MEAN, Views.translate(cell, min));
+            return N5DataBlocks.createBlock(dataType, size, gridPosition, cell);
+        }
+
+        private void readRegion(int level, int t, FinalInterval region, RandomAccessibleInterval<T> target) throws Exception {
+            final String dataset = dataset(level);
+            final DatasetAttributes attributes = n5.getDatasetAttributes(dataset);
+            final long[] dims = dimensions.get(level);
+            final int[] block = blockSizes.get(level);
+            final long[] firstBlock = new long[3];
+            final long[] lastBlock = new long[3];
+            for (int d = 0; d < 3; d++) {
+                firstBlock[d] = region.min(d) / block[d];
+                lastBlock[d] = region.max(d) / block[d];
+            }
+            for (long bz = firstBlock[2]; bz <= lastBlock[2]; bz++) {
+                for (long by = firstBlock[1]; by <= lastBlock[1]; by++) {
+                    for (long bx = firstBlock[0]; bx <= lastBlock[0]; bx++) {
+                        final long[] gridPosition = new long[]{bx, by, bz, t};
+                        final DataBlock<?> dataBlock = n5.readBlock(dataset, attributes, gridPosition);
+                        if (dataBlock == null) continue; // Empty chunk, the region is already filled with zeros
+                        final long[] blockMin = new long[3];
+                        final long[] blockSize = new long[3];
+                        for (int d = 0; d < 3; d++) {
+                            blockMin[d] = gridPosition[d] * block[d];
+                            blockSize[d] = Math.min(block[d], dims[d] - blockMin[d]);
+                        }
+                        final Img<T> blockImg = new ArrayImgFactory<>(type).create(blockSize);
+                        N5DataBlocks.copyToImage(dataBlock.getData(), blockImg);
+                        final FinalInterval overlap = Intervals.intersect(
+                                Intervals.translate(new FinalInterval(blockSize), blockMin), region);
+                        final Cursor<T> in = Views.interval(Views.translate(blockImg, blockMin), overlap).localizingCursor();
+                        final RandomAccess<T> out = target.randomAccess();
+                        while (in.hasNext()) {
+                            in.fwd();
+                            out.setPosition(in);
+                            out.get().set(in.get());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static Map<String, Object> axis(String name, String type, String unit) {
+        Map<String, Object> axis = new HashMap<>();
+        axis.put("name", name);
+        axis.put("type", type);
+        if (unit != null) axis.put("unit", unit);
+        return axis;
+    }
+
+    public static Builder builder(SourceAndConverter<?>[] sources, File output) {
+        Builder builder = new Builder();
+        builder.sources = sources;
+        builder.output = output;
+        return builder;
+    }
+
+    public static class Builder {
+        SourceAndConverter[] sources;
+        File output;
+        String format = OME_ZARR;
+        int nResolutionLevels = 1;
+        int[] downsampling = new int[]{2, 2, 1};
+        int[] blockSize = null;
+        int nComputeThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        int nWriteThreads = 2;
+        int maxCellsInFlight = 64;
+        boolean resume = false;
+        Compression compression = new GzipCompression();
+        Task task = null;
+
+        /**
+         * @param format {@link SourcesToN5Exporter#N5} or {@link SourcesToN5Exporter#OME_ZARR}
+         * @return the builder
+         */
+        public Builder format(String format) {
+            this.format = format;
+            return this;
+        }
+
+        /**
+         * @param nResolutionLevels number of resolution levels, including the full resolution
+         * @return the builder
+         */
+        public Builder nResolutionLevels(int nResolutionLevels) {
+            this.nResolutionLevels = nResolutionLevels;
+            return this;
+        }
+
+        /**
+         * Downsampling factors between consecutive resolution levels
+         * @return the builder
+         */
+        public Builder downsampling(int factorX, int factorY, int factorZ) {
+            this.downsampling = new int[]{factorX, factorY, factorZ};
+            return this;
+        }
+
+        /**
+         * Overrides the chunk size, which is by default the cell size of the sources
+         * @return the builder
+         */
+        public Builder blockSize(int sizeX, int sizeY, int sizeZ) {
+            this.blockSize = new int[]{sizeX, sizeY, sizeZ};
+            return this;
+        }
+
+        /**
+         * @param nThreads number of threads computing the cells of the sources
+         * @return the builder
+         */
+        public Builder nComputeThreads(int nThreads) {
+            this.nComputeThreads = nThreads;
+            return this;
+        }
+
+        /**
+         * @param nThreads number of threads compressing and writing the chunks
+         * @return the builder
+         */
+        public Builder nWriteThreads(int nThreads) {
+            this.nWriteThreads = nThreads;
+            return this;
+        }
+
+        /**
+         * @param maxCellsInFlight maximal number of cells computed but not yet written, bounds the memory used by the export
+         * @return the builder
+         */
+        public Builder maxCellsInFlight(int maxCellsInFlight) {
+            this.maxCellsInFlight = maxCellsInFlight;
+            return this;
+        }
+
+        /**
+         * @param resume if true, keeps the chunks already written by a previous export with the same parameters
+         * @return the builder
+         */
+        public Builder resume(boolean resume) {
+            this.resume = resume;
+            return this;
+        }
+
+        /**
+         * @param compression N5 compression of the chunks, gzip by default
+         * @return the builder
+         */
+        public Builder compression(Compression compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        /**
+         * @param task can be used for monitoring and cancelling the export
+         * @return the builder
+         */
+        public Builder task(Task task) {
+            this.task = task;
+            return this;
+        }
+
+        public SourcesToN5Exporter build() throws Exception {
+            return new SourcesToN5Exporter(this);
+        }
+    }
+}
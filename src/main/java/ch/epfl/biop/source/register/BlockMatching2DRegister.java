@@ -0,0 +1,257 @@
+package ch.epfl.biop.source.register;
+
+import bdv.viewer.Interpolation;
+import bdv.viewer.SourceAndConverter;
+import ch.epfl.biop.scheduler.JobScheduler;
+import net.imglib2.RealPoint;
+import net.imglib2.realtransform.AffineTransform3D;
+import org.scijava.task.Task;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+
+/**
+ * In-process alternative to {@link Elastix2DAffineRegister} for the registration of many small fields of view
+ * (landmarks) between two sets of 2D sources.
+ * <br>
+ * For each landmark, a fixed and a moving patch centered on the landmark are sampled directly from the sources
+ * into float[] buffers, then registered by a {@link PatchMatcher2D}: the translation is found by phase
+ * correlation, the moving patch is resampled at the translated location, and an affine transform is refined by
+ * NCC maximisation. No image is written to disk and no external process is started.
+ * <br>
+ * Multichannel sources are standardized channel by channel and summed. The matchers and their buffers are pooled:
+ * registering landmarks on n threads allocates at most n matchers. Landmarks registered in parallel are jobs of
+ * the shared {@link JobScheduler}. To register many overlapping fields of view,
+ * the sources can first be resampled once with a {@link ResampledPatchProvider}.
+ * <br>
+ * The output of a landmark registration is an {@link AffineTransform3D} with the same meaning as the one of
+ * {@link Elastix2DAffineRegister}: the transform to apply to the moving sources to align them with the fixed
+ * sources around this landmark, or null if the registration failed.
+ */
+public class BlockMatching2DRegister {
+
+    protected static Logger logger = LoggerFactory.getLogger(BlockMatching2DRegister.class);
+
+    final SourceAndConverter<?>[] sourcesFixed, sourcesMoving;
+    final int tpFixed, tpMoving;
+    final int levelFixed, levelMoving;
+    final double backgroundFixed, backgroundMoving;
+    final double pxSize;
+    final int width, height;
+
+    boolean interpolate = true;
+
+    int maxIterations = 100;
+
+    double minCorrelation = 0.2;
+
+    JobScheduler.Priority priority = JobScheduler.Priority.BATCH;
+
+    final ConcurrentLinkedQueue<PatchMatcher2D> matchers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param sourcesFixed fixed sources, one per channel
+     * @param tpFixed timepoint of the fixed sources
+     * @param levelFixed resolution level of the fixed sources
+     * @param backgroundFixed value subtracted to the fixed sources
+     * @param sourcesMoving moving sources, one per channel
+     * @param tpMoving timepoint of the moving sources
+     * @param levelMoving resolution level of the moving sources
+     * @param backgroundMoving value subtracted to the moving sources
+     * @param pxSize size of the pixels of the patches, in physical units
+     * @param sx width of the patches, in physical units
+     * @param sy height of the patches, in physical units
+     */
+    public BlockMatching2DRegister(SourceAndConverter<?>[] sourcesFixed, int tpFixed, int levelFixed, double backgroundFixed,
+                                   SourceAndConverter<?>[] sourcesMoving, int tpMoving, int levelMoving, double backgroundMoving,
+                                   double pxSize, double sx, double sy) {
+        this.sourcesFixed = sourcesFixed;
+        this.tpFixed = tpFixed;
+        this.levelFixed = Math.min(levelFixed, sourcesFixed[0].getSpimSource().getNumMipmapLevels() - 1);
+        this.backgroundFixed = backgroundFixed;
+        this.sourcesMoving = sourcesMoving;
+        this.tpMoving = tpMoving;
+        this.levelMoving = Math.min(levelMoving, sourcesMoving[0].getSpimSource().getNumMipmapLevels() - 1);
+        this.backgroundMoving = backgroundMoving;
+        this.pxSize = pxSize;
+        // Tolerance: a size made of an integer number of pixels should give this number of pixels
+        this.width = Math.max(8, (int) Math.ceil(sx / pxSize - 1e-9));
+        this.height = Math.max(8, (int) Math.ceil(sy / pxSize - 1e-9));
+    }
+
+    public void setInterpolate(boolean interpolate) {
+        this.interpolate = interpolate;
+    }
+
+    public void setMaxIterations(int maxIterations) {
+        this.maxIterations = maxIterations;
+    }
+
+    /**
+     * @param minCorrelation registrations whose final NCC is below this value are considered as failed
+     */
+    public void setMinCorrelation(double minCorrelation) {
+        this.minCorrelation = minCorrelation;
+    }
+
+    /**
+     * @param priority priority of the landmark registrations submitted to the shared {@link JobScheduler}
+     */
+    public void setPriority(JobScheduler.Priority priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Registers the fields of view centered on a landmark
+     * @param pt landmark, in physical units
+     * @return the transform to apply to the moving sources, or null if the registration failed
+     */
+    public AffineTransform3D register(RealPoint pt) {
+        PatchMatcher2D matcher = matchers.poll();
+        if (matcher == null) matcher = new PatchMatcher2D(width, height);
+        try {
+            return register(pt, matcher);
+        } finally {
+            matchers.add(matcher);
+        }
+    }
+
+    /**
+     * Registers all landmarks, as jobs of the shared {@link JobScheduler} if numThreads is above 1
+     * @param pts landmarks, in physical units
+     * @param numThreads 1 to register the landmarks one after the other in the calling thread, otherwise the
+     *                   landmarks are registered in parallel, as allowed by the shared scheduler
+     * @param task task used for monitoring and cancellation, can be null. Its progress is incremented by one per landmark
+     * @param onRegistered called with each landmark and its transform, possibly null, as soon as it is registered
+     * @throws CancellationException if the task is cancelled
+     */
+    public void registerAll(List<RealPoint> pts, int numThreads, Task task, BiConsumer<RealPoint, AffineTransform3D> onRegistered) {
+        List<Runnable> registrations = new ArrayList<>();
+        for (RealPoint pt : pts) {
+            registrations.add(() -> {
+                if ((task != null) && (task.isCanceled())) return;
+                onRegistered.accept(pt, register(pt));
+                if (task != null) {
+                    synchronized (task) {
+                        task.setProgressValue(task.getProgressValue() + 1);
+                    }
+                }
+            });
+        }
+        if (numThreads <= 1) {
+            registrations.forEach(Runnable::run);
+        } else {
+            JobScheduler scheduler = JobScheduler.getShared();
+            List<Future<?>> futures = new ArrayList<>();
+            try {
+                for (int i = 0; i < registrations.size(); i++) {
+                    futures.add(scheduler.submit("Block matching " + pts.get(i), priority, estimateMemory(), registrations.get(i)));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                futures.forEach(future -> future.cancel(false));
+                throw new CancellationException("Registration interrupted");
+            } catch (ExecutionException e) {
+                futures.forEach(future -> future.cancel(false));
+                throw new RuntimeException(e.getCause());
+            } catch (RejectedExecutionException e) {
+                // The registrations already submitted would otherwise outlive this call
+                futures.forEach(future -> future.cancel(false));
+                throw e;
+            }
+        }
+        if ((task != null) && (task.isCanceled())) {
+            throw new CancellationException("Registration cancelled");
+        }
+    }
+
+    /**
+     * @return the estimated memory of a landmark registration: the patches and the FFT buffers of a matcher
+     */
+    long estimateMemory() {
+        long fftSize = (long) Integer.highestOneBit(2 * width - 1) * Integer.highestOneBit(2 * height - 1);
+        return 4L * (3L * width * height + 4L * fftSize);
+    }
+
+    private AffineTransform3D register(RealPoint pt, PatchMatcher2D matcher) {
+        // The center of the patch, (width - 1) / 2 and (height - 1) / 2 in pixels, is the landmark: for an odd
+        // number of pixels, the central pixel of the patch is the pixel of the landmark
+        final double x0 = pt.getDoublePosition(0) - (width - 1) / 2.0 * pxSize;
+        final double y0 = pt.getDoublePosition(1) - (height - 1) / 2.0 * pxSize;
+        final double z = pt.numDimensions() > 2 ? pt.getDoublePosition(2) : 0;
+
+        sample(sourcesFixed, tpFixed, levelFixed, backgroundFixed, x0, y0, z, matcher.fixed, matcher.sampleBuffer);
+        sample(sourcesMoving, tpMoving, levelMoving, backgroundMoving, x0, y0, z, matcher.moving, matcher.sampleBuffer);
+
+        double[] shift = new double[2];
+        matcher.phaseCorrelation(shift);
+        if ((Math.abs(shift[0]) > width / 2.0) || (Math.abs(shift[1]) > height / 2.0)) {
+            logger.debug("Phase correlation shift out of range at " + pt);
+            return null;
+        }
+
+        // Resamples the moving patch at the translated location, then refines
+        final double mx0 = x0 + shift[0] * pxSize;
+        final double my0 = y0 + shift[1] * pxSize;
+        sample(sourcesMoving, tpMoving, levelMoving, backgroundMoving, mx0, my0, z, matcher.moving, matcher.sampleBuffer);
+        double correlation = matcher.refine(maxIterations);
+        if (correlation < minCorrelation) {
+            logger.debug("Low correlation (" + correlation + ") at " + pt);
+            return null;
+        }
+
+        // Fixed pixel u matches moving pixel P(u): fixed world x0 + s.u matches moving world mx0 + s.P(u)
+        double[] m = matcher.getMatrix();
+        AffineTransform3D fixedToMoving = new AffineTransform3D();
+        fixedToMoving.set(
+                m[0], m[1], 0, mx0 + pxSize * m[2] - m[0] * x0 - m[1] * y0,
+                m[3], m[4], 0, my0 + pxSize * m[5] - m[3] * x0 - m[4] * y0,
+                0, 0, 1, 0);
+        return fixedToMoving.inverse();
+    }
+
+    /**
+     * Samples the sum of the standardized channels on a regular grid of the patch size
+     */
+    private void sample(SourceAndConverter<?>[] sources, int tp, int level, double background,
+                        double x0, double y0, double z, float[] out, float[] channel) {
+        final int n = width * height;
+        Arrays.fill(out, 0);
+        for (SourceAndConverter<?> sac : sources) {
+            ResampledPatchProvider.sample(sac.getSpimSource(), tp, level,
+                    interpolate ? Interpolation.NLINEAR : Interpolation.NEARESTNEIGHBOR,
+                    x0, y0, z, pxSize, width, height, channel);
+            double sum = 0, sum2 = 0;
+            for (int i = 0; i < n; i++) {
+                channel[i] -= (float) background;
+                sum += channel[i];
+                sum2 += channel[i] * channel[i];
+            }
+            double mean = sum / n;
+            double std = Math.sqrt(Math.max(sum2 / n - mean * mean, 0));
+            if (std == 0) continue; // Flat channel, no information
+            for (int i = 0; i < n; i++) {
+                out[i] += (float) ((channel[i] - mean) / std);
+            }
+        }
+    }
+
+    /**
+     * @return the number of pixels of the patches along x and y
+     */
+    public int[] getPatchSize() {
+        return new int[]{width, height};
+    }
+}
@@ -0,0 +1,430 @@
+package ch.epfl.biop.source.register;
+
+import java.util.Arrays;
+
+/**
+ * Registers a moving 2D patch onto a fixed 2D patch of the same size, both stored as float[] in row major order.
+ * <br>
+ * The translation is first estimated by FFT phase correlation, then an affine transform is refined by a
+ * Gauss-Newton maximisation of the normalized cross correlation (NCC) between the fixed patch and the
+ * warped moving patch.
+ * <br>
+ * A matcher owns all its buffers: it is not thread safe, but it can be reused for any number of
+ * patches of the same size without allocating memory. {@link BlockMatching2DRegister} keeps a pool of
+ * matchers, one per registration thread.
+ */
+public class PatchMatcher2D {
+
+    final int width, height;
+
+    // Size of the FFTs, powers of two
+    final int fftWidth, fftHeight;
+
+    // Sampling buffers, filled by the caller
+    final float[] fixed, moving, sampleBuffer;
+
+    // FFT buffers
+    final float[] reFixed, imFixed, reMoving, imMoving;
+    final float[] hannX, hannY;
+
+    // Refinement buffers
+    final float[] gradX, gradY, warped, warpedGradX, warpedGradY;
+    final boolean[] valid;
+
+    /**
+     * Estimated affine transform, in pixel coordinates: the fixed pixel (x,y) matches the moving
+     * pixel (m[0]*x+m[1]*y+m[2], m[3]*x+m[4]*y+m[5])
+     */
+    final double[] matrix = new double[6];
+
+    double phaseCorrelationPeak;
+
+    double correlation;
+
+    public PatchMatcher2D(int width, int height) {
+        this.width = width;
+        this.height = height;
+        int n = width * height;
+        fixed = new float[n];
+        moving = new float[n];
+        sampleBuffer = new float[n];
+        fftWidth = nextPowerOfTwo(width);
+        fftHeight = nextPowerOfTwo(height);
+        int nFFT = fftWidth * fftHeight;
+        reFixed = new float[nFFT];
+        imFixed = new float[nFFT];
+        reMoving = new float[nFFT];
+        imMoving = new float[nFFT];
+        hannX = hann(width);
+        hannY = hann(height);
+        gradX = new float[n];
+        gradY = new float[n];
+        warped = new float[n];
+        warpedGradX = new float[n];
+        warpedGradY = new float[n];
+        valid = new boolean[n];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the normalized height of the phase correlation peak of the last {@link PatchMatcher2D#phaseCorrelation(double[])}
+     */
+    public double getPhaseCorrelationPeak() {
+        return phaseCorrelationPeak;
+    }
+
+    /**
+     * @return the NCC between the fixed patch and the warped moving patch after the last {@link PatchMatcher2D#refine(int)}
+     */
+    public double getCorrelation() {
+        return correlation;
+    }
+
+    /**
+     * @return the affine transform estimated by the last {@link PatchMatcher2D#refine(int)}, see {@link PatchMatcher2D#matrix}
+     */
+    public double[] getMatrix() {
+        return matrix.clone();
+    }
+
+    /**
+     * Estimates the translation between the fixed and the moving patches by phase correlation
+     * @param shift output: the fixed pixel (x,y) matches the moving pixel (x+shift[0], y+shift[1])
+     */
+    public void phaseCorrelation(double[] shift) {
+        fillWindowed(fixed, reFixed, imFixed);
+        fillWindowed(moving, reMoving, imMoving);
+        fft2D(reFixed, imFixed, false);
+        fft2D(reMoving, imMoving, false);
+
+        // Normalized cross power spectrum: moving x conj(fixed), stored in the moving buffers
+        for (int i = 0; i < reMoving.length; i++) {
+            float re = reMoving[i] * reFixed[i] + imMoving[i] * imFixed[i];
+            float im = imMoving[i] * reFixed[i] - reMoving[i] * imFixed[i];
+            float norm = (float) Math.sqrt(re * re + im * im) + 1e-12f;
+            reMoving[i] = re / norm;
+            imMoving[i] = im / norm;
+        }
+        fft2D(reMoving, imMoving, true);
+
+        int peak = 0;
+        for (int i = 1; i < reMoving.length; i++) {
+            if (reMoving[i] > reMoving[peak]) peak = i;
+        }
+        int px = peak % fftWidth;
+        int py = peak / fftWidth;
+        phaseCorrelationPeak = reMoving[peak];
+
+        // Sub-pixel location by parabolic fit around the peak
+        double dx = parabolicOffset(
+                reMoving[py * fftWidth + (px + fftWidth - 1) % fftWidth],
+                reMoving[peak],
+                reMoving[py * fftWidth + (px + 1) % fftWidth]);
+        double dy = parabolicOffset(
+                reMoving[((py + fftHeight - 1) % fftHeight) * fftWidth + px],
+                reMoving[peak],
+                reMoving[((py + 1) % fftHeight) * fftWidth + px]);
+
+        shift[0] = (px > fftWidth / 2 ? px - fftWidth : px) + dx;
+        shift[1] = (py > fftHeight / 2 ? py - fftHeight : py) + dy;
+    }
+
+    /**
+     * Refines an affine transform, starting from the identity, which maximizes the NCC between the fixed
+     * patch and the warped moving patch. Only pixels which are warped inside the moving patch are used.
+     * @param maxIterations maximal number of Gauss-Newton iterations
+     * @return the NCC of the best transform, also stored in {@link PatchMatcher2D#getCorrelation()}
+     */
+    public double refine(int maxIterations) {
+        gradients(moving, gradX, gradY);
+
+        final double cx = (width - 1) / 2.0;
+        final double cy = (height - 1) / 2.0;
+
+        // Parameters: P(u) = c + (I + [p0 p1; p2 p3]) (u - c) + (p4, p5)
+        final double[] p = new double[6];
+        final double[] best = new double[6];
+        final double[] h = new double[36];
+        final double[] b = new double[6];
+        final double[] j = new double[6];
+        final double[] dp = new double[6];
+        double bestCorrelation = -1;
+
+        for (int iteration = 0; iteration <= maxIterations; iteration++) {
+            // Warps the moving patch and its gradients
+            int nValid = 0;
+            double sumF = 0, sumW = 0;
+            for (int y = 0; y < height; y++) {
+                double ry = y - cy;
+                for (int x = 0; x < width; x++) {
+                    double rx = x - cx;
+                    double wx = cx + (1 + p[0]) * rx + p[1] * ry + p[4];
+                    double wy = cy + p[2] * rx + (1 + p[3]) * ry + p[5];
+                    int i = y * width + x;
+                    if ((wx < 0) || (wy < 0) || (wx > width - 1) || (wy > height - 1)) {
+                        valid[i] = false;
+                        continue;
+                    }
+                    valid[i] = true;
+                    warped[i] = interpolate(moving, wx, wy);
+                    warpedGradX[i] = interpolate(gradX, wx, wy);
+                    warpedGradY[i] = interpolate(gradY, wx, wy);
+                    sumF += fixed[i];
+                    sumW += warped[i];
+                    nValid++;
+                }
+            }
+            if (nValid < width * height / 4) break; // Not enough overlap
+
+            double meanF = sumF / nValid;
+            double meanW = sumW / nValid;
+            double varF = 0, varW = 0, cov = 0;
+            for (int i = 0; i < valid.length; i++) {
+                if (!valid[i]) continue;
+                double f = fixed[i] - meanF;
+                double w = warped[i] - meanW;
+                varF += f * f;
+                varW += w * w;
+                cov += f * w;
+            }
+            if ((varF == 0) || (varW == 0)) break; // Flat patch, no information
+            double sF = Math.sqrt(varF / nValid);
+            double sW = Math.sqrt(varW / nValid);
+            double ncc = cov / Math.sqrt(varF * varW);
+
+            if (ncc > bestCorrelation) {
+                bestCorrelation = ncc;
+                System.arraycopy(p, 0, best, 0, 6);
+            } else {
+                break; // The last step did not improve the correlation
+            }
+            if (iteration == maxIterations) break;
+
+            // Gauss-Newton step on the residual of the normalized patches
+            Arrays.fill(h, 0);
+            Arrays.fill(b, 0);
+            for (int y = 0; y < height; y++) {
+                double ry = y - cy;
+                for (int x = 0; x < width; x++) {
+                    int i = y * width + x;
+                    if (!valid[i]) continue;
+                    double rx = x - cx;
+                    double r = (warped[i] - meanW) / sW - (fixed[i] - meanF) / sF;
+                    double gx = warpedGradX[i] / sW;
+                    double gy = warpedGradY[i] / sW;
+                    j[0] = gx * rx;
+                    j[1] = gx * ry;
+                    j[2] = gy * rx;
+                    j[3] = gy * ry;
+                    j[4] = gx;
+                    j[5] = gy;
+                    for (int k = 0; k < 6; k++) {
+                        b[k] += j[k] * r;
+                        for (int l = k; l < 6; l++) {
+                            h[k * 6 + l] += j[k] * j[l];
+                        }
+                    }
+                }
+            }
+            for (int k = 0; k < 6; k++) {
+                for (int l = 0; l < k; l++) {
+                    h[k * 6 + l] = h[l * 6 + k];
+                }
+                h[k * 6 + k] *= 1 + 1e-6; // Damping
+                b[k] = -b[k];
+            }
+            if (!solve(h, b, dp)) break;
+
+            double stepLinear = 0, stepTranslation = 0;
+            for (int k = 0; k < 6; k++) {
+                p[k] += dp[k];
+                if (k < 4) {
+                    stepLinear = Math.max(stepLinear, Math.abs(dp[k]));
+                } else {
+                    stepTranslation = Math.max(stepTranslation, Math.abs(dp[k]));
+                }
+            }
+            if ((stepTranslation < 1e-3) && (stepLinear < 1e-5)) {
+                // Converged: the correlation of this last step is not evaluated
+                System.arraycopy(p, 0, best, 0, 6);
+                break;
+            }
+        }
+
+        correlation = bestCorrelation;
+        // Converts to the matrix of the transform
+        matrix[0] = 1 + best[0];
+        matrix[1] = best[1];
+        matrix[2] = cx + best[4] - (1 + best[0]) * cx - best[1] * cy;
+        matrix[3] = best[2];
+        matrix[4] = 1 + best[3];
+        matrix[5] = cy + best[5] - best[2] * cx - (1 + best[3]) * cy;
+        return bestCorrelation;
+    }
+
+    /**
+     * Standardizes a patch, multiplies it by a Hann window and zero pads it into the FFT buffers
+     */
+    private void fillWindowed(float[] patch, float[] re, float[] im) {
+        double sum = 0, sum2 = 0;
+        for (float v : patch) {
+            sum += v;
+            sum2 += v * v;
+        }
+        int n = patch.length;
+        double mean = sum / n;
+        double std = Math.sqrt(Math.max(sum2 / n - mean * mean, 0)) + 1e-12;
+        Arrays.fill(re, 0);
+        Arrays.fill(im, 0);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                re[y * fftWidth + x] = (float) ((patch[y * width + x] - mean) / std * hannX[x] * hannY[y]);
+            }
+        }
+    }
+
+    /**
+     * In place 2D FFT, rows then columns
+     */
+    private void fft2D(float[] re, float[] im, boolean inverse) {
+        for (int y = 0; y < fftHeight; y++) {
+            fft(re, im, y * fftWidth, 1, fftWidth, inverse);
+        }
+        for (int x = 0; x < fftWidth; x++) {
+            fft(re, im, x, fftWidth, fftHeight, inverse);
+        }
+    }
+
+    /**
+     * In place radix-2 FFT of n values starting at offset, spaced by stride. The inverse transform is scaled by 1/n.
+     */
+    static void fft(float[] re, float[] im, int offset, int stride, int n, boolean inverse) {
+        // Bit reversal permutation
+        for (int i = 1, j = 0; i < n; i++) {
+            int bit = n >> 1;
+            for (; (j & bit) != 0; bit >>= 1) {
+                j ^= bit;
+            }
+            j ^= bit;
+            if (i < j) {
+                int a = offset + i * stride, c = offset + j * stride;
+                float tr = re[a]; re[a] = re[c]; re[c] = tr;
+                float ti = im[a]; im[a] = im[c]; im[c] = ti;
+            }
+        }
+        for (int len = 2; len <= n; len <<= 1) {
+            double angle = 2 * Math.PI / len * (inverse ? 1 : -1);
+            float wRe = (float) Math.cos(angle), wIm = (float) Math.sin(angle);
+            for (int i = 0; i < n; i += len) {
+                float curRe = 1, curIm = 0;
+                for (int k = 0; k < len / 2; k++) {
+                    int a = offset + (i + k) * stride;
+                    int c = offset + (i + k + len / 2) * stride;
+                    float vRe = re[c] * curRe - im[c] * curIm;
+                    float vIm = re[c] * curIm + im[c] * curRe;
+                    re[c] = re[a] - vRe;
+                    im[c] = im[a] - vIm;
+                    re[a] += vRe;
+                    im[a] += vIm;
+                    float nextRe = curRe * wRe - curIm * wIm;
+                    curIm = curRe * wIm + curIm * wRe;
+                    curRe = nextRe;
+                }
+            }
+        }
+        if (inverse) {
+            for (int i = 0; i < n; i++) {
+                re[offset + i * stride] /= n;
+                im[offset + i * stride] /= n;
+            }
+        }
+    }
+
+    private void gradients(float[] patch, float[] gx, float[] gy) {
+        for (int y = 0; y < height; y++) {
+            int yMinus = Math.max(y - 1, 0), yPlus = Math.min(y + 1, height - 1);
+            for (int x = 0; x < width; x++) {
+                int xMinus = Math.max(x - 1, 0), xPlus = Math.min(x + 1, width - 1);
+                gx[y * width + x] = (patch[y * width + xPlus] - patch[y * width + xMinus]) / Math.max(xPlus - xMinus, 1);
+                gy[y * width + x] = (patch[yPlus * width + x] - patch[yMinus * width + x]) / Math.max(yPlus - yMinus, 1);
+            }
+        }
+    }
+
+    /**
+     * Bilinear interpolation, the position should be within the patch
+     */
+    private float interpolate(float[] patch, double x, double y) {
+        int x0 = Math.min((int) x, Math.max(width - 2, 0));
+        int y0 = Math.min((int) y, Math.max(height - 2, 0));
+        int x1 = Math.min(x0 + 1, width - 1);
+        int y1 = Math.min(y0 + 1, height - 1);
+        double fx = x - x0, fy = y - y0;
+        double top = patch[y0 * width + x0] * (1 - fx) + patch[y0 * width + x1] * fx;
+        double bottom = patch[y1 * width + x0] * (1 - fx) + patch[y1 * width + x1] * fx;
+        return (float) (top * (1 - fy) + bottom * fy);
+    }
+
+    /**
+     * Solves the 6x6 system h.x = b by Gaussian elimination with partial pivoting, h and b are modified
+     * @return false if the system is singular
+     */
+    static boolean solve(double[] h, double[] b, double[] x) {
+        final int n = b.length;
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            for (int row = col + 1; row < n; row++) {
+                if (Math.abs(h[row * n + col]) > Math.abs(h[pivot * n + col])) pivot = row;
+            }
+            if (Math.abs(h[pivot * n + col]) < 1e-12) return false;
+            if (pivot != col) {
+                for (int k = 0; k < n; k++) {
+                    double t = h[col * n + k]; h[col * n + k] = h[pivot * n + k]; h[pivot * n + k] = t;
+                }
+                double t = b[col]; b[col] = b[pivot]; b[pivot] = t;
+            }
+            for (int row = col + 1; row < n; row++) {
+                double factor = h[row * n + col] / h[col * n + col];
+                for (int k = col; k < n; k++) {
+                    h[row * n + k] -= factor * h[col * n + k];
+                }
+                b[row] -= factor * b[col];
+            }
+        }
+        for (int row = n - 1; row >= 0; row--) {
+            double sum = b[row];
+            for (int k = row + 1; k < n; k++) {
+                sum -= h[row * n + k] * x[k];
+            }
+            x[row] = sum / h[row * n + row];
+        }
+        return true;
+    }
+
+    private static double parabolicOffset(double left, double center, double right) {
+        double denominator = left - 2 * center + right;
+        if (denominator >= 0) return 0; // Not a maximum
+        return Math.max(-0.5, Math.min(0.5, 0.5 * (left - right) / denominator));
+    }
+
+    private static float[] hann(int n) {
+        float[] window = new float[n];
+        for (int i = 0; i < n; i++) {
+            window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * (i + 0.5) / n));
+        }
+        return window;
+    }
+
+    private static int nextPowerOfTwo(int n) {
+        int power = 1;
+        while (power < n) power <<= 1;
+        return power;
+    }
+}
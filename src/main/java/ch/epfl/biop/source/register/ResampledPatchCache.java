@@ -0,0 +1,207 @@
+package ch.epfl.biop.source.register;
+
+import bdv.viewer.SourceAndConverter;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.Interval;
+import net.imglib2.RealInterval;
+import net.imglib2.RealPoint;
+import net.imglib2.realtransform.AffineTransform3D;
+import sc.fiji.bdvpg.source.SourceHelper;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Shares {@link ResampledPatchProvider}s between registrations, for instance between the registrations of
+ * many moving images to the same fixed image: each fixed image is resampled once per pixel size, whatever the number
+ * of registrations using it.
+ * <br>
+ * A provider of the cache covers the complete bounding box of its sources, on a pixel grid anchored at 0 (or at
+ * a given grid offset), so that it does not depend on the registration which requested it. Registrations of images of slightly different sizes
+ * lead to slightly different pixel sizes: pixel sizes should be rounded with
+ * {@link ResampledPatchCache#quantizePixelSize(double)} for the providers to be shared.
+ * <br>
+ * The cache keeps the most recently used providers. The memory of their resampled tiles is handled by the
+ * imglib2 cache of each provider, which releases tiles when memory is needed.
+ */
+public class ResampledPatchCache {
+
+    // Number of pixel sizes per doubling of the pixel size
+    static final int stepsPerOctave = 4;
+
+    final Map<Key, ResampledPatchProvider> providers;
+
+    long hits = 0;
+    long misses = 0;
+
+    /**
+     * @param maxProviders number of providers kept in the cache
+     */
+    public ResampledPatchCache(int maxProviders) {
+        this.providers = new LinkedHashMap<Key, ResampledPatchProvider>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, ResampledPatchProvider> eldest) {
+                return size() > maxProviders;
+            }
+        };
+    }
+
+    /**
+     * @param pxSize pixel size
+     * @return the largest pixel size of the form 2^(k/4) below pxSize: at most 19% smaller than pxSize
+     */
+    public static double quantizePixelSize(double pxSize) {
+        double octaves = Math.log(pxSize) / Math.log(2);
+        return Math.pow(2, Math.floor(octaves * stepsPerOctave + 1e-9) / stepsPerOctave);
+    }
+
+    /**
+     * Returns the provider resampling the bounding box of a set of sources on a pixel grid anchored at 0,
+     * creating it if needed
+     * @param sources sources to resample, one per channel
+     * @param tp timepoint of the sources
+     * @param pxSize pixel size of the resampled images, in physical units
+     * @param z location in z of the resampled plane
+     * @param tileSize size of the tiles of the resampled images, in pixels
+     * @return the provider, shared with all the other requests of the same sources with the same parameters
+     */
+    public ResampledPatchProvider get(SourceAndConverter<?>[] sources, int tp, double pxSize, double z, int tileSize) {
+        return get(sources, tp, pxSize, 0, 0, z, tileSize);
+    }
+
+    /**
+     * Returns the provider resampling the bounding box of a set of sources, creating it if needed
+     * @param sources sources to resample, one per channel
+     * @param tp timepoint of the sources
+     * @param pxSize pixel size of the resampled images, in physical units
+     * @param gridX physical x of one pixel of the grid: the pixels are located at gridX + i * pxSize
+     * @param gridY physical y of one pixel of the grid: the pixels are located at gridY + j * pxSize
+     * @param z location in z of the resampled plane
+     * @param tileSize size of the tiles of the resampled images, in pixels
+     * @return the provider, shared with all the other requests of the same sources with the same parameters
+     */
+    public ResampledPatchProvider get(SourceAndConverter<?>[] sources, int tp, double pxSize,
+                                      double gridX, double gridY, double z, int tileSize) {
+        // Only the offset of the grid modulo the pixel size matters
+        double offsetX = gridX - Math.floor(gridX / pxSize) * pxSize;
+        double offsetY = gridY - Math.floor(gridY / pxSize) * pxSize;
+        Key key = new Key(sources, tp, pxSize, offsetX, offsetY, z, tileSize);
+        synchronized (providers) {
+            ResampledPatchProvider provider = providers.get(key);
+            if (provider != null) {
+                hits++;
+                return provider;
+            }
+            misses++;
+            RealInterval box = getSourceBox(sources[0], tp);
+            RealInterval region = new FinalRealInterval(
+                    new double[]{snapDown(box.realMin(0), offsetX, pxSize), snapDown(box.realMin(1), offsetY, pxSize)},
+                    new double[]{snapUp(box.realMax(0), offsetX, pxSize), snapUp(box.realMax(1), offsetY, pxSize)});
+            provider = new ResampledPatchProvider(sources, tp, SourceHelper.bestLevel(sources[0], tp, pxSize),
+                    pxSize, region, z, true, tileSize);
+            providers.put(key, provider);
+            return provider;
+        }
+    }
+
+    /**
+     * Resamples the bounding box of a set of sources, see {@link ResampledPatchCache#get(SourceAndConverter[], int, double, double, int)}
+     */
+    public void prefetch(SourceAndConverter<?>[] sources, int tp, double pxSize, double z, int tileSize) {
+        get(sources, tp, pxSize, z, tileSize).prefetch();
+    }
+
+    /**
+     * Resamples the bounding box of a set of sources, see {@link ResampledPatchCache#get(SourceAndConverter[], int, double, double, double, double, int)}
+     */
+    public void prefetch(SourceAndConverter<?>[] sources, int tp, double pxSize, double gridX, double gridY,
+                         double z, int tileSize) {
+        get(sources, tp, pxSize, gridX, gridY, z, tileSize).prefetch();
+    }
+
+    static double snapDown(double v, double offset, double pxSize) {
+        return Math.floor((v - offset) / pxSize) * pxSize + offset;
+    }
+
+    static double snapUp(double v, double offset, double pxSize) {
+        return Math.ceil((v - offset) / pxSize) * pxSize + offset;
+    }
+
+    public long getHits() {
+        synchronized (providers) {
+            return hits;
+        }
+    }
+
+    public long getMisses() {
+        synchronized (providers) {
+            return misses;
+        }
+    }
+
+    /**
+     * @return a one line summary of the cache
+     */
+    public String getStatus() {
+        synchronized (providers) {
+            return String.format("%d resampled images - %d hits, %d misses", providers.size(), hits, misses);
+        }
+    }
+
+    /**
+     * @param source source
+     * @param tp timepoint
+     * @return the bounding box, in physical units, of the highest resolution level of the source
+     */
+    public static RealInterval getSourceBox(SourceAndConverter<?> source, int tp) {
+        Interval interval = source.getSpimSource().getSource(tp, 0);
+        AffineTransform3D sourceTransform = new AffineTransform3D();
+        source.getSpimSource().getSourceTransform(tp, 0, sourceTransform);
+        RealPoint corner0 = new RealPoint(new float[]{(float)interval.min(0), (float)interval.min(1), (float)interval.min(2)});
+        RealPoint corner1 = new RealPoint(new float[]{(float)interval.max(0), (float)interval.max(1), (float)interval.max(2)});
+        sourceTransform.apply(corner0, corner0);
+        sourceTransform.apply(corner1, corner1);
+        double[] min = new double[3], max = new double[3];
+        for (int d = 0; d < 3; d++) {
+            min[d] = Math.min(corner0.getDoublePosition(d), corner1.getDoublePosition(d));
+            max[d] = Math.max(corner0.getDoublePosition(d), corner1.getDoublePosition(d));
+        }
+        return new FinalRealInterval(min, max);
+    }
+
+    static class Key {
+
+        final List<SourceAndConverter<?>> sources;
+        final int tp;
+        final double pxSize, offsetX, offsetY, z;
+        final int tileSize;
+
+        Key(SourceAndConverter<?>[] sources, int tp, double pxSize, double offsetX, double offsetY, double z, int tileSize) {
+            this.sources = Arrays.asList(sources.clone());
+            this.tp = tp;
+            this.pxSize = pxSize;
+            this.offsetX = offsetX;
+            this.offsetY = offsetY;
+            this.z = z + 0.0; // -0 and 0 are the same plane
+            this.tileSize = tileSize;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return sources.equals(other.sources) && (tp == other.tp) && (Double.compare(pxSize, other.pxSize) == 0)
+                    && (Double.compare(offsetX, other.offsetX) == 0) && (Double.compare(offsetY, other.offsetY) == 0)
+                    && (Double.compare(z, other.z) == 0) && (tileSize == other.tileSize);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(sources, tp, pxSize, offsetX, offsetY, z, tileSize);
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package ch.epfl.biop.source.register;
+
+import bdv.util.RandomAccessibleIntervalSource;
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RealInterval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import sc.fiji.bdvpg.source.SourceHelper;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resamples a set of sources once, lazily, on a 2D grid of a given pixel size covering a region, so that
+ * many overlapping fields of view can be cropped from it without resampling the sources again.
+ * <br>
+ * Each source (channel) is resampled into a tiled cached 2D image (with a single z plane) of {@link FloatType}.
+ * A tile is resampled the first time it is accessed. The resampled images are available as sources
+ * ({@link ResampledPatchProvider#getSources()}), which can replace the original sources in any registration
+ * done at this pixel size. The pixels of the resampled images are located at x0 + i * pxSize, y0 + j * pxSize:
+ * fields of view starting on this grid and sampled with the nearest neighbor interpolation are exact copies of
+ * the resampled pixels, with no second interpolation.
+ * <br>
+ * The provider counts the pixels resampled and the voxels read from the original sources each time a tile is
+ * loaded: the voxels of the cells of the original source touched by the tile and by its interpolation footprint
+ * (or of the footprint itself, for sources which are not cell images). Tiles loaded again, after they have been
+ * evicted from memory, are counted again. This allows to check that overlapping fields of view read the sources
+ * about once.
+ */
+public class ResampledPatchProvider {
+
+    final SourceAndConverter<?>[] origins;
+    final int tp, level;
+    final double pxSize;
+    final double x0, y0, z;
+    final long width, height;
+    final int tileSize;
+    final Interpolation interpolation;
+
+    final CachedCellImg<FloatType, ?>[] images;
+    final SourceAndConverter<FloatType>[] sources;
+
+    final AtomicLong resampledPixels = new AtomicLong();
+    final AtomicLong voxelsRead = new AtomicLong();
+    final AtomicLong bytesRead = new AtomicLong();
+
+    // Voxels read by the first load of each tile, all channels included
+    final AtomicLong firstLoadVoxels = new AtomicLong();
+
+    /**
+     * @param origins sources to resample, one per channel
+     * @param tp timepoint of the sources
+     * @param level resolution level of the sources
+     * @param pxSize pixel size of the resampled images, in physical units
+     * @param region region covered by the resampled images, in physical units, only x and y are used
+     * @param z location in z of the resampled plane
+     * @param interpolate whether the sources are linearly interpolated
+     * @param tileSize size of the tiles of the resampled images, in pixels
+     */
+    public ResampledPatchProvider(SourceAndConverter<?>[] origins, int tp, int level, double pxSize,
+                                  RealInterval region, double z, boolean interpolate, int tileSize) {
+        this.origins = origins;
+        this.tp = tp;
+        this.level = Math.min(level, origins[0].getSpimSource().getNumMipmapLevels() - 1);
+        this.pxSize = pxSize;
+        this.x0 = region.realMin(0);
+        this.y0 = region.realMin(1);
+        this.z = z;
+        this.width = Math.max(1, (long) Math.ceil((region.realMax(0) - region.realMin(0)) / pxSize));
+        this.height = Math.max(1, (long) Math.ceil((region.realMax(1) - region.realMin(1)) / pxSize));
+        this.tileSize = tileSize;
+        this.interpolation = interpolate ? Interpolation.NLINEAR : Interpolation.NEARESTNEIGHBOR;
+
+        AffineTransform3D location = new AffineTransform3D();
+        location.scale(pxSize);
+        location.translate(x0, y0, z);
+
+        images = new CachedCellImg[origins.length];
+        sources = new SourceAndConverter[origins.length];
+        ReadOnlyCachedCellImgOptions options = ReadOnlyCachedCellImgOptions.options().cellDimensions(tileSize, tileSize, 1);
+        for (int c = 0; c < origins.length; c++) {
+            final Source<?> origin = origins[c].getSpimSource();
+            final int bytesPerPixel = bytesPerPixel(origin.getType());
+            final Set<Long> loadedTiles = ConcurrentHashMap.newKeySet();
+            images[c] = new ReadOnlyCachedCellImgFactory(options).create(new long[]{width, height, 1}, new FloatType(), cell -> {
+                int w = (int) cell.dimension(0);
+                int h = (int) cell.dimension(1);
+                float[] values = new float[w * h];
+                sample(origin, this.tp, this.level, interpolation,
+                        x0 + cell.min(0) * pxSize, y0 + cell.min(1) * pxSize, z, pxSize, w, h, values);
+                Cursor<FloatType> cursor = Views.flatIterable(cell).cursor();
+                int i = 0;
+                while (cursor.hasNext()) {
+                    cursor.next().set(values[i++]);
+                }
+                long voxels = countVoxels(origin, this.tp, this.level, interpolation,
+                        x0 + cell.min(0) * pxSize, y0 + cell.min(1) * pxSize, z, pxSize, w, h);
+                resampledPixels.addAndGet(values.length);
+                voxelsRead.addAndGet(voxels);
+                bytesRead.addAndGet(voxels * bytesPerPixel);
+                if (loadedTiles.add(cell.min(1) * width + cell.min(0))) firstLoadVoxels.addAndGet(voxels);
+            });
+            sources[c] = SourceHelper.createSourceAndConverter(new RandomAccessibleIntervalSource<>(images[c], new FloatType(),
+                    location, origin.getName() + "_resampled"));
+        }
+    }
+
+    /**
+     * @return one source per channel, backed by the resampled images, to be used at level 0 and timepoint 0
+     */
+    public SourceAndConverter<FloatType>[] getSources() {
+        return sources;
+    }
+
+    /**
+     * Resamples all the tiles of all channels which have not been resampled yet
+     */
+    public void prefetch() {
+        for (CachedCellImg<FloatType, ?> image : images) {
+            RandomAccess<FloatType> access = image.randomAccess();
+            for (long y = 0; y < height; y += tileSize) {
+                for (long x = 0; x < width; x += tileSize) {
+                    access.setPosition(new long[]{x, y, 0});
+                    access.get().get();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param x physical x coordinate
+     * @return the index of the pixel of the resampled images containing x
+     */
+    public long toPixelX(double x) {
+        return (long) Math.floor((x - x0) / pxSize);
+    }
+
+    /**
+     * @param y physical y coordinate
+     * @return the index of the pixel of the resampled images containing y
+     */
+    public long toPixelY(double y) {
+        return (long) Math.floor((y - y0) / pxSize);
+    }
+
+    /**
+     * @return the number of pixels of the resampled images along x and y
+     */
+    public long[] getDimensions() {
+        return new long[]{width, height};
+    }
+
+    /**
+     * @return the number of pixels resampled so far, all channels included
+     */
+    public long getResampledPixels() {
+        return resampledPixels.get();
+    }
+
+    /**
+     * @return the number of voxels read so far from the original sources, all channels included, counting the cells
+     * read again when a tile is loaded again
+     */
+    public long getVoxelsRead() {
+        return voxelsRead.get();
+    }
+
+    /**
+     * @return the number of bytes read so far from the original sources, all channels included
+     */
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /**
+     * @return the ratio between the voxels read from the original sources and the voxels read by the first load
+     * of each tile: 1 as long as no tile has been evicted and loaded again
+     */
+    public double getReadRatio() {
+        long firstLoads = firstLoadVoxels.get();
+        return firstLoads == 0 ? 0 : (double) voxelsRead.get() / firstLoads;
+    }
+
+    /**
+     * Samples a source on a regular 2D grid, in row major order
+     * @param source source to sample
+     * @param tp timepoint
+     * @param level resolution level
+     * @param interpolation interpolation of the source
+     * @param x0 physical x of the first pixel
+     * @param y0 physical y of the first pixel
+     * @param z physical z of the plane
+     * @param pxSize size of the pixels of the grid, in physical units
+     * @param width number of pixels along x
+     * @param height number of pixels along y
+     * @param out output, of at least width x height values
+     */
+    public static void sample(Source<?> source, int tp, int level, Interpolation interpolation,
+                              double x0, double y0, double z, double pxSize, int width, int height, float[] out) {
+        AffineTransform3D worldToVoxel = new AffineTransform3D();
+        source.getSourceTransform(tp, level, worldToVoxel);
+        worldToVoxel = worldToVoxel.inverse();
+        RealRandomAccess<?> access = source.getInterpolatedSource(tp, level, interpolation).realRandomAccess();
+
+        // Position of the origin and steps along x and y of the grid, in voxel coordinates
+        double[] origin = new double[]{x0, y0, z};
+        worldToVoxel.apply(origin, origin);
+        double[] stepX = new double[3];
+        double[] stepY = new double[3];
+        for (int d = 0; d < 3; d++) {
+            stepX[d] = worldToVoxel.get(d, 0) * pxSize;
+            stepY[d] = worldToVoxel.get(d, 1) * pxSize;
+        }
+
+        double[] position = new double[3];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                for (int d = 0; d < 3; d++) {
+                    position[d] = origin[d] + x * stepX[d] + y * stepY[d];
+                }
+                access.setPosition(position);
+                out[y * width + x] = (float) value(access.get());
+            }
+        }
+    }
+
+    /**
+     * Counts the voxels of a source read when sampling it on a regular 2D grid: the voxels of the bounding box,
+     * in voxel coordinates, of the grid and of its interpolation footprint, within the source interval. For cell
+     * images, the bounding box is extended to the cells it touches, which are read entirely
+     * @return the number of voxels read
+     */
+    static long countVoxels(Source<?> source, int tp, int level, Interpolation interpolation,
+                            double x0, double y0, double z, double pxSize, long width, long height) {
+        AffineTransform3D worldToVoxel = new AffineTransform3D();
+        source.getSourceTransform(tp, level, worldToVoxel);
+        worldToVoxel = worldToVoxel.inverse();
+        double[] min = new double[]{Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+        double[] max = new double[]{-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+        double[] corner = new double[3];
+        for (int cx = 0; cx < 2; cx++) {
+            for (int cy = 0; cy < 2; cy++) {
+                corner[0] = x0 + cx * (width - 1) * pxSize;
+                corner[1] = y0 + cy * (height - 1) * pxSize;
+                corner[2] = z;
+                worldToVoxel.apply(corner, corner);
+                for (int d = 0; d < 3; d++) {
+                    min[d] = Math.min(min[d], corner[d]);
+                    max[d] = Math.max(max[d], corner[d]);
+                }
+            }
+        }
+        Interval interval = source.getSource(tp, level);
+        CellGrid grid = (interval instanceof AbstractCellImg) ? ((AbstractCellImg<?, ?, ?, ?>) interval).getCellGrid() : null;
+        long voxels = 1;
+        for (int d = 0; d < 3; d++) {
+            long lo, hi;
+            if (interpolation == Interpolation.NEARESTNEIGHBOR) {
+                lo = Math.round(min[d]);
+                hi = Math.round(max[d]);
+            } else {
+                // A linear interpolation reads the voxels floor(x) and floor(x) + 1
+                lo = (long) Math.floor(min[d]);
+                hi = (long) Math.floor(max[d]) + 1;
+            }
+            lo = Math.max(lo, interval.min(d));
+            hi = Math.min(hi, interval.max(d));
+            if (hi < lo) return 0;
+            if (grid != null) {
+                int cellSize = grid.cellDimension(d);
+                lo = interval.min(d) + ((lo - interval.min(d)) / cellSize) * cellSize;
+                hi = Math.min(interval.max(d), interval.min(d) + ((hi - interval.min(d)) / cellSize + 1) * cellSize - 1);
+            }
+            voxels *= hi - lo + 1;
+        }
+        return voxels;
+    }
+
+    static double value(Object pixel) {
+        if (pixel instanceof RealType) return ((RealType<?>) pixel).getRealDouble();
+        if (pixel instanceof ARGBType) {
+            int argb = ((ARGBType) pixel).get();
+            return 0.299 * ARGBType.red(argb) + 0.587 * ARGBType.green(argb) + 0.114 * ARGBType.blue(argb);
+        }
+        return 0;
+    }
+
+    static int bytesPerPixel(Object type) {
+        if (type instanceof RealType) return Math.max(1, ((RealType<?>) type).getBitsPerPixel() / 8);
+        return 4; // ARGB
+    }
+}
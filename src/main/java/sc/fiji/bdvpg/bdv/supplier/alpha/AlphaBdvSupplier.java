@@ -10,6 +10,7 @@ import bdv.util.projector.alpha.LayerMetadata;
 import bdv.util.projector.alpha.SourcesMetadata;
 import bdv.util.source.alpha.AlphaSourceHelper;
 import bdv.util.source.alpha.IAlphaSource;
+import bdv.util.source.alpha.SinglePassAlphaSource;
 import bdv.viewer.*;
 import bdv.viewer.render.AccumulateProjectorARGB;
 import bdv.viewer.render.AccumulateProjectorFactory;
@@ -40,6 +41,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
 import static bdv.util.source.alpha.AlphaSourceHelper.ALPHA_SOURCE_KEY;
+import static bdv.util.source.alpha.AlphaSourceHelper.SINGLE_PASS_SOURCE_KEY;
 
 /**
  * Supplies BigDataViewer windows with alpha composition support
@@ -55,6 +57,11 @@ import static bdv.util.source.alpha.AlphaSourceHelper.ALPHA_SOURCE_KEY;
  * Other weird behaviour : a source can be in multiple groups, but it can be only in one layer (the
  * higher one).
  *
+ * In single pass mode ({@link AlphaSerializableBdvOptions#singlePassAlpha}), the {@link SinglePassAlphaSource}
+ * of each source is added to the window instead of its alpha source. The sources stay in the window, but the
+ * projector renders and blends their single pass source instead: each source is rendered in a single pass
+ * with its alpha, which halves the number of rendered sources.
+ *
  * @author Nicolas Chiaruttini, EPFL, 2021
  */
 
@@ -91,6 +98,21 @@ public class AlphaBdvSupplier implements IBdvSupplier {
         public SourceAndConverter<FloatType> getAlphaSource(SourceAndConverter<?> source) {
             return (SourceAndConverter<FloatType>) SourceServices.getSourceService().getMetadata(source, ALPHA_SOURCE_KEY);
         }
+
+        @Override
+        public boolean isPremultiplied(SourceAndConverter<?> source) {
+            return source.getSpimSource() instanceof SinglePassAlphaSource;
+        }
+
+        @Override
+        public boolean hasSinglePassSource(SourceAndConverter<?> source) {
+            return SourceServices.getSourceService().containsMetadata(source, SINGLE_PASS_SOURCE_KEY);
+        }
+
+        @Override
+        public SourceAndConverter<?> getSinglePassSource(SourceAndConverter<?> source) {
+            return (SourceAndConverter<?>) SourceServices.getSourceService().getMetadata(source, SINGLE_PASS_SOURCE_KEY);
+        }
     };
 
     @Override
@@ -136,7 +158,11 @@ public class AlphaBdvSupplier implements IBdvSupplier {
         bdvh.getViewerPanel().setNumTimepoints( sOptions.numTimePoints );
 
         if (sOptions.useAlphaCompositing) {
-            bdvh.getViewerPanel().state().changeListeners().add(new AlphaSourcesSynchronizer(bdvh));
+            if (sOptions.singlePassAlpha) {
+                bdvh.getViewerPanel().state().changeListeners().add(new SinglePassSourcesSynchronizer(bdvh));
+            } else {
+                bdvh.getViewerPanel().state().changeListeners().add(new AlphaSourcesSynchronizer(bdvh));
+            }
             ((ILayerAlphaProjectorFactory) projectorFactory).setLayerMeta(new GroupLayerMetadata(bdvh.getViewerPanel(), bdvh.getCardPanel()));
         }
 
@@ -467,8 +493,8 @@ public class AlphaBdvSupplier implements IBdvSupplier {
 
             for (SourceAndConverter<?> source : currentSources) {
                 // Let's investigate the source:
-                // Ignore if it is an alpha source
-                if (!sourcesMetadata.isAlphaSource(source)) {
+                // Ignore if it is an alpha source, or if it already contains its alpha
+                if (!sourcesMetadata.isAlphaSource(source) && !sourcesMetadata.isPremultiplied(source)) {
                     // Is there an alpha source linked ?
                     if (sourcesMetadata.hasAlphaSource(source)) {
                         // Is it in the list of all sources ?
@@ -499,4 +525,95 @@ public class AlphaBdvSupplier implements IBdvSupplier {
     }
 
 
-}
\ No newline at end of file
+    /**
+     * Single pass mode: adds the {@link SinglePassAlphaSource} of each source displayed in the viewer, which
+     * contains its alpha, and which is rendered by the projector instead of the source. The sources themselves
+     * are left untouched in the viewer. Single pass sources are visible when their source is visible, and are
+     * removed with their source.
+     */
+    public static class SinglePassSourcesSynchronizer implements ViewerStateChangeListener {
+
+        final BdvHandle bdvh;
+
+        // Single pass sources added by this synchronizer
+        final Set<SourceAndConverter<?>> singlePassSources = ConcurrentHashMap.newKeySet();
+
+        /**
+         * Creates a new synchronizer for single pass sources.
+         *
+         * @param bdvh the BDV handle
+         */
+        public SinglePassSourcesSynchronizer(BdvHandle bdvh) {
+            this.bdvh = bdvh;
+        }
+
+        @Override
+        public void viewerStateChanged(ViewerStateChange change) {
+            switch (change) {
+                case NUM_SOURCES_CHANGED:
+                    syncSinglePassSourcesPresent();
+                    break;
+                case VISIBILITY_CHANGED:
+                    syncSinglePassSourcesVisibility();
+                    break;
+            }
+        }
+
+        private boolean needsSinglePassSource(SourceAndConverter<?> source) {
+            return !sourcesMetadata.isAlphaSource(source)
+                    && !sourcesMetadata.isPremultiplied(source)
+                    && !(source.getSpimSource() instanceof PlaceHolderSource);
+        }
+
+        /**
+         * When sources are visible, their single pass sources should be visible as well
+         */
+        private void syncSinglePassSourcesVisibility() {
+            ViewerState state = bdvh.getViewerPanel().state();
+
+            Set<SourceAndConverter<?>> toActivate = new HashSet<>();
+            Set<SourceAndConverter<?>> toDeactivate = new HashSet<>();
+            state.getSources().stream()
+                    .filter(this::needsSinglePassSource)
+                    .filter(sourcesMetadata::hasSinglePassSource)
+                    .forEach(source -> {
+                        SourceAndConverter<?> singlePass = sourcesMetadata.getSinglePassSource(source);
+                        if (state.isSourceVisible(source)) {
+                            toActivate.add(singlePass);
+                        } else {
+                            toDeactivate.add(singlePass);
+                        }
+                    });
+
+            state.setSourcesActive(toActivate, true);
+            state.setSourcesActive(toDeactivate, false);
+        }
+
+        /**
+         * Fetches or creates the single pass sources of the sources present in the viewer, and removes the ones
+         * whose source has been removed
+         */
+        private void syncSinglePassSourcesPresent() {
+            ViewerState state = bdvh.getViewerPanel().state();
+            List<SourceAndConverter<?>> currentSources = state.getSources();
+
+            Set<SourceAndConverter<?>> toAdd = new HashSet<>();
+            Set<SourceAndConverter<?>> useful = new HashSet<>();
+            for (SourceAndConverter<?> source : currentSources) {
+                if (!needsSinglePassSource(source)) continue;
+                SourceAndConverter<?> singlePass = AlphaSourceHelper.getOrBuildSinglePassSource(source);
+                useful.add(singlePass);
+                if (!currentSources.contains(singlePass)) toAdd.add(singlePass);
+            }
+
+            Set<SourceAndConverter<?>> toRemove = singlePassSources.stream()
+                    .filter(singlePass -> !useful.contains(singlePass))
+                    .collect(Collectors.toSet());
+            singlePassSources.addAll(toAdd);
+            singlePassSources.removeAll(toRemove);
+            if (!toAdd.isEmpty()) state.addSources(toAdd);
+            if (!toRemove.isEmpty()) state.removeSources(toRemove);
+        }
+    }
+
+}
@@ -81,6 +81,12 @@ public class AlphaSerializableBdvOptions {
      */
     public boolean useAlphaCompositing = true;
 
+    /**
+     * Samples each source and its alpha in a single pass (see {@link bdv.util.source.alpha.SinglePassAlphaSource}),
+     * instead of rendering alpha sources as separate sources. Only used with alpha compositing.
+     */
+    public boolean singlePassAlpha = false;
+
     public int fontSize = 18;
 
     public String font = "Courier";
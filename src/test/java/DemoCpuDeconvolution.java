@@ -0,0 +1,86 @@
+import bdv.cache.SharedQueue;
+import bdv.util.RandomAccessibleIntervalSource;
+import bdv.viewer.SourceAndConverter;
+import ch.epfl.biop.source.deconvolve.DeconvolutionBackend;
+import ch.epfl.biop.source.deconvolve.Deconvolver;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.real.FloatType;
+import org.junit.Test;
+
+/**
+ * Blurs a few points with a gaussian PSF, deconvolves them on the CPU
+ * and checks that the peaks are sharpened
+ */
+public class DemoCpuDeconvolution {
+
+    public static void main(String... args) {
+        int psfSize = 9;
+        double sigma = 1.5;
+        ArrayImg<FloatType, FloatArray> psf = ArrayImgs.floats(psfSize, psfSize, psfSize);
+        psf.forEach(p -> p.set(0));
+        RandomAccess<FloatType> psfAccess = psf.randomAccess();
+        for (int z = 0; z < psfSize; z++) {
+            for (int y = 0; y < psfSize; y++) {
+                for (int x = 0; x < psfSize; x++) {
+                    double d2 = Math.pow(x - psfSize / 2, 2) + Math.pow(y - psfSize / 2, 2) + Math.pow(z - psfSize / 2, 2);
+                    psfAccess.setPosition(new int[]{x, y, z});
+                    psfAccess.get().set((float) Math.exp(-d2 / (2 * sigma * sigma)));
+                }
+            }
+        }
+
+        // Blurred points, blurring done by hand to not depend on the tested code
+        ArrayImg<FloatType, FloatArray> img = ArrayImgs.floats(64, 64, 32);
+        RandomAccess<FloatType> access = img.randomAccess();
+        int[][] points = new int[][]{{16, 16, 8}, {40, 20, 16}, {30, 48, 24}};
+        for (int[] point : points) {
+            for (int z = 0; z < psfSize; z++) {
+                for (int y = 0; y < psfSize; y++) {
+                    for (int x = 0; x < psfSize; x++) {
+                        psfAccess.setPosition(new int[]{x, y, z});
+                        access.setPosition(new int[]{point[0] + x - psfSize / 2, point[1] + y - psfSize / 2, point[2] + z - psfSize / 2});
+                        access.get().set(access.get().get() + 1000 * psfAccess.get().get());
+                    }
+                }
+            }
+        }
+
+        SourceAndConverter<FloatType> source = new SourceAndConverter<>(
+                new RandomAccessibleIntervalSource<>(img, new FloatType(), new AffineTransform3D(), "Points"), null);
+        SourceAndConverter<FloatType> psfSource = new SourceAndConverter<>(
+                new RandomAccessibleIntervalSource<>(psf, new FloatType(), new AffineTransform3D(), "PSF"), null);
+
+        for (boolean nonCirculant : new boolean[]{false, true}) {
+            long start = System.currentTimeMillis();
+            SourceAndConverter<FloatType> deconvolved = Deconvolver.getDeconvolved(source, "Points_deconvolved",
+                    new int[]{32, 32, 16}, new int[]{8, 8, 8}, 20, nonCirculant, 0, psfSource,
+                    new SharedQueue(Runtime.getRuntime().availableProcessors(), 1), DeconvolutionBackend.CPU);
+
+            RandomAccessibleInterval<FloatType> result = deconvolved.getSpimSource().getSource(0, 0);
+            RandomAccess<FloatType> resultAccess = result.randomAccess();
+            for (int[] point : points) {
+                access.setPosition(point);
+                resultAccess.setPosition(point);
+                float before = access.get().get();
+                float after = resultAccess.get().get();
+                System.out.println("Non circulant = " + nonCirculant + " peak " + before + " -> " + after);
+                if (after <= before) {
+                    throw new AssertionError("The deconvolution did not sharpen the peak at "
+                            + point[0] + ", " + point[1] + ", " + point[2]);
+                }
+            }
+            System.out.println("Deconvolution (non circulant = " + nonCirculant + ") done in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    @Test
+    public void demoRunOk() {
+        main("");
+    }
+}
@@ -30,6 +30,7 @@ import ch.epfl.biop.DatasetHelper;
 import ch.epfl.biop.bdv.img.bioformats.command.DatasetFromBioFormatsCreateCommand;
 import ch.epfl.biop.command.process.deconvolve.SourcesDeconvolveCommand;
 import ch.epfl.biop.command.workflow.lls7.LLS7DatasetOpenCommand;
+import ch.epfl.biop.source.deconvolve.DeconvolutionBackend;
 import net.haesleinhuepf.clij.CLIJ;
 import net.imagej.ImageJ;
 import net.imagej.patcher.LegacyInjector;
@@ -99,6 +100,7 @@ public class DemoDeconvolution {
                 "sources", new SourceAndConverter[]{sources[0]},
                 "psf", psf,
                 "output_pixel_type", SourcesDeconvolveCommand.ORIGINAL,
+                "backend", DeconvolutionBackend.GPU_CLIJ2,
                 "suffix", "_deconvolved",
                 "block_size_x", 128 - 32,
                 "block_size_y", 512 - 32,
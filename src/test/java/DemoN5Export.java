@@ -0,0 +1,63 @@
+import bdv.util.RandomAccessibleIntervalSource;
+import bdv.viewer.SourceAndConverter;
+import ch.epfl.biop.source.exporter.SourcesToN5Exporter;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.zarr.N5ZarrReader;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Exports a synthetic source to a 3 levels OME-Zarr container, exports it again with resume,
+ * and checks a chunk of each level
+ */
+public class DemoN5Export {
+
+    public static void main(String... args) throws Exception {
+        ArrayImg<UnsignedShortType, ShortArray> img = ArrayImgs.unsignedShorts(300, 200, 20);
+        img.forEach(p -> p.set(1000));
+        AffineTransform3D location = new AffineTransform3D();
+        location.scale(0.5, 0.5, 2);
+        SourceAndConverter<UnsignedShortType> source = new SourceAndConverter<>(
+                new RandomAccessibleIntervalSource<>(img, new UnsignedShortType(), location, "Image"), null);
+
+        File output = new File(Files.createTempDirectory("export").toFile(), "image.ome.zarr");
+
+        for (boolean resume : new boolean[]{false, true}) {
+            long start = System.currentTimeMillis();
+            Map<String, String> groups = SourcesToN5Exporter.builder(new SourceAndConverter[]{source}, output)
+                    .format(SourcesToN5Exporter.OME_ZARR)
+                    .nResolutionLevels(3)
+                    .blockSize(64, 64, 16)
+                    .maxCellsInFlight(8)
+                    .resume(resume)
+                    .build()
+                    .export();
+            System.out.println("Export (resume = "+resume+") done in "+(System.currentTimeMillis()-start)+" ms: "+groups);
+        }
+
+        N5ZarrReader reader = new N5ZarrReader(output.getAbsolutePath());
+        for (int level = 0; level < 3; level++) {
+            String dataset = "0_Image/s" + level;
+            DatasetAttributes attributes = reader.getDatasetAttributes(dataset);
+            System.out.println(dataset+" dimensions: "+Arrays.toString(attributes.getDimensions()));
+            DataBlock<?> block = reader.readBlock(dataset, attributes, 0, 0, 0, 0);
+            short value = ((short[]) block.getData())[0];
+            if (value != 1000) throw new AssertionError("Unexpected value "+value+" in "+dataset);
+        }
+    }
+
+    @Test
+    public void demoRunOk() throws Exception {
+        main("");
+    }
+}
@@ -0,0 +1,109 @@
+/*-
+ * #%L
+ * BigDataViewer-Playground
+ * %%
+ * Copyright (C) 2019 - 2021 Nicolas Chiaruttini, EPFL - Robert Haase, MPI CBG - Christian Tischer, EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package alpha;
+
+import bdv.util.BdvHandle;
+import bdv.viewer.SourceAndConverter;
+import fused.TestHelper;
+import net.imagej.ImageJ;
+import net.imglib2.type.numeric.ARGBType;
+import org.junit.After;
+import org.junit.Test;
+import sc.fiji.bdvpg.viewer.bdv.navigate.ViewerTransformAdjuster;
+import sc.fiji.bdvpg.viewer.bdv.supplier.IBdvSupplier;
+import sc.fiji.bdvpg.bdv.supplier.alpha.AlphaBdvSupplier;
+import sc.fiji.bdvpg.bdv.supplier.alpha.AlphaSerializableBdvOptions;
+import sc.fiji.bdvpg.service.SourceServices;
+import sc.fiji.bdvpg.source.display.BrightnessAutoAdjuster;
+import sc.fiji.bdvpg.source.display.ColorChanger;
+import sc.fiji.bdvpg.dataset.importer.XMLToDatasetImporter;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+public class AlphaDemoSinglePass
+{
+	static ImageJ ij;
+
+	public static void main( String[] args ) throws ExecutionException, InterruptedException
+	{
+		// Create the ImageJ application context with all available services; necessary for SourceServices creation
+		ij = new ImageJ();
+		ij.ui().showUI();
+		demo();
+	}
+
+	@Test
+	public void demoRunOk() throws ExecutionException, InterruptedException
+	{
+		main(new String[]{""});
+	}
+
+	@After
+	public void closeFiji() {
+		TestHelper.closeFijiAndBdvs(ij);
+	}
+
+	public static void demo() {
+		AlphaSerializableBdvOptions options = new AlphaSerializableBdvOptions();
+		options.singlePassAlpha = true; // sources and alpha rendered together
+		IBdvSupplier bdvSupplier = new AlphaBdvSupplier(options);
+
+		SourceServices.getBdvDisplayService().setDefaultBdvSupplier(bdvSupplier);
+
+		BdvHandle bdv = SourceServices.getBdvDisplayService().getNewBdv();
+
+		// Import SpimData
+		new XMLToDatasetImporter( "src/test/resources/mri-stack.xml" ).run();
+		new XMLToDatasetImporter("src/test/resources/mri-stack-shiftedX.xml").run();
+		new XMLToDatasetImporter( "src/test/resources/mri-stack-shiftedY.xml" ).run();
+
+		// Get a handle on the sources
+		final List< SourceAndConverter<?>> sources = SourceServices.getSourceService().getSources();
+
+		// Show all three sources
+		sources.forEach( source -> {
+			SourceServices.getBdvDisplayService().show(bdv, source);
+			new ViewerTransformAdjuster(bdv, source).run();
+			new BrightnessAutoAdjuster(source, 0).run();
+		});
+
+		// Change color of third one
+		new ColorChanger( sources.get( 2 ), new ARGBType( ARGBType.rgba( 0, 255, 0, 255 ) ) ).run();
+
+		// The displayed sources stay in the viewer, their single pass sources are added next to them
+		List< SourceAndConverter< ? > > displayed = bdv.getViewerPanel().state().getSources();
+		sources.forEach( source -> {
+			if ( !displayed.contains( source ) )
+				throw new RuntimeException( "Source " + source.getSpimSource().getName() + " should stay in the viewer" );
+			if ( !displayed.contains( AlphaBdvSupplier.sourcesMetadata.getSinglePassSource( source ) ) )
+				throw new RuntimeException( "Single pass source of " + source.getSpimSource().getName() + " missing" );
+		} );
+	}
+}
@@ -0,0 +1,235 @@
+package alpha;
+
+import bdv.util.RandomAccessibleIntervalSource;
+import bdv.util.projector.alpha.Layer;
+import bdv.util.projector.alpha.LayerAlphaAccumulateProjector;
+import bdv.util.projector.alpha.LayerAlphaIProjectorFactory;
+import bdv.util.projector.alpha.LayerAlphaProjectorFactory;
+import bdv.util.projector.alpha.LayerMetadata;
+import bdv.util.projector.alpha.SourcesMetadata;
+import bdv.viewer.SourceAndConverter;
+import bdv.viewer.render.VolatileProjector;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.IntArray;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Compares the pixel by pixel and the row by row blending of {@link LayerAlphaAccumulateProjector}
+ * on synthetic screen images, at 1080p and 4K, with 8, 32 and 128 sources (half of them being alpha sources),
+ * spread over 4 layers. Checks that both blendings give identical images and prints the time per frame.
+ *
+ * This is a plain main based benchmark, as the other benchmarks of this repository: pass "quick" as argument
+ * to run only the smallest configuration.
+ */
+public class LayerAlphaProjectorBenchmark {
+
+    static final int[][] screenSizes = new int[][]{{1920, 1080}, {3840, 2160}};
+
+    static final int[] numbersOfSources = new int[]{8, 32, 128};
+
+    static final int numLayers = 4;
+
+    static final int numThreads = Runtime.getRuntime().availableProcessors();
+
+    static final int numRepetitions = 5;
+
+    public static void main(String... args) {
+        boolean quick = (args.length > 0) && args[0].equals("quick");
+        ExecutorService executorService = Executors.newFixedThreadPool(numThreads);
+        try {
+            for (int[] screenSize : screenSizes) {
+                for (int nSources : numbersOfSources) {
+                    benchmark(screenSize[0], screenSize[1], nSources, false, executorService);
+                    benchmark(screenSize[0], screenSize[1], nSources, true, executorService);
+                    if (quick) return;
+                }
+            }
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    static void benchmark(int width, int height, int nSources, boolean inverted, ExecutorService executorService) {
+        Random random = new Random(42);
+
+        List<SourceAndConverter<?>> sources = new ArrayList<>();
+        List<ArrayImg<ARGBType, IntArray>> screenImages = new ArrayList<>();
+        Map<SourceAndConverter<?>, SourceAndConverter<?>> alphaOf = new HashMap<>();
+        Map<SourceAndConverter<?>, Layer> layerOf = new HashMap<>();
+
+        for (int i = 0; i < nSources / 2; i++) {
+            SourceAndConverter<?> source = dummySource("source_" + i);
+            SourceAndConverter<?> alpha = dummySource("source_" + i + "_alpha");
+            sources.add(source);
+            sources.add(alpha);
+            alphaOf.put(source, alpha);
+            Layer layer = new BenchmarkLayer(i % numLayers);
+            layerOf.put(source, layer);
+            layerOf.put(alpha, layer);
+
+            ArrayImg<ARGBType, IntArray> image = ArrayImgs.argbs(width, height);
+            int[] pixels = image.update(null).getCurrentStorageArray();
+            for (int p = 0; p < pixels.length; p++) {
+                int v = random.nextInt(256);
+                pixels[p] = ARGBType.rgba(v, random.nextInt(256), v / 2, v);
+            }
+            screenImages.add(image);
+
+            // Alpha: a rectangle, partially transparent for one source out of three
+            ArrayImg<ARGBType, IntArray> alphaImage = ArrayImgs.argbs(width, height);
+            int[] alphas = alphaImage.update(null).getCurrentStorageArray();
+            int x0 = random.nextInt(width / 2), y0 = random.nextInt(height / 2);
+            int bits = Float.floatToIntBits(i % 3 == 0 ? 0.5f : 1f);
+            for (int y = y0; y < y0 + height / 2; y++) {
+                for (int x = x0; x < x0 + width / 2; x++) {
+                    alphas[x + y * width] = bits;
+                }
+            }
+            screenImages.add(alphaImage);
+        }
+
+        SourcesMetadata sourcesMeta = new SourcesMetadata() {
+            @Override
+            public boolean isAlphaSource(SourceAndConverter<?> source) {
+                return alphaOf.containsValue(source);
+            }
+
+            @Override
+            public boolean hasAlphaSource(SourceAndConverter<?> source) {
+                return alphaOf.containsKey(source);
+            }
+
+            @Override
+            public SourceAndConverter<FloatType> getAlphaSource(SourceAndConverter<?> source) {
+                return (SourceAndConverter<FloatType>) alphaOf.get(source);
+            }
+        };
+        LayerMetadata layerMeta = layerOf::get;
+
+        List<VolatileProjector> sourceProjectors = new ArrayList<>();
+        for (int i = 0; i < sources.size(); i++) sourceProjectors.add(new ValidProjector());
+
+        ArrayImg<ARGBType, IntArray> pixelTarget = ArrayImgs.argbs(width, height);
+        ArrayImg<ARGBType, IntArray> rowTarget = ArrayImgs.argbs(width, height);
+
+        LayerAlphaAccumulateProjector pixelProjector = inverted ?
+                new LayerAlphaIProjectorFactory.AccumulateProjectorARGBGeneric(sourcesMeta, layerMeta, sourceProjectors,
+                        sources, screenImages, pixelTarget, numThreads, executorService) :
+                new LayerAlphaProjectorFactory.AccumulateProjectorARGBGeneric(sourcesMeta, layerMeta, sourceProjectors,
+                        sources, screenImages, pixelTarget, numThreads, executorService);
+        pixelProjector.setRowBlending(false);
+
+        LayerAlphaAccumulateProjector rowProjector = inverted ?
+                new LayerAlphaIProjectorFactory.AccumulateProjectorARGBGeneric(sourcesMeta, layerMeta, sourceProjectors,
+                        sources, screenImages, rowTarget, numThreads, executorService) :
+                new LayerAlphaProjectorFactory.AccumulateProjectorARGBGeneric(sourcesMeta, layerMeta, sourceProjectors,
+                        sources, screenImages, rowTarget, numThreads, executorService);
+
+        double pixelMs = timePerFrame(pixelProjector);
+        double rowMs = timePerFrame(rowProjector);
+
+        int[] expected = pixelTarget.update(null).getCurrentStorageArray();
+        int[] actual = rowTarget.update(null).getCurrentStorageArray();
+        for (int p = 0; p < expected.length; p++) {
+            if (expected[p] != actual[p]) {
+                throw new AssertionError("Row blending differs from pixel blending at pixel " + (p % width) + ":" + (p / width));
+            }
+        }
+
+        System.out.println((inverted ? "Inverted " : "") + width + "x" + height + " - " + nSources + " sources - pixel by pixel: "
+                + String.format("%.1f", pixelMs) + " ms/frame, row by row: " + String.format("%.1f", rowMs) + " ms/frame");
+    }
+
+    static double timePerFrame(VolatileProjector projector) {
+        projector.map(false); // warm up
+        long start = System.nanoTime();
+        for (int i = 0; i < numRepetitions; i++) {
+            projector.map(false);
+        }
+        return (System.nanoTime() - start) / 1e6 / numRepetitions;
+    }
+
+    static SourceAndConverter<?> dummySource(String name) {
+        return new SourceAndConverter<>(new RandomAccessibleIntervalSource<>(ArrayImgs.unsignedBytes(1, 1, 1),
+                new UnsignedByteType(), name), (in, out) -> out.set(in.get()));
+    }
+
+    static class ValidProjector implements VolatileProjector {
+
+        @Override
+        public boolean map(boolean clearUntouchedTargetPixels) {
+            return true;
+        }
+
+        @Override
+        public void cancel() {
+        }
+
+        @Override
+        public long getLastFrameRenderNanoTime() {
+            return 0;
+        }
+
+        @Override
+        public boolean isValid() {
+            return true;
+        }
+    }
+
+    static class BenchmarkLayer implements Layer {
+
+        final int id;
+
+        BenchmarkLayer(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public float getAlpha() {
+            return 0.8f;
+        }
+
+        @Override
+        public int getBlendingMode() {
+            return 0;
+        }
+
+        @Override
+        public boolean skip() {
+            return false;
+        }
+
+        @Override
+        public int compareTo(@NotNull Layer o) {
+            return Integer.compare(id, ((BenchmarkLayer) o).id);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return (o instanceof BenchmarkLayer) && (((BenchmarkLayer) o).id == id);
+        }
+
+        @Override
+        public int hashCode() {
+            return id;
+        }
+    }
+
+    @Test
+    public void demoRunOk() {
+        main("quick");
+    }
+}
@@ -0,0 +1,130 @@
+package fused;
+
+import bdv.util.RandomAccessibleIntervalSource;
+import bdv.util.source.fused.AlphaFusedResampledSource;
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import net.imagej.ImageJ;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares the voxel-wise fusion with the scanline fusion of
+ * {@link bdv.util.source.fused.AlphaFusedCellKernel}, with and without
+ * {@link bdv.util.source.fused.AffineScanlineSampler}, on a synthetic grid of overlapping tiles.
+ * Checks that all results are bit-identical and prints the time needed to fill all cells.
+ */
+public class FusionKernelBenchmark {
+
+    static ImageJ ij;
+
+    static final int nTilesPerAxis = 14; // 196 tiles
+    static final int tileSizeXY = 128;
+    static final int tileSizeZ = 32;
+    static final int tileStep = 100; // ~20% overlap
+
+    public static void main(String... args) {
+        ij = new ImageJ();
+
+        List<Source<UnsignedShortType>> tiles = createTiles();
+
+        long sizeXY = (long) tileStep * (nTilesPerAxis - 1) + tileSizeXY;
+        Source<UnsignedShortType> model = new RandomAccessibleIntervalSource<>(
+                ArrayImgs.unsignedShorts(sizeXY, sizeXY, tileSizeZ), new UnsignedShortType(), new AffineTransform3D(), "Model");
+
+        Map<Source<UnsignedShortType>, Interpolation> interpolations = new HashMap<>();
+        tiles.forEach(tile -> interpolations.put(tile, Interpolation.NEARESTNEIGHBOR));
+
+        for (String blendingMode : new String[]{AlphaFusedResampledSource.AVERAGE,
+                AlphaFusedResampledSource.SUM, AlphaFusedResampledSource.MAX}) {
+
+            AlphaFusedResampledSource<UnsignedShortType> voxelWise = new AlphaFusedResampledSource<>(tiles,
+                    blendingMode, model, "Fused voxel-wise", false, true, interpolations, 0, 64, 64, 32);
+            voxelWise.setUsePrimitiveKernel(false);
+
+            AlphaFusedResampledSource<UnsignedShortType> scanline = new AlphaFusedResampledSource<>(tiles,
+                    blendingMode, model, "Fused scanline", false, true, interpolations, 0, 64, 64, 32);
+            scanline.setUseScanlineSampling(false);
+
+            AlphaFusedResampledSource<UnsignedShortType> sampled = new AlphaFusedResampledSource<>(tiles,
+                    blendingMode, model, "Fused scanline sampled", false, true, interpolations, 0, 64, 64, 32);
+            sampled.setUseScanlineSampling(true);
+
+            long before = fillAllCells(voxelWise.getSource(0, 0));
+            long afterKernel = fillAllCells(scanline.getSource(0, 0));
+            long afterSampler = fillAllCells(sampled.getSource(0, 0));
+
+            System.out.println(blendingMode+" - "+tiles.size()+" tiles - voxel-wise: "+before+" ms, scanline: "
+                    +afterKernel+" ms, scanline with affine sampler: "+afterSampler+" ms");
+
+            int[] overlaps = sampled.getCellOverlapCounts(0, 0);
+            System.out.println("Average number of tiles per cell: "+Arrays.stream(overlaps).average().orElse(0));
+
+            assertIdentical(voxelWise.getSource(0, 0), scanline.getSource(0, 0));
+            // Nearest neighbor interpolation: the affine sampler reads the same voxels
+            assertIdentical(voxelWise.getSource(0, 0), sampled.getSource(0, 0));
+        }
+    }
+
+    static List<Source<UnsignedShortType>> createTiles() {
+        Random random = new Random(42);
+        List<Source<UnsignedShortType>> tiles = new ArrayList<>();
+        for (int x = 0; x < nTilesPerAxis; x++) {
+            for (int y = 0; y < nTilesPerAxis; y++) {
+                ArrayImg<UnsignedShortType, ShortArray> img = ArrayImgs.unsignedShorts(tileSizeXY, tileSizeXY, tileSizeZ);
+                img.forEach(p -> p.set(random.nextInt(4096)));
+                AffineTransform3D location = new AffineTransform3D();
+                location.translate(x * tileStep + random.nextDouble(), y * tileStep + random.nextDouble(), 0);
+                tiles.add(new RandomAccessibleIntervalSource<>(img, new UnsignedShortType(), location, "Tile_"+x+"_"+y));
+            }
+        }
+        return tiles;
+    }
+
+    static long fillAllCells(RandomAccessibleInterval<UnsignedShortType> rai) {
+        long start = System.currentTimeMillis();
+        long checksum = 0;
+        for (UnsignedShortType pixel : Views.flatIterable(rai)) {
+            checksum += pixel.get();
+        }
+        long duration = System.currentTimeMillis() - start;
+        if (checksum == 0) System.out.println("Empty fusion result");
+        return duration;
+    }
+
+    static void assertIdentical(RandomAccessibleInterval<UnsignedShortType> expected, RandomAccessibleInterval<UnsignedShortType> actual) {
+        Cursor<UnsignedShortType> cExpected = Views.flatIterable(expected).cursor();
+        Cursor<UnsignedShortType> cActual = Views.flatIterable(actual).cursor();
+        while (cExpected.hasNext()) {
+            if (cExpected.next().get() != cActual.next().get()) {
+                throw new AssertionError("Fusion results differ at "+cExpected.getLongPosition(0)+":"
+                        +cExpected.getLongPosition(1)+":"+cExpected.getLongPosition(2));
+            }
+        }
+    }
+
+    @Test
+    public void demoRunOk() {
+        main("");
+    }
+
+    @After
+    public void closeFiji() {
+        TestHelper.closeFijiAndBdvs(ij);
+    }
+}
@@ -0,0 +1,138 @@
+package labkit;
+
+import bdv.util.RandomAccessibleIntervalSource;
+import bdv.util.source.labkit.LabkitSource;
+import bdv.viewer.SourceAndConverter;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.junit.Test;
+import org.scijava.Context;
+import sc.fiji.bdvpg.source.SourceHelper;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+/**
+ * Compares the tile by tile and the batched classification of {@link LabkitSource} on a synthetic 2 channels
+ * volume with the lls7-nuc-bg classifier. Both classify the whole volume on all cores. Prints the throughput
+ * in megavoxels per second and the fraction of voxels whose class differs (only the voxels close to tile
+ * borders may differ, because of the different halos).
+ *
+ * This is a plain main based benchmark, as the other benchmarks of this repository: pass "quick" as argument
+ * to run only the smallest configuration.
+ */
+public class LabkitBatchBenchmark {
+
+    static final long[][] volumeSizes = new long[][]{{192, 192, 64}, {512, 512, 128}};
+
+    static final int[] cellsPerBlocks = new int[]{2, 4};
+
+    static final int numThreads = Runtime.getRuntime().availableProcessors();
+
+    public static void main(String... args) throws Exception {
+        boolean quick = (args.length > 0) && args[0].equals("quick");
+        String classifierPath = LabkitBatchBenchmark.class.getResource("/lls7-nuc-bg.classifier").getPath();
+        Context context = new Context();
+        try {
+            for (long[] volumeSize : volumeSizes) {
+                SourceAndConverter<UnsignedShortType>[] channels = syntheticChannels(volumeSize);
+                RandomAccessibleInterval<UnsignedByteType> reference = benchmarkTileByTile(channels, classifierPath, context);
+                for (int cellsPerBlock : cellsPerBlocks) {
+                    benchmarkBatch(channels, classifierPath, context, cellsPerBlock, reference);
+                    if (quick) return;
+                }
+            }
+        } finally {
+            context.dispose();
+        }
+    }
+
+    static RandomAccessibleInterval<UnsignedByteType> benchmarkTileByTile(SourceAndConverter<UnsignedShortType>[] channels,
+                                                                        String classifierPath, Context context) {
+        LabkitSource<UnsignedShortType> source = new LabkitSource<>("tile_by_tile", channels, classifierPath, context, 0);
+        RandomAccessibleInterval<UnsignedByteType> segmentation = source.getSource(0, 0);
+        long start = System.nanoTime();
+        // Touches one voxel per tile, on all cores
+        long[] dims = segmentation.dimensionsAsLongArray();
+        long nx = (dims[0] + 63) / 64, ny = (dims[1] + 63) / 64, nz = (dims[2] + 63) / 64;
+        IntStream.range(0, (int) (nx * ny * nz)).parallel().forEach(i ->
+                segmentation.getAt((i % nx) * 64, ((i / nx) % ny) * 64, (i / (nx * ny)) * 64).get());
+        report("Tile by tile", segmentation, System.nanoTime() - start, null);
+        return segmentation;
+    }
+
+    static void benchmarkBatch(SourceAndConverter<UnsignedShortType>[] channels, String classifierPath, Context context,
+                               int cellsPerBlock, RandomAccessibleInterval<UnsignedByteType> reference) throws Exception {
+        LabkitSource<UnsignedShortType> source = new LabkitSource<>("batch", channels, classifierPath, context, 0);
+        source.setBatchSegmentation(cellsPerBlock, 2 * numThreads);
+        long start = System.nanoTime();
+        source.segmentAll(0, 0, numThreads, null);
+        report("Batch of " + cellsPerBlock + "^3 tiles", source.getSource(0, 0), System.nanoTime() - start, reference);
+    }
+
+    static void report(String mode, RandomAccessibleInterval<UnsignedByteType> segmentation, long nanos,
+                       RandomAccessibleInterval<UnsignedByteType> reference) {
+        long nVoxels = Intervals.numElements(segmentation);
+        String message = String.format("%s, %s voxels: %d ms, %.2f Mvoxels/s",
+                mode, Intervals.toString(segmentation), nanos / 1_000_000, nVoxels * 1e3 / nanos);
+        if (reference != null) {
+            AtomicLong different = new AtomicLong();
+            LoopBuilder.setImages(segmentation, reference).multiThreaded().forEachChunk(chunk -> {
+                long[] count = new long[1];
+                chunk.forEachPixel((a, b) -> { if (a.get() != b.get()) count[0]++; });
+                different.addAndGet(count[0]);
+                return null;
+            });
+            message += String.format(", %.3f %% of voxels differ", 100.0 * different.get() / nVoxels);
+        }
+        System.out.println(message);
+    }
+
+    /**
+     * @return two channels of bright blobs (nuclei in channel 0, larger cells in channel 1) on a noisy background
+     */
+    static SourceAndConverter<UnsignedShortType>[] syntheticChannels(long[] size) {
+        Random random = new Random(42);
+        int nBlobs = (int) Math.max(4, Intervals.numElements(size) / 200_000);
+        double[][] centers = new double[nBlobs][3];
+        for (double[] center : centers) {
+            for (int d = 0; d < 3; d++) center[d] = random.nextDouble() * size[d];
+        }
+        SourceAndConverter<UnsignedShortType>[] channels = new SourceAndConverter[2];
+        for (int c = 0; c < 2; c++) {
+            double radius = (c == 0) ? 8 : 16;
+            ArrayImg<UnsignedShortType, ShortArray> img = ArrayImgs.unsignedShorts(size);
+            Cursor<UnsignedShortType> cursor = img.localizingCursor();
+            while (cursor.hasNext()) {
+                cursor.fwd();
+                double value = 100 + 20 * random.nextGaussian();
+                for (double[] center : centers) {
+                    double dx = cursor.getDoublePosition(0) - center[0];
+                    double dy = cursor.getDoublePosition(1) - center[1];
+                    double dz = cursor.getDoublePosition(2) - center[2];
+                    if (dx * dx + dy * dy + dz * dz < radius * radius) value += 1000;
+                }
+                cursor.get().set((int) Math.max(0, Math.min(65535, value)));
+            }
+            RandomAccessibleIntervalSource<UnsignedShortType> source =
+                    new RandomAccessibleIntervalSource<>(img, new UnsignedShortType(), new AffineTransform3D(), "channel_" + c);
+            channels[c] = SourceHelper.createSourceAndConverter(source);
+        }
+        return channels;
+    }
+
+    @Test
+    public void demoRunOk() throws Exception {
+        main("quick");
+    }
+}
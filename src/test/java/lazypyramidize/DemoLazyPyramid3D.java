@@ -0,0 +1,57 @@
+package lazypyramidize;
+
+import bdv.cache.SharedQueue;
+import bdv.util.source.process.BlockDownsampler;
+import bdv.util.source.process.LazyPyramidSource;
+import bdv.viewer.SourceAndConverter;
+import fused.TestHelper;
+import ch.epfl.biop.source.SourceHelper;
+import mpicbg.spim.data.generic.AbstractSpimData;
+import net.imagej.ImageJ;
+import net.imagej.patcher.LegacyInjector;
+import org.junit.After;
+import org.junit.Test;
+import sc.fiji.bdvpg.dataset.importer.XMLToDatasetImporter;
+import sc.fiji.bdvpg.service.SourceServices;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Displays the mri stack with a lazy 3D pyramid, whose factors are chosen from the voxel anisotropy
+ */
+public class DemoLazyPyramid3D {
+
+    static {
+        LegacyInjector.preinit();
+    }
+
+    static ImageJ ij;
+
+    public static void main(String... args) {
+        ij = new ImageJ();
+        ij.ui().showUI();
+
+        AbstractSpimData<?> dataset = new XMLToDatasetImporter("src/test/resources/mri-stack.xml").get();
+        List<SourceAndConverter<?>> sources = SourceServices.getSourceService().getSourcesFromDataset(dataset);
+
+        int[][] factors = LazyPyramidSource.autoFactors(sources.get(0).getSpimSource(), 0, 16);
+        System.out.println("Pyramid factors: " + Arrays.deepToString(factors));
+
+        SourceAndConverter<?> pyramid = SourceHelper.lazyPyramidize((SourceAndConverter) sources.get(0), factors,
+                BlockDownsampler.MEAN, new SharedQueue(Runtime.getRuntime().availableProcessors() - 1, 5));
+
+        SourceServices.getSourceService().register(pyramid);
+        SourceServices.getBdvDisplayService().show(pyramid);
+    }
+
+    @Test
+    public void demoRunOk() {
+        main();
+    }
+
+    @After
+    public void closeFiji() {
+        TestHelper.closeFijiAndBdvs(ij);
+    }
+}
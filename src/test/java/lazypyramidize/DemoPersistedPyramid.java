@@ -0,0 +1,66 @@
+package lazypyramidize;
+
+import bdv.cache.SharedQueue;
+import bdv.util.source.process.BlockDownsampler;
+import bdv.util.source.process.LazyPyramidSource;
+import bdv.viewer.SourceAndConverter;
+import ch.epfl.biop.dataset.pyramid.PyramidPersister;
+import ch.epfl.biop.source.SourceHelper;
+import fused.TestHelper;
+import mpicbg.spim.data.generic.AbstractSpimData;
+import net.imagej.ImageJ;
+import net.imagej.patcher.LegacyInjector;
+import org.junit.After;
+import org.junit.Test;
+import sc.fiji.bdvpg.dataset.importer.XMLToDatasetImporter;
+import sc.fiji.bdvpg.service.SourceServices;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Persists the lazy 3D pyramid of the mri stack, then reopens the combined dataset: its lower levels
+ * are read from the N5 container instead of being computed
+ */
+public class DemoPersistedPyramid {
+
+    static {
+        LegacyInjector.preinit();
+    }
+
+    static ImageJ ij;
+
+    public static void main(String... args) throws Exception {
+        ij = new ImageJ();
+        ij.ui().showUI();
+
+        AbstractSpimData<?> dataset = new XMLToDatasetImporter("src/test/resources/mri-stack.xml").get();
+        List<SourceAndConverter<?>> sources = SourceServices.getSourceService().getSourcesFromDataset(dataset);
+
+        int[][] factors = LazyPyramidSource.autoFactors(sources.get(0).getSpimSource(), 0, 16);
+        SourceAndConverter<?> pyramid = SourceHelper.lazyPyramidize((SourceAndConverter) sources.get(0), factors,
+                BlockDownsampler.MEAN, new SharedQueue(Runtime.getRuntime().availableProcessors() - 1, 5));
+
+        File xml = new File(Files.createTempDirectory("persisted_pyramid").toFile(), "mri-stack-pyramid.xml");
+        PyramidPersister persister = new PyramidPersister(dataset, xml, Runtime.getRuntime().availableProcessors(), null);
+        persister.add(0, (LazyPyramidSource<?>) pyramid.getSpimSource());
+        persister.persist();
+        System.out.println("Persisted dataset: " + xml.getAbsolutePath());
+
+        AbstractSpimData<?> persisted = new XMLToDatasetImporter(xml.getAbsolutePath()).get();
+        List<SourceAndConverter<?>> persistedSources = SourceServices.getSourceService().getSourcesFromDataset(persisted);
+        System.out.println("Number of levels: " + persistedSources.get(0).getSpimSource().getNumMipmapLevels());
+        SourceServices.getBdvDisplayService().show(persistedSources.get(0));
+    }
+
+    @Test
+    public void demoRunOk() throws Exception {
+        main();
+    }
+
+    @After
+    public void closeFiji() {
+        TestHelper.closeFijiAndBdvs(ij);
+    }
+}
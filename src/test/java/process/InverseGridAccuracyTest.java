@@ -0,0 +1,100 @@
+package process;
+
+import bdv.util.EmptySource;
+import bdv.util.InverseGridRealTransform;
+import bdv.util.InvertibleBatchRealTransform;
+import bdv.util.RealTransformHelper;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.InvertibleRealTransform;
+import net.imglib2.realtransform.RealTransform;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Checks that the inverse interpolated from an {@link InverseGridRealTransform} matches the iterative inverse
+ * of the transform it wraps within the tolerance given when the grid is sampled: both inverse points are compared
+ * directly, in the source space of the transform. The iterative inverse is itself approximate: the comparison
+ * allows for its own error, measured as the distance between its forward transform and the inverted point.
+ * <br>
+ * Then checks that a transform resampled on a model source with
+ * {@link RealTransformHelper#resampleTransform(RealTransform, bdv.viewer.Source)}, as in the Warpy export with a
+ * pre-computed deformation field, keeps the inverse of the grid.
+ *
+ * Pass "quick" as argument to check fewer points.
+ */
+public class InverseGridAccuracyTest {
+
+    static final double tolerance = 0.1;
+
+    public static void main(String... args) {
+        boolean quick = (args.length > 0) && args[0].equals("quick");
+        int nPoints = quick ? 5_000 : 100_000;
+
+        int sizeX = InverseGridBenchmark.sizeX;
+        int sizeY = InverseGridBenchmark.sizeY;
+        InvertibleRealTransform transform = InverseGridBenchmark.createWarpyTransform();
+        InverseGridRealTransform grid = InverseGridRealTransform.create(transform,
+                new FinalRealInterval(new double[]{0, 0, 0}, new double[]{sizeX, sizeY, 0}),
+                Math.max(sizeX, sizeY) / 64.0, tolerance, 16, Runtime.getRuntime().availableProcessors());
+
+        Random random = new Random(3);
+        double[] point = new double[3], expected = new double[3], actual = new double[3], check = new double[3];
+        double maxDifference = 0;
+        for (int i = 0; i < nPoints; i++) {
+            point[0] = random.nextDouble() * sizeX;
+            point[1] = random.nextDouble() * sizeY;
+            point[2] = random.nextDouble();
+            transform.applyInverse(expected, point);
+            transform.apply(expected, check);
+            double iterativeError = Math.hypot(check[0] - point[0], check[1] - point[1]);
+            grid.applyInverse(actual, point);
+            double difference = Math.hypot(actual[0] - expected[0], actual[1] - expected[1]);
+            maxDifference = Math.max(maxDifference, difference);
+            if (difference > tolerance + iterativeError) {
+                throw new RuntimeException("Interpolated inverse " + difference + " away from the iterative inverse at point " + i
+                        + ", tolerance " + tolerance + ", iterative error " + iterativeError);
+            }
+            if (Math.abs(actual[2] - point[2]) > 1e-6) throw new RuntimeException("Z should be unchanged");
+        }
+        System.out.println(String.format("%d inverse points: largest difference with the iterative inverse %.4f, tolerance %.4f",
+                nPoints, maxDifference, tolerance));
+
+        checkResampledInverse(new InvertibleBatchRealTransform(transform, grid), grid, sizeX, sizeY);
+    }
+
+    /**
+     * Resamples the forward transform on a coarse model, as the Warpy export does, and checks that the inverse is
+     * still the one of the grid
+     */
+    static void checkResampledInverse(InvertibleBatchRealTransform loaded, InverseGridRealTransform grid, int sizeX, int sizeY) {
+        EmptySource.EmptySourceParams params = new EmptySource.EmptySourceParams();
+        params.nx = sizeX / 100;
+        params.ny = sizeY / 100;
+        params.nz = 1;
+        params.at3D = new AffineTransform3D();
+        params.at3D.scale(100, 100, 1);
+        RealTransform resampled = RealTransformHelper.resampleTransform(loaded, new EmptySource(params));
+        if (!(resampled instanceof InvertibleRealTransform)) {
+            throw new RuntimeException("The resampled transform should keep the inverse grid");
+        }
+        Random random = new Random(4);
+        double[] point = new double[3], expected = new double[3], actual = new double[3];
+        for (int i = 0; i < 1000; i++) {
+            point[0] = random.nextDouble() * sizeX;
+            point[1] = random.nextDouble() * sizeY;
+            grid.applyInverse(expected, point);
+            ((InvertibleRealTransform) resampled).applyInverse(actual, point);
+            if (Math.hypot(actual[0] - expected[0], actual[1] - expected[1]) > 1e-9) {
+                throw new RuntimeException("The inverse of the resampled transform should be interpolated from the grid");
+            }
+        }
+        System.out.println("Resampled transform keeps the inverse grid");
+    }
+
+    @Test
+    public void demoRunOk() {
+        main("quick");
+    }
+}
@@ -0,0 +1,188 @@
+package process;
+
+import bdv.util.InverseGridRealTransform;
+import bdv.util.InvertibleBatchRealTransform;
+import bdv.util.RealTransformHelper;
+import com.google.gson.Gson;
+import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.InvertibleRealTransform;
+import net.imglib2.realtransform.InvertibleRealTransformSequence;
+import net.imglib2.realtransform.RealTransform;
+import net.imglib2.realtransform.InvertibleWrapped2DTransformAs3D;
+import net.imglib2.realtransform.ThinplateSplineTransform;
+import net.imglib2.realtransform.inverse.WrappedIterativeInvertibleRealTransform;
+import org.junit.Test;
+import org.scijava.Context;
+import sc.fiji.persist.ScijavaGsonHelper;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Compares the iterative inverse of a thin plate spline wrapped as in Warpy registrations with the inverse
+ * interpolated from an {@link InverseGridRealTransform}: time to sample the grid, time per inverse point, and
+ * largest error over random points, which should stay below the tolerance of the grid. Then checks that a
+ * Warpy transform file read with {@link RealTransformHelper#readWarpyTransform(Gson, File)} gets the inverse grid
+ * written next to it, and ignores it once the transform file changes.
+ *
+ * This is a plain main based benchmark, as the other benchmarks of this repository: pass "quick" as argument
+ * to evaluate fewer points.
+ */
+public class InverseGridBenchmark {
+
+    static final int sizeX = 20000;
+    static final int sizeY = 15000;
+    static final int nLandmarks = 64;
+    static final double tolerance = 0.1;
+
+    public static void main(String... args) {
+        boolean quick = (args.length > 0) && args[0].equals("quick");
+        int nPoints = quick ? 20_000 : 500_000;
+
+        InvertibleRealTransform transform = createWarpyTransform();
+
+        long start = System.currentTimeMillis();
+        InverseGridRealTransform grid = InverseGridRealTransform.create(transform,
+                new FinalRealInterval(new double[]{0, 0, 0}, new double[]{sizeX, sizeY, 0}),
+                Math.max(sizeX, sizeY) / 64.0, tolerance, 16, Runtime.getRuntime().availableProcessors());
+        long sampling = System.currentTimeMillis() - start;
+        System.out.println(String.format("Grid sampled in %d ms: %d cells, %d refined, %d computed iteratively, %.1f kB, max error %.4f",
+                sampling, grid.getCellRefinement().length, grid.getNumRefinedCells(), grid.getNumFallbackCells(),
+                grid.getMemoryBytes() / 1e3, grid.getMaxError()));
+
+        double[][] points = new double[nPoints][3];
+        Random random = new Random(1);
+        for (double[] point : points) {
+            point[0] = random.nextDouble() * sizeX;
+            point[1] = random.nextDouble() * sizeY;
+            point[2] = random.nextDouble();
+        }
+
+        double[][] expected = new double[nPoints][3];
+        start = System.currentTimeMillis();
+        for (int i = 0; i < nPoints; i++) transform.applyInverse(expected[i], points[i]);
+        long iterative = System.currentTimeMillis() - start;
+
+        double[][] actual = new double[nPoints][3];
+        start = System.currentTimeMillis();
+        for (int i = 0; i < nPoints; i++) grid.applyInverse(actual[i], points[i]);
+        long interpolated = System.currentTimeMillis() - start;
+
+        // The error is measured on the forward transform of the inverse points. Points of the cells computed
+        // iteratively are only as precise as the iterative inverse
+        double maxError = 0, maxIterativeError = 0;
+        double[] check = new double[3];
+        for (int i = 0; i < nPoints; i++) {
+            transform.apply(expected[i], check);
+            double iterativeError = Math.hypot(check[0] - points[i][0], check[1] - points[i][1]);
+            transform.apply(actual[i], check);
+            double error = Math.hypot(check[0] - points[i][0], check[1] - points[i][1]);
+            maxIterativeError = Math.max(maxIterativeError, iterativeError);
+            maxError = Math.max(maxError, error);
+            // The transform has a small slope, twice the tolerance is a safe bound in the target space
+            if (error > Math.max(2 * tolerance, iterativeError)) {
+                throw new RuntimeException("Interpolated inverse error too large: " + error + " at point " + i);
+            }
+            if (Math.abs(actual[i][2] - points[i][2]) > 1e-6) throw new RuntimeException("Z should be unchanged");
+        }
+        System.out.println(String.format("%d inverse points - iterative: %d ms (max error %.4f), interpolated: %d ms (max error %.4f)",
+                nPoints, iterative, maxIterativeError, interpolated, maxError));
+
+        Context context = new Context();
+        try {
+            checkTransformFile(ScijavaGsonHelper.getGson(context), transform);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            context.dispose();
+        }
+    }
+
+    /**
+     * Writes the transform as Warpy does, from fixed pixels to moving pixels of 0.5 physical units, with its
+     * inverse grid, and reads it back
+     */
+    static void checkTransformFile(Gson gson, InvertibleRealTransform transform) throws IOException {
+        AffineTransform3D pixelToPhysical = new AffineTransform3D();
+        pixelToPhysical.scale(0.5);
+        InvertibleRealTransformSequence sequence = new InvertibleRealTransformSequence();
+        sequence.add(pixelToPhysical);
+        sequence.add(transform);
+        sequence.add(pixelToPhysical.inverse());
+
+        File folder = Files.createTempDirectory("warpy").toFile();
+        File transformFile = new File(folder, "transform_1_0.json");
+        folder.deleteOnExit();
+        transformFile.deleteOnExit();
+        RealTransformHelper.getInverseGridFile(transformFile).deleteOnExit();
+        write(gson, sequence, transformFile);
+        InverseGridRealTransform grid = InverseGridRealTransform.create(sequence,
+                new FinalRealInterval(new double[]{0, 0, 0}, new double[]{2 * sizeX, 2 * sizeY, 0}),
+                Math.max(sizeX, sizeY) / 32.0, tolerance, 16, Runtime.getRuntime().availableProcessors());
+        RealTransformHelper.writeInverseGrid(gson, grid, transformFile);
+
+        InvertibleRealTransform loaded = RealTransformHelper.readWarpyTransform(gson, transformFile);
+        if (!(loaded instanceof InvertibleBatchRealTransform)) {
+            throw new RuntimeException("The inverse grid should be used, got " + loaded.getClass().getSimpleName());
+        }
+        Random random = new Random(2);
+        double[] point = new double[3], inverse = new double[3], check = new double[3];
+        for (int i = 0; i < 1000; i++) {
+            point[0] = random.nextDouble() * sizeX;
+            point[1] = random.nextDouble() * sizeY;
+            // Same inverse as the grid, in physical coordinates
+            pixelToPhysical.applyInverse(check, point);
+            grid.applyInverse(inverse, check);
+            pixelToPhysical.apply(inverse, check);
+            loaded.applyInverse(inverse, point);
+            if (Math.hypot(inverse[0] - check[0], inverse[1] - check[1]) > 1e-6) {
+                throw new RuntimeException("The inverse should be interpolated from the grid");
+            }
+            transform.apply(inverse, check);
+            if (Math.hypot(check[0] - point[0], check[1] - point[1]) > tolerance) {
+                throw new RuntimeException("Inverse read from the file too far from the transform");
+            }
+        }
+
+        // The transform file changes : the grid is stale
+        write(gson, createWarpyTransform(), transformFile);
+        if (RealTransformHelper.readInverseGrid(gson, transformFile) != null) {
+            throw new RuntimeException("A grid which does not match the transform file should be ignored");
+        }
+        System.out.println("Transform file read with its inverse grid");
+    }
+
+    static void write(Gson gson, RealTransform transform, File file) throws IOException {
+        try (Writer writer = new FileWriter(file)) {
+            gson.toJson(transform, RealTransform.class, writer);
+        }
+    }
+
+    /**
+     * @return a thin plate spline with random landmarks over a slide, wrapped as in Warpy registrations
+     */
+    static InvertibleRealTransform createWarpyTransform() {
+        Random random = new Random(42);
+        double[][] fixed = new double[2][nLandmarks];
+        double[][] moving = new double[2][nLandmarks];
+        for (int i = 0; i < nLandmarks; i++) {
+            fixed[0][i] = random.nextDouble() * sizeX;
+            fixed[1][i] = random.nextDouble() * sizeY;
+            moving[0][i] = fixed[0][i] + random.nextGaussian() * 50;
+            moving[1][i] = fixed[1][i] + random.nextGaussian() * 50;
+        }
+        return new InvertibleWrapped2DTransformAs3D(new WrappedIterativeInvertibleRealTransform<>(
+                new ThinplateSplineTransform(new ThinPlateR2LogRSplineKernelTransform(2, fixed, moving))));
+    }
+
+    @Test
+    public void demoRunOk() {
+        main("quick");
+    }
+}
@@ -0,0 +1,160 @@
+package process;
+
+import bdv.util.BatchRealTransform;
+import bdv.util.RandomAccessibleIntervalSource;
+import bdv.util.source.field.NativeRealPoint3D;
+import bdv.util.source.field.ResampledTransformFieldSource;
+import bdv.viewer.Source;
+import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.RealTransform;
+import net.imglib2.realtransform.ThinplateSplineTransform;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.view.Views;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Compares the eager and the lazy {@link ResampledTransformFieldSource} for a thin plate spline
+ * transform sampled on a 2D slide: time to the first pixel, time to read the complete field once
+ * computed, and checks that both fields are equal. Also compares the point by point evaluation of the
+ * thin plate spline with the batch evaluation of {@link BatchRealTransform}.
+ */
+public class TransformFieldBenchmark {
+
+    static final int sizeX = 2000;
+    static final int sizeY = 1500;
+    static final int nLandmarks = 40;
+
+    public static void main(String... args) {
+        AffineTransform3D location = new AffineTransform3D();
+        location.scale(10, 10, 1);
+        Source<UnsignedByteType> model = new RandomAccessibleIntervalSource<>(
+                ArrayImgs.unsignedBytes(sizeX, sizeY, 1), new UnsignedByteType(), location, "Model");
+
+        RealTransform transform = createThinPlateSpline();
+
+        ResampledTransformFieldSource eager = new ResampledTransformFieldSource(transform, model, "Eager", false);
+        ResampledTransformFieldSource lazy = new ResampledTransformFieldSource(transform, model, "Lazy", true);
+
+        long eagerFirstPixel = timeToFirstPixel(eager);
+        long lazyFirstPixel = timeToFirstPixel(lazy);
+        System.out.println("Time to first pixel - eager: " + eagerFirstPixel + " ms, lazy: " + lazyFirstPixel + " ms");
+
+        long lazyFullComputation = readAll(lazy.getSource(0, 0));
+        System.out.println("Lazy - computation of all cells: " + lazyFullComputation + " ms");
+
+        long eagerSteady = readAll(eager.getSource(0, 0));
+        long lazySteady = readAll(lazy.getSource(0, 0));
+        System.out.println("Steady state read of the field - eager: " + eagerSteady + " ms, lazy: " + lazySteady + " ms");
+
+        assertEqual(eager.getSource(0, 0), lazy.getSource(0, 0));
+
+        compareBatchEvaluation(transform);
+    }
+
+    static void compareBatchEvaluation(RealTransform transform) {
+        BatchRealTransform batch = new BatchRealTransform(transform);
+        if (!batch.isAccelerated()) throw new AssertionError("The thin plate spline should be evaluated in batch");
+
+        int n = sizeX * 100;
+        double[][] points = new double[3][n];
+        double[][] expected = new double[3][n];
+        double[][] actual = new double[3][n];
+        Random random = new Random(1);
+        for (int i = 0; i < n; i++) {
+            points[0][i] = random.nextDouble() * sizeX * 10;
+            points[1][i] = random.nextDouble() * sizeY * 10;
+            points[2][i] = random.nextDouble();
+        }
+
+        long start = System.currentTimeMillis();
+        double[] p = new double[3], q = new double[3];
+        for (int i = 0; i < n; i++) {
+            for (int d = 0; d < 3; d++) p[d] = points[d][i];
+            transform.apply(p, q);
+            for (int d = 0; d < 3; d++) expected[d][i] = q[d];
+        }
+        long pointByPoint = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        int blockSize = 128;
+        double[][] src = new double[3][blockSize];
+        double[][] tgt = new double[3][blockSize];
+        for (int i = 0; i < n; i += blockSize) {
+            int count = Math.min(blockSize, n - i);
+            for (int d = 0; d < 3; d++) System.arraycopy(points[d], i, src[d], 0, count);
+            batch.apply(src, tgt, count);
+            for (int d = 0; d < 3; d++) System.arraycopy(tgt[d], 0, actual[d], i, count);
+        }
+        long batched = System.currentTimeMillis() - start;
+        System.out.println("Thin plate spline, " + n + " points - point by point: " + pointByPoint + " ms, batch: " + batched + " ms");
+
+        for (int i = 0; i < n; i++) {
+            for (int d = 0; d < 3; d++) {
+                if (Math.abs(expected[d][i] - actual[d][i]) > 1e-3) {
+                    throw new AssertionError("Batch evaluation differs for point " + i);
+                }
+            }
+        }
+    }
+
+    static RealTransform createThinPlateSpline() {
+        Random random = new Random(42);
+        double[][] fixed = new double[3][nLandmarks];
+        double[][] moving = new double[3][nLandmarks];
+        for (int i = 0; i < nLandmarks; i++) {
+            fixed[0][i] = random.nextDouble() * sizeX * 10;
+            fixed[1][i] = random.nextDouble() * sizeY * 10;
+            fixed[2][i] = random.nextDouble();
+            moving[0][i] = fixed[0][i] + random.nextGaussian() * 100;
+            moving[1][i] = fixed[1][i] + random.nextGaussian() * 100;
+            moving[2][i] = fixed[2][i];
+        }
+        return new ThinplateSplineTransform(new ThinPlateR2LogRSplineKernelTransform(3, fixed, moving));
+    }
+
+    static long timeToFirstPixel(ResampledTransformFieldSource field) {
+        long start = System.currentTimeMillis();
+        RandomAccess<NativeRealPoint3D> access = field.getSource(0, 0).randomAccess();
+        access.setPosition(new long[]{sizeX / 2, sizeY / 2, 0});
+        access.get().getDoublePosition(0);
+        return System.currentTimeMillis() - start;
+    }
+
+    static long readAll(RandomAccessibleInterval<NativeRealPoint3D> rai) {
+        long start = System.currentTimeMillis();
+        double checksum = 0;
+        for (NativeRealPoint3D p : Views.flatIterable(rai)) {
+            checksum += p.getDoublePosition(0);
+        }
+        if (checksum == 0) System.out.println("Empty field");
+        return System.currentTimeMillis() - start;
+    }
+
+    static void assertEqual(RandomAccessibleInterval<NativeRealPoint3D> expected, RandomAccessibleInterval<NativeRealPoint3D> actual) {
+        Cursor<NativeRealPoint3D> cExpected = Views.flatIterable(expected).cursor();
+        Cursor<NativeRealPoint3D> cActual = Views.flatIterable(actual).cursor();
+        while (cExpected.hasNext()) {
+            NativeRealPoint3D e = cExpected.next();
+            NativeRealPoint3D a = cActual.next();
+            for (int d = 0; d < 3; d++) {
+                // Float storage, and the voxel positions of the lazy field are computed along X lines
+                if (Math.abs(e.getDoublePosition(d) - a.getDoublePosition(d)) > 1e-2) {
+                    throw new AssertionError("Fields differ at " + cExpected.getLongPosition(0) + ":"
+                            + cExpected.getLongPosition(1) + ":" + cExpected.getLongPosition(2));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void demoRunOk() {
+        main("");
+    }
+}
@@ -0,0 +1,161 @@
+package register;
+
+import bdv.util.RandomAccessibleIntervalSource;
+import bdv.viewer.SourceAndConverter;
+import ch.epfl.biop.source.register.BlockMatching2DRegister;
+import ch.epfl.biop.source.register.ResampledPatchProvider;
+import net.imglib2.Cursor;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealPoint;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.real.FloatType;
+import org.junit.Test;
+import sc.fiji.bdvpg.source.SourceHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registers a grid of landmarks with {@link BlockMatching2DRegister} between a synthetic image and the same
+ * image placed with a known affine transform (small rotation, scaling and translation). Prints the time per
+ * landmark and the mean and maximal error of the corresponding points, in pixels, compared to the known transform.
+ * The landmarks are registered a first time by sampling the sources for each landmark, and a second time by
+ * cropping the patches from sources resampled once by a {@link ResampledPatchProvider}, whose read ratio is printed.
+ * The landmarks are multiples of the pixel size, and the patches are made of an odd number of pixels, centered on
+ * the pixel of the landmark: the patches are aligned on the resampled pixels, and are cropped with the nearest
+ * neighbor interpolation.
+ *
+ * This is a plain main based benchmark, as the other benchmarks of this repository: pass "quick" as argument
+ * to run only the smallest configuration.
+ */
+public class BlockMatchingRegisterBenchmark {
+
+    static final int[] imageSizes = new int[]{512, 2048};
+
+    static final int[] gridSizes = new int[]{4, 16};
+
+    static final int numThreads = Runtime.getRuntime().availableProcessors();
+
+    public static void main(String... args) {
+        boolean quick = (args.length > 0) && args[0].equals("quick");
+        for (int i = 0; i < imageSizes.length; i++) {
+            benchmark(imageSizes[i], gridSizes[i]);
+            if (quick) return;
+        }
+    }
+
+    static void benchmark(int imageSize, int gridSize) {
+        ArrayImg<FloatType, FloatArray> img = syntheticImage(imageSize);
+
+        AffineTransform3D movingLocation = new AffineTransform3D();
+        movingLocation.rotate(2, Math.PI / 90);
+        movingLocation.scale(1.02, 0.99, 1);
+        movingLocation.translate(7.3, -4.6, 0);
+
+        SourceAndConverter<?> fixed = SourceHelper.createSourceAndConverter(
+                new RandomAccessibleIntervalSource<>(img, new FloatType(), new AffineTransform3D(), "fixed"));
+        SourceAndConverter<?> moving = SourceHelper.createSourceAndConverter(
+                new RandomAccessibleIntervalSource<>(img, new FloatType(), movingLocation, "moving"));
+
+        double blockSize = (double) imageSize / gridSize;
+        List<RealPoint> landmarks = new ArrayList<>();
+        for (int x = 0; x < gridSize; x++) {
+            for (int y = 0; y < gridSize; y++) {
+                landmarks.add(new RealPoint((x + 0.5) * blockSize, (y + 0.5) * blockSize, 0));
+            }
+        }
+
+        double pxSize = Math.max(1, blockSize / 128);
+        double patchSize = blockSize + pxSize; // Odd number of pixels
+        register("Direct sampling", landmarks, movingLocation, imageSize,
+                new SourceAndConverter[]{fixed}, new SourceAndConverter[]{moving}, pxSize, patchSize, true);
+
+        FinalRealInterval region = new FinalRealInterval(new double[]{-blockSize, -blockSize},
+                new double[]{imageSize + blockSize, imageSize + blockSize});
+        ResampledPatchProvider fixedPatches = new ResampledPatchProvider(new SourceAndConverter[]{fixed}, 0, 0, pxSize,
+                region, 0, true, 128);
+        ResampledPatchProvider movingPatches = new ResampledPatchProvider(new SourceAndConverter[]{moving}, 0, 0, pxSize,
+                region, 0, true, 128);
+        register("Shared resampled patches", landmarks, movingLocation, imageSize,
+                fixedPatches.getSources(), movingPatches.getSources(), pxSize, patchSize, false);
+        System.out.println(String.format("Read ratio - fixed: %.2f, moving: %.2f, %.1f MB read",
+                fixedPatches.getReadRatio(), movingPatches.getReadRatio(),
+                (fixedPatches.getBytesRead() + movingPatches.getBytesRead()) / 1e6));
+    }
+
+    static void register(String mode, List<RealPoint> landmarks, AffineTransform3D movingLocation, int imageSize,
+                         SourceAndConverter<?>[] fixed, SourceAndConverter<?>[] moving, double pxSize, double patchSize,
+                         boolean interpolate) {
+        BlockMatching2DRegister register = new BlockMatching2DRegister(
+                fixed, 0, 0, 0,
+                moving, 0, 0, 0,
+                pxSize, patchSize, patchSize);
+        register.setInterpolate(interpolate);
+
+        Map<RealPoint, AffineTransform3D> results = new ConcurrentHashMap<>();
+        long start = System.nanoTime();
+        register.registerAll(landmarks, numThreads, null, (pt, at) -> {
+            if (at != null) results.put(pt, at);
+        });
+        long nanos = System.nanoTime() - start;
+
+        // The moving sources should be transformed by the inverse of their location to be aligned
+        AffineTransform3D expected = movingLocation.inverse();
+        double sumError = 0, maxError = 0;
+        for (Map.Entry<RealPoint, AffineTransform3D> result : results.entrySet()) {
+            RealPoint registered = new RealPoint(3);
+            RealPoint truth = new RealPoint(3);
+            result.getValue().apply(result.getKey(), registered);
+            expected.apply(result.getKey(), truth);
+            double error = Math.hypot(
+                    registered.getDoublePosition(0) - truth.getDoublePosition(0),
+                    registered.getDoublePosition(1) - truth.getDoublePosition(1));
+            sumError += error;
+            maxError = Math.max(maxError, error);
+        }
+        System.out.println(String.format(
+                "%s - image %d px, %d landmarks, patches of %d px: %.1f ms per landmark on %d threads, %d registered, mean error %.3f px, max error %.3f px",
+                mode, imageSize, landmarks.size(), register.getPatchSize()[0], nanos / 1e6 / landmarks.size() * numThreads, numThreads,
+                results.size(), sumError / Math.max(1, results.size()), maxError));
+    }
+
+    /**
+     * @return random gaussian blobs of various sizes, on a 2D image with a single z plane
+     */
+    static ArrayImg<FloatType, FloatArray> syntheticImage(int size) {
+        Random random = new Random(42);
+        int nBlobs = size * size / 400;
+        float[] pixels = new float[size * size];
+        for (int i = 0; i < nBlobs; i++) {
+            double cx = random.nextDouble() * size;
+            double cy = random.nextDouble() * size;
+            double sigma = 2 + random.nextDouble() * 6;
+            double amplitude = 50 + random.nextDouble() * 200;
+            int radius = (int) Math.ceil(3 * sigma);
+            for (int y = Math.max(0, (int) cy - radius); y < Math.min(size, (int) cy + radius); y++) {
+                for (int x = Math.max(0, (int) cx - radius); x < Math.min(size, (int) cx + radius); x++) {
+                    double d2 = (x - cx) * (x - cx) + (y - cy) * (y - cy);
+                    pixels[y * size + x] += (float) (amplitude * Math.exp(-d2 / (2 * sigma * sigma)));
+                }
+            }
+        }
+        ArrayImg<FloatType, FloatArray> img = ArrayImgs.floats(size, size, 1);
+        Cursor<FloatType> cursor = img.cursor();
+        int i = 0;
+        while (cursor.hasNext()) {
+            cursor.next().set(pixels[i++] + (float) (5 * random.nextGaussian()));
+        }
+        return img;
+    }
+
+    @Test
+    public void demoRunOk() {
+        main("quick");
+    }
+}
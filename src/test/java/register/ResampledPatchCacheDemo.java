@@ -0,0 +1,100 @@
+package register;
+
+import bdv.util.RandomAccessibleIntervalSource;
+import bdv.viewer.SourceAndConverter;
+import ch.epfl.biop.command.register.SourcesMultiscaleRegisterCommand;
+import ch.epfl.biop.source.register.ResampledPatchCache;
+import ch.epfl.biop.source.register.ResampledPatchProvider;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.real.FloatType;
+import org.junit.Test;
+import sc.fiji.bdvpg.source.SourceHelper;
+
+/**
+ * Resamples, as a batch registration does before each pair, the first scale of several moving images
+ * registered to the same fixed image, through a {@link ResampledPatchCache}. Checks that the fixed image is
+ * resampled once for all pairs, that a prefetched image is completely resampled, reading each voxel of the
+ * original image about once, and is not resampled again, and that the quantized pixel sizes stay close to the requested ones. Prints the time
+ * spent with and without the cache.
+ *
+ * This is a plain main based demo, as the other benchmarks of this repository: pass "quick" as argument
+ * to use fewer pairs.
+ */
+public class ResampledPatchCacheDemo {
+
+    static final int imageSize = 2048;
+
+    static final int nScales = 4;
+
+    static final int pixelsPerBlock = 128;
+
+    public static void main(String... args) {
+        boolean quick = (args.length > 0) && args[0].equals("quick");
+        int nPairs = quick ? 3 : 10;
+
+        ArrayImg<FloatType, FloatArray> img = BlockMatchingRegisterBenchmark.syntheticImage(imageSize);
+        SourceAndConverter<?>[] fixed = new SourceAndConverter[]{SourceHelper.createSourceAndConverter(
+                new RandomAccessibleIntervalSource<>(img, new FloatType(), new AffineTransform3D(), "fixed"))};
+        SourceAndConverter<?>[][] movings = new SourceAndConverter[nPairs][];
+        for (int i = 0; i < nPairs; i++) {
+            AffineTransform3D location = new AffineTransform3D();
+            location.translate(100 * i, -50 * i, 3 * i);
+            movings[i] = new SourceAndConverter[]{SourceHelper.createSourceAndConverter(
+                    new RandomAccessibleIntervalSource<>(img, new FloatType(), location, "moving_" + i))};
+        }
+
+        // Without cache: each pair resamples its fixed and moving images
+        long start = System.currentTimeMillis();
+        for (SourceAndConverter<?>[] moving : movings) {
+            SourcesMultiscaleRegisterCommand.prefetchFirstScale(new ResampledPatchCache(2), fixed, moving,
+                    nScales, true, true, pixelsPerBlock);
+        }
+        long withoutCache = System.currentTimeMillis() - start;
+
+        ResampledPatchCache cache = new ResampledPatchCache(2 * nPairs);
+        start = System.currentTimeMillis();
+        for (SourceAndConverter<?>[] moving : movings) {
+            SourcesMultiscaleRegisterCommand.prefetchFirstScale(cache, fixed, moving,
+                    nScales, true, true, pixelsPerBlock);
+        }
+        long withCache = System.currentTimeMillis() - start;
+        System.out.println(String.format("%d pairs resampled - without cache: %d ms, with cache: %d ms (%s)",
+                nPairs, withoutCache, withCache, cache.getStatus()));
+
+        // One fixed image and one moving image per pair
+        if (cache.getMisses() != nPairs + 1) throw new RuntimeException("The fixed image should be resampled once, got "+cache.getMisses()+" misses");
+        if (cache.getHits() != nPairs - 1) throw new RuntimeException("The fixed image should be shared, got "+cache.getHits()+" hits");
+
+        // Same pixel size as the one of the prefetch: all the images have the same size, and are centered
+        double[] firstBlock = SourcesMultiscaleRegisterCommand.getBlockSizesPerScale(imageSize - 1, imageSize - 1, nScales).get(0);
+        double pxSize = ResampledPatchCache.quantizePixelSize(Math.max(firstBlock[0], firstBlock[1]) / pixelsPerBlock);
+        ResampledPatchProvider fixedPatches = cache.get(fixed, 0, pxSize, 0, pixelsPerBlock);
+        if (cache.getMisses() != nPairs + 1) throw new RuntimeException("The fixed image of the first scale should be cached");
+        long resampled = fixedPatches.getResampledPixels();
+        fixedPatches.prefetch();
+        System.out.println(String.format("Fixed image: %d x %d pixels, read ratio %.2f",
+                fixedPatches.getDimensions()[0], fixedPatches.getDimensions()[1], fixedPatches.getReadRatio()));
+        if (Math.abs(fixedPatches.getReadRatio() - 1) > 0.1) throw new RuntimeException("Read ratio should be about 1, got "+fixedPatches.getReadRatio());
+        long voxelsRead = fixedPatches.getVoxelsRead();
+        fixedPatches.prefetch();
+        if (fixedPatches.getVoxelsRead() != voxelsRead) throw new RuntimeException("A prefetched image should not be read again");
+        if (fixedPatches.getResampledPixels() != resampled) throw new RuntimeException("A prefetched image should not be resampled again");
+
+        for (double px = 0.1; px < 100; px *= 1.37) {
+            double quantized = ResampledPatchCache.quantizePixelSize(px);
+            if ((quantized > px * (1 + 1e-9)) || (quantized < px / Math.pow(2, 0.25) * (1 - 1e-9))) {
+                throw new RuntimeException("Pixel size " + px + " quantized to " + quantized);
+            }
+            if (ResampledPatchCache.quantizePixelSize(quantized) != quantized) {
+                throw new RuntimeException("Quantized pixel size " + quantized + " should be stable");
+            }
+        }
+    }
+
+    @Test
+    public void demoRunOk() {
+        main("quick");
+    }
+}
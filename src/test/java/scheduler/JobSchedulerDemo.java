@@ -0,0 +1,81 @@
+package scheduler;
+
+import ch.epfl.biop.scheduler.JobScheduler;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Submits batch jobs of various memory footprints to a {@link JobScheduler}, then interactive jobs, and checks
+ * that the number of running jobs and their memory never exceed the limits of the scheduler, and that
+ * the interactive jobs start before the batch jobs still waiting. Prints the status of the scheduler during the run.
+ */
+public class JobSchedulerDemo {
+
+    static final int maxConcurrentJobs = 4;
+
+    static final long memoryBudget = 1000;
+
+    public static void main(String... args) throws Exception {
+        JobScheduler scheduler = new JobScheduler(maxConcurrentJobs, memoryBudget, 1000);
+
+        AtomicInteger running = new AtomicInteger();
+        AtomicLong memory = new AtomicLong();
+        AtomicInteger maxRunning = new AtomicInteger();
+        AtomicLong maxMemory = new AtomicLong();
+        AtomicInteger startOrder = new AtomicInteger();
+        AtomicInteger lastInteractiveStart = new AtomicInteger();
+        AtomicInteger firstLateBatchStart = new AtomicInteger(Integer.MAX_VALUE);
+
+        List<Future<?>> futures = new ArrayList<>();
+        int nBatch = 40;
+        for (int i = 0; i < nBatch; i++) {
+            final long jobMemory = 100 + (i % 4) * 150; // 100 to 550
+            final int index = i;
+            futures.add(scheduler.submit("Batch " + i, JobScheduler.Priority.BATCH, jobMemory, () -> {
+                int order = startOrder.incrementAndGet();
+                if (index >= nBatch - 10) firstLateBatchStart.accumulateAndGet(order, Math::min);
+                run(jobMemory, running, memory, maxRunning, maxMemory);
+            }));
+        }
+        System.out.println(scheduler.getStatus());
+        for (int i = 0; i < 5; i++) {
+            futures.add(scheduler.submit("Interactive " + i, JobScheduler.Priority.INTERACTIVE, 100, () -> {
+                lastInteractiveStart.accumulateAndGet(startOrder.incrementAndGet(), Math::max);
+                run(100, running, memory, maxRunning, maxMemory);
+            }));
+        }
+        System.out.println(scheduler.getStatus());
+
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        System.out.println(scheduler.getStatus());
+        System.out.println("Max running jobs: " + maxRunning.get() + ", max memory: " + maxMemory.get());
+
+        if (maxRunning.get() > maxConcurrentJobs) throw new RuntimeException("Too many jobs running at the same time");
+        if (maxMemory.get() > memoryBudget) throw new RuntimeException("Memory budget exceeded");
+        if (lastInteractiveStart.get() > firstLateBatchStart.get()) throw new RuntimeException("Interactive jobs started after batch jobs");
+    }
+
+    static void run(long jobMemory, AtomicInteger running, AtomicLong memory, AtomicInteger maxRunning, AtomicLong maxMemory) {
+        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+        maxMemory.accumulateAndGet(memory.addAndGet(jobMemory), Math::max);
+        try {
+            Thread.sleep(20);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        memory.addAndGet(-jobMemory);
+        running.decrementAndGet();
+    }
+
+    @Test
+    public void demoRunOk() throws Exception {
+        main();
+    }
+}